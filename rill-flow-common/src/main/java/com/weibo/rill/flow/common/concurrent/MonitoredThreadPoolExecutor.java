@@ -0,0 +1,99 @@
+/*
+ *  Copyright 2021-2023 Weibo, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.weibo.rill.flow.common.concurrent;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 有界队列线程池 队列及线程均已满时由提交线程执行任务 已提交的任务不会被丢弃 同时减缓提交方
+ * 统计任务排队耗时 过载判断由调用方在入口处根据队列长度及排队耗时完成
+ */
+public class MonitoredThreadPoolExecutor extends ThreadPoolExecutor {
+    private static final double WAIT_EWMA_WEIGHT = 0.2;
+
+    private final AtomicLong averageWaitBits = new AtomicLong(Double.doubleToLongBits(0));
+    private final int queueCapacity;
+
+    public MonitoredThreadPoolExecutor(int corePoolSize, int maximumPoolSize, long keepAliveTime, TimeUnit unit,
+                                       int queueCapacity, ThreadFactory threadFactory) {
+        super(corePoolSize, maximumPoolSize, keepAliveTime, unit, new LinkedBlockingQueue<>(queueCapacity), threadFactory,
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        this.queueCapacity = queueCapacity;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        if (command == null) {
+            throw new NullPointerException();
+        }
+        super.execute(new TimedRunnable(command, System.currentTimeMillis()));
+    }
+
+    public int getQueueDepth() {
+        return getQueue().size();
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * 队首任务已排队时长 线程全部阻塞时平均值不再更新 该值仍能反映积压情况
+     */
+    public long getHeadWaitInMillis() {
+        Runnable head = getQueue().peek();
+        return head instanceof TimedRunnable ? System.currentTimeMillis() - ((TimedRunnable) head).enqueueTime : 0L;
+    }
+
+    /**
+     * 最近开始执行任务的排队时长 指数加权平均
+     */
+    public double getAverageWaitInMillis() {
+        return Double.longBitsToDouble(averageWaitBits.get());
+    }
+
+    private void recordWait(long waitInMillis) {
+        long current;
+        long updated;
+        do {
+            current = averageWaitBits.get();
+            double average = Double.longBitsToDouble(current);
+            updated = Double.doubleToLongBits(average + WAIT_EWMA_WEIGHT * (waitInMillis - average));
+        } while (!averageWaitBits.compareAndSet(current, updated));
+    }
+
+    private class TimedRunnable implements Runnable {
+        private final Runnable command;
+        private final long enqueueTime;
+
+        TimedRunnable(Runnable command, long enqueueTime) {
+            this.command = command;
+            this.enqueueTime = enqueueTime;
+        }
+
+        @Override
+        public void run() {
+            recordWait(System.currentTimeMillis() - enqueueTime);
+            command.run();
+        }
+    }
+}
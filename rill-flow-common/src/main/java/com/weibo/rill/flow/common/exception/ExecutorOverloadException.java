@@ -0,0 +1,33 @@
+/*
+ *  Copyright 2021-2023 Weibo, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.weibo.rill.flow.common.exception;
+
+import com.weibo.rill.flow.common.model.BizError;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * 执行线程池积压时拒绝新的提交 调用方可稍后重试
+ */
+@ResponseStatus(HttpStatus.TOO_MANY_REQUESTS)
+public class ExecutorOverloadException extends TaskException {
+
+    public ExecutorOverloadException(final String errorMsg) {
+        super(BizError.ERROR_RUNTIME_EXECUTOR_OVERLOAD, errorMsg);
+    }
+}
@@ -42,6 +42,7 @@ public enum BizError {
 
     ERROR_RUNTIME_STORAGE_USAGE_LIMIT(100, "dag runtime storage usage limit"),
     ERROR_RUNTIME_RESOURCE_STATUS_LIMIT(101, "dag runtime resource status limit"),
+    ERROR_RUNTIME_EXECUTOR_OVERLOAD(102, "dag runtime executor overload"),
     ;
 
     private static final int BASE_ERROR_CODE = 30100;
@@ -21,7 +21,13 @@ public class ReservedConstant {
     // PLACEHOLDER 值在脚本中有使用, 属性值修改后需同步修改脚本
     public static final String PLACEHOLDER = "_placeholder_";
     public static final String KEY_PREFIX = "_key_prefix_";
+    public static final String DESCRIPTOR_KEY_ONLY = "_descriptor_key_";
+    public static final String SUB_TASK_INDEX = "_sub_task_index_";
     public static final String SUB_CONTEXT_PREFIX = "__";
+    public static final String AGGREGATION_CONTEXT_SUFFIX = "_aggregation";
+    public static final String ITERATION_CONTEXT_SUFFIX = "_iteration";
+    public static final String INPUT_CONTEXT_SUFFIX = "_input";
+    public static final String INPUT_REFERENCE = "@inputReference";
     public static final String ROUTE_NAME_CONNECTOR = "_";
     public static final String TASK_NAME_CONNECTOR = "-";
 
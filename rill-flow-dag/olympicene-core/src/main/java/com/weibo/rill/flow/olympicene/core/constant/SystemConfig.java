@@ -68,6 +68,40 @@ public class SystemConfig {
         SystemConfig.timerRetryTimes = timerRetryTimes;
     }
 
+    /**
+     * foreach/choice子任务组分批提交
+     * 每批子任务组在一次遍历中提交 执行器中待执行任务数超过上限时等待消化后再提交下一批 单批最长等待时间有限
+     */
+    private static volatile int subTaskSubmitBatchSize = 100;
+
+    private static volatile int subTaskSubmitMaxPendingTasks = 3000;
+
+    private static volatile long subTaskSubmitMaxWaitMillis = 1000;
+
+    public static int getSubTaskSubmitBatchSize() {
+        return subTaskSubmitBatchSize;
+    }
+
+    public static void setSubTaskSubmitBatchSize(int subTaskSubmitBatchSize) {
+        SystemConfig.subTaskSubmitBatchSize = subTaskSubmitBatchSize;
+    }
+
+    public static int getSubTaskSubmitMaxPendingTasks() {
+        return subTaskSubmitMaxPendingTasks;
+    }
+
+    public static void setSubTaskSubmitMaxPendingTasks(int subTaskSubmitMaxPendingTasks) {
+        SystemConfig.subTaskSubmitMaxPendingTasks = subTaskSubmitMaxPendingTasks;
+    }
+
+    public static long getSubTaskSubmitMaxWaitMillis() {
+        return subTaskSubmitMaxWaitMillis;
+    }
+
+    public static void setSubTaskSubmitMaxWaitMillis(long subTaskSubmitMaxWaitMillis) {
+        SystemConfig.subTaskSubmitMaxWaitMillis = subTaskSubmitMaxWaitMillis;
+    }
+
     /**
      * 系统运行插件
      */
@@ -334,6 +334,27 @@ public class DAGWalkHelper {
         return ReservedConstant.SUB_CONTEXT_PREFIX + taskInfoRouteName;
     }
 
+    /**
+     * foreach输出聚合结果按子任务组序号存储 与子任务context同样以SUB_CONTEXT_PREFIX开头 不会出现在父任务context中
+     */
+    public String buildAggregationContextFieldName(String taskInfoName) {
+        return ReservedConstant.SUB_CONTEXT_PREFIX + taskInfoName + ReservedConstant.AGGREGATION_CONTEXT_SUFFIX;
+    }
+
+    /**
+     * foreach循环集合按组序号存储 子任务组按需从中取值构造context
+     */
+    public String buildIterationContextFieldName(String taskInfoName) {
+        return ReservedConstant.SUB_CONTEXT_PREFIX + taskInfoName + ReservedConstant.ITERATION_CONTEXT_SUFFIX;
+    }
+
+    /**
+     * foreach父任务input快照 子任务context通过INPUT_REFERENCE引用 不再逐组复制
+     */
+    public String buildInputContextFieldName(String taskInfoName) {
+        return ReservedConstant.SUB_CONTEXT_PREFIX + taskInfoName + ReservedConstant.INPUT_CONTEXT_SUFFIX;
+    }
+
     public boolean isSubContextFieldName(String fieldName) {
         return fieldName.startsWith(ReservedConstant.SUB_CONTEXT_PREFIX);
     }
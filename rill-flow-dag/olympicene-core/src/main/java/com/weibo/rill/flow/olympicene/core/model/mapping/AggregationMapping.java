@@ -0,0 +1,46 @@
+/*
+ *  Copyright 2021-2023 Weibo, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.weibo.rill.flow.olympicene.core.model.mapping;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+/**
+ * foreach子任务组输出聚合
+ * 每组完成时按source从该组context取值累加 foreach完成时将聚合结果写入target
+ */
+@Getter
+@Setter
+@NoArgsConstructor
+public class AggregationMapping {
+    private String source;
+    private String target;
+    private AggregationType type;
+
+    @JsonCreator
+    public AggregationMapping(
+            @JsonProperty("source") String source,
+            @JsonProperty("target") String target,
+            @JsonProperty("type") AggregationType type) {
+        this.source = source;
+        this.target = target;
+        this.type = type;
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ *  Copyright 2021-2023 Weibo, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.weibo.rill.flow.olympicene.core.model.mapping;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonValue;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+@AllArgsConstructor
+@Getter
+public enum AggregationType {
+    APPEND("append"),  // 按组序号追加为列表
+    COUNT("count"),    // 统计值不为空的组数
+    SUM("sum"),        // 数值求和
+    MERGE("merge"),    // 按组序号合并map
+    ;
+
+    private final String value;
+
+    @JsonValue
+    public String getValue() {
+        return value;
+    }
+
+    @JsonCreator
+    public static AggregationType forValues(String value) {
+        for (AggregationType item : AggregationType.values()) {
+            if (item.value.equals(value)) {
+                return item;
+            }
+        }
+
+        return null;
+    }
+}
@@ -27,6 +27,7 @@ import org.apache.commons.lang3.tuple.Pair;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 
 @Builder
@@ -42,4 +43,8 @@ public class ExecutionResult {
     private DAGInfo dagInfo;
     private List<Pair<Set<TaskInfo>, Map<String, Object>>> subTaskInfosAndContext;
     private String taskNameNeedToTraversal;
+    /**
+     * 任务异步执行中 完成后的执行结果
+     */
+    private CompletableFuture<ExecutionResult> asyncResult;
 }
@@ -24,6 +24,7 @@ import com.weibo.rill.flow.interfaces.model.strategy.Degrade;
 import com.weibo.rill.flow.interfaces.model.strategy.Progress;
 import com.weibo.rill.flow.interfaces.model.strategy.Timeline;
 import com.weibo.rill.flow.interfaces.model.task.BaseTask;
+import com.weibo.rill.flow.olympicene.core.model.mapping.AggregationMapping;
 import com.weibo.rill.flow.olympicene.core.model.mapping.IterationMapping;
 import com.weibo.rill.flow.olympicene.core.model.strategy.Synchronization;
 import lombok.Getter;
@@ -39,6 +40,10 @@ public class ForeachTask extends BaseTask {
     private Synchronization synchronization;
     private IterationMapping iterationMapping;
     private List<BaseTask> tasks;
+    /**
+     * 子任务组完成时增量聚合输出 foreach完成时无需读取全部子任务context
+     */
+    private List<AggregationMapping> aggregations;
 
     @JsonCreator
     public ForeachTask(
@@ -18,7 +18,10 @@ package com.weibo.rill.flow.olympicene.core.runtime;
 
 
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
 
 public interface DAGContextStorage {
 
@@ -28,5 +31,18 @@ public interface DAGContextStorage {
 
     Map<String, Object> getContext(String executionId, Collection<String> fields);
 
+    /**
+     * 获取子context中的部分字段 默认读取整个子context后过滤
+     */
+    @SuppressWarnings("unchecked")
+    default Map<String, Object> getSubContextFields(String executionId, String subContextName, Collection<String> fields) {
+        Map<String, Object> subContext = Optional.ofNullable(getContext(executionId, Set.of(subContextName)))
+                .map(it -> (Map<String, Object>) it.get(subContextName))
+                .orElse(Map.of());
+        Map<String, Object> ret = new HashMap<>();
+        fields.forEach(field -> Optional.ofNullable(subContext.get(field)).ifPresent(value -> ret.put(field, value)));
+        return ret;
+    }
+
     void clearContext(String executionId);
 }
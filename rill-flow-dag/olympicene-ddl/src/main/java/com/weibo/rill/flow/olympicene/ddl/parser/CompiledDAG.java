@@ -0,0 +1,49 @@
+/*
+ *  Copyright 2021-2023 Weibo, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.weibo.rill.flow.olympicene.ddl.parser;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.weibo.rill.flow.olympicene.core.exception.SerializationException;
+import com.weibo.rill.flow.olympicene.core.model.dag.DAG;
+import com.weibo.rill.flow.olympicene.ddl.constant.DDLErrorCode;
+import com.weibo.rill.flow.olympicene.ddl.exception.DDLException;
+import com.weibo.rill.flow.olympicene.ddl.serialize.Serializer;
+
+/**
+ * 已通过校验的dag描述
+ * <pre>
+ * 保存校验后dag的语法树 省去文本解析与校验
+ * DAG bean在提交执行时会被修改 因此每次调用newDAG都由语法树生成新的bean 语法树本身只读 可被多线程共享
+ * </pre>
+ */
+public class CompiledDAG {
+    private final JsonNode tree;
+    private final Serializer serializer;
+
+    CompiledDAG(JsonNode tree, Serializer serializer) {
+        this.tree = tree;
+        this.serializer = serializer;
+    }
+
+    public DAG newDAG() {
+        try {
+            return serializer.deserialize(tree, DAG.class);
+        } catch (SerializationException e) {
+            throw new DDLException(DDLErrorCode.DAG_DESCRIPTOR_INVALID.getCode(), e.getMessage());
+        }
+    }
+}
@@ -77,6 +77,21 @@ public class DAGStringParser implements DAGParser<String> {
         }
     }
 
+    /**
+     * 解析并校验dag描述 返回的CompiledDAG可重复生成DAG bean
+     * 描述内容相同时校验结果相同 调用方可按描述内容(如md5)缓存CompiledDAG
+     * 校验会补全部分任务属性(如只声明resourceProtocol的任务的resourceName) 因此保存的是校验后DAG的语法树
+     */
+    public CompiledDAG compile(String dagDescriptor) {
+        DAG dag = parse(dagDescriptor);
+
+        try {
+            return new CompiledDAG(serializer.readTree(serializer.serialize(dag)), serializer);
+        } catch (SerializationException e) {
+            throw new DDLException(DDLErrorCode.DAG_DESCRIPTOR_INVALID.getCode(), e.getMessage());
+        }
+    }
+
     public String serialize(DAG dag) {
         try {
             return serializer.serializeToString(dag);
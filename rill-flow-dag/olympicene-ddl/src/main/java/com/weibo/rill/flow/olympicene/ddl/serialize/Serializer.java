@@ -16,6 +16,7 @@
 
 package com.weibo.rill.flow.olympicene.ddl.serialize;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.weibo.rill.flow.olympicene.core.exception.SerializationException;
 
 import java.nio.charset.StandardCharsets;
@@ -26,6 +27,10 @@ public interface Serializer {
 
     <T> T deserialize(byte[] bytes, Class<T> type) throws SerializationException;
 
+    JsonNode readTree(byte[] bytes) throws SerializationException;
+
+    <T> T deserialize(JsonNode tree, Class<T> type) throws SerializationException;
+
     default String serializeToString(Object object) throws SerializationException {
         byte[] result = serialize(object);
         return result == null ? null : new String(result, StandardCharsets.UTF_8);
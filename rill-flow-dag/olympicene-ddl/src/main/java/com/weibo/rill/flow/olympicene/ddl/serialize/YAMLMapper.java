@@ -16,6 +16,7 @@
 
 package com.weibo.rill.flow.olympicene.ddl.serialize;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import java.io.IOException;
@@ -34,6 +35,14 @@ public class YAMLMapper {
         return MAPPER.readValue(bytes, type);
     }
 
+    public static JsonNode readTree(final byte[] bytes) throws IOException {
+        return MAPPER.readTree(bytes);
+    }
+
+    public static <T> T treeToValue(final JsonNode tree, final Class<T> type) throws IOException {
+        return MAPPER.treeToValue(tree, type);
+    }
+
     public static <T> byte[] toBytes(final T t) throws IOException {
         return MAPPER.writeValueAsBytes(t);
     }
@@ -16,6 +16,7 @@
 
 package com.weibo.rill.flow.olympicene.ddl.serialize;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.weibo.rill.flow.olympicene.core.exception.SerializationException;
 import com.weibo.rill.flow.olympicene.ddl.constant.DDLErrorCode;
 
@@ -39,4 +40,22 @@ public class YAMLSerializer implements Serializer {
             throw new SerializationException(DDLErrorCode.SERIALIZATION_FAIL.getCode(), e);
         }
     }
+
+    @Override
+    public JsonNode readTree(byte[] bytes) throws SerializationException {
+        try {
+            return YAMLMapper.readTree(bytes);
+        } catch (IOException e) {
+            throw new SerializationException(DDLErrorCode.SERIALIZATION_FAIL.getCode(), e);
+        }
+    }
+
+    @Override
+    public <T> T deserialize(JsonNode tree, Class<T> type) throws SerializationException {
+        try {
+            return YAMLMapper.treeToValue(tree, type);
+        } catch (IOException e) {
+            throw new SerializationException(DDLErrorCode.SERIALIZATION_FAIL.getCode(), e);
+        }
+    }
 }
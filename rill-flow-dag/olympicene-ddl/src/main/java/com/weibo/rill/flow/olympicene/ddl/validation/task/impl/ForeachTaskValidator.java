@@ -43,6 +43,9 @@ public class ForeachTaskValidator implements TaskValidator<ForeachTask> {
                 , DDLErrorCode.FOREACH_TASK_INVALID.getCode(), String.format(DDLErrorCode.FOREACH_TASK_INVALID.getMessage(), task.getName(), "iterationMapping collection is empty"));
         assertTask(foreachTask, t -> CollectionUtils.isNotEmpty(t.getTasks())
                 , DDLErrorCode.FOREACH_TASK_INVALID.getCode(), String.format(DDLErrorCode.FOREACH_TASK_INVALID.getMessage(), task.getName(), "tasks is empty"));
+        assertTask(foreachTask, t -> CollectionUtils.isEmpty(t.getAggregations()) || t.getAggregations().stream()
+                        .allMatch(it -> it != null && it.getType() != null && StringUtils.isNotEmpty(it.getSource()) && StringUtils.isNotEmpty(it.getTarget()))
+                , DDLErrorCode.FOREACH_TASK_INVALID.getCode(), String.format(DDLErrorCode.FOREACH_TASK_INVALID.getMessage(), task.getName(), "aggregations source, target or type is invalid"));
     }
 
 }
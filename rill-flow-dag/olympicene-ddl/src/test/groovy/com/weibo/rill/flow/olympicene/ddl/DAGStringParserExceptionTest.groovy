@@ -121,4 +121,22 @@ class DAGStringParserExceptionTest extends Specification {
         e.getErrorCode() == DDLErrorCode.TASK_NEXT_INVALID.getCode()
     }
 
+
+    def "test compile dag should throw DDLException when next not exist"() {
+        given:
+        String text = "version: 0.0.1\n" +
+                "namespace: testBusinessId\n" +
+                "service: mca\n" +
+                "type: flow\n" +
+                "tasks: \n" +
+                "- category: pass\n" +
+                "  name: A\n" +
+                "  next: B\n"
+
+        when:
+        new DAGStringParser(new YAMLSerializer(), [new FlowDAGValidator([new NotSupportedTaskValidator()])]).compile(text)
+
+        then:
+        thrown(DDLException)
+    }
 }
@@ -1,12 +1,15 @@
 package com.weibo.rill.flow.olympicene.ddl
 
+import com.weibo.rill.flow.interfaces.model.task.FunctionTask
 import com.weibo.rill.flow.olympicene.core.model.dag.DAG
 import com.weibo.rill.flow.olympicene.core.model.dag.DAGType
 import com.weibo.rill.flow.olympicene.core.model.task.TaskCategory
 import com.weibo.rill.flow.olympicene.core.runtime.DAGParser
+import com.weibo.rill.flow.olympicene.ddl.parser.CompiledDAG
 import com.weibo.rill.flow.olympicene.ddl.parser.DAGStringParser
 import com.weibo.rill.flow.olympicene.ddl.serialize.YAMLSerializer
 import com.weibo.rill.flow.olympicene.ddl.validation.dag.impl.FlowDAGValidator
+import com.weibo.rill.flow.olympicene.ddl.validation.task.impl.FunctionTaskValidator
 import com.weibo.rill.flow.olympicene.ddl.validation.task.impl.NotSupportedTaskValidator
 import spock.lang.Specification
 
@@ -180,5 +183,57 @@ class DAGStringParserTest extends Specification {
         dag.workspace == 'testBusinessId'
         dag.dagName == 'mca'
         dag.type == DAGType.FLOW
+        // 编译后生成的DAG与直接解析的DAG一致
+        new YAMLSerializer().serializeToString(((DAGStringParser) dagParser).compile(text).newDAG()) == new YAMLSerializer().serializeToString(dag)
+    }
+
+    def "test compile dag should create a new dag for each call"() {
+        given:
+        String text = "version: 0.0.1\n" +
+                "namespace: testBusinessId\n" +
+                "service: mca\n" +
+                "type: flow\n" +
+                "tasks: \n" +
+                "- category: pass\n" +
+                "  name: A\n" +
+                "  next: B\n" +
+                "- category: pass\n" +
+                "  name: B\n"
+
+        when:
+        CompiledDAG compiledDAG = new DAGStringParser(new YAMLSerializer(), [new FlowDAGValidator([new NotSupportedTaskValidator()])]).compile(text)
+        DAG first = compiledDAG.newDAG()
+        first.tasks.clear()
+        DAG second = compiledDAG.newDAG()
+
+        then:
+        !first.is(second)
+        second.dagName == 'mca'
+        second.tasks*.name == ['A', 'B']
+        second.tasks[0].next == 'B'
+    }
+
+    def "test compile dag should keep resource name completed by validator"() {
+        given:
+        String text = "version: 0.0.1\n" +
+                "namespace: testBusinessId\n" +
+                "service: mca\n" +
+                "type: flow\n" +
+                "tasks: \n" +
+                "- category: function\n" +
+                "  name: A\n" +
+                "  resourceProtocol: rillflow\n" +
+                "  pattern: task_sync\n"
+
+        when:
+        CompiledDAG compiledDAG = new DAGStringParser(new YAMLSerializer(), [new FlowDAGValidator([new FunctionTaskValidator()])]).compile(text)
+        FunctionTask first = compiledDAG.newDAG().tasks[0] as FunctionTask
+        FunctionTask second = compiledDAG.newDAG().tasks[0] as FunctionTask
+
+        then:
+        first.resourceName == 'rillflow://'
+        second.resourceName == 'rillflow://'
+        second.resourceProtocol == 'rillflow'
+        !first.is(second)
     }
 }
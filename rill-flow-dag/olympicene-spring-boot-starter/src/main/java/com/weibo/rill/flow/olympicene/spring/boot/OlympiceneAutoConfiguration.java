@@ -146,10 +146,12 @@ public class OlympiceneAutoConfiguration {
             @Autowired @Qualifier("dagContextStorage") DAGContextStorage dagContextStorage,
             @Autowired @Qualifier("dagInfoStorage") DAGInfoStorage dagInfoStorage,
             @Autowired @Qualifier("dagStorageProcedure") DAGStorageProcedure dagStorageProcedure,
-            @Autowired @Qualifier("traversalExecutor") ExecutorService traversalExecutor) {
+            @Autowired @Qualifier("traversalExecutor") ExecutorService traversalExecutor,
+            @Autowired SwitcherManager switcherManager) {
         log.info("begin to init default DAGTraversal bean");
         DAGTraversal dagTraversal = new DAGTraversal(dagContextStorage, dagInfoStorage, dagStorageProcedure, traversalExecutor);
         dagTraversal.setStasher(stasher);
+        dagTraversal.setSwitcherManager(switcherManager);
         return dagTraversal;
     }
 
@@ -162,10 +164,13 @@ public class OlympiceneAutoConfiguration {
             @Autowired @Qualifier("dagStorageProcedure") DAGStorageProcedure dagStorageProcedure,
             @Autowired @Qualifier("inputOutputMapping") JSONPathInputOutputMapping inputOutputMapping,
             @Autowired @Qualifier("dagTaskDispatcher") DAGDispatcher dagTaskDispatcher,
+            @Autowired @Qualifier("runnerExecutor") ExecutorService runnerExecutor,
             @Autowired SwitcherManager switcherManager) {
         log.info("begin to init default FunctionTaskRunner bean");
-        return new FunctionTaskRunner(dagTaskDispatcher, inputOutputMapping, dagContextStorage, dagInfoStorage,
-                dagStorageProcedure, switcherManager);
+        FunctionTaskRunner functionTaskRunner = new FunctionTaskRunner(dagTaskDispatcher, inputOutputMapping, dagContextStorage,
+                dagInfoStorage, dagStorageProcedure, switcherManager);
+        functionTaskRunner.setCommitExecutor(runnerExecutor);
+        return functionTaskRunner;
     }
 
     @Bean
@@ -23,7 +23,8 @@ public enum DAGRedisPrefix {
     PREFIX_DAG_INFO("dag_info_"),
     PREFIX_DAG_DESCRIPTOR("dag_descriptor_"),
     PREFIX_SUB_TASK_MAPPING("sub_task_mapping_"),
-    PREFIX_SUB_TASK("sub_task_")
+    PREFIX_SUB_TASK("sub_task_"),
+    PREFIX_SUB_TASK_INDEX("sub_task_index_")
     ;
 
     private final String value;
@@ -25,7 +25,8 @@ public enum StorageErrorCode {
     CLASS_TYPE_NONSUPPORT(5, "class type nonsupport"),
     CONTEXT_GET_FAIL(6, "context get fail"),
     CONTEXT_LENGTH_LIMITATION(7, "context length limitation"),
-    DAG_LENGTH_LIMITATION(8, "dag length limitation")
+    DAG_LENGTH_LIMITATION(8, "dag length limitation"),
+    LOCK_LOST(9, "lock lost")
     ;
 
     private static final int BASE_ERROR_CODE = 30500;
@@ -0,0 +1,102 @@
+/*
+ *  Copyright 2021-2023 Weibo, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.weibo.rill.flow.olympicene.storage.redis.api;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import lombok.AllArgsConstructor;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 一致性hash 每个分片按其在列表中的序号生成virtualNodes个虚拟节点
+ * 分片追加到列表末尾时 只有落在新分片虚拟节点上的key改变归属
+ */
+public class ConsistentHashSharding<T> implements Sharding<T> {
+    private static final int DEFAULT_VIRTUAL_NODES = 160;
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+    private static final ConsistentHashSharding<?> INSTANCE = new ConsistentHashSharding<>(DEFAULT_VIRTUAL_NODES);
+
+    private final int virtualNodes;
+    private final Map<Integer, Ring> sizeToRing = new ConcurrentHashMap<>();
+
+    public ConsistentHashSharding(int virtualNodes) {
+        this.virtualNodes = virtualNodes;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <T> ConsistentHashSharding<T> singleton() {
+        return (ConsistentHashSharding<T>) INSTANCE;
+    }
+
+    @Override
+    public T choose(List<T> clients, byte[] key) {
+        if (clients.isEmpty()) {
+            return null;
+        } else if (clients.size() == 1) {
+            return clients.get(0);
+        } else if (key == null) {
+            return null;
+        } else {
+            Ring ring = sizeToRing.computeIfAbsent(clients.size(), this::buildRing);
+            return clients.get(ring.locate(HASH_FUNCTION.hashBytes(key).asLong()));
+        }
+    }
+
+    private Ring buildRing(int size) {
+        long[][] nodes = new long[size * virtualNodes][];
+        for (int index = 0; index < size; index++) {
+            for (int virtualNode = 0; virtualNode < virtualNodes; virtualNode++) {
+                byte[] nodeName = ("shard-" + index + "#" + virtualNode).getBytes(StandardCharsets.UTF_8);
+                nodes[index * virtualNodes + virtualNode] = new long[]{HASH_FUNCTION.hashBytes(nodeName).asLong(), index};
+            }
+        }
+        Arrays.sort(nodes, Comparator.<long[]>comparingLong(node -> node[0]).thenComparingLong(node -> node[1]));
+
+        long[] points = new long[nodes.length];
+        int[] indexes = new int[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            points[i] = nodes[i][0];
+            indexes[i] = (int) nodes[i][1];
+        }
+        return new Ring(points, indexes);
+    }
+
+    /**
+     * 虚拟节点按hash值排序 key归属于hash值不小于key的第一个虚拟节点
+     */
+    @AllArgsConstructor
+    private static class Ring {
+        private final long[] points;
+        private final int[] indexes;
+
+        int locate(long hash) {
+            int position = Arrays.binarySearch(points, hash);
+            if (position < 0) {
+                position = -position - 1;
+            }
+            return indexes[position == points.length ? 0 : position];
+        }
+    }
+}
@@ -113,10 +113,32 @@ public interface RedisClient {
     // script
     Object eval(String script, List<String> keys, List<String> args);
     Object eval(String script, String shardingKey, List<String> keys, List<String> args);
+
+    /**
+     * 预加载lua脚本 eval时直接通过EVALSHA执行
+     */
+    default void scriptLoad(Collection<String> scripts) {
+    }
+
+    /**
+     * 按顺序执行一批写命令 返回网络往返次数
+     */
+    default int executeBatch(List<RedisWriteCommand> commands) {
+        commands.forEach(command -> command.execute(this));
+        return commands.size();
+    }
+
     long incr(String key);
     long hset(String key, String field, String value);
 
     Set<String> hkeys(String key);
 
     String hget(String key, String field);
+
+    /**
+     * 阻塞弹出列表头部元素 超时返回null 不支持阻塞命令的实现抛出UnsupportedOperationException
+     */
+    default String blpop(String shardingKey, String key, long timeoutInMillis) {
+        throw new UnsupportedOperationException("blpop not supported");
+    }
 }
@@ -28,6 +28,11 @@ import java.util.function.Function;
  */
 public class RedisCodecUtil {
 
+    /**
+     * 以BINARY_MARKER开头的字符串参数承载二进制内容(如Smile格式的value) 每个字符对应一个字节
+     */
+    public static final char BINARY_MARKER = '\u0002';
+
     public static final Function<Object, byte[]> castToByte = o -> {
         if (o instanceof byte[]) {
             return (byte[]) o;
@@ -48,6 +53,34 @@ public class RedisCodecUtil {
         }
     };
 
+    /**
+     * 字符串参数转为发送给redis的字节 二进制内容按ISO-8859-1还原为原始字节 其余按UTF-8编码
+     */
+    public static byte[] encodeArg(String arg) {
+        if (arg == null) {
+            return null;
+        }
+        return isBinary(arg) ? arg.getBytes(StandardCharsets.ISO_8859_1) : arg.getBytes(StandardCharsets.UTF_8);
+    }
+
+    public static List<byte[]> encodeArgs(List<String> args) {
+        List<byte[]> result = new ArrayList<>(args.size());
+        args.forEach(arg -> result.add(encodeArg(arg)));
+        return result;
+    }
+
+    private static boolean isBinary(String arg) {
+        if (arg.isEmpty() || arg.charAt(0) != BINARY_MARKER) {
+            return false;
+        }
+        for (int i = 1; i < arg.length(); i++) {
+            if (arg.charAt(i) > 0xFF) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     public static String getAsString(Object object) {
         if (object == null) {
             return null;
@@ -0,0 +1,167 @@
+/*
+ *  Copyright 2021-2023 Weibo, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.weibo.rill.flow.olympicene.storage.redis.api;
+
+import com.weibo.rill.flow.olympicene.storage.constant.StorageErrorCode;
+import com.weibo.rill.flow.olympicene.storage.exception.StorageException;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+/**
+ * 写批次
+ * <pre>
+ * 一个遍历步骤(持有执行锁期间)内的多次写操作先在当前线程暂存 步骤结束时按客户端通过pipeline一次发送
+ *   1. 同一客户端的命令按加入顺序执行 同一key的写顺序不变
+ *   2. 读操作前需调用flushCurrent 保证读到本步骤已写入的数据
+ *   3. 嵌套的步骤共用外层批次 每个步骤结束时都会提交已暂存的命令
+ *   4. 未开启批次时写命令直接执行
+ *   5. 在guard内时 写命令执行及批次提交前检查是否仍可写(如执行锁未丢失) 不可写时丢弃命令并抛出异常
+ * </pre>
+ */
+@Slf4j
+public class RedisWriteBatch {
+    private static final ThreadLocal<RedisWriteBatch> CURRENT_BATCH = new ThreadLocal<>();
+    private static final ThreadLocal<BooleanSupplier> WRITE_GUARD = new ThreadLocal<>();
+
+    private static final AtomicLong TOTAL_STEPS = new AtomicLong();
+    private static final AtomicLong TOTAL_COMMANDS = new AtomicLong();
+    private static final AtomicLong TOTAL_ROUND_TRIPS = new AtomicLong();
+
+    private final Map<RedisClient, List<RedisWriteCommand>> pendingCommands = new LinkedHashMap<>();
+    private int depth;
+    private int commandCount;
+    private int roundTrips;
+
+    public static void run(Runnable step) {
+        RedisWriteBatch batch = CURRENT_BATCH.get();
+        if (batch == null) {
+            batch = new RedisWriteBatch();
+            CURRENT_BATCH.set(batch);
+        }
+
+        batch.depth++;
+        RuntimeException stepException = null;
+        try {
+            step.run();
+        } catch (RuntimeException e) {
+            stepException = e;
+            throw e;
+        } finally {
+            batch.depth--;
+            try {
+                batch.flush();
+            } catch (RuntimeException e) {
+                if (stepException == null) {
+                    throw e;
+                }
+                stepException.addSuppressed(e);
+            } finally {
+                if (batch.depth == 0) {
+                    CURRENT_BATCH.remove();
+                    batch.report();
+                }
+            }
+        }
+    }
+
+    /**
+     * 在写保护下执行step 嵌套时内外层条件均满足才可写
+     */
+    public static void guard(BooleanSupplier writable, Runnable step) {
+        BooleanSupplier outer = WRITE_GUARD.get();
+        WRITE_GUARD.set(outer == null ? writable : () -> outer.getAsBoolean() && writable.getAsBoolean());
+        try {
+            step.run();
+        } finally {
+            if (outer == null) {
+                WRITE_GUARD.remove();
+            } else {
+                WRITE_GUARD.set(outer);
+            }
+        }
+    }
+
+    public static void write(RedisClient redisClient, RedisWriteCommand command) {
+        RedisWriteBatch batch = CURRENT_BATCH.get();
+        if (batch == null) {
+            checkWritable(1);
+            command.execute(redisClient);
+            return;
+        }
+        batch.pendingCommands.computeIfAbsent(redisClient, client -> new ArrayList<>()).add(command);
+    }
+
+    public static void flushCurrent() {
+        RedisWriteBatch batch = CURRENT_BATCH.get();
+        if (batch != null) {
+            batch.flush();
+        }
+    }
+
+    private void flush() {
+        if (pendingCommands.isEmpty()) {
+            return;
+        }
+
+        Map<RedisClient, List<RedisWriteCommand>> commands = new LinkedHashMap<>(pendingCommands);
+        pendingCommands.clear();
+        checkWritable(commands.values().stream().mapToInt(List::size).sum());
+        commands.forEach((redisClient, clientCommands) -> {
+            commandCount += clientCommands.size();
+            roundTrips += redisClient.executeBatch(clientCommands);
+        });
+    }
+
+    private static void checkWritable(int commandCount) {
+        BooleanSupplier writable = WRITE_GUARD.get();
+        if (writable != null && !writable.getAsBoolean()) {
+            throw new StorageException(StorageErrorCode.LOCK_LOST.getCode(),
+                    "write guard fails, discard " + commandCount + " commands");
+        }
+    }
+
+    private void report() {
+        if (commandCount == 0) {
+            return;
+        }
+        TOTAL_STEPS.incrementAndGet();
+        TOTAL_COMMANDS.addAndGet(commandCount);
+        TOTAL_ROUND_TRIPS.addAndGet(roundTrips);
+        log.debug("redis write batch commands:{}, roundTrips:{}", commandCount, roundTrips);
+    }
+
+    /**
+     * 包含写命令的步骤总数
+     */
+    public static long getTotalSteps() {
+        return TOTAL_STEPS.get();
+    }
+
+    public static long getTotalCommands() {
+        return TOTAL_COMMANDS.get();
+    }
+
+    public static long getTotalRoundTrips() {
+        return TOTAL_ROUND_TRIPS.get();
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ *  Copyright 2021-2023 Weibo, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.weibo.rill.flow.olympicene.storage.redis.api;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.List;
+
+/**
+ * 可加入写批次的写命令
+ */
+@Getter
+@AllArgsConstructor(access = AccessLevel.PRIVATE)
+public class RedisWriteCommand {
+    public enum Type {
+        EVAL,
+        ZADD,
+        ZREM
+    }
+
+    private final Type type;
+    private final String shardingKey;
+    private final String script;
+    private final List<String> keys;
+    private final List<String> args;
+    private final double score;
+    private final String member;
+
+    public static RedisWriteCommand eval(String script, String shardingKey, List<String> keys, List<String> args) {
+        return new RedisWriteCommand(Type.EVAL, shardingKey, script, keys, args, 0, null);
+    }
+
+    public static RedisWriteCommand zadd(String key, double score, String member) {
+        return new RedisWriteCommand(Type.ZADD, key, null, List.of(key), null, score, member);
+    }
+
+    public static RedisWriteCommand zrem(String key, String member) {
+        return new RedisWriteCommand(Type.ZREM, key, null, List.of(key), null, 0, member);
+    }
+
+    /**
+     * 不使用批次时直接执行
+     */
+    public void execute(RedisClient redisClient) {
+        switch (type) {
+            case EVAL -> redisClient.eval(script, shardingKey, keys, args);
+            case ZADD -> redisClient.zadd(shardingKey, score, member);
+            case ZREM -> redisClient.zrem(shardingKey, member);
+        }
+    }
+}
@@ -17,11 +17,15 @@
 package com.weibo.rill.flow.olympicene.storage.redis.apicommons;
 
 import com.weibo.rill.flow.olympicene.storage.redis.api.RedisClient;
+import com.weibo.rill.flow.olympicene.storage.redis.api.RedisWriteCommand;
 import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.lang3.tuple.Pair;
 
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -30,6 +34,13 @@ public abstract class GroupedRedisClient implements RedisClient {
 
     public abstract RedisClient choose(String shardingKey);
 
+    /**
+     * 分组内的全部客户端 用于向每个分片预加载lua脚本
+     */
+    protected Collection<RedisClient> allClients() {
+        return Collections.emptyList();
+    }
+
     @Override
     public String hmset(String key, Map<String, String> hash) {
         return choose(key).hmset(key, hash);
@@ -257,6 +268,23 @@ public abstract class GroupedRedisClient implements RedisClient {
         return choose(shardingKey).eval(script, shardingKey, keys, args);
     }
 
+    @Override
+    public void scriptLoad(Collection<String> scripts) {
+        allClients().forEach(client -> client.scriptLoad(scripts));
+    }
+
+    /**
+     * 按分片拆分 每个分片内保持命令顺序
+     */
+    @Override
+    public int executeBatch(List<RedisWriteCommand> commands) {
+        Map<RedisClient, List<RedisWriteCommand>> clientToCommands = new LinkedHashMap<>();
+        commands.forEach(command -> clientToCommands.computeIfAbsent(choose(command.getShardingKey()), client -> new ArrayList<>()).add(command));
+        return clientToCommands.entrySet().stream()
+                .mapToInt(entry -> entry.getKey().executeBatch(entry.getValue()))
+                .sum();
+    }
+
     @Override
     public Set<String> hkeys(String key) {
         return choose(key).hkeys(key);
@@ -267,6 +295,11 @@ public abstract class GroupedRedisClient implements RedisClient {
         return choose(key).hget(key, field);
     }
 
+    @Override
+    public String blpop(String shardingKey, String key, long timeoutInMillis) {
+        return choose(shardingKey).blpop(shardingKey, key, timeoutInMillis);
+    }
+
     private RedisClient choose(byte[] shardingKey) {
         return choose(new String(shardingKey, StandardCharsets.UTF_8));
     }
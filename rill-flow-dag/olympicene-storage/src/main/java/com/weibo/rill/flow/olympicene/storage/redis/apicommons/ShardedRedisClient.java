@@ -0,0 +1,128 @@
+/*
+ *  Copyright 2021-2023 Weibo, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.weibo.rill.flow.olympicene.storage.redis.apicommons;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.weibo.rill.flow.olympicene.storage.redis.api.ConsistentHashSharding;
+import com.weibo.rill.flow.olympicene.storage.redis.api.RedisClient;
+import com.weibo.rill.flow.olympicene.storage.redis.api.Sharding;
+import lombok.AllArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * 按一致性hash在多个redis分片间路由
+ * <pre>
+ * 扩缩容:
+ *   1. resize传入新的分片列表 原有分片保持原顺序 新分片追加在末尾 进入迁移状态
+ *   2. 迁移状态下 新旧环归属相同的shardingKey直接路由
+ *      归属不同时 旧分片上存在ownershipKey(如dag_info_ + executionId)或shardingKey本身的 继续读写旧分片 否则读写新分片
+ *      前者覆盖按executionId路由的执行数据(dag_info/context/子任务索引等) 后者覆盖以自身为shardingKey的key(如描述符/索引hash)
+ *      判断结果按shardingKey缓存 同一shardingKey不会在新旧分片间切换
+ *   3. 旧分片上的执行结束或过期后调用finishMigration 之后只按新环路由
+ * </pre>
+ */
+@Slf4j
+public class ShardedRedisClient extends GroupedRedisClient {
+    private final Sharding<RedisClient> sharding;
+    private final Function<String, String> ownershipKey;
+    private final Cache<String, RedisClient> migratingOwners = CacheBuilder.newBuilder()
+            .maximumSize(200000)
+            .expireAfterAccess(1, TimeUnit.HOURS)
+            .build();
+    private volatile Topology topology;
+
+    public ShardedRedisClient(List<RedisClient> clients, Function<String, String> ownershipKey) {
+        this(clients, ownershipKey, ConsistentHashSharding.singleton());
+    }
+
+    public ShardedRedisClient(List<RedisClient> clients, Function<String, String> ownershipKey, Sharding<RedisClient> sharding) {
+        this.sharding = sharding;
+        this.ownershipKey = ownershipKey;
+        this.topology = new Topology(ImmutableList.copyOf(clients), null);
+    }
+
+    @Override
+    public RedisClient choose(String shardingKey) {
+        Topology current = topology;
+        RedisClient owner = sharding.choose(current.clients, shardingKey);
+        if (current.previousClients == null) {
+            return owner;
+        }
+
+        RedisClient previousOwner = sharding.choose(current.previousClients, shardingKey);
+        if (previousOwner == owner) {
+            return owner;
+        }
+        try {
+            return migratingOwners.get(shardingKey, () -> ownedByPrevious(previousOwner, shardingKey) ? previousOwner : owner);
+        } catch (ExecutionException e) {
+            log.warn("choose fails during migration, shardingKey:{}", shardingKey, e);
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private boolean ownedByPrevious(RedisClient previousOwner, String shardingKey) {
+        return Boolean.TRUE.equals(previousOwner.exists(ownershipKey.apply(shardingKey)))
+                || Boolean.TRUE.equals(previousOwner.exists(shardingKey));
+    }
+
+    public synchronized void resize(List<RedisClient> clients) {
+        if (isMigrating()) {
+            throw new IllegalStateException("previous migration not finished");
+        }
+        log.info("resize shards from {} to {}", topology.clients.size(), clients.size());
+        migratingOwners.invalidateAll();
+        topology = new Topology(ImmutableList.copyOf(clients), topology.clients);
+    }
+
+    public synchronized void finishMigration() {
+        log.info("finishMigration shards:{}", topology.clients.size());
+        topology = new Topology(topology.clients, null);
+        migratingOwners.invalidateAll();
+    }
+
+    public boolean isMigrating() {
+        return topology.previousClients != null;
+    }
+
+    @Override
+    protected Collection<RedisClient> allClients() {
+        Topology current = topology;
+        Set<RedisClient> clients = new LinkedHashSet<>(current.clients);
+        if (current.previousClients != null) {
+            clients.addAll(current.previousClients);
+        }
+        return clients;
+    }
+
+    @AllArgsConstructor
+    private static class Topology {
+        private final List<RedisClient> clients;
+        private final List<RedisClient> previousClients;
+    }
+}
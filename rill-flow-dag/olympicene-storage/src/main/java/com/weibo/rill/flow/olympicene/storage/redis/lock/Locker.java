@@ -20,4 +20,11 @@ public interface Locker {
     void lock(String lockName, String lockAcquirerId, long expire);
 
     void unlock(String lockName, String lockAcquirerId);
+
+    /**
+     * 当前节点是否仍持有锁 无法判断时返回true
+     */
+    default boolean isHeld(String lockName, String lockAcquirerId) {
+        return true;
+    }
 }
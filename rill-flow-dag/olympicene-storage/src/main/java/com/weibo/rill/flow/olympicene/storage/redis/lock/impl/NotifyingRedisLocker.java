@@ -0,0 +1,305 @@
+/*
+ *  Copyright 2021-2023 Weibo, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.weibo.rill.flow.olympicene.storage.redis.lock.impl;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.weibo.rill.flow.olympicene.storage.redis.api.RedisClient;
+import com.weibo.rill.flow.olympicene.storage.redis.lock.Locker;
+import com.weibo.rill.flow.olympicene.storage.redis.lock.ResourceLoader;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * 基于释放通知的分布式锁
+ * <p>
+ * 同节点竞争同一把锁的线程在本地公平队列中排队 每次只有队首线程访问redis
+ * 跨节点等待方阻塞在锁对应的信号列表上 持有者释放时写入信号唤醒等待方 不再固定间隔轮询
+ * 阻塞等待占用连接池中的连接 同时阻塞的等待方不超过maxBlockingWaiters 其余按固定间隔轮询 避免占满连接池
+ * 释放时若有其他节点等待 本地下一个线程先让出一次 避免本地队列连续接力使其他节点饥饿
+ * 加锁成功返回单调递增的fencing token 持有期间按租期续约 持有者异常退出后锁在一个租期内过期
+ * 续约停顿(如GC、redis抖动)使租期已过时isHeld返回false 写入方据此停止写入
+ */
+@Slf4j
+public class NotifyingRedisLocker implements Locker {
+    private static final String REDIS_LOCK;
+    private static final String REDIS_UNLOCK;
+    private static final String REDIS_RENEW;
+    static {
+        try {
+            REDIS_LOCK = ResourceLoader.loadResourceAsText("lua/redis_notify_lock.lua");
+            REDIS_UNLOCK = ResourceLoader.loadResourceAsText("lua/redis_notify_unlock.lua");
+            REDIS_RENEW = ResourceLoader.loadResourceAsText("lua/redis_notify_renew.lua");
+        } catch (IOException e) {
+            throw new RuntimeException("load script fails", e.getCause());
+        }
+    }
+    private static final String FENCING_TOKEN_SUFFIX = ":fencing_token";
+    private static final String SIGNAL_SUFFIX = ":signal";
+    private static final String WAITING_SUFFIX = ":waiting";
+    private static final long FENCING_TOKEN_EXPIRE_IN_MILLIS = TimeUnit.DAYS.toMillis(1);
+    private static final long FALLBACK_POLL_INTERVAL_IN_MILLIS = 50L;
+    private static final long RELEASED_WITH_WAITERS = 2L;
+
+    private final RedisClient redisClient;
+    private final ScheduledExecutorService renewExecutor;
+    private final Map<String, LocalGate> lockNameToGate = new ConcurrentHashMap<>();
+    private final Map<String, Hold> holds = new ConcurrentHashMap<>();
+    private volatile boolean blockingSupported = true;
+    private volatile Semaphore blockingWaiters = new Semaphore(4);
+
+    @Setter
+    private long lockTimeout = 10 * 1000L;
+
+    /**
+     * 租期 持有期间每1/3租期续约一次 续约总时长不超过加锁时传入的expire
+     */
+    @Setter
+    private long leaseInMillis = 10 * 1000L;
+
+    /**
+     * 单次阻塞等待信号的最长时间 防止信号丢失时长时间等待
+     */
+    @Setter
+    private long maxBlockInMillis = 1000L;
+
+    public NotifyingRedisLocker(RedisClient redisClient) {
+        this.redisClient = redisClient;
+        this.renewExecutor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("redis-lock-renew-%d").setDaemon(true).build());
+    }
+
+    /**
+     * 同时阻塞等待信号的最大线程数 应小于redis连接池大小 默认4
+     */
+    public void setMaxBlockingWaiters(int maxBlockingWaiters) {
+        this.blockingWaiters = new Semaphore(maxBlockingWaiters);
+    }
+
+    @Override
+    public void lock(String lockName, String lockAcquirerId, long expire) {
+        lockWithFencingToken(lockName, lockAcquirerId, expire);
+    }
+
+    /**
+     * 加锁并返回fencing token 同一把锁的token随每次成功加锁递增 重入时返回原token
+     */
+    public long lockWithFencingToken(String lockName, String lockAcquirerId, long expire) {
+        String holdKey = holdKey(lockName, lockAcquirerId);
+        Hold hold = holds.get(holdKey);
+        if (hold != null) {
+            hold.reentrantCount++;
+            return hold.fencingToken;
+        }
+
+        long startTime = System.currentTimeMillis();
+        LocalGate gate = enterGate(lockName);
+        boolean gateAcquired = false;
+        boolean locked = false;
+        try {
+            gateAcquired = gate.semaphore.tryAcquire(lockTimeout, TimeUnit.MILLISECONDS);
+            if (!gateAcquired) {
+                throw new RuntimeException("wait local queue of lock " + lockName + " timeout " + (System.currentTimeMillis() - startTime));
+            }
+            long lease = Math.min(leaseInMillis, TimeUnit.SECONDS.toMillis(expire));
+            boolean yieldToRemote = gate.yieldToRemote;
+            gate.yieldToRemote = false;
+            hold = acquire(gate, lockName, lockAcquirerId, lease, startTime, yieldToRemote);
+            hold.renewal = scheduleRenewal(lockName, lockAcquirerId, lease, startTime + TimeUnit.SECONDS.toMillis(expire), hold);
+            holds.put(holdKey, hold);
+            locked = true;
+            log.debug("lock {} value {} success, token {}, cost {} ms",
+                    lockName, lockAcquirerId, hold.fencingToken, System.currentTimeMillis() - startTime);
+            return hold.fencingToken;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("lock " + lockName + " interrupted", e);
+        } finally {
+            if (!locked) {
+                if (gateAcquired) {
+                    gate.semaphore.release();
+                }
+                leaveGate(lockName);
+            }
+        }
+    }
+
+    @Override
+    public void unlock(String lockName, String lockAcquirerId) {
+        String holdKey = holdKey(lockName, lockAcquirerId);
+        Hold hold = holds.get(holdKey);
+        if (hold != null && --hold.reentrantCount > 0) {
+            return;
+        }
+        if (hold == null) {
+            long ret = releaseRemote(lockName, lockAcquirerId);
+            log.debug("unlock {} value {} without local hold, result {}", lockName, lockAcquirerId, ret);
+            return;
+        }
+
+        holds.remove(holdKey);
+        hold.renewal.cancel(false);
+        try {
+            long ret = releaseRemote(lockName, lockAcquirerId);
+            hold.gate.yieldToRemote = ret == RELEASED_WITH_WAITERS;
+            log.debug("unlock {} value {}, result {}", lockName, lockAcquirerId, ret);
+        } finally {
+            hold.gate.semaphore.release();
+            leaveGate(lockName);
+        }
+    }
+
+    /**
+     * 当前节点是否仍持有锁 续约失败或最近一次成功续约的租期已过时返回false
+     */
+    @Override
+    public boolean isHeld(String lockName, String lockAcquirerId) {
+        Hold hold = holds.get(holdKey(lockName, lockAcquirerId));
+        return hold != null && !hold.lost && System.currentTimeMillis() < hold.validUntil;
+    }
+
+    public void shutdown() {
+        renewExecutor.shutdownNow();
+    }
+
+    private Hold acquire(LocalGate gate, String lockName, String lockAcquirerId, long lease, long startTime, boolean yieldToRemote)
+            throws InterruptedException {
+        List<String> keys = List.of(lockName, lockName + FENCING_TOKEN_SUFFIX, lockName + WAITING_SUFFIX);
+        String waitingExpire = String.valueOf(2 * maxBlockInMillis);
+        int count = 0;
+        while (true) {
+            count++;
+            long evalTime = System.currentTimeMillis();
+            long ret = toLong(evalScript(REDIS_LOCK, lockName, keys, List.of(lockAcquirerId, String.valueOf(lease),
+                    String.valueOf(FENCING_TOKEN_EXPIRE_IN_MILLIS), waitingExpire, count == 1 && yieldToRemote ? "1" : "0")));
+            if (ret > 0) {
+                return new Hold(gate, ret, evalTime + lease);
+            }
+            long elapsed = System.currentTimeMillis() - startTime;
+            if (elapsed > lockTimeout) {
+                throw new RuntimeException("try " + count + " times lock " + lockName + " timeout " + elapsed);
+            }
+            long waitTime = Math.max(1L, Math.min(Math.min(-ret, maxBlockInMillis), lockTimeout - elapsed));
+            awaitRelease(lockName, waitTime);
+        }
+    }
+
+    private long releaseRemote(String lockName, String lockAcquirerId) {
+        return toLong(evalScript(REDIS_UNLOCK, lockName, List.of(lockName, signalKey(lockName), lockName + WAITING_SUFFIX),
+                List.of(lockAcquirerId, String.valueOf(leaseInMillis))));
+    }
+
+    private void awaitRelease(String lockName, long waitTime) throws InterruptedException {
+        Semaphore permits = blockingWaiters;
+        if (blockingSupported && permits.tryAcquire()) {
+            try {
+                redisClient.blpop(lockName, signalKey(lockName), waitTime);
+                return;
+            } catch (UnsupportedOperationException e) {
+                blockingSupported = false;
+                log.warn("redis client does not support blpop, lock falls back to polling");
+            } finally {
+                permits.release();
+            }
+        }
+        Thread.sleep(Math.min(waitTime, FALLBACK_POLL_INTERVAL_IN_MILLIS));
+    }
+
+    private ScheduledFuture<?> scheduleRenewal(String lockName, String lockAcquirerId, long lease, long deadline, Hold hold) {
+        long period = Math.max(1L, lease / 3);
+        return renewExecutor.scheduleAtFixedRate(() -> {
+            try {
+                long renewTime = System.currentTimeMillis();
+                long renewLease = Math.min(lease, deadline - renewTime);
+                if (renewLease <= 0) {
+                    return;
+                }
+                long ret = toLong(evalScript(REDIS_RENEW, lockName, List.of(lockName), List.of(lockAcquirerId, String.valueOf(renewLease))));
+                if (ret > 0) {
+                    hold.validUntil = renewTime + renewLease;
+                } else if (!hold.lost) {
+                    hold.lost = true;
+                    log.warn("renew lock {} value {} fails, lock is lost", lockName, lockAcquirerId);
+                }
+            } catch (Exception e) {
+                log.warn("renew lock {} value {} error", lockName, lockAcquirerId, e);
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    private LocalGate enterGate(String lockName) {
+        return lockNameToGate.compute(lockName, (name, gate) -> {
+            LocalGate localGate = gate == null ? new LocalGate() : gate;
+            localGate.users++;
+            return localGate;
+        });
+    }
+
+    private void leaveGate(String lockName) {
+        lockNameToGate.computeIfPresent(lockName, (name, gate) -> --gate.users == 0 ? null : gate);
+    }
+
+    private Object evalScript(String script, String shardingKey, List<String> keys, List<String> values) {
+        return redisClient.eval(script, shardingKey, keys, values);
+    }
+
+    private static long toLong(Object ret) {
+        if (ret instanceof Number) {
+            return ((Number) ret).longValue();
+        }
+        String value = ret instanceof byte[] ? new String((byte[]) ret, StandardCharsets.UTF_8) : String.valueOf(ret);
+        return Long.parseLong(value);
+    }
+
+    private static String holdKey(String lockName, String lockAcquirerId) {
+        return lockName + "#" + lockAcquirerId;
+    }
+
+    private static String signalKey(String lockName) {
+        return lockName + SIGNAL_SUFFIX;
+    }
+
+    /**
+     * 同名锁的本地公平队列 无线程使用时移除
+     */
+    private static class LocalGate {
+        private final Semaphore semaphore = new Semaphore(1, true);
+        private int users;
+        private volatile boolean yieldToRemote;
+    }
+
+    private static class Hold {
+        private final LocalGate gate;
+        private final long fencingToken;
+        private int reentrantCount = 1;
+        private ScheduledFuture<?> renewal;
+        private volatile boolean lost;
+        private volatile long validUntil;
+
+        private Hold(LocalGate gate, long fencingToken, long validUntil) {
+            this.gate = gate;
+            this.fencingToken = fencingToken;
+            this.validUntil = validUntil;
+        }
+    }
+}
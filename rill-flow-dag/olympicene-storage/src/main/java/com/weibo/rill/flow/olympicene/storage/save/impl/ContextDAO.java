@@ -24,6 +24,8 @@ import com.weibo.rill.flow.olympicene.storage.constant.DAGRedisPrefix;
 import com.weibo.rill.flow.olympicene.storage.constant.StorageErrorCode;
 import com.weibo.rill.flow.olympicene.storage.exception.StorageException;
 import com.weibo.rill.flow.olympicene.storage.redis.api.RedisClient;
+import com.weibo.rill.flow.olympicene.storage.redis.api.RedisWriteBatch;
+import com.weibo.rill.flow.olympicene.storage.redis.api.RedisWriteCommand;
 import com.weibo.rill.flow.olympicene.storage.script.RedisScriptManager;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.collections.CollectionUtils;
@@ -31,6 +33,7 @@ import org.apache.commons.collections.MapUtils;
 import org.apache.commons.lang3.StringUtils;
 
 import java.util.*;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 /**
@@ -95,6 +98,10 @@ import java.util.stream.Collectors;
  *       类型: hash
  *       key: sub_context_ + executionId + "_" + contextName
  *       field/value 同context
+ *
+ *   4.4 value格式
+ *       默认为JSON 同时写入field: @class_ + field value: 类名
+ *       storageCodec为SmileStorageCodec时value自带类型标记 不写入@class_ field 读取时按value内容识别格式
  * </pre>
  *
  * @see DAGInfoDAO
@@ -103,6 +110,7 @@ import java.util.stream.Collectors;
 public class ContextDAO {
     private static final String ROOT_LEVEL_CONTEXT = "@rootContext";
     private static final String REDIS_SUB_CONTEXT_NAME_PREFIX = "@subContextName_";
+    private static final String INPUT_REFERENCE_SEGMENT = "_input_reference_";
 
     private final RedisClient redisClient;
     private final int finishStatusReserveTimeInSecond;
@@ -142,7 +150,12 @@ public class ContextDAO {
         log.debug("contextMaxLength length:10000 executionId:{}", executionId);
         return 10000;
     }
-    // 目前只支持修改时间及context长度检查设置
+
+    protected DagStorageCodec storageCodec(String executionId) {
+        log.debug("storageCodec json executionId:{}", executionId);
+        return JsonStorageCodec.getInstance();
+    }
+    // 目前只支持修改时间、context长度检查及序列化格式设置
     // ------------------------------------------------------
 
     public Map<String, Object> getContext(String executionId, boolean needSubContext) {
@@ -174,6 +187,7 @@ public class ContextDAO {
         List<String> keys = !needSubContext ?
                 Lists.newArrayList(buildContextRedisKey(executionId)) :
                 Lists.newArrayList(buildContextRedisKey(executionId), buildContextNameToContextRedisKey(executionId));
+        RedisWriteBatch.flushCurrent();
         return (List<List<List<byte[]>>>) redisClient.eval(
                 RedisScriptManager.getRedisGet(), executionId, keys, Lists.newArrayList());
     }
@@ -200,6 +214,10 @@ public class ContextDAO {
         }
         appendSubContext(1, rootContext, contextNameToContentMap);
 
+        Map<String, List<byte[]>> contextNameToBytes = Maps.newHashMap();
+        contextByte.forEach(context -> contextNameToBytes.put(DagStorageSerializer.getString(context.get(0).get(1)), context.get(1)));
+        resolveInputReference(rootContext, references -> contextNameToBytes);
+
         return rootContext;
     }
 
@@ -259,6 +277,7 @@ public class ContextDAO {
             buildEvalParam(executionId, rootContextFields, subContextNames, keys, argv);
 
             // 根据keys和argv取context内容
+            RedisWriteBatch.flushCurrent();
             List<List<byte[]>> contextBytes = (List<List<byte[]>>) redisClient.eval(
                     RedisScriptManager.getRedisGetByFieldAndKey(), executionId, keys, argv);
 
@@ -304,6 +323,7 @@ public class ContextDAO {
             removeSubContextPlaceholder(subContext);
             context.put(subContextName, subContext);
         });
+        resolveInputReference(context, references -> getSubContextBytes(executionId, references));
 
         if (CollectionUtils.isEmpty(rootContextFields)) {
             return context;
@@ -314,25 +334,105 @@ public class ContextDAO {
             throw new StorageException(StorageErrorCode.CONTEXT_GET_FAIL.getCode(), "root context size not match");
         }
 
-        List<byte[]> rootContext = Lists.newArrayList();
-        for (int i = 0; i < rootContextFields.size(); i++) {
-            String field = rootContextFields.get(i);
-            byte[] value = rootContextRedis.get(i * 2);
-            byte[] valueType = rootContextRedis.get(i * 2 + 1);
-            if (value == null || valueType == null) {
+        context.putAll(deserializeFields(rootContextFields, rootContextRedis));
+        return context;
+    }
+
+    /**
+     * 按field及field类型成对读取的hmget结果转换为map
+     */
+    private Map<String, Object> deserializeFields(List<String> fields, List<byte[]> fieldAndTypeValues) {
+        List<byte[]> content = Lists.newArrayList();
+        for (int i = 0; i < fields.size(); i++) {
+            String field = fields.get(i);
+            byte[] value = fieldAndTypeValues.get(i * 2);
+            byte[] valueType = fieldAndTypeValues.get(i * 2 + 1);
+            if (value == null || (valueType == null && DagStorageSerializer.getCodec(value) instanceof JsonStorageCodec)) {
                 log.info("buildContext can not get value, field:{}", field);
                 continue;
             }
-            rootContext.add(DagStorageSerializer.getBytes(field));
-            rootContext.add(value);
-            rootContext.add(DagStorageSerializer.getBytes(DagStorageSerializer.buildTypeKeyPrefix(field)));
-            rootContext.add(valueType);
+            content.add(DagStorageSerializer.getBytes(field));
+            content.add(value);
+            if (valueType != null) {
+                content.add(DagStorageSerializer.getBytes(DagStorageSerializer.buildTypeKeyPrefix(field)));
+                content.add(valueType);
+            }
         }
-        Optional.of(rootContext)
-                .filter(CollectionUtils::isNotEmpty)
-                .ifPresent(it -> context.putAll(DagStorageSerializer.deserializeHash(it)));
+        return CollectionUtils.isEmpty(content) ? Maps.newHashMap() : DagStorageSerializer.deserializeHash(content);
+    }
 
-        return context;
+    /**
+     * 子context通过INPUT_REFERENCE引用父任务input快照 读取时合并快照 子context自身的field优先
+     * 每个子context单独反序列化快照 对context的修改不会影响其他子context
+     */
+    @SuppressWarnings("unchecked")
+    private void resolveInputReference(Map<String, Object> context, Function<Set<String>, Map<String, List<byte[]>>> snapshotLoader) {
+        Set<String> references = context.values().stream()
+                .filter(Map.class::isInstance)
+                .map(value -> ((Map<String, Object>) value).get(ReservedConstant.INPUT_REFERENCE))
+                .filter(String.class::isInstance)
+                .map(String.class::cast)
+                .collect(Collectors.toSet());
+        if (CollectionUtils.isEmpty(references)) {
+            return;
+        }
+
+        Map<String, List<byte[]>> referenceToSnapshot = snapshotLoader.apply(references);
+        context.replaceAll((contextName, value) -> {
+            if (!(value instanceof Map) || !(((Map<String, Object>) value).get(ReservedConstant.INPUT_REFERENCE) instanceof String reference)) {
+                return value;
+            }
+            Map<String, Object> resolved = DagStorageSerializer.deserializeHash(referenceToSnapshot.get(reference));
+            removeSubContextPlaceholder(resolved);
+            resolved.putAll((Map<String, Object>) value);
+            return resolved;
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, List<byte[]>> getSubContextBytes(String executionId, Set<String> subContextNames) {
+        List<String> names = Lists.newArrayList(subContextNames);
+        List<String> keys = names.stream().map(name -> buildSubContextRedisKey(executionId, name)).toList();
+        List<List<byte[]>> contextBytes = (List<List<byte[]>>) redisClient.eval(
+                RedisScriptManager.getRedisGetByFieldAndKey(), executionId, keys, Lists.newArrayList());
+
+        Map<String, List<byte[]>> ret = Maps.newHashMap();
+        for (int i = 0; contextBytes != null && i < contextBytes.size() && i < names.size(); i++) {
+            ret.put(names.get(i), contextBytes.get(i));
+        }
+        return ret;
+    }
+
+    /**
+     * 按field读取子context 不读取整个子context hash
+     */
+    @SuppressWarnings("unchecked")
+    public Map<String, Object> getSubContextFields(String executionId, String subContextName, Collection<String> fields) {
+        if (StringUtils.isEmpty(subContextName) || CollectionUtils.isEmpty(fields)) {
+            return Maps.newHashMap();
+        }
+
+        try {
+            log.info("getSubContextFields executionId:{} subContextName:{} fields:{}", executionId, subContextName, fields);
+            List<String> fieldList = Lists.newArrayList(fields);
+            List<String> keys = Lists.newArrayList(buildSubContextRedisKey(executionId, subContextName));
+            List<String> argv = Lists.newArrayList();
+            fieldList.forEach(field -> {
+                argv.add(field);
+                argv.add(DagStorageSerializer.buildTypeKeyPrefix(field));
+            });
+
+            RedisWriteBatch.flushCurrent();
+            List<List<byte[]>> contextBytes = (List<List<byte[]>>) redisClient.eval(
+                    RedisScriptManager.getRedisGetByFieldAndKey(), executionId, keys, argv);
+            if (CollectionUtils.isEmpty(contextBytes) || contextBytes.get(0) == null || contextBytes.get(0).size() != argv.size()) {
+                return Maps.newHashMap();
+            }
+            return deserializeFields(fieldList, contextBytes.get(0));
+        } catch (Exception e) {
+            log.warn("getSubContextFields fails, executionId:{}, subContextName:{}", executionId, subContextName, e);
+            throw e;
+        }
     }
 
     private void buildEvalParam(String executionId, List<String> rootContextFields, List<String> subContextNames, List<String> keys, List<String> argv) {
@@ -372,10 +472,10 @@ public class ContextDAO {
                 return;
             }
             log.info("deleteContext executionId:{} expireTime:{}", executionId, expireTimeInSecond);
-            redisClient.eval(RedisScriptManager.getRedisExpire(),
+            RedisWriteBatch.write(redisClient, RedisWriteCommand.eval(RedisScriptManager.getRedisExpire(),
                     executionId,
                     Lists.newArrayList(buildContextRedisKey(executionId), buildContextNameToContextRedisKey(executionId)),
-                    Lists.newArrayList(String.valueOf(expireTimeInSecond)));
+                    Lists.newArrayList(String.valueOf(expireTimeInSecond))));
         } catch (Exception e) {
             log.warn("deleteContext fails, executionId:{}, expireTimeInSecond:{}", executionId, expireTimeInSecond, e);
             throw e;
@@ -394,7 +494,7 @@ public class ContextDAO {
             List<String> argv = Lists.newArrayList();
             serializeContext(executionId, context, keys, argv);
 
-            redisClient.eval(RedisScriptManager.getRedisSetWithExpire(), executionId, keys, argv);
+            RedisWriteBatch.write(redisClient, RedisWriteCommand.eval(RedisScriptManager.getRedisSetWithExpire(), executionId, keys, argv));
         } catch (Exception e) {
             log.warn("updateContext fails, executionId:{}", executionId, e);
             throw e;
@@ -404,13 +504,14 @@ public class ContextDAO {
     private void serializeContext(String executionId, Map<String, Object> context, List<String> keys, List<String> argv) {
         argv.add(String.valueOf(getUnfinishedStatusReserveTimeInSecond(executionId)));
 
+        DagStorageCodec codec = storageCodec(executionId);
         Map<String, Map<String, Object>> contextNameToContentMap = getContextNameToContentMap(1, ROOT_LEVEL_CONTEXT, context);
 
         Map<String, Object> rootContext = contextNameToContentMap.get(ROOT_LEVEL_CONTEXT);
         if (MapUtils.isNotEmpty(rootContext)) {
             keys.add(buildContextRedisKey(executionId));
             argv.add(ReservedConstant.PLACEHOLDER);
-            argv.addAll(DagStorageSerializer.serializeHashToList(rootContext));
+            argv.addAll(DagStorageSerializer.serializeHashToList(rootContext, codec));
         }
 
         Map<String, String> subContextNameToRedisKey = Maps.newHashMap();
@@ -420,9 +521,13 @@ public class ContextDAO {
             }
 
             String subContextRedisKey = buildSubContextRedisKey(executionId, contextName);
-            keys.add(subContextRedisKey);
-            argv.add(ReservedConstant.PLACEHOLDER);
-            argv.addAll(DagStorageSerializer.serializeHashToList(contextContent));
+            if (contextContent.get(ReservedConstant.INPUT_REFERENCE) instanceof String reference) {
+                serializeReferencedSubContext(executionId, subContextRedisKey, reference, contextContent, codec, keys, argv);
+            } else {
+                keys.add(subContextRedisKey);
+                argv.add(ReservedConstant.PLACEHOLDER);
+                argv.addAll(DagStorageSerializer.serializeHashToList(contextContent, codec));
+            }
             subContextNameToRedisKey.put(contextName, subContextRedisKey);
         });
 
@@ -436,6 +541,49 @@ public class ContextDAO {
         }
     }
 
+    /**
+     * 引用input快照的子context 由脚本逐个field与快照比较
+     * 与快照相同时删除子context中已有的值 读取时回落到快照 不同时写入子context
+     * <pre>
+     * KEYS: 子context key 快照key
+     * 参数格式: _input_reference_ field value typeField typeValue ...
+     * 引用及嵌套子context名称等不参与比较的field按普通hash写入
+     * </pre>
+     */
+    private void serializeReferencedSubContext(String executionId, String subContextRedisKey, String reference,
+                                               Map<String, Object> contextContent, DagStorageCodec codec,
+                                               List<String> keys, List<String> argv) {
+        Map<String, Object> plainContent = Maps.newHashMap();
+        Map<String, Object> comparedContent = Maps.newHashMap();
+        contextContent.forEach((field, value) -> {
+            if (ReservedConstant.INPUT_REFERENCE.equals(field) || field.startsWith(REDIS_SUB_CONTEXT_NAME_PREFIX)) {
+                plainContent.put(field, value);
+            } else {
+                comparedContent.put(field, value);
+            }
+        });
+
+        keys.add(subContextRedisKey);
+        argv.add(ReservedConstant.PLACEHOLDER);
+        argv.addAll(DagStorageSerializer.serializeHashToList(plainContent, codec));
+        if (MapUtils.isEmpty(comparedContent)) {
+            return;
+        }
+
+        Map<String, String> serialized = DagStorageSerializer.serializeHash(comparedContent, codec);
+        keys.add(subContextRedisKey);
+        keys.add(buildSubContextRedisKey(executionId, reference));
+        argv.add(ReservedConstant.PLACEHOLDER);
+        argv.add(INPUT_REFERENCE_SEGMENT);
+        comparedContent.keySet().forEach(field -> {
+            String typeField = DagStorageSerializer.buildTypeKeyPrefix(field);
+            argv.add(field);
+            argv.add(serialized.get(field));
+            argv.add(typeField);
+            argv.add(serialized.getOrDefault(typeField, StringUtils.EMPTY));
+        });
+    }
+
     private Map<String, Map<String, Object>> getContextNameToContentMap(int depth, String contextName, Map<String, Object> context) {
         Map<String, Map<String, Object>> contextNameToContentMap = Maps.newHashMap();
         Map<String, Object> currentContext = contextNameToContentMap.computeIfAbsent(contextName, k -> Maps.newHashMap());
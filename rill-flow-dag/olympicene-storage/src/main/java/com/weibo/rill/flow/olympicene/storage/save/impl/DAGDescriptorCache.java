@@ -0,0 +1,127 @@
+/*
+ *  Copyright 2021-2023 Weibo, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.weibo.rill.flow.olympicene.storage.save.impl;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.weibo.rill.flow.interfaces.model.task.BaseTask;
+import com.weibo.rill.flow.olympicene.core.constant.SystemConfig;
+import com.weibo.rill.flow.olympicene.core.model.dag.DAG;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.collections.CollectionUtils;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+
+/**
+ * dag描述符反序列化结果缓存
+ * <pre>
+ * 描述符以内容md5作为redis key(dag_descriptor_ + md5) 同一key的内容不会变化
+ * 缓存以描述符key为key 保存反序列化后的DAG及展开后的任务名称到BaseTask的索引 按LRU淘汰 容量有上限
+ * 缓存中的DAG与BaseTask被多个执行共享 只读 需要修改描述符的场景应使用DAGInfoDAO.getDAGDescriptor获取新对象
+ * 按执行解析出的任务属性(如resourceRef协议解析出的resource)需设置在任务副本上 不能写回缓存中的BaseTask
+ * </pre>
+ */
+@Slf4j
+public class DAGDescriptorCache {
+    public static final long DEFAULT_MAXIMUM_SIZE = 1000;
+
+    private static final DAGDescriptorCache INSTANCE = new DAGDescriptorCache(DEFAULT_MAXIMUM_SIZE);
+
+    public static DAGDescriptorCache getInstance() {
+        return INSTANCE;
+    }
+
+    private final Cache<String, Descriptor> descriptorCache;
+
+    public DAGDescriptorCache(long maximumSize) {
+        this.descriptorCache = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * 按描述符key获取 未命中时通过loader获取描述符内容并反序列化
+     */
+    public Descriptor get(String descriptorKey, Supplier<byte[]> loader) {
+        try {
+            return descriptorCache.get(descriptorKey, () -> parse(loader.get()));
+        } catch (UncheckedExecutionException e) {
+            log.warn("get descriptor fails, descriptorKey:{}, errorMsg:{}", descriptorKey, e.getMessage());
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw e;
+        } catch (ExecutionException e) {
+            log.warn("get descriptor fails, descriptorKey:{}, errorMsg:{}", descriptorKey, e.getMessage());
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * 反序列化描述符内容 不使用缓存
+     */
+    public static Descriptor parse(byte[] rawDescriptor) {
+        DAG dag = DagStorageSerializer.deserialize(rawDescriptor, DAG.class);
+        return new Descriptor(dag, Collections.unmodifiableMap(getBaseTask(1, Optional.ofNullable(dag).map(DAG::getTasks).orElse(null))));
+    }
+
+    static Map<String, BaseTask> getBaseTask(int depth, List<BaseTask> baseTasks) {
+        if (CollectionUtils.isEmpty(baseTasks) || depth > SystemConfig.getTaskMaxDepth()) {
+            return Maps.newHashMap();
+        }
+
+        Map<String, BaseTask> baseTaskMap = Maps.newHashMap();
+        baseTasks.forEach(baseTask -> {
+            baseTaskMap.put(baseTask.getName(), baseTask);
+            baseTaskMap.putAll(getBaseTask(depth + 1, baseTask.subTasks()));
+        });
+        return baseTaskMap;
+    }
+
+    public CacheStats stats() {
+        return descriptorCache.stats();
+    }
+
+    public long size() {
+        return descriptorCache.size();
+    }
+
+    public void invalidateAll() {
+        descriptorCache.invalidateAll();
+    }
+
+    @Getter
+    @AllArgsConstructor
+    public static class Descriptor {
+        private final DAG dag;
+        /**
+         * 包含各层级子任务的任务名称到BaseTask的索引
+         */
+        private final Map<String, BaseTask> baseTasks;
+    }
+}
@@ -31,6 +31,8 @@ import com.weibo.rill.flow.olympicene.core.model.dag.DAGInfo;
 import com.weibo.rill.flow.olympicene.storage.constant.DAGRedisPrefix;
 import com.weibo.rill.flow.olympicene.storage.constant.StorageErrorCode;
 import com.weibo.rill.flow.olympicene.storage.redis.api.RedisClient;
+import com.weibo.rill.flow.olympicene.storage.redis.api.RedisWriteBatch;
+import com.weibo.rill.flow.olympicene.storage.redis.api.RedisWriteCommand;
 import com.weibo.rill.flow.olympicene.storage.script.RedisScriptManager;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.codec.digest.DigestUtils;
@@ -105,6 +107,13 @@ import java.util.stream.Collectors;
  *       #B    | xxx     对于map TaskInfo->children
  *                       field: #+key
  *                       value: taskInfo中next/parent/children/dependencies设置为空后bean序列化为字符串
+ *   3.4 子任务组索引
+ *       类型: hash
+ *       key: sub_task_index_ + executionId + _ + 父任务名称, 如: sub_task_index_id_A
+ *       field | value
+ *       A_0   | "#A_0-B,#A_0-C"   field: 子任务组routeName
+ *                                 value: 该组子任务在3.3中的field 以逗号分隔
+ *       随父任务与其子任务一起写入 获取同组子任务时只读取该组的field
  * </pre>
  *
  * @see ContextDAO
@@ -143,6 +152,11 @@ public class DAGInfoDAO {
         log.debug("getUnfinishedStatusReserveTimeInSecond executionId:{}, time:{}", executionId, unfinishedStatusReserveTimeInSecond);
         return unfinishedStatusReserveTimeInSecond;
     }
+
+    protected DagStorageCodec storageCodec(String executionId) {
+        log.debug("storageCodec json executionId:{}", executionId);
+        return JsonStorageCodec.getInstance();
+    }
     // ------------------------------------------------------
 
     public DAGInfo getDagInfo(String executionId, boolean needSubTasks) {
@@ -153,7 +167,7 @@ public class DAGInfoDAO {
                 return null;
             }
 
-            return deserializeDagInfo(dagInfos);
+            return deserializeDagInfo(executionId, dagInfos);
         } catch (Exception e) {
             log.warn("getDagInfo fails, executionId:{}", executionId, e);
             throw e;
@@ -164,37 +178,76 @@ public class DAGInfoDAO {
         List<String> keys = !needSubTasks ?
                 Lists.newArrayList(buildDagInfoRedisKey(executionId)) :
                 Lists.newArrayList(buildDagInfoRedisKey(executionId), buildTaskNameToSubTaskRedisKey(executionId));
+        RedisWriteBatch.flushCurrent();
         return (List<List<List<byte[]>>>) redisClient.eval(
-                RedisScriptManager.dagInfoGetScript(), executionId, keys, Lists.newArrayList());
+                RedisScriptManager.dagInfoGetScript(), executionId, keys, Lists.newArrayList(ReservedConstant.DESCRIPTOR_KEY_ONLY));
     }
 
-    private DAGInfo deserializeDagInfo(List<List<List<byte[]>>> dagInfoByte) {
-        DAGInfo dagInfo = dagInfoDeserializeService.deserializeBaseDagInfo(dagInfoByte.get(0));
+    /**
+     * dag字段为描述符key时 从描述符缓存获取DAG 其余字段交由dagInfoDeserializeService反序列化
+     */
+    private DAGInfo deserializeDagInfo(String executionId, List<List<List<byte[]>>> dagInfoByte) {
+        List<List<byte[]>> rootContent = dagInfoByte.get(0);
+        DAGDescriptorCache.Descriptor descriptor = null;
+        if (CollectionUtils.isNotEmpty(rootContent) && rootContent.size() == 2 && CollectionUtils.isNotEmpty(rootContent.get(1))) {
+            List<byte[]> rootHash = rootContent.get(1);
+            String describerTypeField = DagStorageSerializer.buildTypeKeyPrefix(DAG_DESCRIBER);
+            List<byte[]> rootHashWithoutDescriber = Lists.newArrayList();
+            for (int i = 0; i + 1 < rootHash.size(); i += 2) {
+                String field = DagStorageSerializer.getString(rootHash.get(i));
+                if (DAG_DESCRIBER.equals(field) && isDescriptorKey(rootHash.get(i + 1))) {
+                    descriptor = getDescriptor(executionId, rootHash.get(i + 1));
+                } else if (!describerTypeField.equals(field)) {
+                    rootHashWithoutDescriber.add(rootHash.get(i));
+                    rootHashWithoutDescriber.add(rootHash.get(i + 1));
+                }
+            }
+            if (descriptor != null) {
+                rootContent = Lists.newArrayList(rootContent.get(0), rootHashWithoutDescriber);
+            }
+        }
+
+        DAGInfo dagInfo = dagInfoDeserializeService.deserializeBaseDagInfo(rootContent);
         if (dagInfo == null) {
             return null;
         }
-        appendTask(dagInfo, dagInfoByte);
+        if (descriptor == null) {
+            descriptor = new DAGDescriptorCache.Descriptor(dagInfo.getDag(),
+                    DAGDescriptorCache.getBaseTask(1, Optional.ofNullable(dagInfo.getDag()).map(DAG::getTasks).orElse(null)));
+        }
+        dagInfo.setDag(descriptor.getDag());
+        appendTask(dagInfo, dagInfoByte, descriptor.getBaseTasks());
         appendTaskRelation(1, dagInfo.getTasks());
         return dagInfo;
     }
 
-    private void appendTask(DAGInfo dagInfo, List<List<List<byte[]>>> dagInfoByte) {
-        Map<String, BaseTask> baseTaskMap = getBaseTask(1, Optional.ofNullable(dagInfo.getDag()).map(DAG::getTasks).orElse(null));
+    private void appendTask(DAGInfo dagInfo, List<List<List<byte[]>>> dagInfoByte, Map<String, BaseTask> baseTaskMap) {
         Map<String, Map<String, TaskInfo>> taskNameToSubTasks = dagInfoDeserializeService.getTaskNameToSubTasksMap(dagInfoByte);
         doAppendTask(1, dagInfo.getTasks(), baseTaskMap, taskNameToSubTasks);
     }
 
-    private Map<String, BaseTask> getBaseTask(int depth, List<BaseTask> baseTasks) {
-        if (CollectionUtils.isEmpty(baseTasks) || depth > SystemConfig.getTaskMaxDepth()) {
-            return Maps.newHashMap();
+    private boolean isDescriptorKey(byte[] rawDescriber) {
+        String describer = DagStorageSerializer.getString(rawDescriber);
+        return describer != null && describer.startsWith("\"" + DAGRedisPrefix.PREFIX_DAG_DESCRIPTOR.getValue());
+    }
+
+    /**
+     * 描述符内容按key不变 反序列化结果及任务索引由DAGDescriptorCache缓存 未命中时读取描述符key
+     * 旧数据dag字段直接保存描述符内容 不使用缓存
+     */
+    private DAGDescriptorCache.Descriptor getDescriptor(String executionId, byte[] rawDescriber) {
+        if (!isDescriptorKey(rawDescriber)) {
+            return DAGDescriptorCache.parse(rawDescriber);
         }
 
-        Map<String, BaseTask> baseTaskMap = Maps.newHashMap();
-        baseTasks.forEach(baseTask -> {
-            baseTaskMap.put(baseTask.getName(), baseTask);
-            baseTaskMap.putAll(getBaseTask(depth + 1, baseTask.subTasks()));
+        String descriptorKey = DagStorageSerializer.deserialize(rawDescriber, String.class);
+        return DAGDescriptorCache.getInstance().get(descriptorKey, () -> {
+            String descriptor = redisClient.get(executionId, descriptorKey);
+            if (descriptor == null) {
+                throw new SerializationException(StorageErrorCode.SERIALIZATION_FAIL.getCode(), "storage can not get dag descriptor:" + descriptorKey);
+            }
+            return DagStorageSerializer.getBytes(descriptor);
         });
-        return baseTaskMap;
     }
 
     private void doAppendTask(int depth, Map<String, TaskInfo> taskMap, Map<String, BaseTask> baseTaskMap, Map<String, Map<String, TaskInfo>> taskNameToSubTasks) {
@@ -239,7 +292,7 @@ public class DAGInfoDAO {
     }
 
     public TaskInfo getTaskInfoWithAllSubTask(String executionId, String taskName) {
-        return getTaskInfo(executionId, taskName, TASK_FIELD_PREFIX);
+        return getTaskInfo(executionId, taskName, Lists.newArrayList(ReservedConstant.KEY_PREFIX, TASK_FIELD_PREFIX));
     }
 
     /**
@@ -262,37 +315,50 @@ public class DAGInfoDAO {
         // - 在lua正则表达式中为特殊字符表示 匹配前一字符0次或多次 需要加%转义
         String subTaskPrefix = (TASK_FIELD_PREFIX + taskRootName + ReservedConstant.TASK_NAME_CONNECTOR)
                 .replaceAll(ReservedConstant.TASK_NAME_CONNECTOR, "%" + ReservedConstant.TASK_NAME_CONNECTOR);
-        return getTaskInfo(executionId, chainNames.get(chainNames.size() - 2), subTaskPrefix);
+        String parentTaskName = chainNames.get(chainNames.size() - 2);
+        // 优先按子任务组索引读取 索引不存在时脚本按前缀扫描并补写索引 索引key紧跟子任务key传入KEYS
+        List<String> subTaskArgs = Lists.newArrayList(ReservedConstant.SUB_TASK_INDEX, taskRootName, subTaskPrefix);
+        return getTaskInfo(executionId, parentTaskName, subTaskArgs, buildSubTaskIndexRedisKey(executionId, parentTaskName));
+    }
+
+    private TaskInfo getTaskInfo(String executionId, String taskName, List<String> subTaskArgs) {
+        return getTaskInfo(executionId, taskName, subTaskArgs, null);
     }
 
     @SuppressWarnings("unchecked")
-    private TaskInfo getTaskInfo(String executionId, String taskName, String subTaskPrefix) {
-        log.info("getTaskInfo executionId:{} taskName:{} subTaskPrefix:{}", executionId, taskName, subTaskPrefix);
+    private TaskInfo getTaskInfo(String executionId, String taskName, List<String> subTaskArgs, String subTaskIndexKey) {
+        log.info("getTaskInfo executionId:{} taskName:{} subTaskArgs:{}", executionId, taskName, subTaskArgs);
 
-        boolean needSubTasks = StringUtils.isNotEmpty(subTaskPrefix);
+        boolean needSubTasks = CollectionUtils.isNotEmpty(subTaskArgs);
         List<String> chainNames = DAGWalkHelper.getInstance().taskInfoNamesCurrentChain(taskName);
         boolean dagDescriberTaskInfoInSameKey = chainNames.size() < 2;
 
         List<String> keys = Lists.newArrayList();
         List<String> argv = Lists.newArrayList();
         keys.add(buildDagInfoRedisKey(executionId));
-        argv.add(DAG_DESCRIBER); // 获取dag描述文件内容 构造TaskInfo.baskTask 及 task间依赖关系
+        argv.add(DAG_DESCRIBER); // 获取dag描述符key 构造TaskInfo.baskTask 及 task间依赖关系
         if (!dagDescriberTaskInfoInSameKey) {
+            argv.add(ReservedConstant.DESCRIPTOR_KEY_ONLY);
             keys.add(buildSubTaskRedisKey(executionId, chainNames.get(chainNames.size() - 2)));
             argv.add(ReservedConstant.PLACEHOLDER);
         }
         argv.add(buildTaskNameRedisField(taskName)); // 获取taskInfo
+        if (dagDescriberTaskInfoInSameKey) {
+            argv.add(ReservedConstant.DESCRIPTOR_KEY_ONLY);
+        }
         if (needSubTasks) {
             keys.add(buildSubTaskRedisKey(executionId, taskName));
+            if (subTaskIndexKey != null) {
+                keys.add(subTaskIndexKey);
+            }
             argv.add(ReservedConstant.PLACEHOLDER); // 获取子任务TaskInfo
-            argv.add(ReservedConstant.KEY_PREFIX);
-            argv.add(subTaskPrefix);
+            argv.addAll(subTaskArgs);
         }
+        RedisWriteBatch.flushCurrent();
         List<List<byte[]>> ret = (List<List<byte[]>>) redisClient.eval(RedisScriptManager.dagInfoGetByFieldScript(), executionId, keys, argv);
 
         // dag描述符
-        DAG dag = DagStorageSerializer.deserialize(ret.get(0).get(0), DAG.class);
-        Map<String, BaseTask> baseTaskMap = getBaseTask(1, Optional.ofNullable(dag).map(DAG::getTasks).orElse(null));
+        Map<String, BaseTask> baseTaskMap = getDescriptor(executionId, ret.get(0).get(0)).getBaseTasks();
         // taskInfo
         byte[] rawTaskInfo = dagDescriberTaskInfoInSameKey ? ret.get(0).get(1) : ret.get(1).get(0);
         if (rawTaskInfo == null || rawTaskInfo.length == 0) {
@@ -321,6 +387,7 @@ public class DAGInfoDAO {
 
         List<String> keys = Lists.newArrayList(buildDagInfoRedisKey(executionId));
         List<String> argv = Lists.newArrayList(DAG_DESCRIBER);
+        RedisWriteBatch.flushCurrent();
         List<List<byte[]>> ret = (List<List<byte[]>>) redisClient.eval(RedisScriptManager.dagInfoGetByFieldScript(), executionId, keys, argv);
 
         return DagStorageSerializer.deserialize(ret.get(0).get(0), DAG.class);
@@ -348,7 +415,7 @@ public class DAGInfoDAO {
         argv.add(ReservedConstant.PLACEHOLDER);
         argv.addAll(DagStorageSerializer.serializeHashToList(dagInfo));
 
-        redisClient.eval(RedisScriptManager.dagInfoSetScript(), executionId, keys, argv);
+        RedisWriteBatch.write(redisClient, RedisWriteCommand.eval(RedisScriptManager.dagInfoSetScript(), executionId, keys, argv));
     }
 
     public void delDagInfo(String executionId) {
@@ -362,10 +429,10 @@ public class DAGInfoDAO {
             }
 
             log.info("delDagInfo executionId:{} expireTime:{}", executionId, expireTimeInSecond);
-            redisClient.eval(RedisScriptManager.getRedisExpire(),
+            RedisWriteBatch.write(redisClient, RedisWriteCommand.eval(RedisScriptManager.getRedisExpire(),
                     executionId,
                     Lists.newArrayList(buildDagInfoRedisKey(executionId), buildTaskNameToSubTaskRedisKey(executionId)),
-                    Lists.newArrayList(String.valueOf(expireTimeInSecond)));
+                    Lists.newArrayList(String.valueOf(expireTimeInSecond))));
         } catch (Exception e) {
             log.warn("delDagInfo fails, executionId:{}, expireTimeInSecond:{}", executionId, expireTimeInSecond, e);
             throw e;
@@ -385,7 +452,7 @@ public class DAGInfoDAO {
             List<String> argv = Lists.newArrayList();
             serializeDagInfo(executionId, dagInfoClone, keys, argv);
 
-            redisClient.eval(RedisScriptManager.dagInfoSetScript(), executionId, keys, argv);
+            RedisWriteBatch.write(redisClient, RedisWriteCommand.eval(RedisScriptManager.dagInfoSetScript(), executionId, keys, argv));
         } catch (Exception e) {
             log.warn("updateDagInfo fails, executionId:{}", executionId, e);
             throw e;
@@ -412,16 +479,19 @@ public class DAGInfoDAO {
         dagInfoClone.getTasks().forEach((taskName, taskInfo) -> dagInfo.put(buildTaskNameRedisField(taskName), taskInfo));
 
         Map<String, Map<String, TaskInfo>> taskNameToSubTasks = getSubTasks(1, dagInfoClone.getTasks());
+        Map<String, Map<String, String>> taskNameToSubTaskIndex = buildSubTaskIndex(taskNameToSubTasks);
 
         // DAGInfo hash内容
         keys.add(buildDagInfoRedisKey(executionId));
         argv.add(ReservedConstant.PLACEHOLDER);
-        argv.addAll(DagStorageSerializer.serializeHashToList(dagInfo));
+        argv.addAll(serializeHashToList(executionId, dagInfo));
 
-        serializeSubTasks(executionId, keys, argv, taskNameToSubTasks);
+        serializeSubTasks(executionId, keys, argv, taskNameToSubTasks, taskNameToSubTaskIndex);
     }
 
-    private void serializeSubTasks(String executionId, List<String> keys, List<String> argv, Map<String, Map<String, TaskInfo>> taskNameToSubTasks) {
+    private void serializeSubTasks(String executionId, List<String> keys, List<String> argv,
+                                   Map<String, Map<String, TaskInfo>> taskNameToSubTasks,
+                                   Map<String, Map<String, String>> taskNameToSubTaskIndex) {
         if (MapUtils.isEmpty(taskNameToSubTasks)) {
             return;
         }
@@ -436,7 +506,7 @@ public class DAGInfoDAO {
             String subTaskRedisKey = buildSubTaskRedisKey(executionId, taskName);
             keys.add(subTaskRedisKey);
             argv.add(ReservedConstant.PLACEHOLDER);
-            argv.addAll(DagStorageSerializer.serializeHashToList(subTasks));
+            argv.addAll(serializeHashToList(executionId, subTasks));
             taskNameToSubTaskRedisKey.put(taskName, subTaskRedisKey);
         });
 
@@ -449,6 +519,35 @@ public class DAGInfoDAO {
                 argv.add(subTaskRedisKey);
             });
         }
+
+        // 子任务组索引
+        taskNameToSubTaskIndex.forEach((taskName, subTaskIndex) -> {
+            keys.add(buildSubTaskIndexRedisKey(executionId, taskName));
+            argv.add(ReservedConstant.PLACEHOLDER);
+            subTaskIndex.forEach((routeName, fields) -> {
+                argv.add(routeName);
+                argv.add(fields);
+            });
+        });
+    }
+
+    /**
+     * 父任务携带的子任务为完整的子任务组(创建时的全部子任务或按组读取的同组子任务) 据此生成子任务组索引
+     * 单独保存的子任务不更新索引 避免索引中只记录组内部分子任务
+     */
+    private Map<String, Map<String, String>> buildSubTaskIndex(Map<String, Map<String, TaskInfo>> taskNameToSubTasks) {
+        Map<String, Map<String, String>> taskNameToSubTaskIndex = Maps.newHashMap();
+        taskNameToSubTasks.forEach((taskName, subTasks) -> {
+            Map<String, String> routeNameToFields = subTasks.entrySet().stream()
+                    .filter(entry -> DAGWalkHelper.getInstance().getRootName(entry.getValue().getName()) != null)
+                    .sorted(Map.Entry.comparingByKey())
+                    .collect(Collectors.groupingBy(entry -> DAGWalkHelper.getInstance().getRootName(entry.getValue().getName()),
+                            TreeMap::new, Collectors.mapping(Map.Entry::getKey, Collectors.joining(","))));
+            if (MapUtils.isNotEmpty(routeNameToFields)) {
+                taskNameToSubTaskIndex.put(taskName, routeNameToFields);
+            }
+        });
+        return taskNameToSubTaskIndex;
     }
 
     private Map<String, Map<String, TaskInfo>> getSubTasks(int depth, Map<String, TaskInfo> tasks) {
@@ -481,7 +580,7 @@ public class DAGInfoDAO {
             List<String> argv = Lists.newArrayList();
             serializeTaskInfos(executionId, taskInfos, keys, argv);
 
-            redisClient.eval(RedisScriptManager.dagInfoSetScript(), executionId, keys, argv);
+            RedisWriteBatch.write(redisClient, RedisWriteCommand.eval(RedisScriptManager.dagInfoSetScript(), executionId, keys, argv));
         } catch (Exception e) {
             log.warn("saveTaskInfos fails, executionId:{}", executionId, e);
             throw e;
@@ -494,6 +593,7 @@ public class DAGInfoDAO {
                 .collect(Collectors.toMap(TaskInfo::getName, taskInfo -> taskInfo));
 
         Map<String, Map<String, TaskInfo>> taskNameToSubTasks = getSubTasks(1, clonedTaskInfos);
+        Map<String, Map<String, String>> taskNameToSubTaskIndex = buildSubTaskIndex(taskNameToSubTasks);
         Map<String, TaskInfo> ancestorTaskMap = Maps.newHashMap();
         clonedTaskInfos.values().forEach(taskInfo -> {
             String taskName = taskInfo.getName();
@@ -511,10 +611,19 @@ public class DAGInfoDAO {
         if (MapUtils.isNotEmpty(ancestorTaskMap)) {
             keys.add(buildDagInfoRedisKey(executionId));
             argv.add(ReservedConstant.PLACEHOLDER);
-            argv.addAll(DagStorageSerializer.serializeHashToList(ancestorTaskMap));
+            argv.addAll(serializeHashToList(executionId, ancestorTaskMap));
         }
 
-        serializeSubTasks(executionId, keys, argv, taskNameToSubTasks);
+        serializeSubTasks(executionId, keys, argv, taskNameToSubTasks, taskNameToSubTaskIndex);
+    }
+
+    /**
+     * dag字段保存描述符key 脚本按JSON字符串识别 始终使用JSON格式 其余field使用storageCodec
+     */
+    private List<String> serializeHashToList(String executionId, Map<String, ?> content) {
+        DagStorageCodec codec = storageCodec(executionId);
+        return DagStorageSerializer.serializeHashToList(content,
+                field -> DAG_DESCRIBER.equals(field) ? JsonStorageCodec.getInstance() : codec);
     }
 
     private String buildDagInfoRedisKey(String executionId) {
@@ -536,6 +645,10 @@ public class DAGInfoDAO {
         return DAGRedisPrefix.PREFIX_SUB_TASK.getValue() + executionId + "_" + parentTaskName;
     }
 
+    private String buildSubTaskIndexRedisKey(String executionId, String parentTaskName) {
+        return DAGRedisPrefix.PREFIX_SUB_TASK_INDEX.getValue() + executionId + "_" + parentTaskName;
+    }
+
     private String buildTaskNameRedisField(String taskName) {
         return TASK_FIELD_PREFIX + taskName;
     }
@@ -48,6 +48,23 @@ public class DAGLocalStorage implements DAGInfoStorage, DAGContextStorage {
     @Override
     public void saveTaskInfos(String executionId, Set<TaskInfo> taskInfos) {
         // memory reference value already update
+        // 父任务副本上新创建的子任务需合并回缓存的父任务
+        DAGInfo dagInfo = getDAGInfo(executionId);
+        if (dagInfo == null || CollectionUtils.isEmpty(taskInfos)) {
+            return;
+        }
+        taskInfos.stream()
+                .filter(taskInfo -> MapUtils.isNotEmpty(taskInfo.getChildren()))
+                .forEach(taskInfo -> {
+                    TaskInfo cachedTaskInfo = DAGWalkHelper.getInstance().getTaskInfoByName(dagInfo, taskInfo.getName());
+                    if (cachedTaskInfo == null || cachedTaskInfo == taskInfo) {
+                        return;
+                    }
+                    if (cachedTaskInfo.getChildren() == null) {
+                        cachedTaskInfo.setChildren(Maps.newConcurrentMap());
+                    }
+                    taskInfo.getChildren().forEach(cachedTaskInfo.getChildren()::putIfAbsent);
+                });
     }
 
     @Override
@@ -120,10 +137,24 @@ public class DAGLocalStorage implements DAGInfoStorage, DAGContextStorage {
         }
         Map<String, Object> ret = Maps.newHashMap();
         fields.forEach(field ->
-                Optional.ofNullable(internalMap.get(field)).ifPresent(value -> ret.put(field, value)));
+                Optional.ofNullable(internalMap.get(field)).ifPresent(value -> ret.put(field, resolveInputReference(internalMap, value))));
         return ret;
     }
 
+    /**
+     * 子context引用的父任务input快照与子context合并返回 子context自身的field优先
+     */
+    @SuppressWarnings("unchecked")
+    private Object resolveInputReference(Map<String, Object> internalMap, Object value) {
+        if (!(value instanceof Map) || !(((Map<String, Object>) value).get(ReservedConstant.INPUT_REFERENCE) instanceof String reference)) {
+            return value;
+        }
+        Map<String, Object> resolved = Maps.newHashMap();
+        Optional.ofNullable(internalMap.get(reference)).map(it -> (Map<String, Object>) it).ifPresent(resolved::putAll);
+        resolved.putAll((Map<String, Object>) value);
+        return resolved;
+    }
+
     private Map<String, Object> getContext(String executionId, boolean withSubContext) {
         Map<String, Object> context = Optional.ofNullable(contextCache.get(executionId)).orElse(new HashMap<>());
         if (!withSubContext) {
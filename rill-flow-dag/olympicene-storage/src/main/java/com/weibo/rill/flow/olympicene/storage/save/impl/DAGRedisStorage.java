@@ -85,6 +85,11 @@ public class DAGRedisStorage implements DAGInfoStorage, DAGContextStorage {
         return contextDao.getContext(executionId, fields);
     }
 
+    @Override
+    public Map<String, Object> getSubContextFields(String executionId, String subContextName, Collection<String> fields) {
+        return contextDao.getSubContextFields(executionId, subContextName, fields);
+    }
+
     @Override
     public void clearContext(String executionId) {
         contextDao.deleteContext(executionId);
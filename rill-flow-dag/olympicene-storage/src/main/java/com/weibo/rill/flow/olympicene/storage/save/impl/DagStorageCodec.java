@@ -0,0 +1,47 @@
+/*
+ *  Copyright 2021-2023 Weibo, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.weibo.rill.flow.olympicene.storage.save.impl;
+
+import java.util.Map;
+
+/**
+ * dag状态hash中单个field的序列化格式
+ * 读取时按value内容识别格式 同一hash中不同格式的field可以共存
+ */
+public interface DagStorageCodec {
+
+    /**
+     * 序列化field 结果写入serializedContent 格式需要时同时写入类型field
+     */
+    void encode(String field, Object value, Map<String, String> serializedContent);
+
+    /**
+     * value是否为该格式写入
+     */
+    boolean accept(byte[] value);
+
+    /**
+     * 按hash中保存的类型反序列化 rawType为类型field的值 格式自带类型时可为null
+     */
+    Object decode(byte[] value, byte[] rawType) throws Exception;
+
+    /**
+     * 按指定类型反序列化
+     */
+    <T> T decode(byte[] value, Class<T> type) throws Exception;
+}
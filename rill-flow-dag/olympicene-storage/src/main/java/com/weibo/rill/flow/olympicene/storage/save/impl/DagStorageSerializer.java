@@ -31,6 +31,7 @@ import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 
@@ -57,8 +58,8 @@ public class DagStorageSerializer {
 
     public static <T> T deserialize(byte[] bytes, Class<T> type) {
         try {
-            return MAPPER.readValue(bytes, type);
-        } catch (IOException e) {
+            return getCodec(bytes).decode(bytes, type);
+        } catch (Exception e) {
             throw new SerializationException(StorageErrorCode.SERIALIZATION_FAIL.getCode(), e);
         }
     }
@@ -79,9 +80,7 @@ public class DagStorageSerializer {
                     return;
                 }
 
-                String className = getString(stringByteContent.get(buildTypeKeyPrefix(field)));
-                Class<?> klass = className != null ? Class.forName(className) : Object.class;
-                map.put(field, MAPPER.readValue(value, klass));
+                map.put(field, getCodec(value).decode(value, stringByteContent.get(buildTypeKeyPrefix(field))));
             } catch (Exception e) {
                 log.warn("deserializeHash fails, field:{}", field, e);
                 throw new SerializationException(StorageErrorCode.SERIALIZATION_FAIL.getCode(), e);
@@ -91,6 +90,17 @@ public class DagStorageSerializer {
     }
 
     public static Map<String, String> serializeHash(Map<String, ?> content) {
+        return serializeHash(content, JsonStorageCodec.getInstance());
+    }
+
+    public static Map<String, String> serializeHash(Map<String, ?> content, DagStorageCodec codec) {
+        return serializeHash(content, field -> codec);
+    }
+
+    /**
+     * fieldCodec按field选择序列化格式
+     */
+    public static Map<String, String> serializeHash(Map<String, ?> content, Function<String, DagStorageCodec> fieldCodec) {
         if (MapUtils.isEmpty(content)) {
             return Maps.newHashMap();
         }
@@ -98,8 +108,7 @@ public class DagStorageSerializer {
         Map<String, String> serializedContent = Maps.newHashMap();
         content.forEach((field, value) -> {
             try {
-                serializedContent.put(field, MAPPER.writeValueAsString(value));
-                serializedContent.put(buildTypeKeyPrefix(field), value.getClass().getName());
+                fieldCodec.apply(field).encode(field, value, serializedContent);
             } catch (Exception e) {
                 log.warn("serializeHash fails, field:{}, value:{}", field, value, e);
                 throw new SerializationException(StorageErrorCode.SERIALIZATION_FAIL.getCode(), e);
@@ -109,14 +118,29 @@ public class DagStorageSerializer {
     }
 
     public static List<String> serializeHashToList(Map<String, ?> content) {
+        return serializeHashToList(content, JsonStorageCodec.getInstance());
+    }
+
+    public static List<String> serializeHashToList(Map<String, ?> content, DagStorageCodec codec) {
+        return serializeHashToList(content, field -> codec);
+    }
+
+    public static List<String> serializeHashToList(Map<String, ?> content, Function<String, DagStorageCodec> fieldCodec) {
         List<String> ret = Lists.newArrayList();
-        serializeHash(content).forEach((key, value) -> {
+        serializeHash(content, fieldCodec).forEach((key, value) -> {
             ret.add(key);
             ret.add(value);
         });
         return ret;
     }
 
+    /**
+     * 按value内容识别写入时的格式 兼容新旧格式混合存储
+     */
+    public static DagStorageCodec getCodec(byte[] value) {
+        return SmileStorageCodec.getInstance().accept(value) ? SmileStorageCodec.getInstance() : JsonStorageCodec.getInstance();
+    }
+
     public static String getString(byte[] v) {
         return v == null ? null : new String(v, StandardCharsets.UTF_8);
     }
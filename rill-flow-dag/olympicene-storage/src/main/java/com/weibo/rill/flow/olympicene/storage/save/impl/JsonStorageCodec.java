@@ -0,0 +1,57 @@
+/*
+ *  Copyright 2021-2023 Weibo, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.weibo.rill.flow.olympicene.storage.save.impl;
+
+import java.util.Map;
+
+/**
+ * JSON格式 每个field附带@class_ + field保存value的类名
+ */
+public class JsonStorageCodec implements DagStorageCodec {
+    private static final JsonStorageCodec INSTANCE = new JsonStorageCodec();
+
+    private JsonStorageCodec() {
+    }
+
+    public static JsonStorageCodec getInstance() {
+        return INSTANCE;
+    }
+
+    @Override
+    public void encode(String field, Object value, Map<String, String> serializedContent) {
+        serializedContent.put(field, DagStorageSerializer.serializeToString(value));
+        serializedContent.put(DagStorageSerializer.buildTypeKeyPrefix(field), value.getClass().getName());
+    }
+
+    @Override
+    public boolean accept(byte[] value) {
+        return true;
+    }
+
+    @Override
+    public Object decode(byte[] value, byte[] rawType) throws Exception {
+        String className = DagStorageSerializer.getString(rawType);
+        Class<?> klass = className != null ? Class.forName(className) : Object.class;
+        return DagStorageSerializer.MAPPER.readValue(value, klass);
+    }
+
+    @Override
+    public <T> T decode(byte[] value, Class<T> type) throws Exception {
+        return DagStorageSerializer.MAPPER.readValue(value, type);
+    }
+}
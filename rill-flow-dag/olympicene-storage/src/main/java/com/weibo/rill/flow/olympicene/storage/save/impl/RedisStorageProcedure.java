@@ -18,6 +18,8 @@ package com.weibo.rill.flow.olympicene.storage.save.impl;
 
 import com.weibo.rill.flow.olympicene.core.lock.LockerKey;
 import com.weibo.rill.flow.olympicene.core.runtime.DAGStorageProcedure;
+import com.weibo.rill.flow.olympicene.core.switcher.SwitcherManager;
+import com.weibo.rill.flow.olympicene.storage.redis.api.RedisWriteBatch;
 import com.weibo.rill.flow.olympicene.storage.redis.lock.Locker;
 import lombok.Setter;
 
@@ -25,21 +27,37 @@ import lombok.Setter;
 public class RedisStorageProcedure implements DAGStorageProcedure {
     private final String instanceId;
     private final Locker locker;
+    private final SwitcherManager switcherManager;
 
     @Setter
     private int lockExpireTimeInSecond = 300;
 
     public RedisStorageProcedure(String instanceId, Locker locker) {
+        this(instanceId, locker, null);
+    }
+
+    public RedisStorageProcedure(String instanceId, Locker locker, SwitcherManager switcherManager) {
         this.instanceId = instanceId;
         this.locker = locker;
+        this.switcherManager = switcherManager;
     }
 
+    /**
+     * 开关ENABLE_REDIS_WRITE_BATCH打开时 持锁期间的写操作加入写批次 在释放锁前一次提交
+     * 每次写入及批次提交前检查锁是否仍被持有 锁已丢失(如续约停顿后租期已过)时丢弃写入并抛出异常
+     */
     @Override
     public void lockAndRun(String lockName, Runnable runnable) {
         String lockAcquirerId = LockerKey.getLockId(instanceId);
         try {
             locker.lock(lockName, lockAcquirerId, lockExpireTimeInSecond);
-            runnable.run();
+            RedisWriteBatch.guard(() -> locker.isHeld(lockName, lockAcquirerId), () -> {
+                if (switcherManager != null && switcherManager.getSwitcherState("ENABLE_REDIS_WRITE_BATCH")) {
+                    RedisWriteBatch.run(runnable);
+                } else {
+                    runnable.run();
+                }
+            });
         } finally {
             locker.unlock(lockName, lockAcquirerId);
         }
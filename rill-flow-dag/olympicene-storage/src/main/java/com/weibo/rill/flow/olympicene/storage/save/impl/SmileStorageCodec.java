@@ -0,0 +1,162 @@
+/*
+ *  Copyright 2021-2023 Weibo, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.weibo.rill.flow.olympicene.storage.save.impl;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
+import com.fasterxml.jackson.dataformat.smile.SmileParser;
+import com.google.common.collect.ImmutableBiMap;
+import com.weibo.rill.flow.interfaces.model.task.TaskInfo;
+import com.weibo.rill.flow.olympicene.core.exception.SerializationException;
+import com.weibo.rill.flow.olympicene.core.model.dag.DAGInvokeMsg;
+import com.weibo.rill.flow.olympicene.core.model.dag.DAGStatus;
+import com.weibo.rill.flow.olympicene.storage.constant.StorageErrorCode;
+import com.weibo.rill.flow.olympicene.storage.redis.api.RedisCodecUtil;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Smile二进制格式 value自带类型标记 不再写入@class_ + field
+ * <pre>
+ * value结构: MARKER + 类型标记 + Smile内容
+ *   类型标记为TYPE_TAGS中的单个字符 不在字典中的类型为UNKNOWN_TYPE_TAG + 类名 + TYPE_NAME_END
+ *   redis脚本参数为字符串 内容按ISO-8859-1转为字符串 MARKER为RedisCodecUtil.BINARY_MARKER 客户端按原始字节写入
+ *   早期以LEGACY_MARKER开头的value按UTF-8写入 读取时按UTF-8解码后还原为字节
+ * </pre>
+ */
+public class SmileStorageCodec implements DagStorageCodec {
+    private static final byte MARKER = (byte) RedisCodecUtil.BINARY_MARKER;
+    private static final byte LEGACY_MARKER = 0x01;
+    private static final char UNKNOWN_TYPE_TAG = '*';
+    private static final byte TYPE_NAME_END = 0x00;
+    private static final ImmutableBiMap<Character, Class<?>> TYPE_TAGS = ImmutableBiMap.<Character, Class<?>>builder()
+            .put('s', String.class)
+            .put('i', Integer.class)
+            .put('l', Long.class)
+            .put('d', Double.class)
+            .put('f', Float.class)
+            .put('b', Boolean.class)
+            .put('m', LinkedHashMap.class)
+            .put('h', HashMap.class)
+            .put('a', ArrayList.class)
+            .put('D', BigDecimal.class)
+            .put('I', BigInteger.class)
+            .put('t', TaskInfo.class)
+            .put('v', DAGInvokeMsg.class)
+            .put('S', DAGStatus.class)
+            .build();
+    private static final SmileStorageCodec INSTANCE = new SmileStorageCodec();
+
+    private SmileStorageCodec() {
+    }
+
+    public static SmileStorageCodec getInstance() {
+        return INSTANCE;
+    }
+
+    @Override
+    public void encode(String field, Object value, Map<String, String> serializedContent) {
+        serializedContent.put(field, new String(encode(value), StandardCharsets.ISO_8859_1));
+    }
+
+    @Override
+    public boolean accept(byte[] value) {
+        return value != null && value.length > 1 && (value[0] == MARKER || value[0] == LEGACY_MARKER);
+    }
+
+    @Override
+    public Object decode(byte[] value, byte[] rawType) throws Exception {
+        byte[] bytes = toBinary(value);
+        char tag = (char) bytes[1];
+        if (tag != UNKNOWN_TYPE_TAG) {
+            return readValue(bytes, 2, TYPE_TAGS.get(tag));
+        }
+
+        int typeNameEnd = 2;
+        while (bytes[typeNameEnd] != TYPE_NAME_END) {
+            typeNameEnd++;
+        }
+        Class<?> type = Class.forName(new String(bytes, 2, typeNameEnd - 2, StandardCharsets.ISO_8859_1));
+        return readValue(bytes, typeNameEnd + 1, type);
+    }
+
+    @Override
+    public <T> T decode(byte[] value, Class<T> type) throws Exception {
+        byte[] bytes = toBinary(value);
+        int offset = 2;
+        if (bytes[1] == UNKNOWN_TYPE_TAG) {
+            while (bytes[offset] != TYPE_NAME_END) {
+                offset++;
+            }
+            offset++;
+        }
+        return readValue(bytes, offset, type);
+    }
+
+    private byte[] encode(Object value) {
+        try {
+            byte[] content = MapperHolder.SMILE_MAPPER.writeValueAsBytes(value);
+            Character tag = TYPE_TAGS.inverse().get(value.getClass());
+            byte[] type = tag != null ? new byte[]{(byte) tag.charValue()} :
+                    (UNKNOWN_TYPE_TAG + value.getClass().getName() + (char) TYPE_NAME_END).getBytes(StandardCharsets.ISO_8859_1);
+
+            byte[] ret = new byte[1 + type.length + content.length];
+            ret[0] = MARKER;
+            System.arraycopy(type, 0, ret, 1, type.length);
+            System.arraycopy(content, 0, ret, 1 + type.length, content.length);
+            return ret;
+        } catch (IOException e) {
+            throw new SerializationException(StorageErrorCode.SERIALIZATION_FAIL.getCode(), e);
+        }
+    }
+
+    private <T> T readValue(byte[] bytes, int offset, Class<T> type) throws Exception {
+        if (type == null) {
+            throw new IllegalArgumentException("unknown type tag:" + (char) bytes[1]);
+        }
+        return MapperHolder.SMILE_MAPPER.readValue(bytes, offset, bytes.length - offset, type);
+    }
+
+    /**
+     * LEGACY_MARKER开头时redis返回的是ISO-8859-1字符串的UTF-8编码 还原为写入时的字节
+     */
+    private static byte[] toBinary(byte[] value) {
+        if (value[0] != LEGACY_MARKER) {
+            return value;
+        }
+        return new String(value, StandardCharsets.UTF_8).getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * 首次使用时复制JSON_MAPPER配置 保证已注册的子类型等配置一致
+     */
+    private static class MapperHolder {
+        private static final ObjectMapper SMILE_MAPPER = DagStorageSerializer.MAPPER.copyWith(SmileFactory.builder()
+                .disable(SmileGenerator.Feature.WRITE_HEADER)
+                .disable(SmileParser.Feature.REQUIRE_HEADER)
+                .build());
+    }
+}
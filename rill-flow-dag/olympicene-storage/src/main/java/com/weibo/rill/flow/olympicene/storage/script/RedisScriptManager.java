@@ -21,6 +21,7 @@ import com.weibo.rill.flow.olympicene.storage.exception.StorageException;
 import com.weibo.rill.flow.olympicene.storage.redis.lock.ResourceLoader;
 
 import java.io.IOException;
+import java.util.List;
 
 public class RedisScriptManager {
     private static final String REDIS_SET_WITH_EXPIRE;
@@ -73,4 +74,12 @@ public class RedisScriptManager {
         return DAG_INFO_GET_BY_FIELD;
     }
 
+    /**
+     * 全部脚本 用于启动时预加载到redis
+     */
+    public static List<String> getAllScripts() {
+        return List.of(REDIS_SET_WITH_EXPIRE, REDIS_GET, REDIS_GET_BY_FIELD_AND_KEY, REDIS_EXPIRE,
+                DAG_INFO_SET, DAG_INFO_GET, DAG_INFO_GET_BY_FIELD);
+    }
+
 }
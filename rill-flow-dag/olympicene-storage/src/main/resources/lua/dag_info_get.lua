@@ -2,15 +2,19 @@
 local ret = {};
 local rootContent = {};
 local rootHGetAll = redis.call("hgetall", KEYS[1]);
-for rootIndex = 1, #rootHGetAll, 2 do
-    local rootField = rootHGetAll[rootIndex];
-    local rootValue = rootHGetAll[rootIndex + 1];
+-- ARGV[1]为_descriptor_key_时 dag字段返回描述符key 不返回描述符内容
+local descriptorKeyOnly = ARGV[1] == "_descriptor_key_";
+if (not descriptorKeyOnly) then
+    for rootIndex = 1, #rootHGetAll, 2 do
+        local rootField = rootHGetAll[rootIndex];
+        local rootValue = rootHGetAll[rootIndex + 1];
 
-    if (rootField == "dag" and string.find(rootValue, "\"dag_descriptor_") == 1) then
-        local descriptorKey = string.gsub(rootValue, "\"", "");
-        rootHGetAll[rootIndex + 1] = redis.call("get", descriptorKey);
-    elseif (rootField == "@class_dag") then
-        rootHGetAll[rootIndex + 1] = "com.weibo.rill.flow.olympicene.core.model.dag.DAG";
+        if (rootField == "dag" and string.find(rootValue, "\"dag_descriptor_") == 1) then
+            local descriptorKey = string.gsub(rootValue, "\"", "");
+            rootHGetAll[rootIndex + 1] = redis.call("get", descriptorKey);
+        elseif (rootField == "@class_dag") then
+            rootHGetAll[rootIndex + 1] = "com.weibo.rill.flow.olympicene.core.model.dag.DAG";
+        end
     end
 end
 table.insert(rootContent, {"name", KEYS[1]});
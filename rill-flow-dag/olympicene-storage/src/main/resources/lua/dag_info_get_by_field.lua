@@ -1,8 +1,10 @@
 --dag_info_get_by_field.lua
 local ret = {};
 local argvIndex = 1;
-for k = 1, #KEYS, 1 do
+local k = 1;
+while (k <= #KEYS) do
     local key = KEYS[k];
+    k = k + 1;
     local args = {};
     for _ = argvIndex, #ARGV, 1 do
         local arg = ARGV[argvIndex];
@@ -33,9 +35,48 @@ for k = 1, #KEYS, 1 do
         else
             table.insert(ret, redis.call("hmget", key, unpack(filteredMapKeys)));
         end
+    elseif (args[1] == "_sub_task_index_") then
+        -- 按子任务组索引获取同组子任务 索引不存在时(索引上线前写入的数据)按前缀扫描并补写索引
+        -- 索引key为下一个KEYS
+        local indexKey = KEYS[k];
+        k = k + 1;
+        local group = args[2];
+        local keyPrefix = args[3];
+        local groupFields = {};
+
+        local indexValue = redis.call("hget", indexKey, group);
+        if (indexValue) then
+            for field in string.gmatch(indexValue, "[^,]+") do
+                table.insert(groupFields, field);
+            end
+        else
+            local mapKeys = redis.call("hkeys", key);
+            for mapKeyIndex = 1, #mapKeys, 1 do
+                if (string.find(mapKeys[mapKeyIndex], keyPrefix) == 1) then
+                    table.insert(groupFields, mapKeys[mapKeyIndex]);
+                end
+            end
+            local ttl = redis.call("ttl", key);
+            if (#groupFields > 0 and ttl > 0) then
+                redis.call("hset", indexKey, group, table.concat(groupFields, ","));
+                redis.call("expire", indexKey, ttl);
+            end
+        end
+
+        if (#groupFields == 0) then
+            table.insert(ret, {})
+        else
+            table.insert(ret, redis.call("hmget", key, unpack(groupFields)));
+        end
     else
+        -- 参数以_descriptor_key_结尾时 dag字段返回描述符key 不返回描述符内容
+        local descriptorKeyOnly = false;
+        if (args[#args] == "_descriptor_key_") then
+            descriptorKeyOnly = true;
+            table.remove(args);
+        end
         local hmgetContent = redis.call("hmget", key, unpack(args));
-        if (string.find(key, "dag_info_") == 1) then
+        if (string.find(key, "dag_info_") == 1 and not descriptorKeyOnly) then
             for hmgetIndex = 1, #hmgetContent, 1 do
                 local field = args[hmgetIndex];
                 local value = hmgetContent[hmgetIndex];
@@ -8,6 +8,10 @@ end
 local redisKey = redis.call("hvals", KEYS[2]);
 for index = 1, #redisKey, 1 do
     redis.call("expire", redisKey[index], ARGV[1]);
+    -- 子任务组索引key为 sub_task_index_ + 子任务key去掉sub_task_前缀
+    if (string.find(redisKey[index], "sub_task_") == 1) then
+        redis.call("expire", "sub_task_index_" .. string.sub(redisKey[index], 10), ARGV[1]);
+    end
 end
 redis.call("expire", KEYS[2], ARGV[1]);
 return "OK";
\ No newline at end of file
@@ -0,0 +1,22 @@
+--redis_notify_lock.lua
+--KEYS[1] lock key, KEYS[2] fencing token key, KEYS[3] waiting marker key
+--ARGV[1] acquirer id, ARGV[2] lease in millis, ARGV[3] fencing token key expire in millis
+--ARGV[4] waiting marker expire in millis, ARGV[5] 1表示有其他节点等待时让出本次加锁
+--加锁成功返回递增的fencing token 失败时标记存在等待方并返回锁剩余租期的相反数
+local val = redis.call("get", KEYS[1]);
+if val == ARGV[1] then
+    redis.call("pexpire", KEYS[1], ARGV[2]);
+    return tonumber(redis.call("get", KEYS[2]) or "1")
+end
+if not val and (ARGV[5] ~= "1" or redis.call("exists", KEYS[3]) == 0) then
+    redis.call("set", KEYS[1], ARGV[1], "px", ARGV[2]);
+    local token = redis.call("incr", KEYS[2]);
+    redis.call("pexpire", KEYS[2], ARGV[3]);
+    return token
+end
+redis.call("set", KEYS[3], "1", "px", ARGV[4]);
+local ttl = redis.call("pttl", KEYS[1]);
+if ttl <= 0 then
+    ttl = tonumber(ARGV[2]);
+end
+return -ttl
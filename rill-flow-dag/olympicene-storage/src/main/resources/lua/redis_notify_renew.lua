@@ -0,0 +1,7 @@
+--redis_notify_renew.lua
+--KEYS[1] lock key
+--ARGV[1] acquirer id, ARGV[2] lease in millis
+if redis.call("get", KEYS[1]) == ARGV[1] then
+    return redis.call("pexpire", KEYS[1], ARGV[2])
+end
+return 0
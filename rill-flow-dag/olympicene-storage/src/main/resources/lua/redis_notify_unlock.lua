@@ -0,0 +1,15 @@
+--redis_notify_unlock.lua
+--KEYS[1] lock key, KEYS[2] signal list key, KEYS[3] waiting marker key
+--ARGV[1] acquirer id, ARGV[2] signal expire in millis
+--存在等待方时向信号列表写入唯一元素唤醒一个阻塞等待的节点并返回2 无等待方返回1 非持有者返回0
+if redis.call("get", KEYS[1]) ~= ARGV[1] then
+    return 0
+end
+redis.call("del", KEYS[1]);
+if redis.call("exists", KEYS[3]) == 0 then
+    return 1
+end
+redis.call("del", KEYS[2]);
+redis.call("rpush", KEYS[2], "1");
+redis.call("pexpire", KEYS[2], ARGV[2]);
+return 2
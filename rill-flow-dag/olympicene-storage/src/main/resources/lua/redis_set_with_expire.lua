@@ -1,8 +1,10 @@
 --redis_set_with_expire.lua
 local expireTime = ARGV[1];
 local argvIndex = 3;
-for keyIndex = 1, #KEYS, 1 do
+local keyIndex = 1;
+while (keyIndex <= #KEYS) do
     local key = KEYS[keyIndex];
+    keyIndex = keyIndex + 1;
     local args = {};
 
     for _ = argvIndex, #ARGV, 1 do
@@ -16,6 +18,41 @@ for keyIndex = 1, #KEYS, 1 do
         end
     end
 
-    redis.call("hmset", key, unpack(args));
+    if (args[1] == "_input_reference_")
+    then
+        -- 引用input快照的子context: 快照key为下一个KEYS 参数为field value typeField typeValue
+        -- 与快照相同时删除子context中的值 否则写入
+        local snapshotKey = KEYS[keyIndex];
+        keyIndex = keyIndex + 1;
+        local setArgs = {};
+        local delArgs = {};
+        for i = 2, #args, 4 do
+            local field, value, typeField, typeValue = args[i], args[i + 1], args[i + 2], args[i + 3];
+            local snapshot = redis.call("hmget", snapshotKey, field, typeField);
+            if (snapshot[1] == value and (typeValue == "" or snapshot[2] == typeValue))
+            then
+                table.insert(delArgs, field);
+                table.insert(delArgs, typeField);
+            else
+                table.insert(setArgs, field);
+                table.insert(setArgs, value);
+                if (typeValue ~= "")
+                then
+                    table.insert(setArgs, typeField);
+                    table.insert(setArgs, typeValue);
+                end
+            end
+        end
+        if (#delArgs > 0)
+        then
+            redis.call("hdel", key, unpack(delArgs));
+        end
+        if (#setArgs > 0)
+        then
+            redis.call("hmset", key, unpack(setArgs));
+        end
+    else
+        redis.call("hmset", key, unpack(args));
+    end
     redis.call("expire", key, expireTime)
 end
\ No newline at end of file
@@ -0,0 +1,317 @@
+package com.weibo.rill.flow.olympicene.storage.lock.impl
+
+import com.weibo.rill.flow.olympicene.storage.redis.api.RedisClient
+import com.weibo.rill.flow.olympicene.storage.redis.lock.Locker
+import com.weibo.rill.flow.olympicene.storage.redis.lock.ResourceLoader
+import com.weibo.rill.flow.olympicene.storage.redis.lock.impl.NotifyingRedisLocker
+import spock.lang.Specification
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * 多个locker实例共享LockRedis模拟多个节点
+ */
+class NotifyingRedisLockerTest extends Specification {
+    LockRedis redis = new LockRedis()
+    List<NotifyingRedisLocker> lockers = []
+
+    def cleanup() {
+        lockers*.shutdown()
+    }
+
+    def "local waiters acquire in arrival order and reentrant lock keeps token"() {
+        given:
+        NotifyingRedisLocker locker = newLocker()
+        List<Integer> order = Collections.synchronizedList([])
+
+        when:
+        long token = locker.lockWithFencingToken('lockName', 'holder', 300)
+        long reentrantToken = locker.lockWithFencingToken('lockName', 'holder', 300)
+        locker.unlock('lockName', 'holder')
+        List<Thread> threads = (0..<5).collect { int index ->
+            Thread thread = Thread.start {
+                locker.lock('lockName', 'waiter_' + index, 300)
+                order.add(index)
+                sleep(5)
+                locker.unlock('lockName', 'waiter_' + index)
+            }
+            sleep(30)
+            thread
+        }
+        boolean heldAfterFirstUnlock = redis.values['lockName'] == 'holder'
+        locker.unlock('lockName', 'holder')
+        threads*.join()
+
+        then:
+        reentrantToken == token
+        heldAfterFirstUnlock
+        order == [0, 1, 2, 3, 4]
+        redis.values['lockName:fencing_token'] == String.valueOf(token + 5)
+        !redis.values.containsKey('lockName')
+    }
+
+    def "waiter on another node is woken by release instead of polling"() {
+        given:
+        NotifyingRedisLocker nodeA = newLocker()
+        NotifyingRedisLocker nodeB = newLocker()
+        nodeB.maxBlockInMillis = 5000
+        CountDownLatch acquired = new CountDownLatch(1)
+        long tokenB = 0
+
+        when:
+        long tokenA = nodeA.lockWithFencingToken('lockName', 'a', 300)
+        Thread waiter = Thread.start {
+            tokenB = nodeB.lockWithFencingToken('lockName', 'b', 300)
+            acquired.countDown()
+        }
+        sleep(200)
+        long evalsWhileWaiting = redis.evals.get()
+        nodeA.unlock('lockName', 'a')
+        acquired.await()
+        waiter.join()
+
+        then:
+        evalsWhileWaiting <= 3
+        redis.signals.get() == 1
+        redis.blockTimeouts.get() == 0
+        tokenB > tokenA
+        redis.values['lockName'] == 'b'
+    }
+
+    def "lease is renewed while holder is alive and expires after holder crash"() {
+        given:
+        NotifyingRedisLocker nodeA = newLocker()
+        nodeA.leaseInMillis = 150
+        NotifyingRedisLocker nodeB = newLocker()
+        nodeB.lockTimeout = 300
+
+        when:
+        long tokenA = nodeA.lockWithFencingToken('lockName', 'a', 300)
+        sleep(500)
+        nodeB.lock('lockName', 'b', 300)
+
+        then:
+        thrown(RuntimeException)
+        nodeA.isHeld('lockName', 'a')
+
+        when:
+        nodeA.shutdown()
+        nodeB.lockTimeout = 2000
+        long tokenB = nodeB.lockWithFencingToken('lockName', 'b', 300)
+
+        then:
+        tokenB > tokenA
+        redis.values['lockName'] == 'b'
+    }
+
+    def "holder is no longer held once renewal stalls past the lease"() {
+        given:
+        NotifyingRedisLocker nodeA = newLocker()
+        nodeA.leaseInMillis = 150
+        NotifyingRedisLocker nodeB = newLocker()
+
+        when:
+        nodeA.lock('lockName', 'a', 300)
+        boolean heldBeforeStall = nodeA.isHeld('lockName', 'a')
+        redis.renewDown = true
+        nodeB.lock('lockName', 'b', 300)
+
+        then:
+        heldBeforeStall
+        !nodeA.isHeld('lockName', 'a')
+        nodeB.isHeld('lockName', 'b')
+        redis.values['lockName'] == 'b'
+    }
+
+    def "waiters under contention are woken by release signals instead of polling"() {
+        given:
+        int nodes = 2
+        int threads = 4
+        int rounds = 25
+
+        when:
+        int acquired = contend((0..<nodes).collect { newLocker() }, threads, rounds)
+
+        then:
+        acquired == nodes * threads * rounds
+        redis.signals.get() > 0
+        redis.blockTimeouts.get() == 0
+        !redis.values.containsKey('contended')
+    }
+
+    def "blocking waiters of one node are limited and the rest poll"() {
+        given:
+        NotifyingRedisLocker nodeA = newLocker()
+        NotifyingRedisLocker nodeB = newLocker()
+        nodeB.maxBlockingWaiters = 2
+        int locks = 6
+
+        when:
+        locks.times { nodeA.lock('lock_' + it, 'a', 300) }
+        List<Thread> waiters = (0..<locks).collect { int index ->
+            Thread.start {
+                nodeB.lock('lock_' + index, 'b', 300)
+                nodeB.unlock('lock_' + index, 'b')
+            }
+        }
+        sleep(300)
+        int blockedWhileHeld = redis.blocking.get()
+        locks.times { nodeA.unlock('lock_' + it, 'a') }
+        waiters*.join()
+
+        then:
+        blockedWhileHeld == 2
+        redis.maxBlocking.get() == 2
+        (0..<locks).every { !redis.values.containsKey('lock_' + it) }
+    }
+
+    private NotifyingRedisLocker newLocker() {
+        NotifyingRedisLocker locker = new NotifyingRedisLocker(redis.client())
+        lockers.add(locker)
+        return locker
+    }
+
+    private static int contend(List<Locker> lockers, int threads, int rounds) {
+        AtomicInteger acquired = new AtomicInteger()
+        List<Thread> workers = lockers.withIndex().collectMany { Locker locker, int node ->
+            (0..<threads).collect { int index ->
+                Thread.start {
+                    rounds.times {
+                        locker.lock('contended', node + ':' + index, 300)
+                        acquired.incrementAndGet()
+                        sleep(2)
+                        locker.unlock('contended', node + ':' + index)
+                    }
+                }
+            }
+        }
+        workers*.join()
+        return acquired.get()
+    }
+
+    /**
+     * 按脚本内容模拟加解锁lua 支持过期时间及阻塞弹出
+     */
+    static class LockRedis {
+        static final String NOTIFY_LOCK = ResourceLoader.loadResourceAsText('lua/redis_notify_lock.lua')
+        static final String NOTIFY_UNLOCK = ResourceLoader.loadResourceAsText('lua/redis_notify_unlock.lua')
+        static final String NOTIFY_RENEW = ResourceLoader.loadResourceAsText('lua/redis_notify_renew.lua')
+
+        final Map<String, String> values = [:]
+        final Map<String, Long> expireAt = [:]
+        final Map<String, List<String>> lists = [:]
+        final AtomicLong evals = new AtomicLong()
+        final AtomicInteger blocking = new AtomicInteger()
+        final AtomicInteger maxBlocking = new AtomicInteger()
+        final AtomicInteger signals = new AtomicInteger()
+        final AtomicInteger blockTimeouts = new AtomicInteger()
+        volatile boolean renewDown
+
+        RedisClient client() {
+            return [eval : { Object[] args -> eval(args[0] as String, args[-2] as List<String>, args[-1] as List<String>) },
+                    blpop: { String shardingKey, String key, long timeoutInMillis -> blpop(key, timeoutInMillis) }] as RedisClient
+        }
+
+        synchronized Object eval(String script, List<String> keys, List<String> args) {
+            evals.incrementAndGet()
+            String lockKey = keys[0]
+            String val = get(lockKey)
+            if (script == NOTIFY_UNLOCK) {
+                if (val != args[0]) {
+                    return 0L
+                }
+                remove(lockKey)
+                if (get(keys[2]) == null) {
+                    return 1L
+                }
+                lists[keys[1]] = ['1']
+                expireAt[keys[1]] = System.currentTimeMillis() + (args[1] as long)
+                notifyAll()
+                return 2L
+            }
+            if (script == NOTIFY_LOCK) {
+                if (val == args[0]) {
+                    set(lockKey, val, args[1] as long)
+                    return (get(keys[1]) ?: '1') as long
+                }
+                if (val == null && (args[4] != '1' || get(keys[2]) == null)) {
+                    set(lockKey, args[0], args[1] as long)
+                    long token = ((get(keys[1]) ?: '0') as long) + 1
+                    set(keys[1], String.valueOf(token), args[2] as long)
+                    return token
+                }
+                set(keys[2], '1', args[3] as long)
+                long ttl = val == null ? 0 : expireAt[lockKey] - System.currentTimeMillis()
+                return -(ttl > 0 ? ttl : args[1] as long)
+            }
+            if (script == NOTIFY_RENEW) {
+                if (renewDown) {
+                    throw new IllegalStateException('redis down')
+                }
+                if (val != args[0]) {
+                    return 0L
+                }
+                set(lockKey, val, args[1] as long)
+                return 1L
+            }
+            throw new IllegalArgumentException('unknown script')
+        }
+
+        synchronized String blpop(String key, long timeoutInMillis) {
+            maxBlocking.accumulateAndGet(blocking.incrementAndGet(), Math.&max)
+            try {
+                String element = pop(key, timeoutInMillis)
+                (element == null ? blockTimeouts : signals).incrementAndGet()
+                return element
+            } finally {
+                blocking.decrementAndGet()
+            }
+        }
+
+        private String pop(String key, long timeoutInMillis) {
+            long deadline = System.currentTimeMillis() + timeoutInMillis
+            while (true) {
+                expire(key)
+                List<String> list = lists[key]
+                if (list) {
+                    String element = list.remove(0)
+                    if (list.isEmpty()) {
+                        lists.remove(key)
+                    }
+                    return element
+                }
+                long remaining = deadline - System.currentTimeMillis()
+                if (remaining <= 0) {
+                    return null
+                }
+                wait(remaining)
+            }
+        }
+
+        private String get(String key) {
+            expire(key)
+            return values[key]
+        }
+
+        private void set(String key, String value, long expireInMillis) {
+            values[key] = value
+            expireAt[key] = System.currentTimeMillis() + expireInMillis
+        }
+
+        private void remove(String key) {
+            values.remove(key)
+            expireAt.remove(key)
+        }
+
+        private void expire(String key) {
+            Long time = expireAt[key]
+            if (time != null && time <= System.currentTimeMillis()) {
+                values.remove(key)
+                lists.remove(key)
+                expireAt.remove(key)
+            }
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.weibo.rill.flow.olympicene.storage.redis.api
+
+import spock.lang.Specification
+
+class ConsistentHashShardingTest extends Specification {
+    Sharding<String> sharding = ConsistentHashSharding.singleton()
+    List<String> keys = (0..<100000).collect { 'executionId_' + it }
+
+    def "keys are spread evenly over shards"() {
+        when:
+        Map<String, Integer> shardToCount = keys.countBy { sharding.choose(['s0', 's1', 's2', 's3'], it) }
+
+        then:
+        shardToCount.keySet() == ['s0', 's1', 's2', 's3'] as Set
+        shardToCount.values().every { Math.abs(it - 25000) < 25000 * 0.2 }
+    }
+
+    def "appending shards only moves keys to new shards"() {
+        given:
+        List<String> before = ['s0', 's1', 's2', 's3']
+        List<String> after = before + ['s4', 's5']
+
+        when:
+        List<String> moved = keys.findAll { sharding.choose(before, it) != sharding.choose(after, it) }
+        double movedFraction = moved.size() / keys.size()
+        double crc32MovedFraction = keys.count { Crc32Sharding.singleton().choose(before, it) != Crc32Sharding.singleton().choose(after, it) } / keys.size()
+
+        then:
+        moved.every { sharding.choose(after, it) in ['s4', 's5'] }
+        Math.abs(movedFraction - 1 / 3) < 0.05
+        crc32MovedFraction > 0.6
+    }
+
+    def "single shard and empty shard list"() {
+        expect:
+        sharding.choose(['s0'], 'key') == 's0'
+        sharding.choose([], 'key') == null
+    }
+}
@@ -0,0 +1,180 @@
+package com.weibo.rill.flow.olympicene.storage.redis.api
+
+import com.weibo.rill.flow.interfaces.model.task.TaskInfo
+import com.weibo.rill.flow.olympicene.core.model.dag.DAG
+import com.weibo.rill.flow.olympicene.core.model.dag.DAGInfo
+import com.weibo.rill.flow.olympicene.core.model.dag.DAGStatus
+import com.weibo.rill.flow.olympicene.core.model.dag.DAGType
+import com.weibo.rill.flow.olympicene.storage.redis.apicommons.GroupedRedisClient
+import com.weibo.rill.flow.olympicene.storage.save.impl.ContextDAO
+import com.weibo.rill.flow.olympicene.storage.save.impl.DAGInfoDAO
+import com.weibo.rill.flow.olympicene.storage.save.impl.DAGInfoDeserializeService
+import com.weibo.rill.flow.olympicene.storage.script.RedisScriptManager
+import spock.lang.Specification
+
+class RedisWriteBatchTest extends Specification {
+    RedisClient redisClient = Mock(RedisClient)
+    DAGInfoDAO dagInfoDAO = new DAGInfoDAO(redisClient, Mock(DAGInfoDeserializeService))
+    ContextDAO contextDAO = new ContextDAO(redisClient)
+    String executionId = 'executionId'
+    DAGInfo dagInfo = new DAGInfo()
+
+    def setup() {
+        dagInfo.executionId = executionId
+        dagInfo.dagStatus = DAGStatus.RUNNING
+        dagInfo.dag = new DAG("workspace", "dagName", "1.0.0", DAGType.FLOW, null, [], null, null, null, null, "ns", "service", null, null)
+        dagInfo.setTask("A", new TaskInfo(name: "A"))
+    }
+
+    def "writes are executed directly without batch"() {
+        when:
+        dagInfoDAO.updateDagInfo(executionId, dagInfo)
+        contextDAO.updateContext(executionId, [a: 1])
+        RedisWriteBatch.write(redisClient, RedisWriteCommand.zadd('check_pool', 1.0, 'member'))
+
+        then:
+        1 * redisClient.eval(RedisScriptManager.dagInfoSetScript(), executionId, _, _)
+        1 * redisClient.eval(RedisScriptManager.getRedisSetWithExpire(), executionId, _, _)
+        1 * redisClient.zadd('check_pool', 1.0, 'member')
+        0 * redisClient.executeBatch(_)
+    }
+
+    def "writes of one step are sent in one batch in order"() {
+        when:
+        RedisWriteBatch.run {
+            dagInfoDAO.updateDagInfo(executionId, dagInfo)
+            dagInfoDAO.saveTaskInfos(executionId, [dagInfo.getTask("A")] as Set)
+            contextDAO.updateContext(executionId, [a: 1])
+            RedisWriteBatch.write(redisClient, RedisWriteCommand.zadd('check_pool', 1.0, 'member'))
+        }
+
+        then:
+        0 * redisClient.eval(*_)
+        0 * redisClient.zadd(*_)
+        1 * redisClient.executeBatch({ List<RedisWriteCommand> commands ->
+            commands*.type == [RedisWriteCommand.Type.EVAL, RedisWriteCommand.Type.EVAL, RedisWriteCommand.Type.EVAL, RedisWriteCommand.Type.ZADD] &&
+                    commands*.script.take(3) == [RedisScriptManager.dagInfoSetScript(), RedisScriptManager.dagInfoSetScript(), RedisScriptManager.getRedisSetWithExpire()]
+        }) >> 1
+    }
+
+    def "read flushes pending writes before executing"() {
+        when:
+        RedisWriteBatch.run {
+            contextDAO.updateContext(executionId, [a: 1])
+            contextDAO.getContext(executionId, false)
+        }
+
+        then:
+        1 * redisClient.executeBatch({ it.size() == 1 }) >> 1
+
+        then:
+        1 * redisClient.eval(RedisScriptManager.getRedisGet(), executionId, _, _) >> []
+        0 * redisClient.executeBatch(_)
+    }
+
+    def "nested steps share outer batch and each step flushes on exit"() {
+        when:
+        RedisWriteBatch.run {
+            RedisWriteBatch.write(redisClient, RedisWriteCommand.zadd('check_pool', 1.0, 'a'))
+            RedisWriteBatch.run {
+                RedisWriteBatch.write(redisClient, RedisWriteCommand.zrem('check_pool', 'b'))
+            }
+            RedisWriteBatch.write(redisClient, RedisWriteCommand.zadd('check_pool', 2.0, 'c'))
+        }
+
+        then:
+        1 * redisClient.executeBatch({ it*.member == ['a', 'b'] }) >> 1
+
+        then:
+        1 * redisClient.executeBatch({ it*.member == ['c'] }) >> 1
+    }
+
+    def "pending writes are flushed when step throws exception"() {
+        when:
+        RedisWriteBatch.run {
+            RedisWriteBatch.write(redisClient, RedisWriteCommand.zadd('check_pool', 1.0, 'a'))
+            throw new IllegalStateException("step fails")
+        }
+
+        then:
+        thrown(IllegalStateException)
+        1 * redisClient.executeBatch({ it.size() == 1 }) >> 1
+
+        when:
+        RedisWriteBatch.write(redisClient, RedisWriteCommand.zadd('check_pool', 1.0, 'b'))
+
+        then:
+        1 * redisClient.zadd('check_pool', 1.0, 'b')
+        0 * redisClient.executeBatch(_)
+    }
+
+    def "flush exception is added as suppressed to step exception"() {
+        given:
+        redisClient.executeBatch(_) >> { throw new IllegalArgumentException("redis fails") }
+
+        when:
+        RedisWriteBatch.run {
+            RedisWriteBatch.write(redisClient, RedisWriteCommand.zadd('check_pool', 1.0, 'a'))
+            throw new IllegalStateException("step fails")
+        }
+
+        then:
+        IllegalStateException e = thrown(IllegalStateException)
+        e.suppressed*.message == ['redis fails']
+    }
+
+    def "grouped client splits batch by shard and keeps order in each shard"() {
+        given:
+        RedisClient shard1 = Mock(RedisClient)
+        RedisClient shard2 = Mock(RedisClient)
+        GroupedRedisClient groupedRedisClient = new GroupedRedisClient() {
+            @Override
+            RedisClient choose(String shardingKey) {
+                return shardingKey.startsWith('1') ? shard1 : shard2
+            }
+        }
+
+        when:
+        int roundTrips = groupedRedisClient.executeBatch([
+                RedisWriteCommand.zadd('1_a', 1.0, 'a'),
+                RedisWriteCommand.zadd('2_b', 1.0, 'b'),
+                RedisWriteCommand.zrem('1_c', 'c')])
+
+        then:
+        1 * shard1.executeBatch({ it*.member == ['a', 'c'] }) >> 1
+        1 * shard2.executeBatch({ it*.member == ['b'] }) >> 1
+        roundTrips == 2
+    }
+
+    def "round trips per step with and without batch"() {
+        given:
+        int steps = 100
+        int directRoundTrips = 0
+        RedisClient pipelineClient = Stub(RedisClient) {
+            eval(*_) >> { directRoundTrips++; null }
+            zadd(*_) >> { directRoundTrips++; 1L }
+            zrem(*_) >> { directRoundTrips++; 1L }
+            executeBatch(_) >> 1
+        }
+        DAGInfoDAO pipelineDAGInfoDAO = new DAGInfoDAO(pipelineClient, Mock(DAGInfoDeserializeService))
+        ContextDAO pipelineContextDAO = new ContextDAO(pipelineClient)
+        Closure step = {
+            pipelineDAGInfoDAO.saveTaskInfos(executionId, [dagInfo.getTask("A")] as Set)
+            pipelineContextDAO.updateContext(executionId, [a: 1])
+            RedisWriteBatch.write(pipelineClient, RedisWriteCommand.zrem('check_pool', 'A'))
+            RedisWriteBatch.write(pipelineClient, RedisWriteCommand.zadd('check_pool', 1.0, 'B'))
+        }
+        long stepsBefore = RedisWriteBatch.totalSteps
+        long roundTripsBefore = RedisWriteBatch.totalRoundTrips
+
+        when:
+        steps.times { step.call() }
+        steps.times { RedisWriteBatch.run(step) }
+        long batchRoundTrips = RedisWriteBatch.totalRoundTrips - roundTripsBefore
+
+        then:
+        directRoundTrips == steps * 4
+        RedisWriteBatch.totalSteps - stepsBefore == steps
+        batchRoundTrips == steps
+    }
+}
@@ -0,0 +1,110 @@
+package com.weibo.rill.flow.olympicene.storage.redis.apicommons
+
+import com.weibo.rill.flow.olympicene.storage.redis.api.ConsistentHashSharding
+import com.weibo.rill.flow.olympicene.storage.redis.api.RedisClient
+import com.weibo.rill.flow.olympicene.storage.redis.api.RedisWriteCommand
+import com.weibo.rill.flow.olympicene.storage.redis.api.Sharding
+import spock.lang.Specification
+
+/**
+ * 每个分片为一个内存redis 按executionId写入dag_info_ + executionId
+ */
+class ShardedRedisClientTest extends Specification {
+    List<InMemoryRedis> shards = (0..<6).collect { new InMemoryRedis() }
+    ShardedRedisClient client = new ShardedRedisClient(shards[0..<4]*.client, { 'dag_info_' + it })
+    Sharding<RedisClient> sharding = ConsistentHashSharding.singleton()
+
+    def "in-flight executions stay on previous shard and new executions use new ring"() {
+        given:
+        List<String> inFlight = (0..<2000).collect { 'in_flight_' + it }
+        inFlight.each { start(it) }
+        Map<String, InMemoryRedis> previousOwners = inFlight.collectEntries { [(it): owner(it)] }
+
+        when:
+        client.resize(shards*.client)
+        inFlight.each { update(it) }
+        List<String> newExecutions = (0..<2000).collect { 'new_' + it }
+        newExecutions.each { start(it) }
+        double movedFraction = inFlight.count { sharding.choose(shards*.client, it) != previousOwners[it].client } / inFlight.size()
+
+        then:
+        client.isMigrating()
+        inFlight.every { client.hgetAll(it, 'dag_info_' + it) == ['status': 'updated'] }
+        inFlight.every { owner(it) == previousOwners[it] }
+        newExecutions.every { owner(it).client == sharding.choose(shards*.client, it) }
+        shards[4].hashes.size() > 0 && shards[5].hashes.size() > 0
+        Math.abs(movedFraction - 1 / 3) < 0.05
+
+        when:
+        inFlight.each { previousOwners[it].hashes.remove('dag_info_' + it) }
+        client.finishMigration()
+
+        then:
+        !client.isMigrating()
+        newExecutions.every { client.hgetAll(it, 'dag_info_' + it) == ['status': 'running'] }
+    }
+
+    def "batch commands of one execution go to the shard owning it"() {
+        given:
+        start('executionId')
+        InMemoryRedis previousOwner = owner('executionId')
+        client.resize(shards*.client)
+
+        when:
+        client.executeBatch([RedisWriteCommand.eval('script', 'executionId', ['dag_info_executionId'], ['status', 'batch'])])
+
+        then:
+        previousOwner.hashes['dag_info_executionId'] == ['status': 'batch']
+    }
+
+    def "keys sharded by themselves are read from previous shard until migration finishes"() {
+        given:
+        List<String> descriptorKeys = (0..<500).collect { 'descriptor_business_feature_' + it }
+        descriptorKeys.each { client.hmset(it, ['descriptor': it]) }
+        Map<String, InMemoryRedis> previousOwners = descriptorKeys.collectEntries { key -> [(key): shards.find { it.hashes.containsKey(key) }] }
+        List<String> moved = descriptorKeys.findAll { sharding.choose(shards*.client, it) != previousOwners[it].client }
+
+        when:
+        client.resize(shards*.client)
+
+        then:
+        !moved.isEmpty()
+        moved.every { client.hgetAll(it) == ['descriptor': it] }
+        client.hgetAll('descriptor_business_feature_absent') == [:]
+    }
+
+    def "resize is rejected before previous migration finishes"() {
+        given:
+        client.resize(shards[0..<5]*.client)
+
+        when:
+        client.resize(shards*.client)
+
+        then:
+        thrown(IllegalStateException)
+    }
+
+    private void start(String executionId) {
+        client.hmset(executionId, 'dag_info_' + executionId, ['status': 'running'])
+    }
+
+    private void update(String executionId) {
+        client.hmset(executionId, 'dag_info_' + executionId, ['status': 'updated'])
+    }
+
+    private InMemoryRedis owner(String executionId) {
+        List<InMemoryRedis> owners = shards.findAll { it.hashes.containsKey('dag_info_' + executionId) }
+        assert owners.size() == 1
+        return owners[0]
+    }
+
+    static class InMemoryRedis {
+        Map<String, Map<String, String>> hashes = [:]
+        RedisClient client = [
+                hmset  : { Object[] args -> hashes.computeIfAbsent(args[-2], { [:] }).putAll(args[-1]); 'OK' },
+                hgetAll: { Object[] args -> hashes.getOrDefault(args[-1], [:]) },
+                exists : { String key -> hashes.containsKey(key) },
+                eval   : { String script, String shardingKey, List<String> keys, List<String> args -> hashes.computeIfAbsent(keys[0], { [:] }).put(args[0], args[1]) }
+        ] as RedisClient
+    }
+}
@@ -0,0 +1,162 @@
+package com.weibo.rill.flow.olympicene.storage.save.impl
+
+import com.weibo.rill.flow.interfaces.model.task.BaseTask
+import com.weibo.rill.flow.interfaces.model.task.TaskInfo
+import com.weibo.rill.flow.olympicene.core.model.dag.DAG
+import com.weibo.rill.flow.olympicene.core.model.dag.DAGInfo
+import com.weibo.rill.flow.olympicene.core.model.dag.DAGType
+import com.weibo.rill.flow.olympicene.core.model.task.PassTask
+import com.weibo.rill.flow.olympicene.storage.redis.api.RedisClient
+import com.weibo.rill.flow.olympicene.storage.script.RedisScriptManager
+import spock.lang.Specification
+
+class DAGDescriptorCacheTest extends Specification {
+    RedisClient redisClient = Mock(RedisClient)
+    DAGInfoDeserializeService dagInfoDeserializeService = Mock(DAGInfoDeserializeService)
+    DAGInfoDAO dagInfoDAO = new DAGInfoDAO(redisClient, dagInfoDeserializeService)
+    String descriptorKey = 'dag_descriptor_202601_md5'
+
+    def setup() {
+        DAGDescriptorCache.getInstance().invalidateAll()
+    }
+
+    def "cache is bounded and parses descriptor once per key"() {
+        given:
+        DAGDescriptorCache cache = new DAGDescriptorCache(1)
+        byte[] descriptor = DagStorageSerializer.getBytes(DagStorageSerializer.serializeToString(buildDAG(3)))
+        int loadTimes = 0
+
+        when:
+        def first = cache.get('key1', { loadTimes++; descriptor })
+        def second = cache.get('key1', { loadTimes++; descriptor })
+        cache.get('key2', { loadTimes++; descriptor })
+
+        then:
+        loadTimes == 2
+        first.is(second)
+        first.baseTasks.keySet() == ['task0', 'task1', 'task2'] as Set
+        cache.size() == 1
+        cache.stats().evictionCount() == 1
+    }
+
+    def "load failure is thrown and not cached"() {
+        given:
+        DAGDescriptorCache cache = new DAGDescriptorCache(10)
+
+        when:
+        cache.get('key1', { throw new IllegalStateException('redis fails') })
+
+        then:
+        thrown(IllegalStateException)
+        cache.size() == 0
+    }
+
+    def "getBasicTaskInfo requests descriptor key and reads descriptor content only on miss"() {
+        given:
+        String descriptor = DagStorageSerializer.serializeToString(buildDAG(3))
+
+        when:
+        TaskInfo first = dagInfoDAO.getBasicTaskInfo('execution1', 'task1')
+        TaskInfo second = dagInfoDAO.getBasicTaskInfo('execution2', 'task2')
+
+        then:
+        1 * redisClient.eval(RedisScriptManager.dagInfoGetByFieldScript(), 'execution1', ['dag_info_execution1'], ['dag', '#task1', '_descriptor_key_']) >> taskInfoResponse('task1')
+        1 * redisClient.eval(RedisScriptManager.dagInfoGetByFieldScript(), 'execution2', ['dag_info_execution2'], ['dag', '#task2', '_descriptor_key_']) >> taskInfoResponse('task2')
+        1 * redisClient.get('execution1', descriptorKey) >> descriptor
+        first.task.name == 'task1'
+        second.task.name == 'task2'
+        first.task.is(DAGDescriptorCache.getInstance().get(descriptorKey, { null }).baseTasks['task1'])
+    }
+
+    def "sub task info requests descriptor key before placeholder"() {
+        given:
+        String descriptor = DagStorageSerializer.serializeToString(buildDAG(3))
+
+        when:
+        dagInfoDAO.getBasicTaskInfo('execution1', 'task1_0-task2')
+
+        then:
+        1 * redisClient.eval(RedisScriptManager.dagInfoGetByFieldScript(), 'execution1', ['dag_info_execution1', 'sub_task_execution1_task1'],
+                ['dag', '_descriptor_key_', '_placeholder_', '#task1_0-task2']) >>
+                [[DagStorageSerializer.getBytes('"' + descriptorKey + '"')], [DagStorageSerializer.getBytes(DagStorageSerializer.serializeToString(new TaskInfo(name: 'task1_0-task2')))]]
+        1 * redisClient.get('execution1', descriptorKey) >> descriptor
+    }
+
+    def "getDagInfo replaces descriptor key field with cached dag"() {
+        given:
+        DAG dag = buildDAG(3)
+        List<byte[]> baseDagInfo = null
+        DAGInfo deserialized = new DAGInfo(executionId: 'execution1')
+        deserialized.setTask('task0', new TaskInfo(name: 'task0'))
+
+        when:
+        DAGInfo dagInfo = dagInfoDAO.getDagInfo('execution1', false)
+
+        then:
+        1 * redisClient.eval(RedisScriptManager.dagInfoGetScript(), 'execution1', ['dag_info_execution1'], ['_descriptor_key_']) >>
+                [[['name', 'dag_info_execution1']*.getBytes(),
+                  ['execution_id', '"execution1"', 'dag', '"' + descriptorKey + '"', '@class_dag', 'java.lang.String', '@class_execution_id', 'java.lang.String']*.getBytes()]]
+        1 * redisClient.get('execution1', descriptorKey) >> DagStorageSerializer.serializeToString(dag)
+        1 * dagInfoDeserializeService.deserializeBaseDagInfo(_) >> { args -> baseDagInfo = args[0][1]; deserialized }
+        dagInfoDeserializeService.getTaskNameToSubTasksMap(_) >> [:]
+        baseDagInfo*.toList() == ['execution_id', '"execution1"', '@class_execution_id', 'java.lang.String']*.getBytes()*.toList()
+        dagInfo.dag.dagName == 'dagName'
+        dagInfo.getTask('task0').task.name == 'task0'
+    }
+
+    def "descriptor saved inline in dag field is parsed without cache"() {
+        given:
+        String descriptor = DagStorageSerializer.serializeToString(buildDAG(3))
+
+        when:
+        TaskInfo taskInfo = dagInfoDAO.getBasicTaskInfo('execution1', 'task1')
+
+        then:
+        1 * redisClient.eval(*_) >> [[DagStorageSerializer.getBytes(descriptor), DagStorageSerializer.getBytes(DagStorageSerializer.serializeToString(new TaskInfo(name: 'task1')))]]
+        0 * redisClient.get(*_)
+        taskInfo.task.name == 'task1'
+        DAGDescriptorCache.getInstance().size() == 0
+    }
+
+    /**
+     * 无缓存时每次读取任务都需读取并反序列化描述符 使用缓存后与描述符大小无关 每个描述符只读取解析一次
+     */
+    def "per task reads fetch and parse the descriptor once for #taskCount tasks"() {
+        given:
+        String descriptor = DagStorageSerializer.serializeToString(buildDAG(taskCount))
+        int descriptorGets = 0
+        RedisClient stubClient = Stub(RedisClient) {
+            eval(*_) >> { args -> taskInfoResponse(((List<String>) args[3])[1].substring(1)) }
+            get(_, _) >> { descriptorGets++; descriptor }
+        }
+        DAGInfoDAO stubDAO = new DAGInfoDAO(stubClient, dagInfoDeserializeService)
+
+        when:
+        List<TaskInfo> taskInfos = (0..<200).collect { stubDAO.getBasicTaskInfo('execution1', 'task' + (it % taskCount)) }
+
+        then:
+        taskInfos.every { it.task != null }
+        descriptorGets == 1
+        DAGDescriptorCache.getInstance().size() == 1
+
+        where:
+        taskCount << [10, 500]
+    }
+
+    private List<List<byte[]>> taskInfoResponse(String taskName) {
+        return [[DagStorageSerializer.getBytes('"' + descriptorKey + '"'),
+                 DagStorageSerializer.getBytes(DagStorageSerializer.serializeToString(new TaskInfo(name: taskName)))]]
+    }
+
+    private static DAG buildDAG(int taskCount) {
+        List<BaseTask> tasks = (0..<taskCount).collect {
+            PassTask task = new PassTask()
+            task.setName('task' + it)
+            task.setCategory('pass')
+            task.setNext(it + 1 < taskCount ? 'task' + (it + 1) : null)
+            task.setInputMappings([])
+            return task
+        }
+        return new DAG("workspace", "dagName", "1.0.0", DAGType.FLOW, null, tasks, null, null, null, null, "ns", "service", null, null)
+    }
+}
@@ -0,0 +1,150 @@
+package com.weibo.rill.flow.olympicene.storage.save.impl
+
+import com.weibo.rill.flow.olympicene.core.constant.ReservedConstant
+import com.weibo.rill.flow.olympicene.storage.redis.api.RedisClient
+import com.weibo.rill.flow.olympicene.storage.script.LuaScriptRedis
+import com.weibo.rill.flow.olympicene.storage.script.RedisScriptManager
+import spock.lang.Specification
+
+/**
+ * 子context引用父任务input快照 使用执行redis_set_with_expire.lua/redis_get.lua/redis_get_by_field_and_key.lua的内存redis验证读写
+ */
+class InputReferenceTest extends Specification {
+    ContextRedis redis = new ContextRedis()
+    ContextDAO contextDAO = new ContextDAO(redis.client())
+
+    def "sub context reads are resolved through input snapshot"() {
+        given:
+        contextDAO.updateContext('executionId', ['url': 'root',
+                                                 '__A_input': ['url': 'http://xxx', 'config': ['level': 1]],
+                                                 '__A_0': [(ReservedConstant.INPUT_REFERENCE): '__A_input', 'item': 'i0'],
+                                                 '__A_1': [(ReservedConstant.INPUT_REFERENCE): '__A_input', 'item': 'i1', 'url': 'own']])
+
+        when:
+        Map<String, Object> subContexts = contextDAO.getContext('executionId', ['__A_0', '__A_1'])
+        Map<String, Object> totalContext = contextDAO.getContext('executionId', true)
+
+        then:
+        subContexts['__A_0'] == [(ReservedConstant.INPUT_REFERENCE): '__A_input', 'item': 'i0', 'url': 'http://xxx', 'config': ['level': 1]]
+        subContexts['__A_1']['url'] == 'own'
+        !subContexts['__A_0'].is(subContexts['__A_1'])
+        !subContexts['__A_0']['config'].is(subContexts['__A_1']['config'])
+        totalContext['__A_0'] == subContexts['__A_0']
+        totalContext['url'] == 'root'
+        !redis.hashes['sub_context_executionId___A_0'].containsKey('url')
+    }
+
+    def "writes to one sub context do not leak into siblings or snapshot"() {
+        given:
+        contextDAO.updateContext('executionId', ['__A_input': ['url': 'http://xxx', 'config': ['level': 1]],
+                                                 '__A_0': [(ReservedConstant.INPUT_REFERENCE): '__A_input', 'item': 'i0'],
+                                                 '__A_1': [(ReservedConstant.INPUT_REFERENCE): '__A_input', 'item': 'i1']])
+        Map<String, Object> subContext = contextDAO.getContext('executionId', ['__A_0'])['__A_0'] as Map<String, Object>
+
+        when:
+        subContext['config']['level'] = 2
+        subContext['result'] = 'r0'
+        contextDAO.updateContext('executionId', ['__A_0': subContext])
+
+        then:
+        redis.hashes['sub_context_executionId___A_0'].keySet() == [ReservedConstant.INPUT_REFERENCE, '@class_' + ReservedConstant.INPUT_REFERENCE,
+                                                                     'item', '@class_item', 'config', '@class_config', 'result', '@class_result'] as Set
+        contextDAO.getContext('executionId', ['__A_0'])['__A_0']['config'] == ['level': 2]
+        contextDAO.getContext('executionId', ['__A_1'])['__A_1']['config'] == ['level': 1]
+        contextDAO.getContext('executionId', ['__A_1'])['__A_1']['result'] == null
+        contextDAO.getContext('executionId', ['__A_input'])['__A_input'] == ['url': 'http://xxx', 'config': ['level': 1]]
+    }
+
+    def "writing a value equal to snapshot removes the override of sub context"() {
+        given:
+        contextDAO.updateContext('executionId', ['__A_input': ['flag': 'a'],
+                                                 '__A_0': [(ReservedConstant.INPUT_REFERENCE): '__A_input', 'item': 'i0']])
+
+        when:
+        contextDAO.updateContext('executionId', ['__A_0': [(ReservedConstant.INPUT_REFERENCE): '__A_input', 'flag': 'b']])
+
+        then:
+        contextDAO.getContext('executionId', ['__A_0'])['__A_0']['flag'] == 'b'
+
+        when:
+        contextDAO.updateContext('executionId', ['__A_0': [(ReservedConstant.INPUT_REFERENCE): '__A_input', 'flag': 'a']])
+
+        then:
+        contextDAO.getContext('executionId', ['__A_0'])['__A_0']['flag'] == 'a'
+        !redis.hashes['sub_context_executionId___A_0'].containsKey('flag')
+        !redis.hashes['sub_context_executionId___A_0'].containsKey('@class_flag')
+        // 快照key通过KEYS传入脚本
+        redis.undeclaredKeys.isEmpty()
+    }
+
+    def "sub contexts without reference are read as before"() {
+        given:
+        contextDAO.updateContext('executionId', ['__A_0': ['item': 'i0', 'url': 'http://xxx']])
+
+        expect:
+        contextDAO.getContext('executionId', ['__A_0'])['__A_0'] == ['item': 'i0', 'url': 'http://xxx']
+    }
+
+    def "referencing input snapshot reduces bytes written"() {
+        given:
+        Map<String, Object> input = ['payload': 'x' * 100 * 1024, 'url': 'http://xxx']
+
+        when:
+        redis.bytesWritten = 0
+        groups.times { int index ->
+            contextDAO.updateContext('copy', [('__A_' + index): input + ['item': index]])
+        }
+        groups.times { int index ->
+            Map<String, Object> subContext = contextDAO.getContext('copy', ['__A_' + index])['__A_' + index] as Map<String, Object>
+            contextDAO.updateContext('copy', [('__A_' + index): subContext + ['result': index]])
+        }
+        long copyBytes = redis.bytesWritten
+
+        redis.bytesWritten = 0
+        contextDAO.updateContext('reference', ['__A_input': input])
+        groups.times { int index ->
+            contextDAO.updateContext('reference', [('__A_' + index): [(ReservedConstant.INPUT_REFERENCE): '__A_input', 'item': index]])
+        }
+        groups.times { int index ->
+            Map<String, Object> subContext = contextDAO.getContext('reference', ['__A_' + index])['__A_' + index] as Map<String, Object>
+            contextDAO.updateContext('reference', [('__A_' + index): subContext + ['result': index]])
+        }
+        long referenceBytes = redis.bytesWritten
+
+        then:
+        referenceBytes * (groups / 2) < copyBytes
+        contextDAO.getContext('reference', ['__A_7'])['__A_7'] == contextDAO.getContext('copy', ['__A_7'])['__A_7'] +
+                [(ReservedConstant.INPUT_REFERENCE): '__A_input']
+
+        where:
+        groups << [10, 100]
+    }
+
+    /**
+     * 执行lua脚本的内存redis bytesWritten统计hmset写入的字节数 undeclaredKeys记录写入脚本访问的不在KEYS中的key
+     */
+    static class ContextRedis extends LuaScriptRedis {
+        long bytesWritten = 0
+        Set<String> undeclaredKeys = []
+
+        RedisClient client() {
+            return [eval: { String script, String shardingKey, List<String> keys, List<String> args ->
+                if (script != RedisScriptManager.getRedisSetWithExpire()) {
+                    return eval(script, keys, args)
+                }
+                commands.clear()
+                Object ret = eval(script, keys, args)
+                undeclaredKeys.addAll(accessedKeys() - keys)
+                return ret
+            }] as RedisClient
+        }
+
+        @Override
+        Object call(String command, List<String> args) {
+            if (command == 'hmset' || command == 'hset') {
+                bytesWritten += args.subList(1, args.size()).sum { it.length() } as long
+            }
+            return super.call(command, args)
+        }
+    }
+}
@@ -1,10 +1,17 @@
 package com.weibo.rill.flow.olympicene.storage.save.impl
 
+import com.weibo.rill.flow.olympicene.core.switcher.SwitcherManager
+import com.weibo.rill.flow.olympicene.storage.exception.StorageException
+import com.weibo.rill.flow.olympicene.storage.redis.api.RedisClient
+import com.weibo.rill.flow.olympicene.storage.redis.api.RedisWriteBatch
+import com.weibo.rill.flow.olympicene.storage.redis.api.RedisWriteCommand
 import com.weibo.rill.flow.olympicene.storage.redis.lock.Locker
 import spock.lang.Specification
 
 class RedisStorageProcedureTest extends Specification {
-    Locker locker = Mock(Locker.class)
+    Locker locker = Mock(Locker.class) {
+        isHeld(*_) >> true
+    }
     RedisStorageProcedure redisStorageProcedure = new RedisStorageProcedure('instanceId', locker)
 
     def "lock and unlock should be invoked if no exception"() {
@@ -35,4 +42,52 @@ class RedisStorageProcedureTest extends Specification {
         1 * locker.lock(*_)
         1 * locker.unlock(*_)
     }
+
+    def "writes in lock are flushed before unlock when write batch is enabled"() {
+        given:
+        RedisClient redisClient = Mock(RedisClient)
+        SwitcherManager switcherManager = Mock(SwitcherManager)
+        switcherManager.getSwitcherState("ENABLE_REDIS_WRITE_BATCH") >> true
+        RedisStorageProcedure batchStorageProcedure = new RedisStorageProcedure('instanceId', locker, switcherManager)
+
+        when:
+        batchStorageProcedure.lockAndRun("lockName", {
+            RedisWriteBatch.write(redisClient, RedisWriteCommand.zadd('key', 1.0, 'a'))
+            RedisWriteBatch.write(redisClient, RedisWriteCommand.zadd('key', 2.0, 'b'))
+        })
+
+        then:
+        1 * locker.lock(*_)
+
+        then:
+        0 * redisClient.zadd(*_)
+        1 * redisClient.executeBatch({ it.size() == 2 }) >> 1
+
+        then:
+        1 * locker.unlock(*_)
+    }
+
+    def "writes are discarded once the lock is lost"() {
+        given:
+        RedisClient redisClient = Mock(RedisClient)
+        SwitcherManager switcherManager = Mock(SwitcherManager)
+        switcherManager.getSwitcherState("ENABLE_REDIS_WRITE_BATCH") >> batch
+        Locker lostLocker = Mock(Locker.class)
+        lostLocker.isHeld('lockName', _) >> false
+        RedisStorageProcedure guardedStorageProcedure = new RedisStorageProcedure('instanceId', lostLocker, switcherManager)
+
+        when:
+        guardedStorageProcedure.lockAndRun("lockName", {
+            RedisWriteBatch.write(redisClient, RedisWriteCommand.zadd('key', 1.0, 'a'))
+        })
+
+        then:
+        thrown(StorageException)
+        0 * redisClient.zadd(*_)
+        0 * redisClient.executeBatch(_)
+        1 * lostLocker.unlock(*_)
+
+        where:
+        batch << [true, false]
+    }
 }
@@ -0,0 +1,174 @@
+package com.weibo.rill.flow.olympicene.storage.save.impl
+
+import com.google.common.collect.Lists
+import com.weibo.rill.flow.interfaces.model.task.InvokeTimeInfo
+import com.weibo.rill.flow.interfaces.model.task.TaskInfo
+import com.weibo.rill.flow.interfaces.model.task.TaskInvokeMsg
+import com.weibo.rill.flow.interfaces.model.task.TaskStatus
+import com.weibo.rill.flow.olympicene.core.constant.ReservedConstant
+import com.weibo.rill.flow.olympicene.core.model.dag.DAG
+import com.weibo.rill.flow.olympicene.core.model.dag.DAGInfo
+import com.weibo.rill.flow.olympicene.core.model.dag.DAGStatus
+import com.weibo.rill.flow.olympicene.core.model.dag.DAGType
+import com.weibo.rill.flow.olympicene.storage.redis.api.RedisClient
+import com.weibo.rill.flow.olympicene.storage.redis.api.RedisCodecUtil
+import com.weibo.rill.flow.olympicene.storage.script.RedisScriptManager
+import spock.lang.Specification
+
+import java.nio.charset.StandardCharsets
+
+/**
+ * Smile格式读写及与JSON格式混合存储 redis按InputReferenceTest.ContextRedis模拟 value按RedisCodecUtil.encodeArg往返
+ */
+class StorageCodecTest extends Specification {
+    InputReferenceTest.ContextRedis redis = new InputReferenceTest.ContextRedis()
+    CodecContextDAO contextDAO = new CodecContextDAO(redis.client())
+
+    def "smile fields are written without type fields and read together with json fields"() {
+        given:
+        contextDAO.updateContext('executionId', ['a': 1, 'b': ['x': 'y'], 'n': 2L, '__A_0': ['item': 'i0']])
+
+        when:
+        contextDAO.codec = SmileStorageCodec.getInstance()
+        contextDAO.updateContext('executionId', ['b': ['x': 'z'], 'c': '中文text', 'd': 1.5, '__A_1': ['item': 'i1', 'size': 3L]])
+        Map<String, Object> fields = contextDAO.getContext('executionId', ['a', 'b', 'c', 'd', 'n', '__A_0', '__A_1'])
+
+        then:
+        redis.hashes['context_executionId'].containsKey('@class_a')
+        !redis.hashes['context_executionId'].containsKey('@class_c')
+        !redis.hashes['sub_context_executionId___A_1'].keySet().any { it.startsWith('@class_') }
+        fields == ['a': 1, 'b': ['x': 'z'], 'c': '中文text', 'd': 1.5, 'n': 2L, '__A_0': ['item': 'i0'], '__A_1': ['item': 'i1', 'size': 3L]]
+        fields['n'] instanceof Long
+        fields['__A_1']['size'] instanceof Long
+        contextDAO.getContext('executionId', true) == fields
+    }
+
+    def "input snapshot fields are stripped with smile codec"() {
+        given:
+        contextDAO.codec = SmileStorageCodec.getInstance()
+        contextDAO.updateContext('executionId', ['__A_input': ['url': 'http://xxx', 'config': ['level': 1]],
+                                                 '__A_0': [(ReservedConstant.INPUT_REFERENCE): '__A_input', 'item': 'i0']])
+        Map<String, Object> subContext = contextDAO.getContext('executionId', ['__A_0'])['__A_0'] as Map<String, Object>
+
+        when:
+        contextDAO.updateContext('executionId', ['__A_0': subContext + ['result': 'r0']])
+
+        then:
+        redis.hashes['sub_context_executionId___A_0'].keySet() == [ReservedConstant.INPUT_REFERENCE, 'item', 'result'] as Set
+        contextDAO.getContext('executionId', ['__A_0'])['__A_0'] == subContext + ['result': 'r0']
+    }
+
+    def "hash values of each format are decoded by their own type information"() {
+        given:
+        List<String> smile = DagStorageSerializer.serializeHashToList(
+                ['#A': buildTaskInfo('A'), 'dag_status': DAGStatus.RUNNING, 'sorted': new TreeMap(['k': 'v'])], SmileStorageCodec.getInstance())
+        List<String> json = DagStorageSerializer.serializeHashToList(['execution_id': 'executionId'])
+
+        when:
+        Map<String, Object> ret = DagStorageSerializer.deserializeHash(transport(smile + json))
+
+        then:
+        smile.size() == 6
+        ret['#A'] instanceof TaskInfo
+        ret['#A'].name == 'A'
+        ret['#A'].taskInvokeMsg.invokeTimeInfos[0].startTimeInMillisecond == 1L
+        ret['dag_status'] == DAGStatus.RUNNING
+        ret['sorted'] instanceof TreeMap
+        ret['execution_id'] == 'executionId'
+        DagStorageSerializer.deserialize(transport(smile)[smile.indexOf('#A') + 1], TaskInfo.class).name == 'A'
+    }
+
+    def "smile values written with the legacy marker are still decoded"() {
+        given:
+        byte[] binary = DagStorageSerializer.serializeHash(['#A': buildTaskInfo('A')], SmileStorageCodec.getInstance())['#A']
+                .getBytes(StandardCharsets.ISO_8859_1)
+        binary[0] = 0x01
+        byte[] legacy = new String(binary, StandardCharsets.ISO_8859_1).getBytes(StandardCharsets.UTF_8)
+
+        expect:
+        DagStorageSerializer.deserialize(legacy, TaskInfo.class).name == 'A'
+        DagStorageSerializer.deserializeHash([DagStorageSerializer.getBytes('#A'), legacy])['#A'].taskInvokeMsg.invokeId == 'invoke_A'
+    }
+
+    def "dag describer stays json when task fields use smile"() {
+        given:
+        RedisClient redisClient = Mock(RedisClient)
+        DAGInfoDAO dagInfoDAO = new DAGInfoDAO(redisClient, Mock(DAGInfoDeserializeService)) {
+            @Override
+            protected DagStorageCodec storageCodec(String executionId) {
+                return SmileStorageCodec.getInstance()
+            }
+        }
+        DAGInfo dagInfo = new DAGInfo(executionId: 'executionId', dagStatus: DAGStatus.RUNNING,
+                dag: new DAG("workspace", "dagName", "1.0.0", DAGType.FLOW, null, Lists.newArrayList(), null, null, null, null, "ns", "service", null, null))
+        dagInfo.setTask('A', new TaskInfo(name: 'A'))
+        List<String> argv = null
+
+        when:
+        dagInfoDAO.updateDagInfo('executionId', dagInfo)
+
+        then:
+        1 * redisClient.eval(RedisScriptManager.dagInfoSetScript(), 'executionId', _, _) >> { args -> argv = args[3] }
+        Map<String, String> hash = argv.subList(argv.lastIndexOf(ReservedConstant.PLACEHOLDER) + 1, argv.size()).collate(2).collectEntries()
+        hash.keySet() == ['dag', '@class_dag', '#A', 'execution_id', 'dag_status'] as Set
+        hash['dag'].startsWith('"dag_descriptor_')
+        SmileStorageCodec.getInstance().accept(DagStorageSerializer.getBytes(hash['#A']))
+    }
+
+    def "smile codec writes state with fewer bytes"() {
+        when:
+        long jsonBytes = writtenBytes(JsonStorageCodec.getInstance(), payload)
+        long smileBytes = writtenBytes(SmileStorageCodec.getInstance(), payload)
+
+        then:
+        smileBytes < jsonBytes * maxRatio
+
+        where:
+        name           | payload                                                                     | maxRatio
+        'taskInfo'     | ['#A_0-B': TaskInfo.cloneToSave(buildTaskInfo('A_0-B'))]                    | 0.75
+        'context'      | buildContext()                                                              | 0.85
+        'sub contexts' | (0..<10).collectEntries { [('__A_' + it): buildContext() + ['index': it]] } | 0.9
+    }
+
+    private static long writtenBytes(DagStorageCodec codec, Map<String, Object> payload) {
+        List<byte[]> raw = transport(DagStorageSerializer.serializeHash(payload, codec).collectMany { k, v -> [k, v] })
+        assert DagStorageSerializer.deserializeHash(raw).keySet() == payload.keySet()
+        return raw.sum { it.length } as long
+    }
+
+    /**
+     * 与JedisFlowClient一致 字符串参数按RedisCodecUtil.encodeArg写入 返回写入的字节
+     */
+    private static List<byte[]> transport(List<String> values) {
+        return values.collect { RedisCodecUtil.encodeArg(it) }
+    }
+
+    private static TaskInfo buildTaskInfo(String name) {
+        TaskInvokeMsg taskInvokeMsg = new TaskInvokeMsg(invokeId: 'invoke_' + name, code: '0', msg: 'ok',
+                invokeTimeInfos: [new InvokeTimeInfo(startTimeInMillisecond: 1L, endTimeInMillisecond: 20L, expectedCostInMillisecond: 10L)])
+        return new TaskInfo(name: name, routeName: 'A_0', taskStatus: TaskStatus.SUCCEED, taskInvokeMsg: taskInvokeMsg, dispatchVersion: 1,
+                subGroupIndexToStatus: ['0': TaskStatus.SUCCEED, '1': TaskStatus.RUNNING, '2': TaskStatus.READY])
+    }
+
+    private static Map<String, Object> buildContext() {
+        return ['url'     : 'http://test.com/video/segment/0001.mp4',
+                'segments': (0..<20).collect { 'http://test.com/video/segment/' + it + '.ts' },
+                'duration': 3600L,
+                'ratio'   : 0.75,
+                'ready'   : true,
+                'meta'    : ['width': 1920, 'height': 1080, 'codec': 'h264', 'tags': ['a', 'b', 'c']]]
+    }
+
+    static class CodecContextDAO extends ContextDAO {
+        DagStorageCodec codec = JsonStorageCodec.getInstance()
+
+        CodecContextDAO(RedisClient redisClient) {
+            super(redisClient)
+        }
+
+        @Override
+        protected DagStorageCodec storageCodec(String executionId) {
+            return codec
+        }
+    }
+}
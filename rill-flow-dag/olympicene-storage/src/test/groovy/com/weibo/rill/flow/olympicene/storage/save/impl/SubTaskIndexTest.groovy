@@ -0,0 +1,192 @@
+package com.weibo.rill.flow.olympicene.storage.save.impl
+
+import com.weibo.rill.flow.interfaces.model.task.TaskInfo
+import com.weibo.rill.flow.interfaces.model.task.TaskStatus
+import com.weibo.rill.flow.olympicene.core.model.dag.DAG
+import com.weibo.rill.flow.olympicene.core.model.dag.DAGInfo
+import com.weibo.rill.flow.olympicene.core.model.dag.DAGStatus
+import com.weibo.rill.flow.olympicene.core.model.dag.DAGType
+import com.weibo.rill.flow.olympicene.core.model.task.PassTask
+import com.weibo.rill.flow.olympicene.storage.redis.api.RedisClient
+import com.weibo.rill.flow.olympicene.storage.script.LuaScriptRedis
+import com.weibo.rill.flow.olympicene.storage.script.RedisScriptManager
+import spock.lang.Specification
+
+/**
+ * 子任务组索引 使用执行dag_info_set.lua/dag_info_get_by_field.lua/redis_expire.lua的内存redis验证读写
+ */
+class SubTaskIndexTest extends Specification {
+    ScriptedRedis redis = new ScriptedRedis()
+    DAGInfoDAO dagInfoDAO = new DAGInfoDAO(redis.client(), Mock(DAGInfoDeserializeService))
+
+    def setup() {
+        DAGDescriptorCache.getInstance().invalidateAll()
+    }
+
+    def "sibling lookup reads only fields of the group through index"() {
+        given:
+        dagInfoDAO.updateDagInfo('executionId', buildDAGInfo('executionId', 10, 2))
+
+        when:
+        redis.fieldsRead = 0
+        TaskInfo parent = dagInfoDAO.getParentTaskInfoWithSibling('executionId', 'A_3-B1')
+
+        then:
+        redis.hashes['sub_task_index_executionId_A']['A_3'] == '#A_3-B0,#A_3-B1'
+        parent.name == 'A'
+        parent.children.keySet() == ['A_3-B0', 'A_3-B1'] as Set
+        redis.fieldsRead == 2 + 2
+    }
+
+    def "saving single sub tasks does not write partial group index"() {
+        given:
+        dagInfoDAO.updateDagInfo('executionId', buildDAGInfo('executionId', 3, 2))
+        redis.hashes.remove('sub_task_index_executionId_A')
+
+        when:
+        dagInfoDAO.saveTaskInfos('executionId', [new TaskInfo(name: 'A_1-B1', taskStatus: TaskStatus.SUCCEED)] as Set)
+
+        then:
+        !redis.hashes.containsKey('sub_task_index_executionId_A')
+        dagInfoDAO.getParentTaskInfoWithSibling('executionId', 'A_1-B1').children.keySet() == ['A_1-B0', 'A_1-B1'] as Set
+    }
+
+    def "execution written before index existed falls back to prefix scan and backfills index"() {
+        given:
+        dagInfoDAO.updateDagInfo('executionId', buildDAGInfo('executionId', 100, 2))
+        redis.hashes.remove('sub_task_index_executionId_A')
+
+        when:
+        redis.fieldsRead = 0
+        TaskInfo first = dagInfoDAO.getParentTaskInfoWithSibling('executionId', 'A_7-B0')
+        int firstRead = redis.fieldsRead
+        redis.fieldsRead = 0
+        TaskInfo second = dagInfoDAO.getParentTaskInfoWithSibling('executionId', 'A_7-B1')
+
+        then:
+        first.children.keySet() == ['A_7-B0', 'A_7-B1'] as Set
+        second.children.keySet() == ['A_7-B0', 'A_7-B1'] as Set
+        firstRead == 200 * 2 + 2 + 2
+        redis.fieldsRead == 2 + 2
+        redis.hashes['sub_task_index_executionId_A'] == ['A_7': '#A_7-B0,#A_7-B1']
+        redis.ttls['sub_task_index_executionId_A'] == redis.ttls['sub_task_executionId_A']
+        // 补写的索引key通过KEYS传入脚本
+        redis.undeclaredKeys.isEmpty()
+    }
+
+    def "group saved through parent with siblings keeps index complete"() {
+        given:
+        dagInfoDAO.updateDagInfo('executionId', buildDAGInfo('executionId', 5, 3))
+        TaskInfo parent = dagInfoDAO.getParentTaskInfoWithSibling('executionId', 'A_2-B0')
+        parent.children['A_2-B0'].taskStatus = TaskStatus.SUCCEED
+
+        when:
+        dagInfoDAO.saveTaskInfos('executionId', [parent] as Set)
+
+        then:
+        redis.hashes['sub_task_index_executionId_A'].size() == 5
+        redis.hashes['sub_task_index_executionId_A']['A_2'] == '#A_2-B0,#A_2-B1,#A_2-B2'
+        dagInfoDAO.getParentTaskInfoWithSibling('executionId', 'A_2-B2').children['A_2-B0'].taskStatus == TaskStatus.SUCCEED
+    }
+
+    def "delDagInfo expires index keys with sub task keys"() {
+        given:
+        dagInfoDAO.updateDagInfo('executionId', buildDAGInfo('executionId', 2, 1))
+
+        when:
+        dagInfoDAO.delDagInfo('executionId', 100)
+
+        then:
+        redis.ttls['sub_task_executionId_A'] == 100
+        redis.ttls['sub_task_index_executionId_A'] == 100
+    }
+
+    /**
+     * 每个子任务完成时读取父任务及同组子任务 按前缀扫描时读取的field数与子任务总数成正比 foreach整体为平方复杂度
+     * 按索引读取时只与组内子任务数有关
+     */
+    def "sibling lookup reads stay flat as foreach grows"() {
+        given:
+        String executionId = 'execution' + groups
+        dagInfoDAO.updateDagInfo(executionId, buildDAGInfo(executionId, groups, 2))
+        List<String> completed = (0..<20).collect { 'A_' + (it * groups.intdiv(20)) + '-B1' }
+
+        when:
+        redis.fieldsRead = 0
+        completed.each { assert dagInfoDAO.getParentTaskInfoWithSibling(executionId, it).children.size() == 2 }
+        int indexFieldsRead = redis.fieldsRead.intdiv(completed.size())
+
+        redis.hashes.remove('sub_task_index_' + executionId + '_A')
+        redis.backfill = false
+        redis.fieldsRead = 0
+        completed.each { assert dagInfoDAO.getParentTaskInfoWithSibling(executionId, it).children.size() == 2 }
+        int scanFieldsRead = redis.fieldsRead.intdiv(completed.size())
+
+        then:
+        indexFieldsRead == 2 + 2
+        scanFieldsRead == groups * 2 * 2 + 2 + 2
+
+        where:
+        groups << [100, 1000, 5000]
+    }
+
+    private static DAGInfo buildDAGInfo(String executionId, int groups, int tasksPerGroup) {
+        PassTask passTask = new PassTask()
+        passTask.setName('A')
+        passTask.setCategory('pass')
+        passTask.setInputMappings([])
+        DAG dag = new DAG("workspace", "dagName", "1.0.0", DAGType.FLOW, null, [passTask], null, null, null, null, "ns", "service", null, null)
+
+        TaskInfo parent = new TaskInfo(name: 'A', taskStatus: TaskStatus.RUNNING)
+        Map<String, TaskInfo> children = new LinkedHashMap<>()
+        (0..<groups).each { int group ->
+            (0..<tasksPerGroup).each { int index ->
+                TaskInfo child = new TaskInfo(name: 'A_' + group + '-B' + index, routeName: 'A_' + group, taskStatus: TaskStatus.READY)
+                children.put(child.name, child)
+            }
+        }
+        parent.setChildren(children)
+
+        DAGInfo dagInfo = new DAGInfo()
+        dagInfo.executionId = executionId
+        dagInfo.dagStatus = DAGStatus.RUNNING
+        dagInfo.dag = dag
+        dagInfo.setTask('A', parent)
+        return dagInfo
+    }
+
+    /**
+     * 执行lua脚本的内存redis fieldsRead统计读取hash的field数
+     * 每次查找同组子任务均读取dag_info中的dag及父任务两个field backfill为false时不补写子任务组索引
+     */
+    static class ScriptedRedis extends LuaScriptRedis {
+        int fieldsRead = 0
+        boolean backfill = true
+        Set<String> undeclaredKeys = []
+
+        RedisClient client() {
+            return [eval: { String script, String shardingKey, List<String> keys, List<String> args ->
+                if (script != RedisScriptManager.dagInfoGetByFieldScript()) {
+                    return eval(script, keys, args)
+                }
+                commands.clear()
+                Object ret = eval(script, keys, args)
+                undeclaredKeys.addAll(accessedKeys() - keys - strings.keySet())
+                return ret
+            },
+                    get : { String shardingKey, String key -> strings[key] }] as RedisClient
+        }
+
+        @Override
+        Object call(String command, List<String> args) {
+            if (command == 'hkeys') {
+                fieldsRead += hashes.getOrDefault(args[0], [:]).size()
+            } else if (command == 'hmget') {
+                fieldsRead += args.size() - 1
+            } else if (command == 'hset' && !backfill && args[0].startsWith('sub_task_index_')) {
+                return 0L
+            }
+            return super.call(command, args)
+        }
+    }
+}
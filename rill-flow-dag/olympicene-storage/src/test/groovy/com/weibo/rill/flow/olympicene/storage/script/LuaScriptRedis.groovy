@@ -0,0 +1,149 @@
+package com.weibo.rill.flow.olympicene.storage.script
+
+import com.weibo.rill.flow.olympicene.storage.redis.api.RedisCodecUtil
+import org.luaj.vm2.Globals
+import org.luaj.vm2.LuaTable
+import org.luaj.vm2.LuaValue
+import org.luaj.vm2.Varargs
+import org.luaj.vm2.lib.VarArgFunction
+import org.luaj.vm2.lib.jse.JsePlatform
+
+/**
+ * 使用luaj执行lua脚本的内存redis 单测直接执行src/main/resources/lua下的脚本 不在groovy中复制脚本逻辑
+ * <pre>
+ * 1. 支持string与hash的常用命令 过期时间只记录不生效
+ * 2. 按redis的规则转换lua与redis的类型 脚本返回的字符串转为byte[] 与jedis一致
+ * 3. commands记录脚本执行的redis命令及key 用于校验访问的key均在KEYS中
+ * </pre>
+ */
+class LuaScriptRedis {
+    Map<String, Map<String, String>> hashes = [:]
+    Map<String, String> strings = [:]
+    Map<String, Long> ttls = [:]
+    List<List<String>> commands = []
+
+    Object eval(String script, List<String> keys, List<String> args) {
+        Globals globals = JsePlatform.standardGlobals()
+        // redis使用lua 5.1 unpack为全局函数
+        globals.set('unpack', globals.get('table').get('unpack'))
+        globals.set('KEYS', toLuaTable(keys))
+        globals.set('ARGV', toLuaTable(args))
+        LuaTable redis = new LuaTable()
+        redis.set('call', new VarArgFunction() {
+            @Override
+            Varargs invoke(Varargs varargs) {
+                List<String> commandArgs = (1..varargs.narg()).collect { varargs.arg(it).tojstring() }
+                return toLua(call(commandArgs[0].toLowerCase(), commandArgs.subList(1, commandArgs.size())))
+            }
+        })
+        globals.set('redis', redis)
+        return toReply(globals.load(script).call())
+    }
+
+    Object call(String command, List<String> args) {
+        commands.add([command] + args)
+        String key = args[0]
+        switch (command) {
+            case 'get':
+                return strings[key]
+            case 'set':
+                strings[key] = args[1]
+                return 'OK'
+            case 'del':
+                return args.count { hashes.remove(it) != null || strings.remove(it) != null } as long
+            case 'exists':
+                return (hashes.containsKey(key) || strings.containsKey(key)) ? 1L : 0L
+            case 'expire':
+                if (!hashes.containsKey(key) && !strings.containsKey(key)) {
+                    return 0L
+                }
+                ttls[key] = args[1] as long
+                return 1L
+            case 'ttl':
+                if (!hashes.containsKey(key) && !strings.containsKey(key)) {
+                    return -2L
+                }
+                return ttls.getOrDefault(key, -1L)
+            case 'hget':
+                return hashes[key]?.get(args[1])
+            case 'hmget':
+                return args.subList(1, args.size()).collect { hashes[key]?.get(it) }
+            case 'hgetall':
+                return hashes.getOrDefault(key, [:]).collectMany { k, v -> [k, v] }
+            case 'hkeys':
+                return new ArrayList<>(hashes.getOrDefault(key, [:]).keySet())
+            case 'hvals':
+                return new ArrayList<>(hashes.getOrDefault(key, [:]).values())
+            case 'hexists':
+                return hashes[key]?.containsKey(args[1]) ? 1L : 0L
+            case 'hset':
+            case 'hmset':
+                Map<String, String> hash = hashes.computeIfAbsent(key) { [:] }
+                long added = 0
+                args.subList(1, args.size()).collate(2).each {
+                    added += hash.put(it[0], it[1]) == null ? 1 : 0
+                }
+                return command == 'hset' ? added : 'OK'
+            case 'hdel':
+                Map<String, String> hash = hashes[key]
+                if (hash == null) {
+                    return 0L
+                }
+                long removed = args.subList(1, args.size()).count { hash.remove(it) != null }
+                if (hash.isEmpty()) {
+                    hashes.remove(key)
+                }
+                return removed
+            default:
+                throw new IllegalArgumentException('command not supported: ' + command)
+        }
+    }
+
+    /**
+     * 脚本中redis.call访问的key
+     */
+    Set<String> accessedKeys() {
+        return commands.findAll { it.size() > 1 }.collect { it[1] }.toSet()
+    }
+
+    private static LuaTable toLuaTable(List<String> values) {
+        LuaTable table = new LuaTable()
+        values.eachWithIndex { String value, int i -> table.set(i + 1, LuaValue.valueOf(value)) }
+        return table
+    }
+
+    private static LuaValue toLua(Object reply) {
+        if (reply == null) {
+            return LuaValue.FALSE
+        }
+        if (reply instanceof Long) {
+            return LuaValue.valueOf(reply as long)
+        }
+        if (reply instanceof List) {
+            LuaTable table = new LuaTable()
+            reply.eachWithIndex { Object value, int i -> table.set(i + 1, toLua(value)) }
+            return table
+        }
+        return LuaValue.valueOf(reply as String)
+    }
+
+    private static Object toReply(LuaValue value) {
+        if (value.isnil() || value == LuaValue.FALSE) {
+            return null
+        }
+        if (value == LuaValue.TRUE) {
+            return 1L
+        }
+        if (value.type() == LuaValue.TNUMBER) {
+            return value.tolong()
+        }
+        if (value.istable()) {
+            List<Object> ret = []
+            for (int i = 1; !value.get(i).isnil(); i++) {
+                ret.add(toReply(value.get(i)))
+            }
+            return ret
+        }
+        return RedisCodecUtil.encodeArg(value.tojstring())
+    }
+}
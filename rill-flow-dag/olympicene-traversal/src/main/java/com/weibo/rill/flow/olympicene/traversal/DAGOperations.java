@@ -47,6 +47,11 @@ import org.apache.commons.lang3.tuple.Pair;
 
 import java.util.*;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.BiConsumer;
 import java.util.function.Supplier;
 
@@ -61,6 +66,15 @@ public class DAGOperations {
     private final DAGTraversal dagTraversal;
     private final Callback<DAGCallbackInfo> callback;
     private final DAGResultHandler dagResultHandler;
+    /**
+     * 已提交到runnerExecutor但尚未开始执行的任务数 作为子任务分批提交的背压依据
+     * 有等待提交的子任务批次时 任务开始执行后通过pendingDrained唤醒
+     */
+    private final AtomicInteger pendingRunnerTasks = new AtomicInteger(0);
+    private final AtomicInteger waitingSubmitters = new AtomicInteger(0);
+    private final AtomicLong submitWaitTimes = new AtomicLong(0);
+    private final ReentrantLock pendingLock = new ReentrantLock();
+    private final Condition pendingDrained = pendingLock.newCondition();
 
 
     public static final BiConsumer<Runnable, Integer> OPERATE_WITH_RETRY = (operation, retryTimes) -> {
@@ -91,15 +105,44 @@ public class DAGOperations {
 
     public void runTasks(String executionId, Collection<Pair<TaskInfo, Map<String, Object>>> taskInfoToContexts) {
         log.info("runTasks begin submit task executionId:{}", executionId);
-        taskInfoToContexts.forEach(taskInfoToContext -> runnerExecutor.execute(new ExecutionRunnable(executionId, () -> {
-            TaskInfo taskInfo = taskInfoToContext.getLeft();
+        taskInfoToContexts.forEach(taskInfoToContext -> {
+            pendingRunnerTasks.incrementAndGet();
             try {
-                log.info("runTasks task begin to execute executionId:{} taskInfoName:{}", executionId, taskInfo.getName());
-                runTask(executionId, taskInfo, taskInfoToContext.getRight());
-            } catch (Exception e) {
-                log.error("runTasks fails, executionId:{}, taskName:{}", executionId, taskInfo.getName(), e);
+                runnerExecutor.execute(new ExecutionRunnable(executionId, () -> {
+                    runnerTaskStarted();
+                    TaskInfo taskInfo = taskInfoToContext.getLeft();
+                    try {
+                        log.info("runTasks task begin to execute executionId:{} taskInfoName:{}", executionId, taskInfo.getName());
+                        runTask(executionId, taskInfo, taskInfoToContext.getRight());
+                    } catch (Exception e) {
+                        log.error("runTasks fails, executionId:{}, taskName:{}", executionId, taskInfo.getName(), e);
+                    }
+                }));
+            } catch (RuntimeException e) {
+                runnerTaskStarted();
+                throw e;
+            }
+        });
+    }
+
+    int getPendingRunnerTasks() {
+        return pendingRunnerTasks.get();
+    }
+
+    long getSubmitWaitTimes() {
+        return submitWaitTimes.get();
+    }
+
+    private void runnerTaskStarted() {
+        int pending = pendingRunnerTasks.decrementAndGet();
+        if (waitingSubmitters.get() > 0 && pending <= SystemConfig.getSubTaskSubmitMaxPendingTasks()) {
+            pendingLock.lock();
+            try {
+                pendingDrained.signalAll();
+            } finally {
+                pendingLock.unlock();
             }
-        })));
+        }
     }
 
 
@@ -115,6 +158,35 @@ public class DAGOperations {
         Supplier<ExecutionResult> supplier = PluginHelper.pluginInvokeChain(basicActions, params, SystemConfig.TASK_RUN_CUSTOMIZED_PLUGINS);
         ExecutionResult executionResult = supplier.get();
 
+        // 任务异步执行中 完成后在runnerExecutor中处理执行结果 执行期间不占用当前线程
+        if (executionResult.getAsyncResult() != null) {
+            executionResult.getAsyncResult().whenComplete((asyncExecutionResult, throwable) -> {
+                if (throwable != null) {
+                    log.error("runTask async result fails, executionId:{}, taskName:{}", executionId, taskInfo.getName(), throwable);
+                    return;
+                }
+                Runnable handleResult = () -> {
+                    try {
+                        handleTaskRunResult(executionId, taskInfo, context, asyncExecutionResult);
+                    } catch (Exception e) {
+                        log.error("handleTaskRunResult fails, executionId:{}, taskName:{}", executionId, taskInfo.getName(), e);
+                    }
+                };
+                try {
+                    runnerExecutor.execute(new ExecutionRunnable(executionId, handleResult));
+                } catch (Exception e) {
+                    // 任务已提交 结果不能丢弃 线程池拒绝时在当前线程继续遍历
+                    log.warn("runTask submit async result rejected, handle in current thread, executionId:{}, taskName:{}, errorMsg:{}",
+                            executionId, taskInfo.getName(), e.getMessage());
+                    handleResult.run();
+                }
+            });
+            return;
+        }
+        handleTaskRunResult(executionId, taskInfo, context, executionResult);
+    }
+
+    private void handleTaskRunResult(String executionId, TaskInfo taskInfo, Map<String, Object> context, ExecutionResult executionResult) {
         /*
           任务执行后结果类型
           1. 任务执行完成 如 return/pass
@@ -142,11 +214,58 @@ public class DAGOperations {
         }
         // 对应2.1
         if (CollectionUtils.isNotEmpty(executionResult.getSubTaskInfosAndContext())) {
-            executionResult.getSubTaskInfosAndContext()
-                    .forEach(subTaskInfosAndContext -> {
-                        dagTraversal.submitTasks(executionId, subTaskInfosAndContext.getLeft(), subTaskInfosAndContext.getRight());
-                        safeSleep(10);
-                    });
+            submitSubTasks(executionId, executionResult.getSubTaskInfosAndContext());
+        }
+    }
+
+    /**
+     * 子任务组按批合并后提交 每批只获取一次dag锁
+     * 子任务组间context字段按路由区分 可直接合并
+     */
+    private void submitSubTasks(String executionId, List<Pair<Set<TaskInfo>, Map<String, Object>>> subTaskInfosAndContexts) {
+        int batchSize = Math.max(1, SystemConfig.getSubTaskSubmitBatchSize());
+        List<List<Pair<Set<TaskInfo>, Map<String, Object>>>> batches = Lists.partition(subTaskInfosAndContexts, batchSize);
+        for (List<Pair<Set<TaskInfo>, Map<String, Object>>> batch : batches) {
+            Set<TaskInfo> taskInfos = new HashSet<>();
+            Map<String, Object> groupedContext = Maps.newHashMap();
+            batch.forEach(subTaskInfosAndContext -> {
+                taskInfos.addAll(subTaskInfosAndContext.getLeft());
+                groupedContext.putAll(subTaskInfosAndContext.getRight());
+            });
+            awaitPendingRunnerTasks(executionId, taskInfos.size());
+            dagTraversal.submitTasks(executionId, taskInfos, groupedContext);
+        }
+        log.info("submitSubTasks completed, executionId:{}, groupSize:{}, batchSize:{}", executionId, subTaskInfosAndContexts.size(), batches.size());
+    }
+
+    /**
+     * 等待runnerExecutor中未开始执行的任务数加上本批任务数不超过subTaskSubmitMaxPendingTasks
+     * 单批任务数超过上限时等待队列清空 等待超过subTaskSubmitMaxWaitMillis时直接提交
+     */
+    private void awaitPendingRunnerTasks(String executionId, int batchTaskCount) {
+        int threshold = Math.max(0, SystemConfig.getSubTaskSubmitMaxPendingTasks() - batchTaskCount);
+        if (pendingRunnerTasks.get() <= threshold) {
+            return;
+        }
+
+        submitWaitTimes.incrementAndGet();
+        long remainingNanos = TimeUnit.MILLISECONDS.toNanos(SystemConfig.getSubTaskSubmitMaxWaitMillis());
+        waitingSubmitters.incrementAndGet();
+        pendingLock.lock();
+        try {
+            while (pendingRunnerTasks.get() > threshold) {
+                if (remainingNanos <= 0) {
+                    log.warn("awaitPendingRunnerTasks timeout, executionId:{}, pendingRunnerTasks:{}", executionId, pendingRunnerTasks.get());
+                    return;
+                }
+                remainingNanos = pendingDrained.awaitNanos(remainingNanos);
+            }
+        } catch (InterruptedException e) {
+            log.warn("awaitPendingRunnerTasks interrupted, executionId:{}", executionId);
+            Thread.currentThread().interrupt();
+        } finally {
+            pendingLock.unlock();
+            waitingSubmitters.decrementAndGet();
         }
     }
 
@@ -370,12 +489,4 @@ public class DAGOperations {
     private TaskRunner selectRunner(TaskInfo taskInfo) {
         return selectRunner(taskInfo.getTask().getCategory());
     }
-
-    private void safeSleep(long time) {
-        try {
-            Thread.sleep(time);
-        } catch (Exception e) {
-            // do nothing
-        }
-    }
 }
@@ -31,6 +31,7 @@ import com.weibo.rill.flow.interfaces.model.task.TaskStatus;
 import com.weibo.rill.flow.olympicene.core.runtime.DAGContextStorage;
 import com.weibo.rill.flow.olympicene.core.runtime.DAGInfoStorage;
 import com.weibo.rill.flow.olympicene.core.runtime.DAGStorageProcedure;
+import com.weibo.rill.flow.olympicene.core.switcher.SwitcherManager;
 import com.weibo.rill.flow.olympicene.traversal.helper.ContextHelper;
 import com.weibo.rill.flow.olympicene.traversal.helper.PluginHelper;
 import com.weibo.rill.flow.olympicene.traversal.helper.Stasher;
@@ -49,6 +50,8 @@ import java.util.stream.Collectors;
  */
 @Slf4j
 public class DAGTraversal {
+    private static final int MAX_MAILBOX_PASSES = 16;
+
     private final ContextHelper contextHelper = ContextHelper.getInstance();
 
     private final DAGContextStorage dagContextStorage;
@@ -59,6 +62,9 @@ public class DAGTraversal {
     private DAGOperations dagOperations;
     @Setter
     private Stasher stasher;
+    @Setter
+    private SwitcherManager switcherManager;
+    private final TraversalMailbox mailbox = new TraversalMailbox();
 
     public DAGTraversal(DAGContextStorage dagStorage, DAGInfoStorage dagInfoStorage, DAGStorageProcedure dagStorageProcedure,
                         ExecutorService traversalExecutor) {
@@ -69,6 +75,13 @@ public class DAGTraversal {
     }
 
     public void submitTraversal(String executionId, String completedTaskName) {
+        if (switcherManager != null && switcherManager.getSwitcherState("ENABLE_TRAVERSAL_MAILBOX")) {
+            if (mailbox.offer(executionId, completedTaskName) && !submitMailboxConsumer(executionId)) {
+                consumeMailbox(executionId);
+            }
+            return;
+        }
+
         traversalExecutor.execute(new ExecutionRunnable(executionId,() -> {
             try {
                 log.info("submitTraversal begin lock executionId:{}, completedTaskName:{}", executionId, completedTaskName);
@@ -87,6 +100,57 @@ public class DAGTraversal {
         }));
     }
 
+    /**
+     * 同一执行的遍历请求由单个消费者处理 积压的请求合并后只加一次锁
+     * 连续处理MAX_MAILBOX_PASSES轮后仍有请求则重新提交 避免长期占用线程
+     * 消费者提交失败时在当前线程继续消费 保证信箱中的请求总有消费者处理
+     */
+    private void consumeMailbox(String executionId) {
+        do {
+            if (consumeMailboxPasses(executionId)) {
+                return;
+            }
+        } while (!submitMailboxConsumer(executionId));
+    }
+
+    /**
+     * @return true: 信箱已清空
+     */
+    private boolean consumeMailboxPasses(String executionId) {
+        for (int pass = 0; pass < MAX_MAILBOX_PASSES; pass++) {
+            List<String> completedTaskNames = mailbox.drain(executionId);
+            try {
+                log.info("consumeMailbox begin lock executionId:{}, completedTaskNames:{}", executionId, completedTaskNames);
+
+                Map<String, Object> params = Maps.newHashMap();
+                params.put("executionId", executionId);
+                params.put("completedTaskNames", completedTaskNames);
+
+                Runnable basicActions = () -> dagStorageProcedure.lockAndRun(LockerKey.buildDagInfoLockName(executionId),
+                        () -> completedTaskNames.forEach(completedTaskName -> doTraversal(executionId, completedTaskName)));
+                Runnable runnable = PluginHelper.pluginInvokeChain(basicActions, params, SystemConfig.TRAVERSAL_CUSTOMIZED_PLUGINS);
+                DAGOperations.OPERATE_WITH_RETRY.accept(runnable, SystemConfig.getTraversalRetryTimes());
+            } catch (Exception e) {
+                log.error("executionId:{} traversal exception with completedTaskNames:{}. ", executionId, completedTaskNames, e);
+            }
+
+            if (!mailbox.complete(executionId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean submitMailboxConsumer(String executionId) {
+        try {
+            traversalExecutor.execute(new ExecutionRunnable(executionId, () -> consumeMailbox(executionId)));
+            return true;
+        } catch (Exception e) {
+            log.warn("submitMailboxConsumer rejected, consume in current thread, executionId:{}, errorMsg:{}", executionId, e.getMessage());
+            return false;
+        }
+    }
+
     public void submitTasks(String executionId, Set<TaskInfo> taskInfos, Map<String, Object> groupedContext) {
         traversalExecutor.execute(new ExecutionRunnable(executionId, () -> {
             try {
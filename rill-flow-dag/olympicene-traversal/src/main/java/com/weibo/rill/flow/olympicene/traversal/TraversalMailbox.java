@@ -0,0 +1,86 @@
+/*
+ *  Copyright 2021-2023 Weibo, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.weibo.rill.flow.olympicene.traversal;
+
+import com.google.common.collect.Lists;
+import com.weibo.rill.flow.olympicene.core.helper.DAGWalkHelper;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 按executionId划分的遍历请求信箱
+ * 同一执行同时只有一个消费者 消费前积压的请求按遍历范围合并 一次加锁完成
+ * 1. 祖先任务完成或提交触发的遍历结果相同 合并为一次
+ * 2. 子任务完成触发的遍历按所在组(routeName)合并
+ */
+class TraversalMailbox {
+    private static final String ANCESTOR_KEY = StringUtils.EMPTY;
+
+    private final Map<String, Map<String, String>> executionIdToPending = new ConcurrentHashMap<>();
+
+    /**
+     * @return true: 当前执行没有消费者 调用方需提交消费任务
+     */
+    boolean offer(String executionId, String completedTaskName) {
+        boolean[] needSchedule = {false};
+        executionIdToPending.compute(executionId, (key, pending) -> {
+            if (pending == null) {
+                pending = new LinkedHashMap<>();
+                needSchedule[0] = true;
+            }
+            pending.putIfAbsent(coalesceKey(completedTaskName), completedTaskName);
+            return pending;
+        });
+        return needSchedule[0];
+    }
+
+    /**
+     * 取出当前积压的请求 每个遍历范围保留一个completedTaskName
+     */
+    List<String> drain(String executionId) {
+        List<String> completedTaskNames = Lists.newArrayList();
+        executionIdToPending.computeIfPresent(executionId, (key, pending) -> {
+            completedTaskNames.addAll(pending.values());
+            pending.clear();
+            return pending;
+        });
+        return completedTaskNames;
+    }
+
+    /**
+     * 消费完成后调用
+     *
+     * @return true: 消费期间有新请求 需继续消费
+     */
+    boolean complete(String executionId) {
+        return executionIdToPending.computeIfPresent(executionId, (key, pending) -> pending.isEmpty() ? null : pending) != null;
+    }
+
+    int size() {
+        return executionIdToPending.size();
+    }
+
+    private static String coalesceKey(String completedTaskName) {
+        if (StringUtils.isEmpty(completedTaskName) || DAGWalkHelper.getInstance().isAncestorTask(completedTaskName)) {
+            return ANCESTOR_KEY;
+        }
+        return DAGWalkHelper.getInstance().getRootName(completedTaskName);
+    }
+}
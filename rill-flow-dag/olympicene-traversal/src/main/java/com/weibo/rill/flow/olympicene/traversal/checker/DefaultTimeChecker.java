@@ -18,6 +18,8 @@ package com.weibo.rill.flow.olympicene.traversal.checker;
 
 import com.google.common.collect.Lists;
 import com.weibo.rill.flow.olympicene.storage.redis.api.RedisClient;
+import com.weibo.rill.flow.olympicene.storage.redis.api.RedisWriteBatch;
+import com.weibo.rill.flow.olympicene.storage.redis.api.RedisWriteCommand;
 import com.weibo.rill.flow.olympicene.storage.redis.lock.ResourceLoader;
 import com.weibo.rill.flow.olympicene.traversal.constant.TraversalErrorCode;
 import com.weibo.rill.flow.olympicene.traversal.exception.DAGTraversalException;
@@ -30,20 +32,37 @@ import org.apache.commons.lang3.StringUtils;
 
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 
+/**
+ * 超时检查
+ * <pre>
+ * 1. shardCount大于1时 同一key下的成员按executionId哈希分散到多个分片key 每个分片key同时只由一个线程消费
+ *    同一execution的成员总在同一分片内按score顺序处理 不同分片由checkExecutor并行处理
+ * 2. 每次从分片key取出的成员数在minBatchSize与maxBatchSize之间自适应 取满则翻倍 未取满则回到minBatchSize
+ * 3. 删除成员时从所有候选key中删除: 未分片key 当前shardCount下的各分片key 以及上次检查时登记过的其他分片key
+ *    修改shardCount后 旧分片中的成员仍会被消费及删除 删除命令在遍历步骤内与其他写命令一起通过pipeline发送
+ * </pre>
+ */
 @Slf4j
 @NoArgsConstructor
 public class DefaultTimeChecker implements TimeChecker {
+    private static final String SHARD_CONNECTOR = "_";
+
     private static final String REDIS_GET_TIMEOUT;
 
     static {
@@ -58,6 +77,21 @@ public class DefaultTimeChecker implements TimeChecker {
     private RedisClient redisClient;
     @Setter
     private TimeCheckRunner timeCheckRunner;
+    @Setter
+    private int shardCount = 1;
+    @Setter
+    private int minBatchSize = 30;
+    @Setter
+    private int maxBatchSize = 30;
+    /**
+     * 为null时在调用线程中依次处理各key
+     */
+    @Setter
+    private ExecutorService checkExecutor;
+    /**
+     * 上次检查时登记在timeCheckKey中的key 用于删除修改shardCount前写入旧分片的成员
+     */
+    private volatile Set<String> registeredCheckKeys = Collections.emptySet();
 
     public DefaultTimeChecker(int timeoutCheckPeriodInSecond, RedisClient redisClient) {
         this.redisClient = redisClient;
@@ -80,9 +114,9 @@ public class DefaultTimeChecker implements TimeChecker {
         try {
             log.info("addMemberToCheckPool executionId:{}, member:{}, time:{}", executionId, member, time);
 
-            String key = buildTimeCheckRedisKey(executionId);
-            redisClient.zadd(key, time, member);
-            redisClient.zadd(timeCheckKey(), System.currentTimeMillis(), key);
+            String key = timeCheckRedisKey(executionId);
+            RedisWriteBatch.write(redisClient, RedisWriteCommand.zadd(key, time, member));
+            RedisWriteBatch.write(redisClient, RedisWriteCommand.zadd(timeCheckKey(), System.currentTimeMillis(), key));
 
             return true;
         } catch (Exception e) {
@@ -98,7 +132,9 @@ public class DefaultTimeChecker implements TimeChecker {
 
             // 不从ALL_TIME_CHECK_REDIS_KEY中删除key
             // 若担心有长时间不更新且值为空的key 可根据score值删除key
-            redisClient.zrem(buildTimeCheckRedisKey(executionId), member);
+            // 成员所在分片取决于写入时的shardCount 从所有候选key中删除
+            candidateCheckKeys(executionId)
+                    .forEach(key -> RedisWriteBatch.write(redisClient, RedisWriteCommand.zrem(key, member)));
 
             return true;
         } catch (Exception e) {
@@ -132,20 +168,60 @@ public class DefaultTimeChecker implements TimeChecker {
                     log.warn("timeCheck fails, member:{}", member, e);
                 }
             };
-            allKeys.stream().filter(StringUtils::isNotEmpty).forEach(key -> doCheck(key, action));
+            List<String> checkKeys = allKeys.stream().filter(StringUtils::isNotEmpty).collect(Collectors.toList());
+            registeredCheckKeys = Set.copyOf(checkKeys);
+            if (checkExecutor == null) {
+                checkKeys.forEach(key -> doCheck(key, action));
+                return;
+            }
+            List<Future<?>> futures = checkKeys.stream()
+                    .map(key -> checkExecutor.submit(() -> doCheck(key, action)))
+                    .collect(Collectors.toList());
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("timeCheck interrupted");
+        } catch (ExecutionException e) {
+            log.warn("timeCheck fails, ", e.getCause());
         } catch (Exception e) {
             log.warn("timeCheck fails, ", e);
         }
     }
 
+    private String timeCheckRedisKey(String executionId) {
+        String key = buildTimeCheckRedisKey(executionId);
+        if (shardCount <= 1) {
+            return key;
+        }
+        return key + SHARD_CONNECTOR + Math.floorMod(executionId.hashCode(), shardCount);
+    }
+
+    private Set<String> candidateCheckKeys(String executionId) {
+        String key = buildTimeCheckRedisKey(executionId);
+        String shardPrefix = key + SHARD_CONNECTOR;
+        Set<String> keys = new LinkedHashSet<>();
+        keys.add(key);
+        for (int i = 0; shardCount > 1 && i < shardCount; i++) {
+            keys.add(shardPrefix + i);
+        }
+        registeredCheckKeys.stream()
+                .filter(it -> it.startsWith(shardPrefix) && StringUtils.isNumeric(it.substring(shardPrefix.length())))
+                .forEach(keys::add);
+        return keys;
+    }
+
     @SuppressWarnings("unchecked")
     protected void doCheck(String redisKey, Consumer<String> action) {
         try {
             log.info("doCheck start redisKey:{}", redisKey);
             List<String> keys = Lists.newArrayList(redisKey);
-            List<String> argv = Lists.newArrayList("0", String.valueOf(System.currentTimeMillis()), "0", "30");
+            String maxScore = String.valueOf(System.currentTimeMillis());
+            int batchSize = minBatchSize;
 
             while (true) {
+                List<String> argv = Lists.newArrayList("0", maxScore, "0", String.valueOf(batchSize));
                 List<byte[]> membersByte = (List<byte[]>) redisClient.eval(REDIS_GET_TIMEOUT, redisKey, keys, argv);
 
                 List<String> members = Optional.ofNullable(membersByte)
@@ -162,6 +238,7 @@ public class DefaultTimeChecker implements TimeChecker {
                     log.info("doCheck begin to check member:{}", member);
                     action.accept(member);
                 });
+                batchSize = members.size() >= batchSize ? Math.min(batchSize * 2, Math.max(minBatchSize, maxBatchSize)) : minBatchSize;
             }
         } catch (Exception e) {
             log.warn("doCheck fails, redisKey:{}", redisKey, e);
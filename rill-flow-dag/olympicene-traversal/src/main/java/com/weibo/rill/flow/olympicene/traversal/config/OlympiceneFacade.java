@@ -63,11 +63,13 @@ public class OlympiceneFacade {
         TimeCheckRunner timeCheckRunner = new TimeCheckRunner(timeChecker, dagInfoStorage, dagContextStorage, dagStorageProcedure);
         Map<String, TaskRunner> taskRunners = buildTaskRunners(dagInfoStorage, dagContextStorage, dagDispatcher,
                 jsonPathInputOutputMapping, jsonPathInputOutputMapping, dagStorageProcedure, stasher, switcherManager);
+        ((FunctionTaskRunner) taskRunners.get(TaskCategory.FUNCTION.getValue())).setCommitExecutor(executor);
 
         DAGTraversal dagTraversal = new DAGTraversal(dagContextStorage, dagInfoStorage, dagStorageProcedure, executor);
         DAGOperations dagOperations = new DAGOperations(executor, taskRunners, dagRunner, timeCheckRunner, dagTraversal, callback, dagResultHandler);
         dagTraversal.setDagOperations(dagOperations);
         dagTraversal.setStasher(stasher);
+        dagTraversal.setSwitcherManager(switcherManager);
         timeCheckRunner.setDagOperations(dagOperations);
         return new Olympicene(dagInfoStorage, dagOperations, executor, dagResultHandler);
     }
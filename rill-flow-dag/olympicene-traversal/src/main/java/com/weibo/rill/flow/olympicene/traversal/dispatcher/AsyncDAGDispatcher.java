@@ -0,0 +1,29 @@
+/*
+ *  Copyright 2021-2023 Weibo, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.weibo.rill.flow.olympicene.traversal.dispatcher;
+
+import com.weibo.rill.flow.interfaces.model.strategy.DispatchInfo;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 支持异步派发的DAGDispatcher
+ * 返回的future完成前不占用调用线程 FunctionTaskRunner在future完成后提交派发结果
+ */
+public interface AsyncDAGDispatcher extends DAGDispatcher {
+    CompletableFuture<String> dispatchAsync(DispatchInfo dispatchInfo);
+}
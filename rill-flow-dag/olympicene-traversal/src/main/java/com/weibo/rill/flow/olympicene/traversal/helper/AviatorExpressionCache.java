@@ -0,0 +1,90 @@
+/*
+ *  Copyright 2021-2023 Weibo, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.weibo.rill.flow.olympicene.traversal.helper;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.googlecode.aviator.AviatorEvaluator;
+import com.googlecode.aviator.Expression;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Map;
+
+/**
+ * aviator表达式编译结果缓存
+ * <pre>
+ * AviatorEvaluator.execute每次运行都会编译表达式并加载临时类，长时间大量使用会导致Metaspace oom
+ * 该缓存以表达式文本为key，按LRU淘汰，容量有上限:
+ *   1. 表达式使用AviatorEvaluator.compile(script)编译，不进入aviator内部的无上限缓存
+ *      每个表达式的临时类由独立的classloader加载，被淘汰后可随gc卸载，Metaspace占用与缓存容量成正比
+ *   2. 命中/未命中/淘汰次数通过stats()获取
+ * </pre>
+ */
+@Slf4j
+public class AviatorExpressionCache {
+    public static final long DEFAULT_MAXIMUM_SIZE = 1000;
+
+    private static final AviatorExpressionCache INSTANCE = new AviatorExpressionCache(DEFAULT_MAXIMUM_SIZE);
+
+    public static AviatorExpressionCache getInstance() {
+        return INSTANCE;
+    }
+
+    private final LoadingCache<String, Expression> expressionCache;
+
+    public AviatorExpressionCache(long maximumSize) {
+        this.expressionCache = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .recordStats()
+                .build(new CacheLoader<>() {
+                    @Override
+                    public Expression load(String script) {
+                        return AviatorEvaluator.compile(script);
+                    }
+                });
+    }
+
+    /**
+     * 获取表达式编译结果 编译失败时抛出aviator原始异常
+     */
+    public Expression getExpression(String script) {
+        try {
+            return expressionCache.getUnchecked(script);
+        } catch (UncheckedExecutionException e) {
+            log.warn("getExpression fails, script:{}, errorMsg:{}", script, e.getMessage());
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw e;
+        }
+    }
+
+    public Object execute(String script, Map<String, Object> env) {
+        return getExpression(script).execute(env);
+    }
+
+    public CacheStats stats() {
+        return expressionCache.stats();
+    }
+
+    public long size() {
+        return expressionCache.size();
+    }
+}
@@ -20,6 +20,7 @@ import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.weibo.rill.flow.interfaces.model.task.TaskInfo;
+import com.weibo.rill.flow.olympicene.core.constant.ReservedConstant;
 import com.weibo.rill.flow.olympicene.core.helper.DAGWalkHelper;
 import com.weibo.rill.flow.olympicene.core.runtime.DAGContextStorage;
 import com.weibo.rill.flow.olympicene.traversal.constant.TraversalErrorCode;
@@ -144,7 +145,19 @@ public class ContextHelper {
         }
 
         Map<String, Object> groupedContext = dagContextStorage.getContext(executionId, subContextFields);
-        return groupedContext.values().stream().map(context -> (Map<String, Object>) context).toList();
+        return groupedContext.values().stream()
+                .map(context -> (Map<String, Object>) context)
+                .map(this::removeInputReference)
+                .toList();
+    }
+
+    private Map<String, Object> removeInputReference(Map<String, Object> context) {
+        if (!context.containsKey(ReservedConstant.INPUT_REFERENCE)) {
+            return context;
+        }
+        Map<String, Object> ret = Maps.newHashMap(context);
+        ret.remove(ReservedConstant.INPUT_REFERENCE);
+        return ret;
     }
 
     /**
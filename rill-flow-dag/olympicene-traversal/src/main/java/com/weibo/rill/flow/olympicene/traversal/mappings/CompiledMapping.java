@@ -0,0 +1,82 @@
+/*
+ *  Copyright 2021-2023 Weibo, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.weibo.rill.flow.olympicene.traversal.mappings;
+
+import com.jayway.jsonpath.JsonPath;
+import lombok.Builder;
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 单条Mapping规则的编译结果
+ * 1. source 预先区分为 jsonPath/常量/trigger_url，jsonPath 预编译，常量预解析
+ * 2. target 预编译并预先拆分为路径片段
+ * 编译过程中的异常不在编译期抛出，而是记录下来在执行时抛出，保证与逐条解释执行时的容错语义一致
+ */
+@Getter
+@Builder
+public class CompiledMapping {
+    /**
+     * 该规则在原始Mapping列表中的下标 执行时用于获取tolerance等运行期属性
+     */
+    private final int index;
+    private final SourceType sourceType;
+    private final JsonPath sourcePath;
+    private final Object constant;
+    private final String triggerTaskName;
+    private final String triggerQuery;
+    private final String transform;
+    private final JsonPath targetPath;
+    private final List<String> targetParts;
+    private final RuntimeException targetError;
+
+    /**
+     * 常量中的Map/List每次使用时需复制 避免后续mapping修改到缓存中的常量
+     */
+    public Object getConstant() {
+        return copyValue(constant);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object copyValue(Object value) {
+        if (value instanceof Map) {
+            Map<String, Object> copy = new LinkedHashMap<>();
+            ((Map<String, Object>) value).forEach((key, item) -> copy.put(key, copyValue(item)));
+            return copy;
+        }
+        if (value instanceof List) {
+            List<Object> copy = new ArrayList<>();
+            ((List<Object>) value).forEach(item -> copy.add(copyValue(item)));
+            return copy;
+        }
+        return value;
+    }
+
+    public enum SourceType {
+        /**
+         * source为空或无法取值
+         */
+        NONE,
+        JSON_PATH,
+        CONSTANT,
+        TRIGGER_URL
+    }
+}
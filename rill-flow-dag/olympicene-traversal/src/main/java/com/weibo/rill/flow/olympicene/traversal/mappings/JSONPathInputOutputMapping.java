@@ -19,12 +19,12 @@ package com.weibo.rill.flow.olympicene.traversal.mappings;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.google.common.collect.Maps;
-import com.googlecode.aviator.AviatorEvaluator;
 import com.jayway.jsonpath.Configuration;
 import com.jayway.jsonpath.InvalidPathException;
 import com.jayway.jsonpath.JsonPath;
 import com.jayway.jsonpath.Option;
 import com.weibo.rill.flow.interfaces.model.mapping.Mapping;
+import com.weibo.rill.flow.olympicene.traversal.helper.AviatorExpressionCache;
 import com.weibo.rill.flow.olympicene.traversal.serialize.DAGTraversalSerializer;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.collections.CollectionUtils;
@@ -43,6 +43,9 @@ import java.util.regex.Pattern;
 public class JSONPathInputOutputMapping implements InputOutputMapping, JSONPath {
     Configuration conf = Configuration.builder().options(Option.DEFAULT_PATH_LEAF_TO_NULL).build();
     private static final Pattern JSONPATH_PATTERN = Pattern.compile("\\[(.*?)]");
+    private static final Pattern INDEX_PATTERN = Pattern.compile("\\d+");
+
+    private final MappingCompiler mappingCompiler = new MappingCompiler();
 
     @Value("${rill.flow.function.trigger.uri}")
     private String rillFlowFunctionTriggerUri;
@@ -60,19 +63,16 @@ public class JSONPathInputOutputMapping implements InputOutputMapping, JSONPath
         map.put("input", input);
         map.put("output", output);
 
-        List<Mapping> mappingRules = rules.stream()
-                .filter(rule -> (StringUtils.isNotBlank(rule.getSource()) || StringUtils.isNotBlank(rule.getTransform()))
-                        && StringUtils.isNotBlank(rule.getTarget()))
-                .toList();
-        for (Mapping mapping : mappingRules) {
+        String executionId = (String) context.get("flow_execution_id");
+        for (CompiledMapping compiledMapping : mappingCompiler.compile(rules)) {
+            Mapping mapping = rules.get(compiledMapping.getIndex());
             boolean intolerance = mapping.getTolerance() != null && !mapping.getTolerance();
             try {
-                String source = mapping.getSource();
-                Object sourceValue = calculateSourceValue((String) context.get("flow_execution_id"), source, map);
-                Object transformedValue = transformSourceValue(sourceValue, context, input, output, mapping.getTransform());
+                Object sourceValue = calculateSourceValue(executionId, compiledMapping, map);
+                Object transformedValue = transformSourceValue(sourceValue, context, input, output, compiledMapping.getTransform());
 
                 if (transformedValue != null) {
-                    map = setValue(map, transformedValue, mapping.getTarget());
+                    map = setValue(map, transformedValue, compiledMapping);
                 }
             } catch (Exception e) {
                 log.warn("mapping fails, intolerance:{}, mapping:{} due to {}", intolerance, mapping, e.getMessage());
@@ -83,30 +83,21 @@ public class JSONPathInputOutputMapping implements InputOutputMapping, JSONPath
         }
     }
 
-    private Object calculateSourceValue(String executionId, String source, Map<String, Object> map) {
-        if (StringUtils.isBlank(source)) {
-            return null;
-        }
-        String[] infos = source.split("\\.");
-        if (source.startsWith("$.tasks.") && infos.length > 3) {
-            String taskName = infos[2];
-            String key = infos[3];
-            return tryToGenerateTriggerUrl(executionId, source, key, taskName);
-        } else {
-            return source.startsWith("$") ? getValue(map, source) : parseSource(source);
-        }
+    private Object calculateSourceValue(String executionId, CompiledMapping compiledMapping, Map<String, Object> map) {
+        return switch (compiledMapping.getSourceType()) {
+            case JSON_PATH -> getValue(map, compiledMapping.getSourcePath());
+            case CONSTANT -> compiledMapping.getConstant();
+            case TRIGGER_URL -> buildTriggerUrl(executionId, compiledMapping.getTriggerTaskName(), compiledMapping.getTriggerQuery());
+            default -> null;
+        };
     }
 
-    private Object tryToGenerateTriggerUrl(String executionId, String source, String key, String taskName) {
-        if (!key.equals("trigger_url") && !key.startsWith("trigger_url?")) {
-            return null;
-        }
-        Object sourceValue = serverHost + rillFlowFunctionTriggerUri + "?execution_id=" + executionId + "&task_name=" + taskName;
-        String[] queryInfos = source.split("\\?");
-        if (queryInfos.length > 1) {
-            sourceValue += '&' + queryInfos[1];
+    private String buildTriggerUrl(String executionId, String taskName, String query) {
+        String triggerUrl = serverHost + rillFlowFunctionTriggerUri + "?execution_id=" + executionId + "&task_name=" + taskName;
+        if (query != null) {
+            triggerUrl += '&' + query;
         }
-        return sourceValue;
+        return triggerUrl;
     }
 
     public Object transformSourceValue(Object sourceValue, Map<String, Object> context, Map<String, Object> input,
@@ -124,18 +115,10 @@ public class JSONPathInputOutputMapping implements InputOutputMapping, JSONPath
     }
 
     /**
-     * <pre>
-     * AviatorEvaluator.execute每次运行时会加载临时类
-     *   如：[Loaded Script_1638847124088_67/93314457 from com.googlecode.aviator.Expression]
-     * 长时间大量使用aviator会导致Metaspace oom
-     *   如：java.lang.OutOfMemoryError: Compressed class space
-     * 若长期大量使用aviator转换sourceValue 则建议使用guava等本地缓存框架缓存aviator表达式编译结果
-     *   如：Expression expression = AviatorEvaluator.compile(transform) 缓存该表达式
-     *      expression.execute(env)
-     * </pre>
+     * 表达式编译结果由AviatorExpressionCache缓存 避免每次执行都编译并加载临时类
      */
     public Object doTransform(String transform, Map<String, Object> env) {
-        return AviatorEvaluator.execute(transform, env);
+        return AviatorExpressionCache.getInstance().execute(transform, env);
     }
 
     public static Object parseSource(String source) {
@@ -189,19 +172,34 @@ public class JSONPathInputOutputMapping implements InputOutputMapping, JSONPath
         }
     }
 
+    private Object getValue(Map<String, Object> map, JsonPath path) {
+        try {
+            return JsonPath.using(conf).parse(map).read(path);
+        } catch (InvalidPathException e) {
+            return null;
+        }
+    }
+
     @Override
     public Map<String, Object> setValue(Map<String, Object> map, Object value, String path) {
         if (map == null) {
             return null;
         }
 
-        String jsonPath = JsonPath.compile(path).getPath();
-        List<String> jsonPathParts = new ArrayList<>();
-        Matcher matcher = JSONPATH_PATTERN.matcher(jsonPath);
-        while (matcher.find()) {
-            if (matcher.group(1) != null) {
-                jsonPathParts.add(matcher.group(1));
-            }
+        JsonPath jsonPath = JsonPath.compile(path);
+        return setValue(map, value, jsonPath, splitJsonPath(jsonPath));
+    }
+
+    private Map<String, Object> setValue(Map<String, Object> map, Object value, CompiledMapping compiledMapping) {
+        if (compiledMapping.getTargetError() != null) {
+            throw compiledMapping.getTargetError();
+        }
+        return setValue(map, value, compiledMapping.getTargetPath(), compiledMapping.getTargetParts());
+    }
+
+    private Map<String, Object> setValue(Map<String, Object> map, Object value, JsonPath path, List<String> jsonPathParts) {
+        if (map == null) {
+            return null;
         }
 
         Object current = map;
@@ -220,11 +218,25 @@ public class JSONPathInputOutputMapping implements InputOutputMapping, JSONPath
         return JsonPath.using(conf).parse(map).set(path, value).json();
     }
 
+    /**
+     * 将jsonPath拆分为路径片段 如: $.input.meta['user'][1] 拆分为 'input' 'meta' 'user' 1
+     */
+    static List<String> splitJsonPath(JsonPath jsonPath) {
+        List<String> jsonPathParts = new ArrayList<>();
+        Matcher matcher = JSONPATH_PATTERN.matcher(jsonPath.getPath());
+        while (matcher.find()) {
+            if (matcher.group(1) != null) {
+                jsonPathParts.add(matcher.group(1));
+            }
+        }
+        return jsonPathParts;
+    }
+
     private Object processListJsonPathPart(Object current, String part, List<String> jsonPathParts, int i) {
         List<Object> listCurrent = (List<Object>) current;
         int index = Integer.parseInt(part);
         Object insertPosition = listCurrent.get(index);
-        if (jsonPathParts.get(i + 1).matches("\\d+")) {
+        if (INDEX_PATTERN.matcher(jsonPathParts.get(i + 1)).matches()) {
             // 1. 下一个元素是数字，也就是数组的索引，所以需要创建数组并且填充到索引位置
             List<Object> nextArray = createAndFillNextArrayPart(insertPosition, jsonPathParts, i);
             listCurrent.set(index, nextArray);
@@ -238,7 +250,7 @@ public class JSONPathInputOutputMapping implements InputOutputMapping, JSONPath
     private Object processMapJsonPathPart(Object current, String part, List<String> jsonPathParts, int i) {
         Map<String, Object> mapCurrent = (Map<String, Object>) current;
         Object currentValue = mapCurrent.get(part);
-        if (jsonPathParts.get(i + 1).matches("\\d+")) {
+        if (INDEX_PATTERN.matcher(jsonPathParts.get(i + 1)).matches()) {
             List<Object> nextArray = createAndFillNextArrayPart(currentValue, jsonPathParts, i);
             mapCurrent.put(part, nextArray);
         } else if (i + 1 < jsonPathParts.size() && currentValue == null) {
@@ -0,0 +1,140 @@
+/*
+ *  Copyright 2021-2023 Weibo, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.weibo.rill.flow.olympicene.traversal.mappings;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.jayway.jsonpath.InvalidPathException;
+import com.jayway.jsonpath.JsonPath;
+import com.weibo.rill.flow.interfaces.model.mapping.Mapping;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 将任务的Mapping列表编译为可复用的执行计划
+ * <pre>
+ * 同一个DAG描述符中任务的Mapping列表在每次执行时内容不变，编译结果以Mapping列表内容为key缓存
+ * 编译内容包括:
+ *   1. source/target 的 JsonPath 预编译
+ *   2. target 路径片段预拆分
+ *   3. 常量 source 预解析(json/boolean/number)
+ * </pre>
+ */
+@Slf4j
+public class MappingCompiler {
+    private static final long DEFAULT_MAXIMUM_SIZE = 10000;
+
+    private final Cache<List<Mapping>, List<CompiledMapping>> compiledMappingsCache;
+
+    public MappingCompiler() {
+        this(DEFAULT_MAXIMUM_SIZE);
+    }
+
+    public MappingCompiler(long maximumSize) {
+        this.compiledMappingsCache = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .build();
+    }
+
+    public List<CompiledMapping> compile(List<Mapping> rules) {
+        List<CompiledMapping> compiledMappings = compiledMappingsCache.getIfPresent(rules);
+        if (compiledMappings != null) {
+            return compiledMappings;
+        }
+
+        compiledMappings = doCompile(rules);
+        compiledMappingsCache.put(copyRules(rules), compiledMappings);
+        return compiledMappings;
+    }
+
+    public long size() {
+        return compiledMappingsCache.size();
+    }
+
+    /**
+     * Mapping可变 缓存key使用副本 避免外部修改导致key失效
+     */
+    private List<Mapping> copyRules(List<Mapping> rules) {
+        List<Mapping> copy = new ArrayList<>(rules.size());
+        rules.forEach(rule -> copy.add(rule == null ? null :
+                new Mapping(rule.getReference(), rule.getTolerance(), rule.getSource(), rule.getTransform(),
+                        rule.getTarget(), rule.getVariable())));
+        return Collections.unmodifiableList(copy);
+    }
+
+    private List<CompiledMapping> doCompile(List<Mapping> rules) {
+        List<CompiledMapping> compiledMappings = new ArrayList<>();
+        for (int i = 0; i < rules.size(); i++) {
+            Mapping rule = rules.get(i);
+            if (rule == null || (StringUtils.isBlank(rule.getSource()) && StringUtils.isBlank(rule.getTransform()))
+                    || StringUtils.isBlank(rule.getTarget())) {
+                continue;
+            }
+            CompiledMapping.CompiledMappingBuilder builder = CompiledMapping.builder()
+                    .index(i)
+                    .transform(rule.getTransform());
+            compileSource(rule.getSource(), builder);
+            compileTarget(rule.getTarget(), builder);
+            compiledMappings.add(builder.build());
+        }
+        return Collections.unmodifiableList(compiledMappings);
+    }
+
+    private void compileSource(String source, CompiledMapping.CompiledMappingBuilder builder) {
+        if (StringUtils.isBlank(source)) {
+            builder.sourceType(CompiledMapping.SourceType.NONE);
+            return;
+        }
+
+        String[] infos = source.split("\\.");
+        if (source.startsWith("$.tasks.") && infos.length > 3) {
+            String key = infos[3];
+            if (!key.equals("trigger_url") && !key.startsWith("trigger_url?")) {
+                builder.sourceType(CompiledMapping.SourceType.NONE);
+                return;
+            }
+            String[] queryInfos = source.split("\\?");
+            builder.sourceType(CompiledMapping.SourceType.TRIGGER_URL)
+                    .triggerTaskName(infos[2])
+                    .triggerQuery(queryInfos.length > 1 ? queryInfos[1] : null);
+        } else if (source.startsWith("$")) {
+            try {
+                builder.sourceType(CompiledMapping.SourceType.JSON_PATH).sourcePath(JsonPath.compile(source));
+            } catch (InvalidPathException e) {
+                log.debug("compile source path fails, source:{}, errorMsg:{}", source, e.getMessage());
+                builder.sourceType(CompiledMapping.SourceType.NONE);
+            }
+        } else {
+            builder.sourceType(CompiledMapping.SourceType.CONSTANT)
+                    .constant(JSONPathInputOutputMapping.parseSource(source));
+        }
+    }
+
+    private void compileTarget(String target, CompiledMapping.CompiledMappingBuilder builder) {
+        try {
+            JsonPath targetPath = JsonPath.compile(target);
+            builder.targetPath(targetPath)
+                    .targetParts(Collections.unmodifiableList(JSONPathInputOutputMapping.splitJsonPath(targetPath)));
+        } catch (RuntimeException e) {
+            builder.targetError(e);
+        }
+    }
+}
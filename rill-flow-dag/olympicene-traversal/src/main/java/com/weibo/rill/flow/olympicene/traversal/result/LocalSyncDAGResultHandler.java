@@ -54,6 +54,13 @@ public class LocalSyncDAGResultHandler implements DAGResultHandler {
         }
     }
 
+    /**
+     * 当前节点是否有线程在等待该execution的结果
+     */
+    public boolean hasWaiter(String executionId) {
+        return needHandleResult.containsKey(executionId);
+    }
+
     @Override
     public DAGResult getDAGResult(String executionId, long timeoutInMillisecond) {
         try {
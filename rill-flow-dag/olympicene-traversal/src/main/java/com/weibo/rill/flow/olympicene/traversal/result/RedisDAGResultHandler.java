@@ -0,0 +1,201 @@
+/*
+ *  Copyright 2021-2023 Weibo, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.weibo.rill.flow.olympicene.traversal.result;
+
+import com.weibo.rill.flow.olympicene.core.model.dag.DAGResult;
+import com.weibo.rill.flow.olympicene.core.result.DAGResultHandler;
+import com.weibo.rill.flow.olympicene.storage.redis.api.RedisClient;
+import com.weibo.rill.flow.olympicene.storage.redis.lock.ResourceLoader;
+import com.weibo.rill.flow.olympicene.traversal.constant.TraversalErrorCode;
+import com.weibo.rill.flow.olympicene.traversal.exception.DAGTraversalException;
+import com.weibo.rill.flow.olympicene.traversal.serialize.DAGTraversalSerializer;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * 跨节点同步获取DAG结果
+ * <pre>
+ * 1. initEnv时在本地登记latch 同时在redis中登记该execution的等待标记
+ * 2. DAG在等待节点完成时直接唤醒本地latch 不访问redis
+ * 3. DAG在其他节点完成时 若存在等待标记则将结果写入该execution的结果列表
+ *    等待节点的监听线程通过BLPOP取到结果后唤醒本地latch
+ * 4. 同时BLPOP的监听线程数不超过maxBlockingListeners 超出时按pollIntervalInMillis非阻塞读取结果 不占用连接等待
+ * 5. 等待结束后删除等待标记及结果列表 不依赖过期时间清理
+ * 6. 所有key均以executionId作为shardingKey 与DAG数据在同一redis实例
+ * </pre>
+ */
+@Slf4j
+public class RedisDAGResultHandler implements DAGResultHandler {
+    private static final String DAG_RESULT_WAIT;
+    private static final String DAG_RESULT_PUBLISH;
+    private static final String DAG_RESULT_CLEAR;
+    private static final String DAG_RESULT_POLL;
+
+    static {
+        try {
+            DAG_RESULT_WAIT = ResourceLoader.loadResourceAsText("lua/dag_result_wait.lua");
+            DAG_RESULT_PUBLISH = ResourceLoader.loadResourceAsText("lua/dag_result_publish.lua");
+            DAG_RESULT_CLEAR = ResourceLoader.loadResourceAsText("lua/dag_result_clear.lua");
+            DAG_RESULT_POLL = ResourceLoader.loadResourceAsText("lua/dag_result_poll.lua");
+        } catch (IOException e) {
+            throw new DAGTraversalException(TraversalErrorCode.OPERATION_UNSUPPORTED.getCode(), "cannot load dag result scripts");
+        }
+    }
+
+    private final RedisClient redisClient;
+    private final ExecutorService listenerExecutor;
+    private final LocalSyncDAGResultHandler localHandler = new LocalSyncDAGResultHandler();
+    private volatile boolean blockingSupported = true;
+    private volatile Semaphore blockingListeners = new Semaphore(16);
+
+    /**
+     * 等待标记及结果列表的过期时间 应大于同步执行的最大超时时间
+     */
+    @Setter
+    private long expireInMillis = 60 * 1000L;
+
+    /**
+     * 单次BLPOP的最长阻塞时间 本地已拿到结果后监听线程最多再占用连接该时长
+     */
+    @Setter
+    private long pollSliceInMillis = 1000L;
+
+    /**
+     * 未获得BLPOP许可时非阻塞读取结果的间隔
+     */
+    @Setter
+    private long pollIntervalInMillis = 50L;
+
+    public RedisDAGResultHandler(RedisClient redisClient, ExecutorService listenerExecutor) {
+        this.redisClient = redisClient;
+        this.listenerExecutor = listenerExecutor;
+    }
+
+    /**
+     * 同时BLPOP的最大监听线程数 应小于redis连接池大小 默认16
+     */
+    public void setMaxBlockingListeners(int maxBlockingListeners) {
+        this.blockingListeners = new Semaphore(maxBlockingListeners);
+    }
+
+    @Override
+    public void initEnv(String executionId) {
+        localHandler.initEnv(executionId);
+        redisClient.eval(DAG_RESULT_WAIT, executionId, keys(executionId), List.of(String.valueOf(expireInMillis)));
+    }
+
+    @Override
+    public boolean updateDAGResult(String executionId, DAGResult dagResult) {
+        if (localHandler.hasWaiter(executionId)) {
+            return localHandler.updateDAGResult(executionId, dagResult);
+        }
+
+        try {
+            Object ret = redisClient.eval(DAG_RESULT_PUBLISH, executionId, keys(executionId),
+                    List.of(DAGTraversalSerializer.serializeToString(dagResult), String.valueOf(expireInMillis)));
+            log.debug("updateDAGResult publish executionId:{} ret:{}", executionId, ret);
+            return true;
+        } catch (Exception e) {
+            log.warn("updateDAGResult fails due to executionId:{} errorMsg:{}", executionId, e.getMessage());
+            return false;
+        }
+    }
+
+    @Override
+    public DAGResult getDAGResult(String executionId, long timeoutInMillisecond) {
+        try {
+            listenerExecutor.execute(() -> listen(executionId, System.currentTimeMillis() + timeoutInMillisecond));
+        } catch (RejectedExecutionException e) {
+            log.warn("getDAGResult listener rejected, only local result is available, executionId:{}", executionId);
+        }
+
+        try {
+            return localHandler.getDAGResult(executionId, timeoutInMillisecond);
+        } finally {
+            clear(executionId);
+        }
+    }
+
+    private void listen(String executionId, long deadline) {
+        try {
+            while (localHandler.hasWaiter(executionId)) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return;
+                }
+                String result = pollResult(executionId, remaining);
+                if (result != null) {
+                    localHandler.updateDAGResult(executionId,
+                            DAGTraversalSerializer.deserialize(result.getBytes(StandardCharsets.UTF_8), DAGResult.class));
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.warn("listen dag result fails, executionId:{}", executionId, e);
+        }
+    }
+
+    /**
+     * 获得许可时BLPOP阻塞一个分片 否则非阻塞读取后等待pollIntervalInMillis
+     */
+    private String pollResult(String executionId, long remaining) throws InterruptedException {
+        Semaphore permits = blockingListeners;
+        if (blockingSupported && permits.tryAcquire()) {
+            try {
+                return redisClient.blpop(executionId, resultKey(executionId), Math.min(remaining, pollSliceInMillis));
+            } catch (UnsupportedOperationException e) {
+                blockingSupported = false;
+                log.warn("redis client does not support blpop, dag result listener falls back to polling");
+            } finally {
+                permits.release();
+            }
+        }
+
+        Object result = redisClient.eval(DAG_RESULT_POLL, executionId, keys(executionId), List.of());
+        if (result != null) {
+            return result instanceof byte[] ? new String((byte[]) result, StandardCharsets.UTF_8) : result.toString();
+        }
+        Thread.sleep(Math.min(remaining, pollIntervalInMillis));
+        return null;
+    }
+
+    private void clear(String executionId) {
+        try {
+            redisClient.eval(DAG_RESULT_CLEAR, executionId, keys(executionId), List.of());
+        } catch (Exception e) {
+            log.warn("clear dag result fails, executionId:{}", executionId, e);
+        }
+    }
+
+    private static List<String> keys(String executionId) {
+        return List.of("dag_result_waiter_" + executionId, resultKey(executionId));
+    }
+
+    private static String resultKey(String executionId) {
+        return "dag_result_" + executionId;
+    }
+}
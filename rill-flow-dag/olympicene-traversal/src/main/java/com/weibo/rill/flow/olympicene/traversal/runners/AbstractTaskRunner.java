@@ -137,23 +137,27 @@ public abstract class AbstractTaskRunner implements TaskRunner {
             }
             return ret;
         } catch (Exception e) {
-            log.warn("run task fails, executionId:{}, taskName:{}", executionId, taskInfo.getName(), e);
+            return handleRunFailure(executionId, taskInfo, e);
+        }
+    }
 
-            if (!Optional.ofNullable(taskInfo.getTaskInvokeMsg()).map(TaskInvokeMsg::getMsg).isPresent()) {
-                taskInfo.updateInvokeMsg(TaskInvokeMsg.builder().msg(e.getMessage()).build());
-            }
-            updateTaskInvokeEndTime(taskInfo);
+    protected ExecutionResult handleRunFailure(String executionId, TaskInfo taskInfo, Exception e) {
+        log.warn("run task fails, executionId:{}, taskName:{}", executionId, taskInfo.getName(), e);
 
-            boolean tolerance = Optional.ofNullable(taskInfo.getTask()).map(BaseTask::isTolerance).orElse(false);
-            taskInfo.setTaskStatus(tolerance ? TaskStatus.SKIPPED : TaskStatus.FAILED);
+        if (!Optional.ofNullable(taskInfo.getTaskInvokeMsg()).map(TaskInvokeMsg::getMsg).isPresent()) {
+            taskInfo.updateInvokeMsg(TaskInvokeMsg.builder().msg(e.getMessage()).build());
+        }
+        updateTaskInvokeEndTime(taskInfo);
 
-            Map<String, TaskInfo> subTasks = taskInfo.getChildren();
-            taskInfo.setChildren(new LinkedHashMap<>());
-            dagInfoStorage.saveTaskInfos(executionId, ImmutableSet.of(taskInfo));
-            taskInfo.setChildren(subTasks);
+        boolean tolerance = Optional.ofNullable(taskInfo.getTask()).map(BaseTask::isTolerance).orElse(false);
+        taskInfo.setTaskStatus(tolerance ? TaskStatus.SKIPPED : TaskStatus.FAILED);
 
-            return ExecutionResult.builder().taskStatus(taskInfo.getTaskStatus()).build();
-        }
+        Map<String, TaskInfo> subTasks = taskInfo.getChildren();
+        taskInfo.setChildren(new LinkedHashMap<>());
+        dagInfoStorage.saveTaskInfos(executionId, ImmutableSet.of(taskInfo));
+        taskInfo.setChildren(subTasks);
+
+        return ExecutionResult.builder().taskStatus(taskInfo.getTaskStatus()).build();
     }
 
     private void skipCurrentAndFollowingTasks(String executionId, TaskInfo taskInfo) {
@@ -378,16 +382,18 @@ public abstract class AbstractTaskRunner implements TaskRunner {
                         });
             }
 
+            if (groupStatusChanged && groupTaskStatus.isCompleted()) {
+                foldGroupOutput(executionId, taskInfo, completedGroupIndex);
+            }
+
             TaskStatus taskStatus = DAGWalkHelper.getInstance().calculateParentStatus(taskInfo);
             if (taskStatus.isCompleted()) {
                 log.info("finishParentTask begin to collect executionId:{}, taskInfoName:{}", executionId, taskInfo.getName());
                 taskInfo.setTaskStatus(taskStatus);
                 updateTaskInvokeEndTime(taskInfo);
 
-                Map<String, Object> subTaskContext = getSubTaskContextMap(executionId, taskInfo);
                 Map<String, Object> parentTaskContext = ContextHelper.getInstance().getContext(dagContextStorage, executionId, taskInfo);
-                if (MapUtils.isNotEmpty(subTaskContext) && CollectionUtils.isNotEmpty(taskInfo.getTask().getOutputMappings())) {
-                    outputMappings(parentTaskContext, new HashMap<>(), subTaskContext, taskInfo.getTask().getOutputMappings());
+                if (collectSubTaskOutput(executionId, taskInfo, parentTaskContext)) {
                     saveContext(executionId, parentTaskContext, Sets.newHashSet(taskInfo));
                 }
 
@@ -401,6 +407,7 @@ public abstract class AbstractTaskRunner implements TaskRunner {
                             .findFirst()
                             .ifPresent(readyToRunGroupIndex -> {
                                 taskInfo.getSubGroupIndexToStatus().put(readyToRunGroupIndex, TaskStatus.RUNNING);
+                                prepareGroupToRun(executionId, taskInfo, readyToRunGroupIndex);
                                 String routName = DAGWalkHelper.getInstance().buildTaskInfoRouteName(taskInfo.getName(), readyToRunGroupIndex);
                                 String mockTaskName = DAGWalkHelper.getInstance().buildTaskInfoName(routName, "foreachMockName");
                                 executionResult.setTaskNameNeedToTraversal(mockTaskName);
@@ -423,6 +430,38 @@ public abstract class AbstractTaskRunner implements TaskRunner {
         }
     }
 
+    /**
+     * 子任务组由READY变为RUNNING 即将遍历执行前调用
+     */
+    protected void prepareGroupToRun(String executionId, TaskInfo taskInfo, String groupIndex) {
+        // 默认子任务组在父任务执行时已创建
+    }
+
+    /**
+     * 子任务组完成时调用 同一组重复通知时不会调用
+     */
+    protected void foldGroupOutput(String executionId, TaskInfo taskInfo, String groupIndex) {
+        // 默认不做增量聚合
+    }
+
+    /**
+     * 父任务完成时将子任务输出写入父任务context
+     *
+     * @return 父任务context是否有更新
+     */
+    protected boolean collectSubTaskOutput(String executionId, TaskInfo taskInfo, Map<String, Object> parentTaskContext) {
+        if (CollectionUtils.isEmpty(taskInfo.getTask().getOutputMappings())) {
+            return false;
+        }
+
+        Map<String, Object> subTaskContext = getSubTaskContextMap(executionId, taskInfo);
+        if (MapUtils.isEmpty(subTaskContext)) {
+            return false;
+        }
+        outputMappings(parentTaskContext, new HashMap<>(), subTaskContext, taskInfo.getTask().getOutputMappings());
+        return true;
+    }
+
     protected Map<String, Object> getSubTaskContextMap(String executionId, TaskInfo taskInfo) {
         List<Map<String, Object>> subContextList = ContextHelper.getInstance().getSubContextList(dagContextStorage, executionId, taskInfo);
         Map<String, Object> output = Maps.newConcurrentMap();
@@ -16,11 +16,10 @@
 
 package com.weibo.rill.flow.olympicene.traversal.runners;
 
-import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.jayway.jsonpath.JsonPath;
+import com.jayway.jsonpath.DocumentContext;
 import com.weibo.rill.flow.olympicene.core.helper.DAGWalkHelper;
 import com.weibo.rill.flow.olympicene.core.helper.TaskInfoMaker;
 import com.weibo.rill.flow.olympicene.core.model.NotifyInfo;
@@ -92,6 +91,7 @@ public class ChoiceTaskRunner extends AbstractTaskRunner {
 
         AtomicInteger index = new AtomicInteger(0);
         List<Pair<Set<TaskInfo>, Map<String, Object>>> subTaskInfosAndContext = Lists.newArrayList();
+        DocumentContext document = ConditionsUtil.parseValueMap(input, "input");
         choices.stream()
                 .sorted((a, b) -> a.getCondition().compareToIgnoreCase(b.getCondition()))
                 .forEach(it -> {
@@ -105,8 +105,7 @@ public class ChoiceTaskRunner extends AbstractTaskRunner {
 
                     boolean condition = false;
                     try {
-                        List<String> result = JsonPath.using(ConditionsUtil.valuePathConf).parse(ImmutableMap.of("input", input)).read(it.getCondition());
-                        condition = !result.isEmpty();
+                        condition = ConditionsUtil.conditionMatch(document, it.getCondition());
                     } catch (Exception e) {
                         log.warn("choiceTask {} evaluation condition expression {} exception. ", taskInfo.getName(), it.getCondition(), e);
                     }
@@ -25,9 +25,12 @@ import com.weibo.rill.flow.interfaces.model.task.BaseTask;
 import com.weibo.rill.flow.interfaces.model.task.TaskInfo;
 import com.weibo.rill.flow.interfaces.model.task.TaskInvokeMsg;
 import com.weibo.rill.flow.interfaces.model.task.TaskStatus;
+import com.weibo.rill.flow.olympicene.core.constant.ReservedConstant;
 import com.weibo.rill.flow.olympicene.core.helper.DAGWalkHelper;
 import com.weibo.rill.flow.olympicene.core.helper.TaskInfoMaker;
 import com.weibo.rill.flow.olympicene.core.model.NotifyInfo;
+import com.weibo.rill.flow.olympicene.core.model.mapping.AggregationMapping;
+import com.weibo.rill.flow.olympicene.core.model.mapping.AggregationType;
 import com.weibo.rill.flow.olympicene.core.model.mapping.IterationMapping;
 import com.weibo.rill.flow.olympicene.core.model.strategy.Synchronization;
 import com.weibo.rill.flow.olympicene.core.model.task.ExecutionResult;
@@ -44,15 +47,20 @@ import com.weibo.rill.flow.olympicene.traversal.mappings.JSONPath;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.collections.CollectionUtils;
+import org.apache.commons.collections.MapUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
 import org.apache.commons.lang3.tuple.Pair;
 
+import java.math.BigDecimal;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 @Slf4j
 public class ForeachTaskRunner extends AbstractTaskRunner {
+    private static final BigDecimal LONG_MIN = BigDecimal.valueOf(Long.MIN_VALUE);
+    private static final BigDecimal LONG_MAX = BigDecimal.valueOf(Long.MAX_VALUE);
     private final JSONPath jsonPath;
     @Setter
     private Stasher stasher;
@@ -104,15 +112,24 @@ public class ForeachTaskRunner extends AbstractTaskRunner {
         taskInfo.setChildren(Optional.ofNullable(taskInfo.getChildren()).orElse(Maps.newConcurrentMap()));
         jsonPath.delete(ImmutableMap.of("input", input), iterationMapping.getCollection());
 
+        boolean sharedInput = switcherManager.getSwitcherState("ENABLE_SHARED_FOREACH_INPUT");
+        if (lazyGroups(executionId, taskInfo, collection, maxConcurrentGroups)) {
+            return runWindowedGroups(executionId, taskInfo, input, collection, maxConcurrentGroups, sharedInput);
+        }
+
         AtomicInteger index = new AtomicInteger(0);
         Map<String, Object> contextToUpdate = Maps.newHashMap();
+        if (sharedInput) {
+            contextToUpdate.put(DAGWalkHelper.getInstance().buildInputContextFieldName(taskInfo.getName()), input);
+        }
         List<Pair<Set<TaskInfo>, Map<String, Object>>> readyToRun = Lists.newArrayList();
         collection.forEach(item -> {
             int groupIndex = index.getAndIncrement();
-            Map<String, TaskInfo> taskInfoMap = TaskInfoMaker.getMaker().makeTaskInfos(foreachTask.getTasks(), taskInfo, groupIndex);
-            Set<TaskInfo> subTaskInfos = new HashSet<>(taskInfoMap.values());
+            Pair<Set<TaskInfo>, Map<String, Object>> group = materializeGroup(executionId, taskInfo, input, item, groupIndex, sharedInput, contextToUpdate);
+            Set<TaskInfo> subTaskInfos = group.getLeft();
+            Map<String, Object> groupedContext = group.getRight();
 
-            Map<String, Object> subContext = buildSubContext(input, item, iterationMapping, groupIndex);
+            Map<String, Object> subContext = (Map<String, Object>) groupedContext.values().iterator().next();
             // record whether the subtask is key
             if (existKeyExp(taskInfo)) {
                 for (TaskInfo subTaskInfo : subTaskInfos) {
@@ -124,13 +141,7 @@ public class ForeachTaskRunner extends AbstractTaskRunner {
                 }
             }
 
-            taskInfo.getChildren().putAll(subTaskInfos.stream().collect(Collectors.toMap(TaskInfo::getName, it -> it)));
             indexToStatus.put(String.valueOf(groupIndex), TaskStatus.READY);
-            updateGroupIdentity(executionId, item, taskInfo, iterationMapping.getIdentity(), groupIndex);
-
-            Map<String, Object> groupedContext = Maps.newHashMap();
-            groupedContext.put(DAGWalkHelper.getInstance().buildSubTaskContextFieldName(subTaskInfos.iterator().next().getRouteName()), subContext);
-            contextToUpdate.putAll(groupedContext);
             if (maxConcurrentGroups <= 0 || groupIndex < maxConcurrentGroups) {
                 readyToRun.add(Pair.of(subTaskInfos, groupedContext));
                 indexToStatus.put(String.valueOf(groupIndex), TaskStatus.RUNNING);
@@ -144,10 +155,117 @@ public class ForeachTaskRunner extends AbstractTaskRunner {
         return ExecutionResult.builder().taskStatus(taskInfo.getTaskStatus()).subTaskInfosAndContext(readyToRun).build();
     }
 
-    private static Map<String, Object> buildSubContext(Map<String, Object> input, Object item,
-                                                       IterationMapping iterationMapping, int groupIndex) {
+    /**
+     * 有并发限制时子任务组按需创建
+     * keyExp需在开始时判断每组是否为关键组 不按需创建
+     */
+    private boolean lazyGroups(String executionId, TaskInfo taskInfo, Collection<Object> collection, int maxConcurrentGroups) {
+        boolean lazy = maxConcurrentGroups > 0 && maxConcurrentGroups < collection.size() && !existKeyExp(taskInfo)
+                && collection.stream().noneMatch(Objects::isNull)
+                && switcherManager.getSwitcherState("ENABLE_LAZY_FOREACH_GROUPS");
+        log.info("lazyGroups executionId:{}, taskInfoName:{}, lazy:{}", executionId, taskInfo.getName(), lazy);
+        return lazy;
+    }
+
+    /**
+     * 父任务input与循环集合只存储一份 循环集合按组序号作为field
+     * 只为可执行的组创建子任务及子context 其余组在前序组完成时由prepareGroupToRun创建
+     */
+    private ExecutionResult runWindowedGroups(String executionId, TaskInfo taskInfo, Map<String, Object> input,
+                                              Collection<Object> collection, int maxConcurrentGroups, boolean sharedInput) {
+        Map<String, Object> iterationSource = Maps.newHashMap();
+        Map<String, Object> contextToUpdate = Maps.newHashMap();
+        contextToUpdate.put(DAGWalkHelper.getInstance().buildInputContextFieldName(taskInfo.getName()), input);
+        List<Pair<Set<TaskInfo>, Map<String, Object>>> readyToRun = Lists.newArrayList();
+        int groupIndex = 0;
+        for (Object item : collection) {
+            iterationSource.put(String.valueOf(groupIndex), item);
+            if (groupIndex < maxConcurrentGroups) {
+                Pair<Set<TaskInfo>, Map<String, Object>> group = materializeGroup(executionId, taskInfo, input, item, groupIndex, sharedInput, contextToUpdate);
+                readyToRun.add(group);
+                taskInfo.getSubGroupIndexToStatus().put(String.valueOf(groupIndex), TaskStatus.RUNNING);
+            } else {
+                taskInfo.getSubGroupIndexToStatus().put(String.valueOf(groupIndex), TaskStatus.READY);
+            }
+            groupIndex++;
+        }
+        contextToUpdate.put(DAGWalkHelper.getInstance().buildIterationContextFieldName(taskInfo.getName()), iterationSource);
+
+        dagContextStorage.updateContext(executionId, contextToUpdate);
+        dagInfoStorage.saveTaskInfos(executionId, ImmutableSet.of(taskInfo));
+
+        log.info("run foreach task completed, executionId:{}, taskInfoName:{}, materialized groups:{}", executionId, taskInfo.getName(), readyToRun.size());
+        return ExecutionResult.builder().taskStatus(taskInfo.getTaskStatus()).subTaskInfosAndContext(readyToRun).build();
+    }
+
+    /**
+     * 创建子任务组 子任务加入父任务children 待存储的子context放入contextToUpdate
+     * 返回子任务及执行使用的该组完整context
+     */
+    private Pair<Set<TaskInfo>, Map<String, Object>> materializeGroup(String executionId, TaskInfo taskInfo, Map<String, Object> input,
+                                                                       Object item, int groupIndex, boolean sharedInput,
+                                                                       Map<String, Object> contextToUpdate) {
+        ForeachTask foreachTask = (ForeachTask) taskInfo.getTask();
+        IterationMapping iterationMapping = foreachTask.getIterationMapping();
+        Map<String, TaskInfo> taskInfoMap = TaskInfoMaker.getMaker().makeTaskInfos(foreachTask.getTasks(), taskInfo, groupIndex);
+        Set<TaskInfo> subTaskInfos = new HashSet<>(taskInfoMap.values());
+
+        taskInfo.setChildren(Optional.ofNullable(taskInfo.getChildren()).orElse(Maps.newConcurrentMap()));
+        taskInfo.getChildren().putAll(subTaskInfos.stream().collect(Collectors.toMap(TaskInfo::getName, it -> it)));
+        updateGroupIdentity(executionId, item, taskInfo, iterationMapping.getIdentity(), groupIndex);
+
+        String subContextName = DAGWalkHelper.getInstance().buildSubTaskContextFieldName(subTaskInfos.iterator().next().getRouteName());
+        Map<String, Object> subContext = buildSubContext(item, iterationMapping, groupIndex);
+        Map<String, Object> groupedContext = Maps.newHashMap();
+        if (sharedInput) {
+            subContext.put(ReservedConstant.INPUT_REFERENCE, DAGWalkHelper.getInstance().buildInputContextFieldName(taskInfo.getName()));
+            contextToUpdate.put(subContextName, subContext);
+            Map<String, Object> resolvedContext = Maps.newConcurrentMap();
+            resolvedContext.putAll(input);
+            resolvedContext.putAll(subContext);
+            groupedContext.put(subContextName, resolvedContext);
+        } else {
+            input.forEach(subContext::putIfAbsent);
+            contextToUpdate.put(subContextName, subContext);
+            groupedContext.put(subContextName, subContext);
+        }
+        return Pair.of(subTaskInfos, groupedContext);
+    }
+
+    /**
+     * 按需创建的组 从循环集合中按组序号取值创建子任务及子context
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    protected void prepareGroupToRun(String executionId, TaskInfo taskInfo, String groupIndex) {
+        Synchronization synchronization = ((ForeachTask) taskInfo.getTask()).getSynchronization();
+        if (synchronization == null || StringUtils.isBlank(synchronization.getMaxConcurrency()) || existKeyExp(taskInfo)) {
+            return;
+        }
+
+        String iterationField = DAGWalkHelper.getInstance().buildIterationContextFieldName(taskInfo.getName());
+        Map<String, Object> iteration = dagContextStorage.getSubContextFields(executionId, iterationField, Lists.newArrayList(groupIndex));
+        if (!iteration.containsKey(groupIndex)) {
+            // 子任务组已在父任务执行时创建
+            return;
+        }
+
+        boolean sharedInput = switcherManager.getSwitcherState("ENABLE_SHARED_FOREACH_INPUT");
+        Map<String, Object> input = Maps.newHashMap();
+        if (!sharedInput) {
+            String inputField = DAGWalkHelper.getInstance().buildInputContextFieldName(taskInfo.getName());
+            Optional.ofNullable(dagContextStorage.getContext(executionId, ImmutableSet.of(inputField)).get(inputField))
+                    .map(it -> (Map<String, Object>) it)
+                    .ifPresent(input::putAll);
+        }
+        Map<String, Object> contextToUpdate = Maps.newHashMap();
+        materializeGroup(executionId, taskInfo, input, iteration.get(groupIndex), Integer.parseInt(groupIndex), sharedInput, contextToUpdate);
+        dagContextStorage.updateContext(executionId, contextToUpdate);
+        log.info("prepareGroupToRun executionId:{}, taskInfoName:{}, groupIndex:{}", executionId, taskInfo.getName(), groupIndex);
+    }
+
+    private static Map<String, Object> buildSubContext(Object item, IterationMapping iterationMapping, int groupIndex) {
         Map<String, Object> subContext = Maps.newConcurrentMap();
-        subContext.putAll(input);
         subContext.put(iterationMapping.getItem(), item);
         if (StringUtils.isNotEmpty(iterationMapping.getIndex())) {
             subContext.put(iterationMapping.getIndex(), groupIndex);
@@ -222,4 +340,98 @@ public class ForeachTaskRunner extends AbstractTaskRunner {
         return finishParentTask(executionId, notifyInfo);
     }
 
+    /**
+     * 子任务组完成时按aggregations从该组context取值 以组序号为field写入聚合结果
+     * 同一组再次完成时覆盖原值 重复回调及redo均不会重复累加
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    protected void foldGroupOutput(String executionId, TaskInfo taskInfo, String groupIndex) {
+        List<AggregationMapping> aggregations = ((ForeachTask) taskInfo.getTask()).getAggregations();
+        if (CollectionUtils.isEmpty(aggregations)) {
+            return;
+        }
+
+        String routeName = DAGWalkHelper.getInstance().buildTaskInfoRouteName(taskInfo.getName(), groupIndex);
+        String subContextField = DAGWalkHelper.getInstance().buildSubTaskContextFieldName(routeName);
+        Map<String, Object> groupContext = Optional.ofNullable(dagContextStorage.getContext(executionId, ImmutableSet.of(subContextField)))
+                .map(it -> (Map<String, Object>) it.get(subContextField))
+                .orElse(Collections.emptyMap());
+
+        Map<String, Object> groupOutput = Maps.newHashMap();
+        for (int i = 0; i < aggregations.size(); i++) {
+            String key = buildAggregationKey(i);
+            Map<String, Object> output = Maps.newHashMap();
+            inputMappings(groupContext, new HashMap<>(), output, Lists.newArrayList(new Mapping(aggregations.get(i).getSource(), "$.output.value")));
+            Optional.ofNullable(output.get("value")).ifPresent(value -> groupOutput.put(key, value));
+        }
+
+        String aggregationField = DAGWalkHelper.getInstance().buildAggregationContextFieldName(taskInfo.getName());
+        dagContextStorage.updateContext(executionId, ImmutableMap.of(aggregationField, ImmutableMap.of(groupIndex, groupOutput)));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    protected boolean collectSubTaskOutput(String executionId, TaskInfo taskInfo, Map<String, Object> parentTaskContext) {
+        boolean contextChanged = super.collectSubTaskOutput(executionId, taskInfo, parentTaskContext);
+        List<AggregationMapping> aggregations = ((ForeachTask) taskInfo.getTask()).getAggregations();
+        if (CollectionUtils.isEmpty(aggregations) || MapUtils.isEmpty(taskInfo.getSubGroupIndexToStatus())) {
+            return contextChanged;
+        }
+
+        String aggregationField = DAGWalkHelper.getInstance().buildAggregationContextFieldName(taskInfo.getName());
+        Map<String, Object> groupIndexToOutput = Optional.ofNullable(dagContextStorage.getContext(executionId, ImmutableSet.of(aggregationField)))
+                .map(it -> (Map<String, Object>) it.get(aggregationField))
+                .orElse(Collections.emptyMap());
+        // 仅取本次执行中已完成的组 redo前遗留的组序号不参与聚合
+        List<Map<String, Object>> groupOutputs = taskInfo.getSubGroupIndexToStatus().entrySet().stream()
+                .filter(entry -> entry.getValue().isCompleted())
+                .map(Map.Entry::getKey)
+                .sorted(Comparator.comparingInt(Integer::parseInt))
+                .map(groupIndexToOutput::get)
+                .filter(Map.class::isInstance)
+                .map(it -> (Map<String, Object>) it)
+                .toList();
+
+        Map<String, Object> aggregated = Maps.newHashMap();
+        List<Mapping> mappings = Lists.newArrayList();
+        for (int i = 0; i < aggregations.size(); i++) {
+            String key = buildAggregationKey(i);
+            List<Object> values = groupOutputs.stream().map(it -> it.get(key)).filter(Objects::nonNull).toList();
+            aggregated.put(key, aggregate(aggregations.get(i).getType(), values));
+            mappings.add(new Mapping("$.output." + key, aggregations.get(i).getTarget()));
+        }
+        outputMappings(parentTaskContext, new HashMap<>(), aggregated, mappings);
+        return true;
+    }
+
+    private static String buildAggregationKey(int index) {
+        return "aggregation_" + index;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object aggregate(AggregationType type, List<Object> values) {
+        return switch (type) {
+            case APPEND -> values;
+            case COUNT -> values.size();
+            case SUM -> {
+                BigDecimal sum = values.stream()
+                        .map(String::valueOf)
+                        .filter(NumberUtils::isParsable)
+                        .map(BigDecimal::new)
+                        .reduce(BigDecimal.ZERO, BigDecimal::add);
+                if (sum.stripTrailingZeros().scale() > 0) {
+                    yield sum.doubleValue();
+                }
+                // 整数和超出long范围时返回BigDecimal 不丢失精度
+                yield sum.compareTo(LONG_MIN) >= 0 && sum.compareTo(LONG_MAX) <= 0 ? (Object) sum.longValue() : (Object) sum;
+            }
+            case MERGE -> {
+                Map<String, Object> merged = Maps.newLinkedHashMap();
+                values.stream().filter(Map.class::isInstance).forEach(value -> merged.putAll((Map<String, Object>) value));
+                yield merged;
+            }
+        };
+    }
+
 }
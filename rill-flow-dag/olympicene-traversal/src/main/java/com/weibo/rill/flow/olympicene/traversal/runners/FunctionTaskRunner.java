@@ -37,6 +37,7 @@ import com.weibo.rill.flow.olympicene.core.runtime.DAGStorageProcedure;
 import com.weibo.rill.flow.olympicene.core.switcher.SwitcherManager;
 import com.weibo.rill.flow.olympicene.ddl.serialize.ObjectMapperFactory;
 import com.weibo.rill.flow.olympicene.traversal.constant.TraversalErrorCode;
+import com.weibo.rill.flow.olympicene.traversal.dispatcher.AsyncDAGDispatcher;
 import com.weibo.rill.flow.olympicene.traversal.dispatcher.DAGDispatcher;
 import com.weibo.rill.flow.olympicene.traversal.exception.DAGTraversalException;
 import com.weibo.rill.flow.olympicene.traversal.helper.ContextHelper;
@@ -45,28 +46,41 @@ import com.weibo.rill.flow.olympicene.traversal.serialize.DAGTraversalSerializer
 import com.weibo.rill.flow.olympicene.traversal.strategy.RetryPolicy;
 import com.weibo.rill.flow.olympicene.traversal.strategy.SimpleRetryPolicy;
 import com.weibo.rill.flow.olympicene.traversal.utils.ConditionsUtil;
+import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.collections.MapUtils;
 import org.apache.commons.lang3.StringUtils;
 
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.Optional;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 import static com.weibo.rill.flow.interfaces.model.task.FunctionPattern.*;
 
 /**
- * 方法加锁原因
- * 任务执行速度较快 doRun通知执行者后 尚未完成任务状态存储 执行者完成任务执行并调finish 从而产生并发
+ * 任务派发分为三个阶段
+ * 1. claim: 加锁 任务置为RUNNING并递增派发版本号后存储
+ *    任务执行速度较快 doRun通知执行者后 执行者完成任务执行并调finish 此时任务已为RUNNING 可正常完成
+ * 2. dispatch: 不加锁 调用执行者 避免执行者响应慢时长时间占用锁 阻塞finish及超时检查
+ *    派发器为AsyncDAGDispatcher时 不等待执行者响应 通过ExecutionResult.asyncResult返回提交后的结果
+ *    异步响应的commit在commitExecutor中执行 不占用派发器的回调线程
+ * 3. commit: 加锁 任务仍为RUNNING且派发版本号未变时才处理派发结果 否则说明结果已过期(已被finish/超时处理或已重新派发) 丢弃
  */
 @Slf4j
 public class FunctionTaskRunner extends AbstractTaskRunner {
     private final DAGDispatcher dagDispatcher;
     private final RetryPolicy retryPolicy;
+    /**
+     * 异步派发结果的提交线程池 未设置或拒绝提交时在回调线程中提交
+     */
+    @Setter
+    private Executor commitExecutor;
 
     public FunctionTaskRunner(DAGDispatcher dagDispatcher,
                               InputOutputMapping inputOutputMapping,
@@ -104,30 +118,66 @@ public class FunctionTaskRunner extends AbstractTaskRunner {
     protected ExecutionResult doRun(String executionId, TaskInfo taskInfo, Map<String, Object> input) {
         log.info("function task begin to run executionId:{}, taskInfoName:{}", executionId, taskInfo.getName());
 
+        FunctionPattern functionPattern = ((FunctionTask) taskInfo.getTask()).getPattern();
+        Function<TaskStatus, Boolean> needUpdateContext;
+        switch (functionPattern) {
+            case TASK_SYNC:
+            case TASK_SCHEDULER:
+            case TASK_ASYNC:
+                needUpdateContext = TaskStatus::isSuccessOrSkip;
+                break;
+            case FLOW_SYNC:
+            case FLOW_ASYNC:
+                needUpdateContext = t -> !t.isFailed();
+                break;
+            default:
+                throw new DAGTraversalException(TraversalErrorCode.OPERATION_UNSUPPORTED.getCode(), String.format("%s not supported", functionPattern));
+        }
+
+        int dispatchVersion = claimTask(executionId, taskInfo);
+        ExecutionResult executionResult = dispatchTask(executionId, taskInfo, input, functionPattern, dispatchVersion, needUpdateContext);
+
+        log.info("run function task completed, executionId:{}, taskInfoName:{}", executionId, taskInfo.getName());
+        return executionResult;
+    }
+
+    private int claimTask(String executionId, TaskInfo taskInfo) {
+        AtomicInteger versionRef = new AtomicInteger();
+        dagStorageProcedure.lockAndRun(LockerKey.buildTaskInfoLockName(executionId, taskInfo.getName()), () -> {
+            int storedVersion = Optional.ofNullable(dagInfoStorage.getBasicTaskInfo(executionId, taskInfo.getName()))
+                    .map(TaskInfo::getDispatchVersion)
+                    .orElse(0);
+            int dispatchVersion = Math.max(storedVersion, Optional.ofNullable(taskInfo.getDispatchVersion()).orElse(0)) + 1;
+
+            taskInfo.setDispatchVersion(dispatchVersion);
+            taskInfo.setTaskStatus(TaskStatus.RUNNING);
+            dagInfoStorage.saveTaskInfos(executionId, ImmutableSet.of(taskInfo));
+            versionRef.set(dispatchVersion);
+        });
+        log.info("claimTask executionId:{}, taskInfoName:{}, dispatchVersion:{}", executionId, taskInfo.getName(), versionRef.get());
+        return versionRef.get();
+    }
+
+    private ExecutionResult commitTask(String executionId, TaskInfo taskInfo, int dispatchVersion,
+                                       Supplier<ExecutionResult> commitAction) {
         AtomicReference<ExecutionResult> executionRef = new AtomicReference<>();
         dagStorageProcedure.lockAndRun(LockerKey.buildTaskInfoLockName(executionId, taskInfo.getName()), () -> {
-            FunctionPattern functionPattern = ((FunctionTask) taskInfo.getTask()).getPattern();
-            switch (functionPattern) {
-                case TASK_SYNC:
-                case TASK_SCHEDULER:
-                case TASK_ASYNC:
-                    executionRef.set(dispatchTask(executionId, taskInfo, input, functionPattern, TaskStatus::isSuccessOrSkip));
-                    break;
-                case FLOW_SYNC:
-                case FLOW_ASYNC:
-                    executionRef.set(dispatchTask(executionId, taskInfo, input, functionPattern, t -> !t.isFailed()));
-                    break;
-                default:
-                    throw new DAGTraversalException(TraversalErrorCode.OPERATION_UNSUPPORTED.getCode(), String.format("%s not supported", functionPattern));
+            TaskInfo storedTaskInfo = dagInfoStorage.getBasicTaskInfo(executionId, taskInfo.getName());
+            if (storedTaskInfo == null || storedTaskInfo.getTaskStatus() != TaskStatus.RUNNING
+                    || !Objects.equals(storedTaskInfo.getDispatchVersion(), dispatchVersion)) {
+                log.info("commitTask discard expired dispatch result, executionId:{}, taskInfoName:{}, dispatchVersion:{}, storedTaskInfo:{}, storedDispatchVersion:{}",
+                        executionId, taskInfo.getName(), dispatchVersion, storedTaskInfo,
+                        Optional.ofNullable(storedTaskInfo).map(TaskInfo::getDispatchVersion).orElse(null));
+                executionRef.set(ExecutionResult.builder().taskInfo(storedTaskInfo).build());
+                return;
             }
+            executionRef.set(commitAction.get());
         });
-
-        log.info("run function task completed, executionId:{}, taskInfoName:{}", executionId, taskInfo.getName());
         return executionRef.get();
     }
 
     private ExecutionResult dispatchTask(String executionId, TaskInfo taskInfo, Map<String, Object> input,
-                                         FunctionPattern functionPattern,
+                                         FunctionPattern functionPattern, int dispatchVersion,
                                          Function<TaskStatus, Boolean> needUpdateContext) {
         DispatchInfo dispatchInfo = DispatchInfo.builder()
                 .taskInfo(taskInfo)
@@ -135,9 +185,74 @@ public class FunctionTaskRunner extends AbstractTaskRunner {
                 .executionId(executionId)
                 .build();
 
+        CompletableFuture<String> dispatchFuture;
+        try {
+            dispatchFuture = dagDispatcher instanceof AsyncDAGDispatcher asyncDAGDispatcher ?
+                    asyncDAGDispatcher.dispatchAsync(dispatchInfo) : CompletableFuture.completedFuture(dagDispatcher.dispatch(dispatchInfo));
+        } catch (Exception e) {
+            dispatchFuture = CompletableFuture.failedFuture(e);
+        }
+
+        if (dispatchFuture.isDone()) {
+            String dispatchRet = null;
+            Exception dispatchException = null;
+            try {
+                dispatchRet = dispatchFuture.join();
+            } catch (Exception e) {
+                dispatchException = unwrapDispatchException(e);
+            }
+            String ret = dispatchRet;
+            Exception exception = dispatchException;
+            return commitTask(executionId, taskInfo, dispatchVersion,
+                    () -> handleDispatchResult(executionId, taskInfo, functionPattern, ret, exception, needUpdateContext));
+        }
+
+        // 派发结果未返回 不占用当前线程 结果返回后在commitExecutor中提交
+        log.info("dispatchTask wait for async response, executionId:{}, taskName:{}, dispatchVersion:{}",
+                executionId, taskInfo.getName(), dispatchVersion);
+        CompletableFuture<ExecutionResult> asyncResult = dispatchFuture.handleAsync((ret, throwable) -> {
+            try {
+                Exception exception = throwable == null ? null : unwrapDispatchException(throwable);
+                ExecutionResult executionResult = commitTask(executionId, taskInfo, dispatchVersion,
+                        () -> handleDispatchResult(executionId, taskInfo, functionPattern, ret, exception, needUpdateContext));
+                if (MapUtils.isEmpty(executionResult.getInput())) {
+                    executionResult.setInput(input);
+                }
+                return executionResult;
+            } catch (Exception e) {
+                return handleRunFailure(executionId, taskInfo, e);
+            }
+        }, this::executeCommit);
+        return ExecutionResult.builder().taskInfo(taskInfo).input(input).asyncResult(asyncResult).build();
+    }
+
+    private void executeCommit(Runnable commit) {
+        if (commitExecutor == null) {
+            commit.run();
+            return;
+        }
+        try {
+            commitExecutor.execute(commit);
+        } catch (Exception e) {
+            log.warn("executeCommit rejected by commitExecutor, commit in current thread, errorMsg:{}", e.getMessage());
+            commit.run();
+        }
+    }
+
+    private Exception unwrapDispatchException(Throwable throwable) {
+        Throwable cause = throwable instanceof CompletionException && throwable.getCause() != null ? throwable.getCause() : throwable;
+        return cause instanceof Exception exception ?
+                exception : new DAGTraversalException(TraversalErrorCode.TRAVERSAL_FAILED.getCode(), cause.getMessage());
+    }
+
+    private ExecutionResult handleDispatchResult(String executionId, TaskInfo taskInfo, FunctionPattern functionPattern,
+                                                 String dispatchRet, Exception dispatchException,
+                                                 Function<TaskStatus, Boolean> needUpdateContext) {
         Map<String, Object> output = null;
         try {
-            String dispatchRet = dagDispatcher.dispatch(dispatchInfo);
+            if (dispatchException != null) {
+                throw dispatchException;
+            }
             JsonNode dispatchRetJson = getRetJson(dispatchRet);
 
             TaskInvokeMsg taskInvokeMsg = buildInvokeMsg(dispatchRetJson);
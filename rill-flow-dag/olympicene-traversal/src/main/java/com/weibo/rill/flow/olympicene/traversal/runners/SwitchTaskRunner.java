@@ -1,6 +1,6 @@
 package com.weibo.rill.flow.olympicene.traversal.runners;
 
-import com.jayway.jsonpath.JsonPath;
+import com.jayway.jsonpath.DocumentContext;
 import com.weibo.rill.flow.interfaces.model.task.TaskInfo;
 import com.weibo.rill.flow.interfaces.model.task.TaskInvokeMsg;
 import com.weibo.rill.flow.interfaces.model.task.TaskStatus;
@@ -87,12 +87,14 @@ public class SwitchTaskRunner extends AbstractTaskRunner {
         Set<String> skipTaskNames = new HashSet<>();
         Set<String> runTaskNames = new HashSet<>();
         DefaultSwitch defaultSwitch = new DefaultSwitch();
+        // 所有 condition 共用同一个文档，避免每个 condition 重复构建
+        DocumentContext document = ConditionsUtil.parseValueMap(input, "input");
         switches.forEach(it -> {
             // default condition 暂不处理，循环结束后统一处理
             if (DEFAULT_CONDITION.equals(it.getCondition())) {
                 defaultSwitch.getDefaultConditions().add(it);
             } else {
-                boolean condition = calculateCondition(taskInfo, input, it, skipTaskNames, runTaskNames, defaultSwitch);
+                boolean condition = calculateCondition(taskInfo, document, it, skipTaskNames, runTaskNames, defaultSwitch);
                 // 只要有一个 condition 命中，则不需要执行 default 节点
                 if (condition) {
                     defaultSwitch.setNeedDefault(false);
@@ -104,7 +106,7 @@ public class SwitchTaskRunner extends AbstractTaskRunner {
             }
         });
         // 循环处理所有 default condition
-        defaultSwitch.getDefaultConditions().forEach(it -> calculateCondition(taskInfo, input, it, skipTaskNames, runTaskNames, defaultSwitch));
+        defaultSwitch.getDefaultConditions().forEach(it -> calculateCondition(taskInfo, document, it, skipTaskNames, runTaskNames, defaultSwitch));
 
         // 如果多个 condition 共用了 next 节点，只要有任何一个 condition 命中，则该 next 节点就应该被执行
         // 因此删除 skipTaskNames 中与 runTaskNames 重合的节点名称
@@ -123,14 +125,14 @@ public class SwitchTaskRunner extends AbstractTaskRunner {
      * 计算单个 condition，将需要跳过的节点名称加入到 skipTaskNames 中，将不需要跳过的节点名称加入到 runTaskNames 中
      *
      * @param taskInfo      当前 switch 节点
-     * @param input         当前 switch 节点的输入
+     * @param document      当前 switch 节点的输入构建的文档
      * @param switchObj     单个 condition
      * @param skipTaskNames 需要跳过的节点名称集合
      * @param runTaskNames  不需要跳过的节点名称集合
      * @param defaultSwitch 默认 condition 信息
      * @return 是否命中规则
      */
-    private static boolean calculateCondition(TaskInfo taskInfo, Map<String, Object> input, Switch switchObj,
+    private static boolean calculateCondition(TaskInfo taskInfo, DocumentContext document, Switch switchObj,
                                               Set<String> skipTaskNames, Set<String> runTaskNames, DefaultSwitch defaultSwitch) {
         DAGWalkHelper dagWalkHelper = DAGWalkHelper.getInstance();
         boolean isAncestorTask = dagWalkHelper.isAncestorTask(taskInfo.getName());
@@ -138,7 +140,7 @@ public class SwitchTaskRunner extends AbstractTaskRunner {
         Set<String> nextTaskNames = Arrays.stream(switchObj.getNext().split(",")).map(String::trim).filter(StringUtils::isNotBlank)
                 .map(it -> isAncestorTask ? it: dagWalkHelper.buildTaskInfoName(rootName, it))
                 .collect(Collectors.toSet());
-        boolean condition = judgeCondition(taskInfo, input, switchObj, defaultSwitch);
+        boolean condition = judgeCondition(taskInfo, document, switchObj, defaultSwitch);
 
         if (!condition) {
             skipTaskNames.addAll(nextTaskNames);
@@ -148,7 +150,7 @@ public class SwitchTaskRunner extends AbstractTaskRunner {
         return condition;
     }
 
-    private static boolean judgeCondition(TaskInfo taskInfo, Map<String, Object> input, Switch switchObj, DefaultSwitch defaultSwitch) {
+    private static boolean judgeCondition(TaskInfo taskInfo, DocumentContext document, Switch switchObj, DefaultSwitch defaultSwitch) {
         // 此前的 condition 已经 break，则不执行当前 condition
         if (defaultSwitch.isBroken()) {
             return false;
@@ -158,9 +160,7 @@ public class SwitchTaskRunner extends AbstractTaskRunner {
             return defaultSwitch.isNeedDefault();
         }
         try {
-            List<String> result = JsonPath.using(ConditionsUtil.valuePathConf)
-                    .parse(Map.of("input", input)).read(switchObj.getCondition());
-            return !result.isEmpty();
+            return ConditionsUtil.conditionMatch(document, switchObj.getCondition());
         } catch (Exception e) {
             log.warn("switchTask {} evaluation condition expression {} exception. ",
                     taskInfo.getName(), switchObj.getCondition(), e);
@@ -1,7 +1,10 @@
 package com.weibo.rill.flow.olympicene.traversal.utils;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableMap;
 import com.jayway.jsonpath.Configuration;
+import com.jayway.jsonpath.DocumentContext;
 import com.jayway.jsonpath.JsonPath;
 import com.jayway.jsonpath.Option;
 import org.apache.commons.collections4.CollectionUtils;
@@ -18,15 +21,47 @@ public class ConditionsUtil {
             .options(Option.AS_PATH_LIST)
             .build();
 
+    /**
+     * 条件表达式在描述符中固定不变 编译结果以表达式文本为key缓存
+     */
+    private static final Cache<String, JsonPath> conditionPathCache = CacheBuilder.newBuilder()
+            .maximumSize(10000)
+            .build();
+
     public static boolean conditionsAllMatch(List<String> conditions, Map<String, Object> valueMap, String mapType) {
-        return conditions.stream()
-                .map(condition -> JsonPath.using(valuePathConf).parse(ImmutableMap.of(mapType, valueMap)).read(condition))
-                .allMatch(it -> org.apache.commons.collections.CollectionUtils.isNotEmpty((List<Object>) it));
+        if (CollectionUtils.isEmpty(conditions)) {
+            return true;
+        }
+        DocumentContext document = parseValueMap(valueMap, mapType);
+        return conditions.stream().allMatch(condition -> conditionMatch(document, condition));
     }
 
     public static boolean conditionsAnyMatch(List<String> conditions, Map<String, Object> valueMap, String mapType) {
-        return conditions.stream()
-                .map(condition -> JsonPath.using(valuePathConf).parse(ImmutableMap.of(mapType, valueMap)).read(condition))
-                .anyMatch(it -> CollectionUtils.isNotEmpty((List<Object>) it));
+        if (CollectionUtils.isEmpty(conditions)) {
+            return false;
+        }
+        DocumentContext document = parseValueMap(valueMap, mapType);
+        return conditions.stream().anyMatch(condition -> conditionMatch(document, condition));
+    }
+
+    /**
+     * 构建条件判断使用的文档 同一次判断中的多个条件共用同一文档
+     */
+    public static DocumentContext parseValueMap(Map<String, Object> valueMap, String mapType) {
+        return JsonPath.using(valuePathConf).parse(ImmutableMap.of(mapType, valueMap));
+    }
+
+    public static boolean conditionMatch(DocumentContext document, String condition) {
+        List<Object> result = document.read(compileCondition(condition));
+        return CollectionUtils.isNotEmpty(result);
+    }
+
+    public static JsonPath compileCondition(String condition) {
+        JsonPath conditionPath = conditionPathCache.getIfPresent(condition);
+        if (conditionPath == null) {
+            conditionPath = JsonPath.compile(condition);
+            conditionPathCache.put(condition, conditionPath);
+        }
+        return conditionPath;
     }
 }
@@ -0,0 +1,3 @@
+--dag_result_clear.lua
+--KEYS[1] waiter key, KEYS[2] result list key
+return redis.call("del", KEYS[1], KEYS[2])
@@ -0,0 +1,4 @@
+--dag_result_poll.lua
+--KEYS[1] waiter key, KEYS[2] result list key
+--非阻塞读取结果 不占用连接等待
+return redis.call("lpop", KEYS[2])
@@ -0,0 +1,11 @@
+--dag_result_publish.lua
+--KEYS[1] waiter key, KEYS[2] result list key
+--ARGV[1] dag result, ARGV[2] expire in millis
+--仅在存在等待方时写入结果 同一execution只写入一次
+if redis.call("exists", KEYS[1]) == 0 then
+    return 0
+end
+redis.call("del", KEYS[1]);
+redis.call("rpush", KEYS[2], ARGV[1]);
+redis.call("pexpire", KEYS[2], ARGV[2]);
+return 1
@@ -0,0 +1,6 @@
+--dag_result_wait.lua
+--KEYS[1] waiter key, KEYS[2] result list key
+--ARGV[1] expire in millis
+redis.call("del", KEYS[2]);
+redis.call("set", KEYS[1], "1", "px", ARGV[1]);
+return 1
@@ -0,0 +1,252 @@
+package com.weibo.rill.flow.olympicene.traversal
+
+import com.weibo.rill.flow.interfaces.model.task.TaskStatus
+import com.weibo.rill.flow.olympicene.core.model.DAGSettings
+import com.weibo.rill.flow.olympicene.core.model.NotifyInfo
+import com.weibo.rill.flow.olympicene.core.model.dag.DAGResult
+import com.weibo.rill.flow.olympicene.core.model.dag.DAGStatus
+import com.weibo.rill.flow.olympicene.core.result.DAGResultHandler
+import com.weibo.rill.flow.olympicene.core.runtime.DAGParser
+import com.weibo.rill.flow.olympicene.core.switcher.SwitcherManager
+import com.weibo.rill.flow.olympicene.ddl.parser.DAGStringParser
+import com.weibo.rill.flow.olympicene.ddl.serialize.YAMLSerializer
+import com.weibo.rill.flow.olympicene.ddl.validation.dag.impl.FlowDAGValidator
+import com.weibo.rill.flow.olympicene.ddl.validation.task.impl.FunctionTaskValidator
+import com.weibo.rill.flow.olympicene.storage.redis.api.RedisClient
+import com.weibo.rill.flow.olympicene.storage.redis.lock.ResourceLoader
+import com.weibo.rill.flow.olympicene.storage.save.impl.DAGLocalStorage
+import com.weibo.rill.flow.olympicene.storage.save.impl.LocalStorageProcedure
+import com.weibo.rill.flow.olympicene.traversal.checker.DefaultTimeChecker
+import com.weibo.rill.flow.olympicene.traversal.config.OlympiceneFacade
+import com.weibo.rill.flow.olympicene.traversal.dispatcher.DAGDispatcher
+import com.weibo.rill.flow.olympicene.traversal.helper.SameThreadExecutorService
+import com.weibo.rill.flow.olympicene.traversal.result.LocalSyncDAGResultHandler
+import com.weibo.rill.flow.olympicene.traversal.result.RedisDAGResultHandler
+import spock.lang.Specification
+
+import java.nio.charset.StandardCharsets
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.function.IntBinaryOperator
+
+/**
+ * 两个Olympicene实例共享DAGLocalStorage及ResultRedis模拟两个节点 DAG在非等待节点完成
+ */
+class FlowSyncCrossNodeTest extends Specification {
+    DAGParser dagParser = new DAGStringParser(new YAMLSerializer(), [new FlowDAGValidator([new FunctionTaskValidator()])])
+    DAGLocalStorage dagStorage = new DAGLocalStorage()
+    ResultRedis redis = new ResultRedis()
+    ExecutorService listenerExecutor = Executors.newCachedThreadPool()
+    SwitcherManager switcherManager = Mock(SwitcherManager.class)
+    DAGDispatcher dispatcher = Mock(DAGDispatcher.class)
+
+    def cleanup() {
+        listenerExecutor.shutdownNow()
+    }
+
+    def "waiter wakes when dag finishes on another node"() {
+        given:
+        Olympicene nodeA = buildNode(new RedisDAGResultHandler(redis.client(), listenerExecutor))
+        Olympicene nodeB = buildNode(new RedisDAGResultHandler(redis.client(), listenerExecutor))
+        DAGResult dagResult = null
+        // 预热
+        Thread warmup = Thread.start { nodeA.run('warmup', dagParser.parse(TEXT), ['url': 'http://xxx'], DAGSettings.DEFAULT, null, 3000) }
+        awaitSubmitted('warmup')
+        finish(nodeB, 'warmup')
+        warmup.join()
+
+        when:
+        Thread waiter = Thread.start {
+            dagResult = nodeA.run('executionId', dagParser.parse(TEXT), ['url': 'http://xxx'], DAGSettings.DEFAULT, null, 3000)
+        }
+        awaitSubmitted('executionId')
+        finish(nodeB, 'executionId')
+        waiter.join()
+
+        then:
+        dagResult.dagInfo.dagStatus == DAGStatus.SUCCEED
+        dagResult.dagInfo.getTask('A').taskStatus == TaskStatus.SUCCEED
+        dagResult.context == ['url': 'http://xxx', 'result': 'ok']
+        redis.published.get() == 2
+        redis.values.isEmpty()
+        redis.lists.isEmpty()
+    }
+
+    def "local waiter is woken without publishing"() {
+        given:
+        Olympicene nodeA = buildNode(new RedisDAGResultHandler(redis.client(), listenerExecutor))
+
+        when:
+        Thread waiter = Thread.start {
+            nodeA.run('executionId', dagParser.parse(TEXT), ['url': 'http://xxx'], DAGSettings.DEFAULT, null, 3000)
+        }
+        awaitSubmitted('executionId')
+        finish(nodeA, 'executionId')
+        waiter.join(1000)
+
+        then:
+        !waiter.isAlive()
+        redis.published.get() == 0
+        redis.values.isEmpty()
+    }
+
+    def "waiters beyond max blocking listeners poll the result without blocking a connection"() {
+        given:
+        RedisDAGResultHandler handlerA = new RedisDAGResultHandler(redis.client(), listenerExecutor)
+        handlerA.maxBlockingListeners = 1
+        Olympicene nodeA = buildNode(handlerA)
+        Olympicene nodeB = buildNode(new RedisDAGResultHandler(redis.client(), listenerExecutor))
+        List<String> executionIds = (0..<4).collect { 'execution_' + it }
+        Map<String, DAGResult> results = [:].asSynchronized()
+
+        when:
+        List<Thread> waiters = executionIds.collect { String executionId ->
+            Thread.start { results[executionId] = nodeA.run(executionId, dagParser.parse(TEXT), ['url': 'http://xxx'], DAGSettings.DEFAULT, null, 3000) }
+        }
+        executionIds.each { awaitSubmitted(it) }
+        executionIds.each { finish(nodeB, it) }
+        waiters*.join()
+
+        then:
+        results.keySet() == executionIds as Set
+        results.values().every { it.dagInfo.dagStatus == DAGStatus.SUCCEED }
+        redis.maxBlockingPops.get() == 1
+        redis.polls.get() > 0
+        redis.values.isEmpty()
+        redis.lists.isEmpty()
+    }
+
+    def "local handler waits until timeout when dag finishes on another node"() {
+        given:
+        Olympicene nodeA = buildNode(new LocalSyncDAGResultHandler())
+        Olympicene nodeB = buildNode(new LocalSyncDAGResultHandler())
+        Exception exception = null
+
+        when:
+        Thread waiter = Thread.start {
+            try {
+                nodeA.run('executionId', dagParser.parse(TEXT), ['url': 'http://xxx'], DAGSettings.DEFAULT, null, 1000)
+            } catch (Exception e) {
+                exception = e
+            }
+        }
+        awaitSubmitted('executionId')
+        finish(nodeB, 'executionId')
+        waiter.join()
+
+        then:
+        exception != null
+    }
+
+    private Olympicene buildNode(DAGResultHandler dagResultHandler) {
+        return OlympiceneFacade.build(dagStorage, dagStorage, new LocalStorageProcedure(), null, dagResultHandler, dispatcher,
+                Mock(DefaultTimeChecker.class), SameThreadExecutorService.INSTANCE, switcherManager)
+    }
+
+    private void awaitSubmitted(String executionId) {
+        long deadline = System.currentTimeMillis() + 5000
+        while (dagStorage.getBasicDAGInfo(executionId)?.getTask('A')?.taskStatus != TaskStatus.RUNNING && System.currentTimeMillis() < deadline) {
+            sleep(10)
+        }
+    }
+
+    private static void finish(Olympicene node, String executionId) {
+        node.finish(executionId, DAGSettings.DEFAULT, ['result': 'ok'],
+                NotifyInfo.builder().taskInfoName('A').taskStatus(TaskStatus.SUCCEED).build())
+    }
+
+    static final String TEXT = "version: 0.0.1\n" +
+            "namespace: olympicene\n" +
+            "service: mca\n" +
+            "name: test\n" +
+            "type: flow\n" +
+            "tasks: \n" +
+            "- category: function\n" +
+            "  name: A\n" +
+            "  resourceName: \"olympicene::test::funtion1::prod\" \n" +
+            "  pattern: task_scheduler\n" +
+            "  inputMappings:\n" +
+            "     - target: \$.input.url\n" +
+            "       source: \$.context.url\n" +
+            "  outputMappings:\n" +
+            "     - target: \$.context.result\n" +
+            "       source: \$.output.result\n"
+
+    /**
+     * 按脚本内容模拟结果等待及发布lua 支持阻塞弹出
+     */
+    static class ResultRedis {
+        static final String WAIT = ResourceLoader.loadResourceAsText('lua/dag_result_wait.lua')
+        static final String PUBLISH = ResourceLoader.loadResourceAsText('lua/dag_result_publish.lua')
+        static final String CLEAR = ResourceLoader.loadResourceAsText('lua/dag_result_clear.lua')
+        static final String POLL = ResourceLoader.loadResourceAsText('lua/dag_result_poll.lua')
+
+        final Map<String, String> values = [:]
+        final Map<String, List<String>> lists = [:]
+        final AtomicInteger published = new AtomicInteger()
+        final AtomicInteger polls = new AtomicInteger()
+        final AtomicInteger blockingPops = new AtomicInteger()
+        final AtomicInteger maxBlockingPops = new AtomicInteger()
+
+        RedisClient client() {
+            return [eval : { String script, String shardingKey, List<String> keys, List<String> args -> eval(script, keys, args) },
+                    blpop: { String shardingKey, String key, long timeoutInMillis -> blpop(key, timeoutInMillis) }] as RedisClient
+        }
+
+        synchronized Object eval(String script, List<String> keys, List<String> args) {
+            if (script == WAIT) {
+                lists.remove(keys[1])
+                values[keys[0]] = '1'
+                return 1L
+            }
+            if (script == PUBLISH) {
+                if (values.remove(keys[0]) == null) {
+                    return 0L
+                }
+                lists.computeIfAbsent(keys[1], { [] }).add(args[0])
+                published.incrementAndGet()
+                notifyAll()
+                return 1L
+            }
+            if (script == CLEAR) {
+                values.remove(keys[0])
+                lists.remove(keys[1])
+                return 1L
+            }
+            if (script == POLL) {
+                polls.incrementAndGet()
+                return pop(keys[1])?.getBytes(StandardCharsets.UTF_8)
+            }
+            throw new IllegalArgumentException('unknown script')
+        }
+
+        synchronized String blpop(String key, long timeoutInMillis) {
+            maxBlockingPops.accumulateAndGet(blockingPops.incrementAndGet(), { int a, int b -> Math.max(a, b) } as IntBinaryOperator)
+            try {
+                long deadline = System.currentTimeMillis() + timeoutInMillis
+                while (!lists[key]) {
+                    long remaining = deadline - System.currentTimeMillis()
+                    if (remaining <= 0) {
+                        return null
+                    }
+                    wait(remaining)
+                }
+                return pop(key)
+            } finally {
+                blockingPops.decrementAndGet()
+            }
+        }
+
+        private String pop(String key) {
+            if (!lists[key]) {
+                return null
+            }
+            String element = lists[key].remove(0)
+            if (lists[key].isEmpty()) {
+                lists.remove(key)
+            }
+            return element
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package com.weibo.rill.flow.olympicene.traversal
+
+import com.weibo.rill.flow.interfaces.model.task.TaskStatus
+import com.weibo.rill.flow.olympicene.core.event.Callback
+import com.weibo.rill.flow.olympicene.core.model.DAGSettings
+import com.weibo.rill.flow.olympicene.core.model.NotifyInfo
+import com.weibo.rill.flow.olympicene.core.model.dag.DAG
+import com.weibo.rill.flow.olympicene.core.runtime.DAGParser
+import com.weibo.rill.flow.olympicene.core.runtime.DAGStorageProcedure
+import com.weibo.rill.flow.olympicene.core.switcher.SwitcherManager
+import com.weibo.rill.flow.olympicene.ddl.exception.ValidationException
+import com.weibo.rill.flow.olympicene.ddl.parser.DAGStringParser
+import com.weibo.rill.flow.olympicene.ddl.serialize.YAMLSerializer
+import com.weibo.rill.flow.olympicene.ddl.validation.dag.impl.FlowDAGValidator
+import com.weibo.rill.flow.olympicene.ddl.validation.task.impl.ForeachTaskValidator
+import com.weibo.rill.flow.olympicene.ddl.validation.task.impl.FunctionTaskValidator
+import com.weibo.rill.flow.olympicene.storage.save.impl.DAGLocalStorage
+import com.weibo.rill.flow.olympicene.storage.save.impl.LocalStorageProcedure
+import com.weibo.rill.flow.olympicene.traversal.checker.DefaultTimeChecker
+import com.weibo.rill.flow.olympicene.traversal.config.OlympiceneFacade
+import com.weibo.rill.flow.olympicene.traversal.dispatcher.DAGDispatcher
+import com.weibo.rill.flow.olympicene.traversal.exception.DAGTraversalException
+import com.weibo.rill.flow.olympicene.traversal.mappings.JSONPathInputOutputMapping
+import com.weibo.rill.flow.olympicene.traversal.runners.TaskRunner
+import spock.lang.Specification
+
+/**
+ * foreach子任务组完成时增量聚合输出 foreach完成时不再读取全部子任务context
+ */
+class ForeachAggregationTest extends Specification {
+    DAGParser dagParser = new DAGStringParser(new YAMLSerializer(), [new FlowDAGValidator([new FunctionTaskValidator(), new ForeachTaskValidator()])])
+    DAGLocalStorage dagStorage = Spy(DAGLocalStorage)
+    Callback callback = Mock(Callback.class)
+    DAGDispatcher dispatcher = Mock(DAGDispatcher.class)
+    DAGStorageProcedure dagStorageProcedure = new LocalStorageProcedure()
+    SwitcherManager switcherManager = Mock(SwitcherManager.class)
+    Olympicene olympicene = OlympiceneFacade.build(dagStorage, dagStorage, callback, dispatcher, dagStorageProcedure, Mock(DefaultTimeChecker.class), switcherManager)
+    DAG dag = dagParser.parse(buildText())
+
+    def "group outputs are aggregated as each group completes"() {
+        when:
+        olympicene.submit('executionId', dag, ['segments': ['s0', 's1', 's2']])
+        finishGroups('executionId', 3)
+
+        then:
+        dagStorage.getBasicTaskInfo('executionId', 'B').taskStatus == TaskStatus.SUCCEED
+        dagStorage.getBasicTaskInfo('executionId', 'C').taskStatus == TaskStatus.RUNNING
+        dagStorage.getContext('executionId')['urls'] == ['url_s0', 'url_s1', 'url_s2']
+        dagStorage.getContext('executionId')['succeedCount'] == 3
+        dagStorage.getContext('executionId')['totalSize'] == 3L
+        dagStorage.getContext('executionId')['meta'] == ['s0': 0, 's1': 1, 's2': 2]
+        0 * dagStorage.getContext('executionId', { Collection<String> fields -> fields.size() > 1 })
+    }
+
+    def "duplicate group callbacks are aggregated once"() {
+        given:
+        TaskRunner foreachRunner = OlympiceneFacade.buildTaskRunners(dagStorage, dagStorage, dispatcher,
+                new JSONPathInputOutputMapping(), null, dagStorageProcedure, null, switcherManager).get('foreach')
+        NotifyInfo groupCompleted = NotifyInfo.builder().taskInfoName('B').completedGroupIndex('0').groupTaskStatus(TaskStatus.SUCCEED).build()
+
+        when:
+        olympicene.submit('executionId', dag, ['segments': ['s0', 's1', 's2']])
+        finishGroups('executionId', 1)
+        foreachRunner.finish('executionId', groupCompleted, [:])
+        foreachRunner.finish('executionId', groupCompleted, [:])
+
+        then:
+        noExceptionThrown()
+
+        when:
+        olympicene.finish('executionId', DAGSettings.DEFAULT, ['url': 'duplicated', 'size': 5],
+                NotifyInfo.builder().taskInfoName('B_0-B1').taskStatus(TaskStatus.SUCCEED).build())
+
+        then:
+        thrown(DAGTraversalException)
+
+        when:
+        finishGroups('executionId', 3, 1)
+
+        then:
+        dagStorage.getContext('executionId')['urls'] == ['url_s0', 'url_s1', 'url_s2']
+        dagStorage.getContext('executionId')['succeedCount'] == 3
+        dagStorage.getContext('executionId')['totalSize'] == 3L
+    }
+
+    def "redo replaces previous aggregation instead of accumulating"() {
+        when:
+        olympicene.submit('executionId', dag, ['segments': ['s0', 's1', 's2']])
+        finishGroups('executionId', 3)
+        olympicene.redo('executionId', ['segments': ['r0', 'r1']], NotifyInfo.builder().taskInfoNames(['B']).build())
+        Map<String, Object> contextAfterRedo = dagStorage.getContext('executionId')
+        finishGroups('executionId', 2, 0, 'r')
+
+        then:
+        contextAfterRedo['succeedCount'] == 3
+        dagStorage.getBasicTaskInfo('executionId', 'B').taskStatus == TaskStatus.SUCCEED
+        dagStorage.getContext('executionId')['urls'] == ['url_r0', 'url_r1']
+        dagStorage.getContext('executionId')['succeedCount'] == 2
+        dagStorage.getContext('executionId')['totalSize'] == 1L
+        dagStorage.getContext('executionId')['meta'] == ['r0': 0, 'r1': 1]
+    }
+
+    def "sum beyond long range keeps exact value instead of failing"() {
+        when:
+        olympicene.submit('executionId', dag, ['segments': ['s0', 's1']])
+        2.times { int index ->
+            olympicene.finish('executionId', DAGSettings.DEFAULT, ['url': 'url_s' + index, 'size': Long.MAX_VALUE, 'meta': [:]],
+                    NotifyInfo.builder().taskInfoName('B_' + index + '-B1').taskStatus(TaskStatus.SUCCEED).build())
+        }
+
+        then:
+        dagStorage.getBasicTaskInfo('executionId', 'B').taskStatus == TaskStatus.SUCCEED
+        dagStorage.getContext('executionId')['totalSize'] == BigDecimal.valueOf(Long.MAX_VALUE) * 2
+    }
+
+    def "aggregations without source or type fail validation"() {
+        when:
+        dagParser.parse(buildText().replace('type: sum', 'type: average'))
+
+        then:
+        thrown(ValidationException)
+    }
+
+    private void finishGroups(String executionId, int groups, int from = 0, String prefix = 's') {
+        (from..<groups).each { int index ->
+            olympicene.finish(executionId, DAGSettings.DEFAULT,
+                    ['url': 'url_' + prefix + index, 'size': index, 'meta': [(prefix + index): index]],
+                    NotifyInfo.builder().taskInfoName('B_' + index + '-B1').taskStatus(TaskStatus.SUCCEED).build())
+        }
+    }
+
+    private static String buildText() {
+        return "version: 0.0.1\n" +
+                "namespace: olympicene\n" +
+                "service: mca\n" +
+                "name: test\n" +
+                "type: flow\n" +
+                "tasks: \n" +
+                "- category: foreach\n" +
+                "  name: B\n" +
+                "  inputMappings:\n" +
+                "    - target: \$.input.segments\n" +
+                "      source: \$.context.segments\n" +
+                "  iterationMapping:\n" +
+                "      collection: \$.input.segments\n" +
+                "      item: segment\n" +
+                "  aggregations:\n" +
+                "    - source: \$.context.url\n" +
+                "      target: \$.context.urls\n" +
+                "      type: append\n" +
+                "    - source: \$.context.url\n" +
+                "      target: \$.context.succeedCount\n" +
+                "      type: count\n" +
+                "    - source: \$.context.size\n" +
+                "      target: \$.context.totalSize\n" +
+                "      type: sum\n" +
+                "    - source: \$.context.meta\n" +
+                "      target: \$.context.meta\n" +
+                "      type: merge\n" +
+                "  next: C\n" +
+                "  tasks:\n" +
+                "     - category: function\n" +
+                "       resourceName: \"testBusinessId::testFeatureName::testResource::prod\" \n" +
+                "       pattern: task_scheduler\n" +
+                "       name: B1\n" +
+                "       inputMappings:\n" +
+                "          - target: \$.input.segment\n" +
+                "            source: \$.context.segment\n" +
+                "       outputMappings:\n" +
+                "          - target: \$.context.url\n" +
+                "            source: \$.output.url\n" +
+                "          - target: \$.context.size\n" +
+                "            source: \$.output.size\n" +
+                "          - target: \$.context.meta\n" +
+                "            source: \$.output.meta\n" +
+                "- category: function\n" +
+                "  name: C\n" +
+                "  resourceName: \"olympicene::test::funtion1::prod\" \n" +
+                "  pattern: task_scheduler\n" +
+                "  inputMappings:\n" +
+                "     - target: \$.input.urls\n" +
+                "       source: \$.context.urls\n"
+    }
+}
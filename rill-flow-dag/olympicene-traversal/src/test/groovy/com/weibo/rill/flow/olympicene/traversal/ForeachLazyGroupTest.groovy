@@ -0,0 +1,173 @@
+package com.weibo.rill.flow.olympicene.traversal
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.weibo.rill.flow.interfaces.model.task.TaskInfo
+import com.weibo.rill.flow.interfaces.model.task.TaskStatus
+import com.weibo.rill.flow.olympicene.core.event.Callback
+import com.weibo.rill.flow.olympicene.core.model.DAGSettings
+import com.weibo.rill.flow.olympicene.core.model.NotifyInfo
+import com.weibo.rill.flow.olympicene.core.model.dag.DAG
+import com.weibo.rill.flow.olympicene.core.runtime.DAGParser
+import com.weibo.rill.flow.olympicene.core.runtime.DAGStorageProcedure
+import com.weibo.rill.flow.olympicene.core.switcher.SwitcherManager
+import com.weibo.rill.flow.olympicene.ddl.parser.DAGStringParser
+import com.weibo.rill.flow.olympicene.ddl.serialize.YAMLSerializer
+import com.weibo.rill.flow.olympicene.ddl.validation.dag.impl.FlowDAGValidator
+import com.weibo.rill.flow.olympicene.ddl.validation.task.impl.ForeachTaskValidator
+import com.weibo.rill.flow.olympicene.ddl.validation.task.impl.FunctionTaskValidator
+import com.weibo.rill.flow.olympicene.storage.save.impl.DAGLocalStorage
+import com.weibo.rill.flow.olympicene.storage.save.impl.LocalStorageProcedure
+import com.weibo.rill.flow.olympicene.traversal.checker.DefaultTimeChecker
+import com.weibo.rill.flow.olympicene.traversal.config.OlympiceneFacade
+import com.weibo.rill.flow.olympicene.traversal.dispatcher.DAGDispatcher
+import spock.lang.Specification
+
+/**
+ * 有并发限制的foreach只为可执行的组创建子任务及子context
+ */
+class ForeachLazyGroupTest extends Specification {
+    static final ObjectMapper MAPPER = new ObjectMapper()
+
+    DAGParser dagParser = new DAGStringParser(new YAMLSerializer(), [new FlowDAGValidator([new FunctionTaskValidator(), new ForeachTaskValidator()])])
+    CountingStorage dagStorage = new CountingStorage()
+    Callback callback = Mock(Callback.class)
+    DAGDispatcher dispatcher = Mock(DAGDispatcher.class)
+    DAGStorageProcedure dagStorageProcedure = new LocalStorageProcedure()
+    SwitcherManager switcherManager = Mock(SwitcherManager.class)
+    Olympicene olympicene = OlympiceneFacade.build(dagStorage, dagStorage, callback, dispatcher, dagStorageProcedure, Mock(DefaultTimeChecker.class), switcherManager)
+
+    def "groups are created as the window slides"() {
+        given:
+        switcherManager.getSwitcherState("ENABLE_LAZY_FOREACH_GROUPS") >> true
+        DAG dag = dagParser.parse(buildText(2))
+
+        when:
+        olympicene.submit('executionId', dag, ['segments': ['s0', 's1', 's2', 's3', 's4'], 'url': 'http://xxx'])
+        TaskInfo foreachTaskInfo = dagStorage.getBasicTaskInfo('executionId', 'B')
+
+        then:
+        foreachTaskInfo.children.keySet() == ['B_0-B1', 'B_1-B1'] as Set
+        foreachTaskInfo.subGroupIndexToStatus.values().count { it == TaskStatus.READY } == 3
+        dagStorage.getContext('executionId', ['__B_2']).isEmpty()
+
+        when:
+        finishGroups('executionId', 0..<3)
+
+        then:
+        foreachTaskInfo.children.keySet() == ['B_0-B1', 'B_1-B1', 'B_2-B1', 'B_3-B1', 'B_4-B1'] as Set
+        dagStorage.getContext('executionId', ['__B_4'])['__B_4'] == ['segment': 's4', 'url': 'http://xxx']
+        foreachTaskInfo.getChildren()['B_4-B1'].taskStatus == TaskStatus.RUNNING
+
+        when:
+        finishGroups('executionId', 3..<5)
+
+        then:
+        foreachTaskInfo.taskStatus == TaskStatus.SUCCEED
+        dagStorage.getBasicTaskInfo('executionId', 'C').taskStatus == TaskStatus.RUNNING
+        dagStorage.getContext('executionId')['urls'] as Set == ['url_s0', 'url_s1', 'url_s2', 'url_s3', 'url_s4'] as Set
+    }
+
+    def "groups are created at start when switch is off"() {
+        given:
+        DAG dag = dagParser.parse(buildText(2))
+
+        when:
+        olympicene.submit('executionId', dag, ['segments': ['s0', 's1', 's2', 's3', 's4'], 'url': 'http://xxx'])
+
+        then:
+        dagStorage.getBasicTaskInfo('executionId', 'B').children.size() == 5
+        dagStorage.getContext('executionId', ['__B_4'])['__B_4'] == ['segment': 's4', 'url': 'http://xxx']
+        dagStorage.getContext('executionId', ['__B_iteration']).isEmpty()
+    }
+
+    def "start cost does not grow with collection size"() {
+        given:
+        switcherManager.getSwitcherState("ENABLE_LAZY_FOREACH_GROUPS") >> { args -> lazy }
+        DAG dag = dagParser.parse(buildText(10))
+        List<String> segments = (0..<size).collect { 'segment_' + it }
+
+        when:
+        olympicene.submit('executionId', dag, ['segments': segments, 'url': 'http://xxx/' + 'x' * 200])
+
+        then:
+        dagStorage.subContexts == subContexts
+        dagStorage.getBasicTaskInfo('executionId', 'B').children.size() == subTasks
+        !lazy || dagStorage.contextBytes < size * 40 + 2000
+
+        where:
+        lazy  | size   || subContexts | subTasks
+        false | 1000   || 1000        | 1000
+        true  | 1000   || 12          | 10
+        false | 10000  || 10000       | 10000
+        true  | 10000  || 12          | 10
+        false | 100000 || 100000      | 100000
+        true  | 100000 || 12          | 10
+    }
+
+    private void finishGroups(String executionId, Range<Integer> groups) {
+        groups.each { int index ->
+            olympicene.finish(executionId, DAGSettings.DEFAULT, ['url': 'url_s' + index],
+                    NotifyInfo.builder().taskInfoName('B_' + index + '-B1').taskStatus(TaskStatus.SUCCEED).build())
+        }
+    }
+
+    /**
+     * 统计写入的子context个数及context序列化字节数
+     */
+    static class CountingStorage extends DAGLocalStorage {
+        long subContexts
+        long contextBytes
+
+        @Override
+        void updateContext(String executionId, Map<String, Object> context) {
+            subContexts += context.keySet().count { it.startsWith('__') }
+            contextBytes += MAPPER.writeValueAsBytes(context).length
+            super.updateContext(executionId, context)
+        }
+    }
+
+    private static String buildText(int maxConcurrency) {
+        return "version: 0.0.1\n" +
+                "namespace: olympicene\n" +
+                "service: mca\n" +
+                "name: test\n" +
+                "type: flow\n" +
+                "tasks: \n" +
+                "- category: foreach\n" +
+                "  name: B\n" +
+                "  inputMappings:\n" +
+                "    - target: \$.input.segments\n" +
+                "      source: \$.context.segments\n" +
+                "    - target: \$.input.url\n" +
+                "      source: \$.context.url\n" +
+                "  synchronization:\n" +
+                "    conditions:\n" +
+                "      - \$.input.[?(@.segments)]\n" +
+                "    maxConcurrency: " + maxConcurrency + "\n" +
+                "  iterationMapping:\n" +
+                "      collection: \$.input.segments\n" +
+                "      item: segment\n" +
+                "  outputMappings:\n" +
+                "    - target: \$.context.urls\n" +
+                "      source: \$.output.sub_context.[*].url\n" +
+                "  next: C\n" +
+                "  tasks:\n" +
+                "     - category: function\n" +
+                "       resourceName: \"testBusinessId::testFeatureName::testResource::prod\" \n" +
+                "       pattern: task_scheduler\n" +
+                "       name: B1\n" +
+                "       inputMappings:\n" +
+                "          - target: \$.input.segment\n" +
+                "            source: \$.context.segment\n" +
+                "       outputMappings:\n" +
+                "          - target: \$.context.url\n" +
+                "            source: \$.output.url\n" +
+                "- category: function\n" +
+                "  name: C\n" +
+                "  resourceName: \"olympicene::test::funtion1::prod\" \n" +
+                "  pattern: task_scheduler\n" +
+                "  inputMappings:\n" +
+                "     - target: \$.input.urls\n" +
+                "       source: \$.context.urls\n"
+    }
+}
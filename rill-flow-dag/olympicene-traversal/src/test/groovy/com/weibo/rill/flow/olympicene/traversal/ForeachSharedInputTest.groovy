@@ -0,0 +1,141 @@
+package com.weibo.rill.flow.olympicene.traversal
+
+import com.weibo.rill.flow.interfaces.model.strategy.DispatchInfo
+import com.weibo.rill.flow.interfaces.model.task.TaskStatus
+import com.weibo.rill.flow.olympicene.core.constant.ReservedConstant
+import com.weibo.rill.flow.olympicene.core.event.Callback
+import com.weibo.rill.flow.olympicene.core.model.DAGSettings
+import com.weibo.rill.flow.olympicene.core.model.NotifyInfo
+import com.weibo.rill.flow.olympicene.core.model.dag.DAG
+import com.weibo.rill.flow.olympicene.core.runtime.DAGParser
+import com.weibo.rill.flow.olympicene.core.runtime.DAGStorageProcedure
+import com.weibo.rill.flow.olympicene.core.switcher.SwitcherManager
+import com.weibo.rill.flow.olympicene.ddl.parser.DAGStringParser
+import com.weibo.rill.flow.olympicene.ddl.serialize.YAMLSerializer
+import com.weibo.rill.flow.olympicene.ddl.validation.dag.impl.FlowDAGValidator
+import com.weibo.rill.flow.olympicene.ddl.validation.task.impl.ForeachTaskValidator
+import com.weibo.rill.flow.olympicene.ddl.validation.task.impl.FunctionTaskValidator
+import com.weibo.rill.flow.olympicene.storage.save.impl.DAGLocalStorage
+import com.weibo.rill.flow.olympicene.storage.save.impl.LocalStorageProcedure
+import com.weibo.rill.flow.olympicene.traversal.checker.DefaultTimeChecker
+import com.weibo.rill.flow.olympicene.traversal.config.OlympiceneFacade
+import com.weibo.rill.flow.olympicene.traversal.dispatcher.DAGDispatcher
+import spock.lang.Specification
+
+/**
+ * foreach子任务context引用父任务input快照 不再逐组复制
+ */
+class ForeachSharedInputTest extends Specification {
+    DAGParser dagParser = new DAGStringParser(new YAMLSerializer(), [new FlowDAGValidator([new FunctionTaskValidator(), new ForeachTaskValidator()])])
+    DAGLocalStorage dagStorage = new DAGLocalStorage()
+    Callback callback = Mock(Callback.class)
+    List<DispatchInfo> dispatched = []
+    DAGDispatcher dispatcher = { DispatchInfo dispatchInfo ->
+        dispatched.add(dispatchInfo)
+        return '{"result_type":"SUCCESS"}'
+    } as DAGDispatcher
+    DAGStorageProcedure dagStorageProcedure = new LocalStorageProcedure()
+    SwitcherManager switcherManager = Mock(SwitcherManager.class)
+    Olympicene olympicene = OlympiceneFacade.build(dagStorage, dagStorage, callback, dispatcher, dagStorageProcedure, Mock(DefaultTimeChecker.class), switcherManager)
+
+    def setup() {
+        switcherManager.getSwitcherState("ENABLE_SHARED_FOREACH_INPUT") >> true
+        switcherManager.getSwitcherState("ENABLE_LAZY_FOREACH_GROUPS") >> true
+    }
+
+    def "sub contexts store only item and reference to input snapshot"() {
+        when:
+        olympicene.submit('executionId', dagParser.parse(buildText('')), ['segments': ['s0', 's1', 's2'], 'url': 'http://xxx'])
+        Map<String, Object> storedContext = dagStorage.getContext('executionId', null)
+
+        then:
+        storedContext['__B_input'] == ['url': 'http://xxx']
+        storedContext['__B_1'] == [(ReservedConstant.INPUT_REFERENCE): '__B_input', 'segment': 's1']
+        dispatched*.input*.get('url') == ['http://xxx'] * 3
+        dispatched*.input*.get('segment') as Set == ['s0', 's1', 's2'] as Set
+    }
+
+    def "outputs written to one group are not visible to siblings"() {
+        when:
+        olympicene.submit('executionId', dagParser.parse(buildText('')), ['segments': ['s0', 's1', 's2'], 'url': 'http://xxx'])
+        finishGroup(0, 'changed_s0')
+
+        then:
+        dagStorage.getContext('executionId', ['__B_0'])['__B_0']['url'] == 'changed_s0'
+        dagStorage.getContext('executionId', ['__B_1'])['__B_1']['url'] == 'http://xxx'
+        dagStorage.getContext('executionId', ['__B_input'])['__B_input'] == ['url': 'http://xxx']
+
+        when:
+        finishGroup(1, 'changed_s1')
+        finishGroup(2, 'changed_s2')
+
+        then:
+        dagStorage.getContext('executionId')['urls'] as Set == ['changed_s0', 'changed_s1', 'changed_s2'] as Set
+        dagStorage.getContext('executionId')['subContexts'].every { !it.containsKey(ReservedConstant.INPUT_REFERENCE) }
+    }
+
+    def "windowed groups created later resolve input through snapshot"() {
+        given:
+        DAG dag = dagParser.parse(buildText("  synchronization:\n" +
+                "    conditions:\n" +
+                "      - \$.input.[?(@.segments)]\n" +
+                "    maxConcurrency: 1\n"))
+
+        when:
+        olympicene.submit('executionId', dag, ['segments': ['s0', 's1', 's2'], 'url': 'http://xxx'])
+        finishGroup(0, 'changed_s0')
+        finishGroup(1, 'changed_s1')
+
+        then:
+        dagStorage.getContext('executionId', null)['__B_2'] == [(ReservedConstant.INPUT_REFERENCE): '__B_input', 'segment': 's2']
+        dispatched*.input == [['url': 'http://xxx', 'segment': 's0'], ['url': 'http://xxx', 'segment': 's1'], ['url': 'http://xxx', 'segment': 's2']]
+    }
+
+    private void finishGroup(int index, String url) {
+        olympicene.finish('executionId', DAGSettings.DEFAULT, ['url': url],
+                NotifyInfo.builder().taskInfoName('B_' + index + '-B1').taskStatus(TaskStatus.SUCCEED).build())
+    }
+
+    private static String buildText(String synchronization) {
+        return "version: 0.0.1\n" +
+                "namespace: olympicene\n" +
+                "service: mca\n" +
+                "name: test\n" +
+                "type: flow\n" +
+                "tasks: \n" +
+                "- category: foreach\n" +
+                "  name: B\n" +
+                "  inputMappings:\n" +
+                "    - target: \$.input.segments\n" +
+                "      source: \$.context.segments\n" +
+                "    - target: \$.input.url\n" +
+                "      source: \$.context.url\n" +
+                synchronization +
+                "  iterationMapping:\n" +
+                "      collection: \$.input.segments\n" +
+                "      item: segment\n" +
+                "  outputMappings:\n" +
+                "    - target: \$.context.urls\n" +
+                "      source: \$.output.sub_context.[*].url\n" +
+                "    - target: \$.context.subContexts\n" +
+                "      source: \$.output.sub_context\n" +
+                "  next: C\n" +
+                "  tasks:\n" +
+                "     - category: function\n" +
+                "       resourceName: \"testBusinessId::testFeatureName::testResource::prod\" \n" +
+                "       pattern: task_scheduler\n" +
+                "       name: B1\n" +
+                "       inputMappings:\n" +
+                "          - target: \$.input.segment\n" +
+                "            source: \$.context.segment\n" +
+                "          - target: \$.input.url\n" +
+                "            source: \$.context.url\n" +
+                "       outputMappings:\n" +
+                "          - target: \$.context.url\n" +
+                "            source: \$.output.url\n" +
+                "- category: function\n" +
+                "  name: C\n" +
+                "  resourceName: \"olympicene::test::funtion1::prod\" \n" +
+                "  pattern: task_scheduler\n"
+    }
+}
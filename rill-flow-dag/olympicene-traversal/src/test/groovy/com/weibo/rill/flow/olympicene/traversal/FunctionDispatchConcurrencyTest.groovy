@@ -0,0 +1,265 @@
+package com.weibo.rill.flow.olympicene.traversal
+
+import com.weibo.rill.flow.interfaces.model.strategy.DispatchInfo
+import com.weibo.rill.flow.interfaces.model.task.TaskInfo
+import com.weibo.rill.flow.interfaces.model.task.TaskStatus
+import com.weibo.rill.flow.olympicene.core.event.Callback
+import com.weibo.rill.flow.olympicene.core.event.Event
+import com.weibo.rill.flow.olympicene.core.model.DAGSettings
+import com.weibo.rill.flow.olympicene.core.model.NotifyInfo
+import com.weibo.rill.flow.olympicene.core.model.dag.DAG
+import com.weibo.rill.flow.olympicene.core.model.dag.DAGStatus
+import com.weibo.rill.flow.olympicene.core.model.task.ExecutionResult
+import com.weibo.rill.flow.olympicene.core.runtime.DAGParser
+import com.weibo.rill.flow.olympicene.core.runtime.DAGStorageProcedure
+import com.weibo.rill.flow.olympicene.core.switcher.SwitcherManager
+import com.weibo.rill.flow.olympicene.ddl.parser.DAGStringParser
+import com.weibo.rill.flow.olympicene.ddl.serialize.YAMLSerializer
+import com.weibo.rill.flow.olympicene.ddl.validation.dag.impl.FlowDAGValidator
+import com.weibo.rill.flow.olympicene.ddl.validation.task.impl.FunctionTaskValidator
+import com.weibo.rill.flow.olympicene.storage.save.impl.DAGLocalStorage
+import com.weibo.rill.flow.olympicene.storage.save.impl.LocalStorageProcedure
+import com.weibo.rill.flow.olympicene.traversal.callback.DAGCallbackInfo
+import com.weibo.rill.flow.olympicene.traversal.callback.DAGEvent
+import com.weibo.rill.flow.olympicene.traversal.checker.DefaultTimeChecker
+import com.weibo.rill.flow.olympicene.traversal.config.OlympiceneFacade
+import com.weibo.rill.flow.olympicene.traversal.dispatcher.AsyncDAGDispatcher
+import com.weibo.rill.flow.olympicene.traversal.dispatcher.DAGDispatcher
+import com.weibo.rill.flow.olympicene.traversal.helper.SameThreadExecutorService
+import com.weibo.rill.flow.olympicene.traversal.mappings.JSONPathInputOutputMapping
+import com.weibo.rill.flow.olympicene.traversal.runners.FunctionTaskRunner
+import spock.lang.Specification
+import spock.lang.Timeout
+
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * 派发执行者期间不持有任务锁 派发结果按派发版本号提交
+ */
+class FunctionDispatchConcurrencyTest extends Specification {
+    DAGParser dagParser = new DAGStringParser(new YAMLSerializer(), [new FlowDAGValidator([new FunctionTaskValidator()])])
+    DAGLocalStorage dagStorage = new DAGLocalStorage()
+    Callback callback = Mock(Callback.class)
+    DAGStorageProcedure dagStorageProcedure = new LocalStorageProcedure()
+    SwitcherManager switcherManager = Mock(SwitcherManager.class)
+    Closure<String> dispatchAction
+    DAGDispatcher dispatcher = { DispatchInfo dispatchInfo -> dispatchAction.call(dispatchInfo) } as DAGDispatcher
+    Olympicene olympicene = OlympiceneFacade.build(dagStorage, dagStorage, callback, dispatcher, dagStorageProcedure, Mock(DefaultTimeChecker.class), switcherManager)
+
+    @Timeout(value = 20, unit = TimeUnit.SECONDS)
+    def "callback arriving before sync response completes the task and the late response is discarded"() {
+        given:
+        DAG dag = dagParser.parse(buildText("task_sync"))
+        TaskInfo taskInfo = null
+        TaskStatus statusDuringDispatch = null
+        CompletableFuture<Void> callbackFuture = null
+        dispatchAction = { DispatchInfo dispatchInfo ->
+            taskInfo = dagStorage.getBasicTaskInfo('executionId', 'A')
+            statusDuringDispatch = taskInfo.taskStatus
+            callbackFuture = finishAsync()
+            waitTaskCompleted()
+            return '{"result_type":"FAILED","segments":["fromSyncResponse"]}'
+        }
+
+        when:
+        olympicene.submit('executionId', dag, ['url': 'http://xxx'])
+        callbackFuture.get(10, TimeUnit.SECONDS)
+
+        then:
+        statusDuringDispatch == TaskStatus.RUNNING
+        taskInfo.taskStatus == TaskStatus.SUCCEED
+        taskInfo.dispatchVersion == 1
+        0 * callback.onEvent({ Event event -> event.eventCode == DAGEvent.TASK_FAILED.code })
+        1 * callback.onEvent({ Event event -> event.eventCode == DAGEvent.TASK_FINISH.code })
+        1 * callback.onEvent({ Event event ->
+            event.eventCode == DAGEvent.DAG_SUCCEED.code &&
+                    ((DAGCallbackInfo) event.data).dagInfo.dagStatus == DAGStatus.SUCCEED &&
+                    ((DAGCallbackInfo) event.data).context['segments'] == ['fromCallback']
+        })
+    }
+
+    @Timeout(value = 20, unit = TimeUnit.SECONDS)
+    def "callback arriving before async dispatch response is not overwritten to running"() {
+        given:
+        DAG dag = dagParser.parse(buildText("task_scheduler"))
+        TaskInfo taskInfo = null
+        CompletableFuture<Void> callbackFuture = null
+        dispatchAction = { DispatchInfo dispatchInfo ->
+            taskInfo = dagStorage.getBasicTaskInfo('executionId', 'A')
+            callbackFuture = finishAsync()
+            waitTaskCompleted()
+            return '{"result_type":"SUCCESS"}'
+        }
+
+        when:
+        olympicene.submit('executionId', dag, ['url': 'http://xxx'])
+        callbackFuture.get(10, TimeUnit.SECONDS)
+
+        then:
+        taskInfo.taskStatus == TaskStatus.SUCCEED
+        1 * callback.onEvent({ Event event ->
+            event.eventCode == DAGEvent.DAG_SUCCEED.code &&
+                    ((DAGCallbackInfo) event.data).dagInfo.getTask('A').taskStatus == TaskStatus.SUCCEED
+        })
+    }
+
+    @Timeout(value = 20, unit = TimeUnit.SECONDS)
+    def "result of superseded dispatch is discarded"() {
+        given:
+        DAG dag = dagParser.parse(buildText("task_sync"))
+        FunctionTaskRunner runner = (FunctionTaskRunner) OlympiceneFacade.buildTaskRunners(dagStorage, dagStorage, dispatcher,
+                new JSONPathInputOutputMapping(), null, dagStorageProcedure, null, switcherManager).get("function")
+        ExecutionResult redispatchResult = null
+        int dispatchTimes = 0
+        dispatchAction = { DispatchInfo dispatchInfo ->
+            if (++dispatchTimes > 1) {
+                return '{"result_type":"SUCCESS","segments":["fromSecondDispatch"]}'
+            }
+            TaskInfo taskInfo = dagStorage.getTaskInfo('executionId', 'A')
+            redispatchResult = CompletableFuture.supplyAsync {
+                runner.run('executionId', taskInfo, ['url': 'http://xxx'])
+            }.get(10, TimeUnit.SECONDS)
+            return '{"result_type":"FAILED","segments":["fromFirstDispatch"]}'
+        }
+
+        when:
+        olympicene.submit('executionId', dag, ['url': 'http://xxx'])
+
+        then:
+        dispatchTimes == 2
+        redispatchResult.taskStatus == TaskStatus.SUCCEED
+        dagStorage.getBasicTaskInfo('executionId', 'A').taskStatus == TaskStatus.SUCCEED
+        dagStorage.getBasicTaskInfo('executionId', 'A').dispatchVersion == 2
+        dagStorage.getContext('executionId')['segments'] == ['fromSecondDispatch']
+        0 * callback.onEvent({ Event event -> event.eventCode == DAGEvent.TASK_FAILED.code })
+    }
+
+    @Timeout(value = 20, unit = TimeUnit.SECONDS)
+    def "async dispatch releases caller thread and result is committed on completion"() {
+        given:
+        DAG dag = dagParser.parse(buildText("task_sync"))
+        CompletableFuture<String> dispatchFuture = new CompletableFuture<>()
+        DAGDispatcher asyncDispatcher = [dispatch     : { DispatchInfo dispatchInfo -> throw new IllegalStateException("sync dispatch") },
+                                         dispatchAsync: { DispatchInfo dispatchInfo -> dispatchFuture }] as AsyncDAGDispatcher
+        Olympicene asyncOlympicene = OlympiceneFacade.build(dagStorage, dagStorage, callback, asyncDispatcher, dagStorageProcedure,
+                Mock(DefaultTimeChecker.class), switcherManager)
+
+        when:
+        asyncOlympicene.submit('executionId', dag, ['url': 'http://xxx'])
+        TaskInfo taskInfo = dagStorage.getBasicTaskInfo('executionId', 'A')
+
+        then:
+        taskInfo.taskStatus == TaskStatus.RUNNING
+        0 * callback.onEvent({ Event event -> event.eventCode == DAGEvent.DAG_SUCCEED.code })
+
+        when:
+        CompletableFuture.runAsync { dispatchFuture.complete('{"result_type":"SUCCESS","segments":["fromAsyncResponse"]}') }
+                .get(10, TimeUnit.SECONDS)
+
+        then:
+        taskInfo.taskStatus == TaskStatus.SUCCEED
+        taskInfo.dispatchVersion == 1
+        1 * callback.onEvent({ Event event ->
+            event.eventCode == DAGEvent.DAG_SUCCEED.code &&
+                    ((DAGCallbackInfo) event.data).context['segments'] == ['fromAsyncResponse']
+        })
+    }
+
+    @Timeout(value = 20, unit = TimeUnit.SECONDS)
+    def "async dispatch failure goes through task retry and failure handling"() {
+        given:
+        DAG dag = dagParser.parse(buildText("task_sync"))
+        CompletableFuture<String> dispatchFuture = new CompletableFuture<>()
+        DAGDispatcher asyncDispatcher = [dispatchAsync: { DispatchInfo dispatchInfo -> dispatchFuture }] as AsyncDAGDispatcher
+        Olympicene asyncOlympicene = OlympiceneFacade.build(dagStorage, dagStorage, callback, asyncDispatcher, dagStorageProcedure,
+                Mock(DefaultTimeChecker.class), switcherManager)
+
+        when:
+        asyncOlympicene.submit('executionId', dag, ['url': 'http://xxx'])
+        TaskInfo taskInfo = dagStorage.getBasicTaskInfo('executionId', 'A')
+        CompletableFuture.runAsync { dispatchFuture.completeExceptionally(new IllegalStateException("connect timeout")) }
+                .get(10, TimeUnit.SECONDS)
+
+        then:
+        taskInfo.taskStatus == TaskStatus.FAILED
+        1 * callback.onEvent({ Event event -> event.eventCode == DAGEvent.TASK_FAILED.code })
+        1 * callback.onEvent({ Event event -> event.eventCode == DAGEvent.DAG_FAILED.code })
+    }
+
+    @Timeout(value = 20, unit = TimeUnit.SECONDS)
+    def "async result is committed and traversed in current thread when runner executor rejects"() {
+        given:
+        DAG dag = dagParser.parse(buildText("task_sync"))
+        CompletableFuture<String> dispatchFuture = new CompletableFuture<>()
+        DAGDispatcher asyncDispatcher = [dispatchAsync: { DispatchInfo dispatchInfo -> dispatchFuture }] as AsyncDAGDispatcher
+        AtomicInteger rejectTimes = new AtomicInteger()
+        ExecutorService rejectingExecutor = new SameThreadExecutorService() {
+            @Override
+            void execute(Runnable command) {
+                if (rejectTimes.getAndDecrement() > 0) {
+                    throw new RejectedExecutionException("runner executor overload")
+                }
+                command.run()
+            }
+        }
+        Olympicene asyncOlympicene = OlympiceneFacade.build(dagStorage, dagStorage, dagStorageProcedure, callback, null, asyncDispatcher,
+                Mock(DefaultTimeChecker.class), rejectingExecutor, switcherManager)
+
+        when:
+        asyncOlympicene.submit('executionId', dag, ['url': 'http://xxx'])
+        TaskInfo taskInfo = dagStorage.getBasicTaskInfo('executionId', 'A')
+        rejectTimes.set(2)
+        CompletableFuture.runAsync { dispatchFuture.complete('{"result_type":"SUCCESS","segments":["fromAsyncResponse"]}') }
+                .get(10, TimeUnit.SECONDS)
+
+        then:
+        rejectTimes.get() < 0
+        taskInfo.taskStatus == TaskStatus.SUCCEED
+        1 * callback.onEvent({ Event event ->
+            event.eventCode == DAGEvent.DAG_SUCCEED.code &&
+                    ((DAGCallbackInfo) event.data).context['segments'] == ['fromAsyncResponse']
+        })
+    }
+
+    /**
+     * 测试中遍历使用同线程执行器 submit线程派发期间持有dag锁
+     * finish线程完成任务后的遍历需等待submit返回 因此仅等待任务状态完成
+     */
+    private CompletableFuture<Void> finishAsync() {
+        return CompletableFuture.runAsync {
+            olympicene.finish('executionId', DAGSettings.DEFAULT, ['segments': ['fromCallback']],
+                    NotifyInfo.builder().taskInfoName('A').taskStatus(TaskStatus.SUCCEED).build())
+        }
+    }
+
+    private void waitTaskCompleted() {
+        long deadline = System.currentTimeMillis() + 10000
+        while (!dagStorage.getBasicTaskInfo('executionId', 'A').taskStatus.isCompleted()) {
+            assert System.currentTimeMillis() < deadline
+            Thread.sleep(10)
+        }
+    }
+
+    private static String buildText(String pattern) {
+        return "version: 0.0.1\n" +
+                "namespace: olympicene\n" +
+                "service: mca\n" +
+                "name: test\n" +
+                "type: flow\n" +
+                "tasks: \n" +
+                "- category: function\n" +
+                "  name: A\n" +
+                "  resourceName: \"olympicene::test::function1::prod\" \n" +
+                "  pattern: " + pattern + "\n" +
+                "  inputMappings:\n" +
+                "     - target: \$.input.url\n" +
+                "       source: \$.context.url\n" +
+                "  outputMappings:\n" +
+                "     - target: \$.context.segments\n" +
+                "       source: \$.output.segments\n"
+    }
+}
@@ -0,0 +1,223 @@
+package com.weibo.rill.flow.olympicene.traversal
+
+import com.weibo.rill.flow.interfaces.model.strategy.DispatchInfo
+import com.weibo.rill.flow.interfaces.model.task.TaskInfo
+import com.weibo.rill.flow.interfaces.model.task.TaskStatus
+import com.weibo.rill.flow.olympicene.core.constant.SystemConfig
+import com.weibo.rill.flow.olympicene.core.event.Callback
+import com.weibo.rill.flow.olympicene.core.model.dag.DAG
+import com.weibo.rill.flow.olympicene.core.runtime.DAGParser
+import com.weibo.rill.flow.olympicene.core.runtime.DAGStorageProcedure
+import com.weibo.rill.flow.olympicene.core.switcher.SwitcherManager
+import com.weibo.rill.flow.olympicene.ddl.parser.DAGStringParser
+import com.weibo.rill.flow.olympicene.ddl.serialize.YAMLSerializer
+import com.weibo.rill.flow.olympicene.ddl.validation.dag.impl.FlowDAGValidator
+import com.weibo.rill.flow.olympicene.ddl.validation.task.impl.ForeachTaskValidator
+import com.weibo.rill.flow.olympicene.ddl.validation.task.impl.FunctionTaskValidator
+import com.weibo.rill.flow.olympicene.storage.save.impl.DAGLocalStorage
+import com.weibo.rill.flow.olympicene.storage.save.impl.LocalStorageProcedure
+import com.weibo.rill.flow.olympicene.traversal.checker.DefaultTimeChecker
+import com.weibo.rill.flow.olympicene.traversal.config.OlympiceneFacade
+import com.weibo.rill.flow.olympicene.traversal.dispatcher.DAGDispatcher
+import org.apache.commons.lang3.tuple.Pair
+import spock.lang.Specification
+
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * foreach子任务组分批提交
+ */
+class SubTaskSubmitTest extends Specification {
+    DAGParser dagParser = new DAGStringParser(new YAMLSerializer(), [new FlowDAGValidator([new FunctionTaskValidator(), new ForeachTaskValidator()])])
+    DAGLocalStorage dagStorage = new DAGLocalStorage()
+    Callback callback = Mock(Callback.class)
+    AtomicInteger lockTimes = new AtomicInteger()
+    LocalStorageProcedure localStorageProcedure = new LocalStorageProcedure()
+    DAGStorageProcedure dagStorageProcedure = { String lockName, Runnable runnable ->
+        lockTimes.incrementAndGet()
+        localStorageProcedure.lockAndRun(lockName, runnable)
+    } as DAGStorageProcedure
+    AtomicInteger dispatchTimes = new AtomicInteger()
+    DAGDispatcher dispatcher = { DispatchInfo dispatchInfo ->
+        dispatchTimes.incrementAndGet()
+        return '{"result_type":"SUCCESS"}'
+    } as DAGDispatcher
+    Olympicene olympicene = OlympiceneFacade.build(dagStorage, dagStorage, callback, dispatcher, dagStorageProcedure,
+            Mock(DefaultTimeChecker.class), Mock(SwitcherManager.class))
+
+    int batchSize = SystemConfig.getSubTaskSubmitBatchSize()
+    int maxPendingTasks = SystemConfig.getSubTaskSubmitMaxPendingTasks()
+    long maxWaitMillis = SystemConfig.getSubTaskSubmitMaxWaitMillis()
+
+    def cleanup() {
+        SystemConfig.setSubTaskSubmitBatchSize(batchSize)
+        SystemConfig.setSubTaskSubmitMaxPendingTasks(maxPendingTasks)
+        SystemConfig.setSubTaskSubmitMaxWaitMillis(maxWaitMillis)
+    }
+
+    def "foreach groups are submitted in batches with one lock per batch"() {
+        given:
+        SystemConfig.setSubTaskSubmitBatchSize(1)
+        olympicene.submit('groupPerSubmit', dagParser.parse(buildText('')), ['items': (0..<250).collect { it }])
+        int groupPerSubmitLockTimes = lockTimes.getAndSet(0)
+        dispatchTimes.set(0)
+        SystemConfig.setSubTaskSubmitBatchSize(100)
+        DAG dag = dagParser.parse(buildText(''))
+
+        when:
+        olympicene.submit('executionId', dag, ['items': (0..<250).collect { it }])
+        TaskInfo foreachTaskInfo = dagStorage.getBasicTaskInfo('executionId', 'A')
+
+        then:
+        dispatchTimes.get() == 250
+        foreachTaskInfo.subGroupIndexToStatus.size() == 250
+        foreachTaskInfo.children.values().every { it.taskStatus == TaskStatus.RUNNING }
+        groupPerSubmitLockTimes - lockTimes.get() == 250 - 3
+    }
+
+    def "foreach groups beyond maxConcurrency are not submitted"() {
+        given:
+        DAG dag = dagParser.parse(buildText("  synchronization:\n" +
+                "    conditions:\n" +
+                "      - \$.input.[?(@.items)]\n" +
+                "    maxConcurrency: 30\n"))
+
+        when:
+        olympicene.submit('executionId', dag, ['items': (0..<250).collect { it }])
+        TaskInfo foreachTaskInfo = dagStorage.getBasicTaskInfo('executionId', 'A')
+
+        then:
+        dispatchTimes.get() == 30
+        foreachTaskInfo.subGroupIndexToStatus.values().count { it == TaskStatus.RUNNING } == 30
+    }
+
+    def "next batch waits until queued runner tasks start"() {
+        given:
+        SystemConfig.setSubTaskSubmitBatchSize(10)
+        SystemConfig.setSubTaskSubmitMaxPendingTasks(15)
+        SystemConfig.setSubTaskSubmitMaxWaitMillis(60000)
+        List<Runnable> queued = new CopyOnWriteArrayList<>()
+        ExecutorService holdingExecutor = Mock(ExecutorService.class)
+        holdingExecutor.execute(_) >> { args -> queued.add(args[0]) }
+        AtomicInteger submitted = new AtomicInteger()
+        DAGTraversal dagTraversal = Mock(DAGTraversal.class)
+        dagTraversal.submitTasks('executionId', _, _) >> { submitted.incrementAndGet() }
+        DAGOperations dagOperations = new DAGOperations(holdingExecutor, [:], null, null, dagTraversal, callback, null)
+
+        when:
+        dagOperations.runTasks('executionId', (0..<10).collect { Pair.of(new TaskInfo(name: 'T' + it), [:]) })
+        Thread submitter = Thread.start { dagOperations.submitSubTasks('executionId', buildGroups(30)) }
+        waitUntil { submitter.state == Thread.State.TIMED_WAITING }
+
+        then:
+        // 10个任务未开始执行 再提交一批10个任务将超过上限15
+        submitted.get() == 0
+        dagOperations.getPendingRunnerTasks() == 10
+
+        when:
+        queued.take(5).each { it.run() }
+        submitter.join()
+
+        then:
+        submitted.get() == 3
+        dagOperations.getPendingRunnerTasks() == 5
+        dagOperations.getSubmitWaitTimes() == 1
+    }
+
+    def "next batch is submitted after max wait even if runner queue stays full"() {
+        given:
+        SystemConfig.setSubTaskSubmitBatchSize(10)
+        SystemConfig.setSubTaskSubmitMaxPendingTasks(5)
+        SystemConfig.setSubTaskSubmitMaxWaitMillis(10)
+        DAGTraversal dagTraversal = Mock(DAGTraversal.class)
+        DAGOperations dagOperations = new DAGOperations(Mock(ExecutorService.class), [:], null, null, dagTraversal, callback, null)
+        dagOperations.runTasks('executionId', (0..<10).collect { Pair.of(new TaskInfo(name: 'T' + it), [:]) })
+
+        when:
+        dagOperations.submitSubTasks('executionId', buildGroups(30))
+
+        then:
+        3 * dagTraversal.submitTasks('executionId', { it.size() == 10 }, { it.size() == 10 })
+        dagOperations.getSubmitWaitTimes() == 3
+    }
+
+    def "next batch is submitted without wait when runner queue is drained"() {
+        given:
+        SystemConfig.setSubTaskSubmitBatchSize(10)
+        SystemConfig.setSubTaskSubmitMaxPendingTasks(5)
+        SystemConfig.setSubTaskSubmitMaxWaitMillis(5000)
+        DAGTraversal dagTraversal = Mock(DAGTraversal.class)
+        DAGOperations dagOperations = new DAGOperations(Mock(ExecutorService.class), [:], null, null, dagTraversal, callback, null)
+
+        when:
+        dagOperations.submitSubTasks('executionId', buildGroups(30))
+
+        then:
+        3 * dagTraversal.submitTasks('executionId', _, _)
+        dagOperations.getSubmitWaitTimes() == 0
+    }
+
+    /**
+     * 原实现每个子任务组单独提交并在提交后sleep 10ms 分批后每批只获取一次dag锁
+     */
+    def "all foreach groups are started with one lock per batch"() {
+        given:
+        SystemConfig.setSubTaskSubmitBatchSize(1)
+        olympicene.submit('groupPerSubmit' + groups, dagParser.parse(buildText('')), ['items': (0..<groups).collect { it }])
+        int groupPerSubmitLockTimes = lockTimes.getAndSet(0)
+        dispatchTimes.set(0)
+        SystemConfig.setSubTaskSubmitBatchSize(100)
+
+        when:
+        olympicene.submit('executionId' + groups, dagParser.parse(buildText('')), ['items': (0..<groups).collect { it }])
+
+        then:
+        dispatchTimes.get() == groups
+        groupPerSubmitLockTimes - lockTimes.get() == groups - groups.intdiv(100)
+
+        where:
+        groups << [100, 1000]
+    }
+
+    private static List<Pair<Set<TaskInfo>, Map<String, Object>>> buildGroups(int count) {
+        return (0..<count).collect {
+            Pair.of([new TaskInfo(name: 'A_' + it + '-B')] as Set<TaskInfo>, [('__A_' + it): [index: it]] as Map<String, Object>)
+        }
+    }
+
+    private static void waitUntil(Closure<Boolean> condition) {
+        long deadline = System.currentTimeMillis() + 10000
+        while (!condition.call()) {
+            assert System.currentTimeMillis() < deadline
+            sleep(5)
+        }
+    }
+
+    private static String buildText(String synchronization) {
+        return "version: 0.0.1\n" +
+                "namespace: olympicene\n" +
+                "service: mca\n" +
+                "name: test\n" +
+                "type: flow\n" +
+                "tasks: \n" +
+                "- category: foreach\n" +
+                "  name: A\n" +
+                "  inputMappings:\n" +
+                "    - target: \$.input.items\n" +
+                "      source: \$.context.items\n" +
+                "  iterationMapping:\n" +
+                "      collection: \$.input.items\n" +
+                "      item: item\n" +
+                synchronization +
+                "  tasks:\n" +
+                "     - category: function\n" +
+                "       resourceName: \"testBusinessId::testFeatureName::testResource::prod\" \n" +
+                "       pattern: task_scheduler\n" +
+                "       name: B\n" +
+                "       inputMappings:\n" +
+                "          - target: \$.input.item\n" +
+                "            source: \$.context.item\n"
+    }
+}
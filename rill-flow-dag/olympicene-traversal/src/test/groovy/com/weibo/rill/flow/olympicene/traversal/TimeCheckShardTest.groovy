@@ -0,0 +1,199 @@
+package com.weibo.rill.flow.olympicene.traversal
+
+import com.weibo.rill.flow.olympicene.storage.redis.api.RedisClient
+import com.weibo.rill.flow.olympicene.storage.redis.lock.ResourceLoader
+import com.weibo.rill.flow.olympicene.traversal.checker.DefaultTimeChecker
+import com.weibo.rill.flow.olympicene.traversal.runners.TimeCheckRunner
+import spock.lang.Specification
+
+import java.nio.charset.StandardCharsets
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * 超时检查分片及并行消费 redis按ZSetRedis模拟 每次脚本调用耗时1ms
+ */
+class TimeCheckShardTest extends Specification {
+    ZSetRedis redis = new ZSetRedis()
+    Map<String, List<Integer>> handled = new ConcurrentHashMap<>()
+    AtomicInteger handledCount = new AtomicInteger()
+    DefaultTimeChecker timeChecker = new DefaultTimeChecker()
+    ExecutorService checkExecutor = Executors.newFixedThreadPool(8)
+
+    def setup() {
+        timeChecker.redisClient = redis.client()
+        timeChecker.timeCheckRunner = new TimeCheckRunner(null, null, null, null) {
+            @Override
+            void handleTimeCheck(String member) {
+                String[] parts = member.split('#')
+                handled.computeIfAbsent(parts[0], { Collections.synchronizedList([]) }).add(parts[1] as int)
+                handledCount.incrementAndGet()
+            }
+        }
+    }
+
+    def cleanup() {
+        checkExecutor.shutdownNow()
+    }
+
+    def "members are spread over shards and removed from shard and legacy key"() {
+        given:
+        timeChecker.shardCount = 4
+
+        when:
+        (0..<20).each { timeChecker.addMemberToCheckPool('execution_' + it, 'execution_' + it + '#0', 1L) }
+        redis.zadd('time_check', 1L, 'execution_0#1')
+        timeChecker.remMemberFromCheckPool('execution_0', 'execution_0#0')
+        timeChecker.remMemberFromCheckPool('execution_0', 'execution_0#1')
+
+        then:
+        redis.zsets['all_time_check_redis_key'].keySet() == (0..<4).collect { 'time_check_' + it } as Set
+        redis.zsets.findAll { it.key.startsWith('time_check') }.values().sum { it.size() } == 19
+        redis.zsets['time_check_' + Math.floorMod('execution_1'.hashCode(), 4)].containsKey('execution_1#0')
+        redis.zsets['time_check'].isEmpty()
+    }
+
+    def "members written before shardCount changes are removed from old shards"() {
+        given:
+        timeChecker.shardCount = 8
+        (0..<20).each { timeChecker.addMemberToCheckPool('execution_' + it, 'execution_' + it + '#0', System.currentTimeMillis() + 60000) }
+        timeChecker.timeCheck()
+
+        when:
+        timeChecker.shardCount = shardCount
+        (0..<20).each { timeChecker.remMemberFromCheckPool('execution_' + it, 'execution_' + it + '#0') }
+
+        then:
+        handledCount.get() == 0
+        redis.zsets.findAll { it.key.startsWith('time_check') }.values().every { it.isEmpty() }
+
+        where:
+        shardCount << [1, 3, 16]
+    }
+
+    def "drain expirations keeping order within execution"() {
+        given:
+        timeChecker.shardCount = shardCount
+        timeChecker.maxBatchSize = maxBatchSize
+        timeChecker.checkExecutor = parallel ? checkExecutor : null
+        int executions = 1000
+        int perExecution = 100
+        (0..<perExecution).each { int seq ->
+            (0..<executions).each { int index ->
+                String executionId = 'execution_' + index
+                redis.zadd(timeCheckKey(executionId, shardCount), seq * executions + index, executionId + '#' + seq)
+            }
+        }
+        (0..<Math.max(shardCount, 1)).each { redis.zadd('all_time_check_redis_key', 0L, shardCount > 1 ? 'time_check_' + it : 'time_check') }
+
+        when:
+        timeChecker.timeCheck()
+
+        then:
+        handledCount.get() == executions * perExecution
+        handled.size() == executions
+        handled.values().every { it == (0..<perExecution).toList() }
+        redis.evals.get() <= maxEvals
+        redis.zsets.findAll { it.key.startsWith('time_check') }.values().every { it.isEmpty() }
+
+        where:
+        shardCount | maxBatchSize | parallel | maxEvals
+        1          | 30           | false    | 3400
+        16         | 500          | true     | 300
+    }
+
+    private static String timeCheckKey(String executionId, int shardCount) {
+        return shardCount > 1 ? 'time_check_' + Math.floorMod(executionId.hashCode(), shardCount) : 'time_check'
+    }
+
+    static class ZSetRedis {
+        static final String GET_TIMEOUT = ResourceLoader.loadResourceAsText('lua/redis_get_timeout.lua')
+
+        final Map<String, ZSet> zsets = new ConcurrentHashMap<>()
+        final AtomicInteger evals = new AtomicInteger()
+
+        RedisClient client() {
+            return [zadd         : { String key, double score, String member -> zadd(key, score, member) },
+                    zrem         : { String key, String member -> zrem(key, member) },
+                    zrangeByScore: { String key, double min, double max -> zrangeByScore(key, min, max) },
+                    eval         : { String script, String shardingKey, List<String> keys, List<String> argv -> eval(script, keys, argv) }] as RedisClient
+        }
+
+        synchronized Long zadd(String key, double score, String member) {
+            zsets.computeIfAbsent(key, { new ZSet() }).add(score, member)
+            return 1L
+        }
+
+        synchronized Long zrem(String key, String member) {
+            return zsets.getOrDefault(key, new ZSet()).remove(member) ? 1L : 0L
+        }
+
+        synchronized Set<String> zrangeByScore(String key, double min, double max) {
+            return zsets.getOrDefault(key, new ZSet()).range(min, max, Integer.MAX_VALUE) as LinkedHashSet
+        }
+
+        Object eval(String script, List<String> keys, List<String> argv) {
+            assert script == GET_TIMEOUT
+            evals.incrementAndGet()
+            // 网络往返
+            sleep(1)
+            return popRange(keys[0], argv[0] as double, argv[1] as double, argv[3] as int)
+        }
+
+        private synchronized List<byte[]> popRange(String key, double min, double max, int count) {
+            ZSet zset = zsets.getOrDefault(key, new ZSet())
+            List<String> members = zset.range(min, max, count)
+            members.each { zset.remove(it) }
+            return members.collect { it.getBytes(StandardCharsets.UTF_8) }
+        }
+    }
+
+    static class ZSet {
+        final Map<String, Double> scores = [:]
+        final TreeSet<Map.Entry<String, Double>> ordered = new TreeSet<>({ Map.Entry<String, Double> a, Map.Entry<String, Double> b ->
+            a.value <=> b.value ?: a.key <=> b.key
+        } as Comparator)
+
+        void add(double score, String member) {
+            remove(member)
+            scores[member] = score
+            ordered.add(new AbstractMap.SimpleImmutableEntry<>(member, score))
+        }
+
+        boolean remove(String member) {
+            Double score = scores.remove(member)
+            return score != null && ordered.remove(new AbstractMap.SimpleImmutableEntry<>(member, score))
+        }
+
+        List<String> range(double min, double max, int count) {
+            List<String> members = []
+            for (Map.Entry<String, Double> entry : ordered) {
+                if (entry.value > max || members.size() >= count) {
+                    break
+                }
+                if (entry.value >= min) {
+                    members.add(entry.key)
+                }
+            }
+            return members
+        }
+
+        boolean isEmpty() {
+            return scores.isEmpty()
+        }
+
+        int size() {
+            return scores.size()
+        }
+
+        boolean containsKey(String member) {
+            return scores.containsKey(member)
+        }
+
+        Set<String> keySet() {
+            return scores.keySet()
+        }
+    }
+}
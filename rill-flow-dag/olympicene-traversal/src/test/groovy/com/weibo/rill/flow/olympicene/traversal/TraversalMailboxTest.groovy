@@ -0,0 +1,190 @@
+package com.weibo.rill.flow.olympicene.traversal
+
+import com.weibo.rill.flow.interfaces.model.strategy.DispatchInfo
+import com.weibo.rill.flow.interfaces.model.task.TaskStatus
+import com.weibo.rill.flow.olympicene.core.event.Callback
+import com.weibo.rill.flow.olympicene.core.event.Event
+import com.weibo.rill.flow.olympicene.core.model.DAGSettings
+import com.weibo.rill.flow.olympicene.core.model.NotifyInfo
+import com.weibo.rill.flow.olympicene.core.model.dag.DAG
+import com.weibo.rill.flow.olympicene.core.model.dag.DAGStatus
+import com.weibo.rill.flow.olympicene.core.runtime.DAGParser
+import com.weibo.rill.flow.olympicene.core.runtime.DAGStorageProcedure
+import com.weibo.rill.flow.olympicene.core.switcher.SwitcherManager
+import com.weibo.rill.flow.olympicene.ddl.parser.DAGStringParser
+import com.weibo.rill.flow.olympicene.ddl.serialize.YAMLSerializer
+import com.weibo.rill.flow.olympicene.ddl.validation.dag.impl.FlowDAGValidator
+import com.weibo.rill.flow.olympicene.ddl.validation.task.impl.FunctionTaskValidator
+import com.weibo.rill.flow.olympicene.storage.save.impl.DAGLocalStorage
+import com.weibo.rill.flow.olympicene.traversal.callback.DAGCallbackInfo
+import com.weibo.rill.flow.olympicene.traversal.checker.DefaultTimeChecker
+import com.weibo.rill.flow.olympicene.traversal.config.OlympiceneFacade
+import com.weibo.rill.flow.olympicene.traversal.dispatcher.DAGDispatcher
+import spock.lang.Specification
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.locks.ReentrantLock
+
+/**
+ * 同一执行的遍历请求合并后加锁
+ */
+class TraversalMailboxTest extends Specification {
+    TraversalMailbox mailbox = new TraversalMailbox()
+
+    def "pending traversals are coalesced by traversal scope"() {
+        expect:
+        mailbox.offer('executionId', null)
+        !mailbox.offer('executionId', 'A')
+        !mailbox.offer('executionId', 'B_0-B1')
+        !mailbox.offer('executionId', 'B_0-B2')
+        !mailbox.offer('executionId', 'B_1-B1')
+        mailbox.offer('other', 'A')
+        mailbox.drain('executionId') == ['A', 'B_0-B1', 'B_1-B1']
+
+        when:
+        mailbox.offer('executionId', 'C')
+
+        then:
+        mailbox.complete('executionId')
+        mailbox.drain('executionId') == ['C']
+        !mailbox.complete('executionId')
+        mailbox.size() == 1
+        mailbox.offer('executionId', 'C')
+    }
+
+    def "wide parallel dag takes fewer dag locks with mailbox"() {
+        when:
+        SpinningStorageProcedure spinning = runWideDAG(false, width)
+        SpinningStorageProcedure mailboxed = runWideDAG(true, width)
+
+        then:
+        mailboxed.dagLocks.get() < spinning.dagLocks.get() - width / 2
+
+        where:
+        width << [50, 200]
+    }
+
+    def "mailbox is consumed in current thread when traversal executor rejects"() {
+        given:
+        SwitcherManager switcherManager = Mock(SwitcherManager.class)
+        switcherManager.getSwitcherState("ENABLE_TRAVERSAL_MAILBOX") >> true
+        ExecutorService rejectingExecutor = Mock(ExecutorService.class)
+        rejectingExecutor.execute(_) >> { throw new RejectedExecutionException("traversal executor overload") }
+        DAGStorageProcedure storageProcedure = Mock(DAGStorageProcedure.class)
+        DAGTraversal dagTraversal = new DAGTraversal(null, null, storageProcedure, rejectingExecutor)
+        dagTraversal.setSwitcherManager(switcherManager)
+        int rounds = 40
+        int locks = 0
+        storageProcedure.lockAndRun(*_) >> {
+            // 消费期间持续有新请求 超过MAX_MAILBOX_PASSES轮后需重新提交消费者
+            if (++locks < rounds) {
+                dagTraversal.submitTraversal('executionId', 'A')
+            }
+        }
+
+        when:
+        dagTraversal.submitTraversal('executionId', 'A')
+
+        then:
+        locks == rounds
+        dagTraversal.mailbox.size() == 0
+
+        when:
+        dagTraversal.submitTraversal('executionId', 'A')
+
+        then:
+        locks == rounds + 1
+        dagTraversal.mailbox.size() == 0
+    }
+
+    private SpinningStorageProcedure runWideDAG(boolean mailboxEnabled, int width) {
+        SwitcherManager switcherManager = Mock(SwitcherManager.class)
+        switcherManager.getSwitcherState("ENABLE_TRAVERSAL_MAILBOX") >> mailboxEnabled
+        ExecutorService executor = Executors.newFixedThreadPool(16)
+        SpinningStorageProcedure storageProcedure = new SpinningStorageProcedure()
+        DAGLocalStorage dagStorage = new DAGLocalStorage()
+        CountDownLatch finished = new CountDownLatch(1)
+        DAGStatus[] dagStatus = new DAGStatus[1]
+        Callback<DAGCallbackInfo> callback = { Event<DAGCallbackInfo> event ->
+            if (event.data?.dagInfo?.dagStatus?.isCompleted()) {
+                dagStatus[0] = event.data.dagInfo.dagStatus
+                finished.countDown()
+            }
+        } as Callback<DAGCallbackInfo>
+        Olympicene olympicene = null
+        DAGDispatcher dispatcher = { DispatchInfo dispatchInfo ->
+            executor.execute {
+                olympicene.finish(dispatchInfo.executionId, DAGSettings.DEFAULT, ['result': dispatchInfo.taskInfo.name],
+                        NotifyInfo.builder().taskInfoName(dispatchInfo.taskInfo.name).taskStatus(TaskStatus.SUCCEED).build())
+            }
+            return '{}'
+        } as DAGDispatcher
+        olympicene = OlympiceneFacade.build(dagStorage, dagStorage, storageProcedure, callback, null, dispatcher,
+                Mock(DefaultTimeChecker.class), executor, switcherManager)
+        DAGParser dagParser = new DAGStringParser(new YAMLSerializer(), [new FlowDAGValidator([new FunctionTaskValidator()])])
+
+        try {
+            olympicene.submit('executionId', dagParser.parse(buildText(width)), [:])
+            assert finished.await(60, TimeUnit.SECONDS)
+            assert dagStatus[0] == DAGStatus.SUCCEED
+            return storageProcedure
+        } finally {
+            executor.shutdownNow()
+        }
+    }
+
+    /**
+     * 模拟RedisDistributedLocker 加锁失败后休眠重试 统计加锁及重试次数
+     */
+    static class SpinningStorageProcedure implements DAGStorageProcedure {
+        Map<String, ReentrantLock> locks = new ConcurrentHashMap<>()
+        AtomicLong acquisitions = new AtomicLong()
+        AtomicLong dagLocks = new AtomicLong()
+        AtomicLong spins = new AtomicLong()
+
+        @Override
+        void lockAndRun(String lockName, Runnable runnable) {
+            ReentrantLock lock = locks.computeIfAbsent(lockName, { new ReentrantLock() })
+            while (!lock.tryLock()) {
+                spins.incrementAndGet()
+                Thread.sleep(5)
+            }
+            acquisitions.incrementAndGet()
+            if (lockName.startsWith('lock_dag_info')) {
+                dagLocks.incrementAndGet()
+            }
+            try {
+                runnable.run()
+            } finally {
+                lock.unlock()
+            }
+        }
+    }
+
+    private static String buildText(int width) {
+        StringBuilder text = new StringBuilder("version: 0.0.1\n" +
+                "namespace: olympicene\n" +
+                "service: mca\n" +
+                "name: wide\n" +
+                "type: flow\n" +
+                "tasks: \n")
+        width.times {
+            text.append("- category: function\n" +
+                    "  name: A" + it + "\n" +
+                    "  resourceName: \"olympicene::test::function::prod\" \n" +
+                    "  pattern: task_scheduler\n" +
+                    "  next: Z\n")
+        }
+        text.append("- category: function\n" +
+                "  name: Z\n" +
+                "  resourceName: \"olympicene::test::function::prod\" \n" +
+                "  pattern: task_scheduler\n")
+        return text.toString()
+    }
+}
@@ -0,0 +1,80 @@
+package com.weibo.rill.flow.olympicene.traversal.helper
+
+import com.googlecode.aviator.exception.ExpressionSyntaxErrorException
+import spock.lang.Specification
+
+import java.lang.management.ManagementFactory
+
+class AviatorExpressionCacheTest extends Specification {
+
+    def "test repeated expression is compiled once"() {
+        given:
+        AviatorExpressionCache cache = new AviatorExpressionCache(10)
+
+        when:
+        def results = (0..<5).collect { cache.execute("a + b", [a: 1, b: it]) }
+
+        then:
+        results == [1, 2, 3, 4, 5]
+        cache.stats().missCount() == 1
+        cache.stats().hitCount() == 4
+        cache.size() == 1
+    }
+
+    def "test cache is bounded and evicts least recently used expression"() {
+        given:
+        AviatorExpressionCache cache = new AviatorExpressionCache(2)
+
+        when:
+        cache.getExpression("1 + 1")
+        cache.getExpression("1 + 2")
+        cache.getExpression("1 + 1")
+        cache.getExpression("1 + 3")
+        cache.getExpression("1 + 1")
+
+        then:
+        cache.size() == 2
+        cache.stats().evictionCount() == 1
+        cache.stats().hitCount() == 2
+    }
+
+    def "test compile error is thrown as aviator exception"() {
+        given:
+        AviatorExpressionCache cache = new AviatorExpressionCache(2)
+
+        when:
+        cache.getExpression("1 +")
+
+        then:
+        thrown(ExpressionSyntaxErrorException)
+    }
+
+    /**
+     * 默认执行2万次 可通过-Daviator.soak.count=1000000执行百万次
+     */
+    def "soak test loaded class count stays flat with distinct and repeated expressions"() {
+        given:
+        int count = Integer.getInteger("aviator.soak.count", 20000)
+        int maximumSize = 500
+        AviatorExpressionCache cache = new AviatorExpressionCache(maximumSize)
+        def classLoadingBean = ManagementFactory.getClassLoadingMXBean()
+        (0..<maximumSize).each { cache.execute("x + " + it, [x: 1]) }
+        System.gc()
+        int loadedBefore = classLoadingBean.loadedClassCount
+
+        when:
+        for (int i = 0; i < count; i++) {
+            String script = i % 2 == 0 ? "x + " + i : "x * " + (i % 100)
+            assert cache.execute(script, [x: 1]) != null
+            if (i % 5000 == 0) {
+                System.gc()
+            }
+        }
+        System.gc()
+        int loadedAfter = classLoadingBean.loadedClassCount
+
+        then:
+        cache.size() <= maximumSize
+        loadedAfter - loadedBefore < maximumSize * 4
+    }
+}
@@ -1,41 +1,44 @@
 package com.weibo.rill.flow.olympicene.traversal.mappings
 
+import com.weibo.rill.flow.interfaces.model.mapping.Mapping
 import spock.lang.Specification
 
 class JSONPathInputOutputMappingTest extends Specification {
     JSONPathInputOutputMapping jsonPathInputOutputMapping = new JSONPathInputOutputMapping(rillFlowFunctionTriggerUri: "/flow/trigger.json", serverHost: "http://localhost:8080")
 
-    def "test calculateSourceValue when source is empty"() {
+    def "test mapping when source is empty"() {
+        given:
+        Map<String, Object> input = [:]
         when:
-        String sourceValue = jsonPathInputOutputMapping.calculateSourceValue("123456", "", [:])
+        jsonPathInputOutputMapping.mapping([flow_execution_id: "123456"], input, [:], [new Mapping("", "\$.input.url")])
         then:
-        sourceValue == null
+        input.isEmpty()
     }
 
-    def "test calculateSourceValue when source is jsonPath"() {
+    def "test mapping when source is jsonPath"() {
         given:
-        Map<String, Object> env = [input:["hello": "world"]]
+        Map<String, Object> output = [:]
         when:
-        String sourceValue = jsonPathInputOutputMapping.calculateSourceValue("123456", "\$.input.hello", env)
+        jsonPathInputOutputMapping.mapping([flow_execution_id: "123456"], ["hello": "world"], output, [new Mapping("\$.input.hello", "\$.output.hello")])
         then:
-        sourceValue == "world"
+        output.hello == "world"
     }
 
-    def "test calculateSourceValue when source is \$.tasks"() {
+    def "test mapping when source is \$.tasks"() {
         given:
-        Map<String, Object> env = [input:["hello": "world"]]
+        Map<String, Object> input = [:]
         when:
-        String sourceValue = jsonPathInputOutputMapping.calculateSourceValue("123456", "\$.tasks.testTaskName.trigger_url?context=%7B%22trans_finish%22%3A%20true%7D", env)
+        jsonPathInputOutputMapping.mapping([flow_execution_id: "123456"], input, [:], [new Mapping("\$.tasks.testTaskName.trigger_url?context=%7B%22trans_finish%22%3A%20true%7D", "\$.input.url")])
         then:
-        sourceValue == "http://localhost:8080/flow/trigger.json?execution_id=123456&task_name=testTaskName&context=%7B%22trans_finish%22%3A%20true%7D"
+        input.url == "http://localhost:8080/flow/trigger.json?execution_id=123456&task_name=testTaskName&context=%7B%22trans_finish%22%3A%20true%7D"
     }
 
-    def "test calculateSourceValue when source is \$.tasks but without trigger_url"() {
+    def "test mapping when source is \$.tasks but without trigger_url"() {
         given:
-        Map<String, Object> env = [input:["hello": "world"]]
+        Map<String, Object> input = [:]
         when:
-        String sourceValue = jsonPathInputOutputMapping.calculateSourceValue("123456", "\$.tasks.testTaskName.xxx?context=%7B%22trans_finish%22%3A%20true%7D", env)
+        jsonPathInputOutputMapping.mapping([flow_execution_id: "123456"], input, [:], [new Mapping("\$.tasks.testTaskName.xxx?context=%7B%22trans_finish%22%3A%20true%7D", "\$.input.url")])
         then:
-        sourceValue == null
+        input.url == null
     }
 }
@@ -0,0 +1,158 @@
+package com.weibo.rill.flow.olympicene.traversal.mappings
+
+import com.weibo.rill.flow.interfaces.model.mapping.Mapping
+import spock.lang.Specification
+import spock.lang.Unroll
+
+class MappingCompilerTest extends Specification {
+    JSONPathInputOutputMapping jsonPathInputOutputMapping = new JSONPathInputOutputMapping(rillFlowFunctionTriggerUri: "/flow/trigger.json", serverHost: "http://localhost:8080")
+
+    def "test compile classifies source and splits target"() {
+        given:
+        MappingCompiler compiler = new MappingCompiler()
+        List<Mapping> rules = [new Mapping("\$.context.a", "\$.input.a"),
+                               new Mapping("{\"k\": 1}", "\$.input['b'][1].c"),
+                               new Mapping("\$.tasks.A.trigger_url?k=v", "\$.input.url"),
+                               new Mapping("", "\$.input.d"),
+                               new Mapping("\$.context.e", "")]
+
+        when:
+        List<CompiledMapping> compiledMappings = compiler.compile(rules)
+
+        then:
+        compiledMappings.size() == 3
+        compiledMappings[0].index == 0
+        compiledMappings[0].sourceType == CompiledMapping.SourceType.JSON_PATH
+        compiledMappings[1].sourceType == CompiledMapping.SourceType.CONSTANT
+        compiledMappings[1].constant == [k: 1]
+        compiledMappings[1].targetParts == ["'input'", "'b'", "1", "'c'"]
+        compiledMappings[2].sourceType == CompiledMapping.SourceType.TRIGGER_URL
+        compiledMappings[2].triggerTaskName == "A"
+        compiledMappings[2].triggerQuery == "k=v"
+    }
+
+    def "test compile result is cached by mapping content"() {
+        given:
+        MappingCompiler compiler = new MappingCompiler()
+
+        when:
+        List<CompiledMapping> first = compiler.compile([new Mapping("\$.context.a", "\$.input.a")])
+        List<CompiledMapping> second = compiler.compile([new Mapping("\$.context.a", "\$.input.a")])
+
+        then:
+        first.is(second)
+        compiler.size() == 1
+    }
+
+    def "test cached compile result not affected by modification of mapping"() {
+        given:
+        MappingCompiler compiler = new MappingCompiler()
+        Mapping mapping = new Mapping("\$.context.a", "\$.input.a")
+        compiler.compile([mapping])
+
+        when:
+        mapping.setSource("\$.context.b")
+        List<CompiledMapping> compiledMappings = compiler.compile([mapping])
+
+        then:
+        compiledMappings[0].sourcePath.path == "\$['context']['b']"
+    }
+
+    def "test constant source is not shared between executions"() {
+        given:
+        List<Mapping> rules = [new Mapping("{\"k\": [1]}", "\$.input.obj"), new Mapping("2", "\$.input.obj.k[1]")]
+        Map<String, Object> first = [:]
+        Map<String, Object> second = [:]
+
+        when:
+        jsonPathInputOutputMapping.mapping([:], first, [:], rules)
+        jsonPathInputOutputMapping.mapping([:], second, [:], [rules[0]])
+
+        then:
+        first == [obj: [k: [1, 2]]]
+        second == [obj: [k: [1]]]
+    }
+
+    def "test tolerance is read from current mapping"() {
+        given:
+        Mapping tolerant = new Mapping("\$.context.a", "\$.input['a")
+        Mapping intolerant = new Mapping(null, false, "\$.context.a", null, "\$.input['a", null)
+
+        when:
+        jsonPathInputOutputMapping.mapping([a: 1], [:], [:], [tolerant])
+
+        then:
+        noExceptionThrown()
+
+        when:
+        jsonPathInputOutputMapping.mapping([a: 1], [:], [:], [intolerant])
+
+        then:
+        thrown(Exception)
+    }
+
+    @Unroll
+    def "test compiled mapping has the same result as interpreted mapping with #size mappings"() {
+        given:
+        List<Mapping> rules = buildRules(size)
+        Map<String, Object> context = buildContext(size)
+
+        when:
+        Map<String, Object> compiledInput = [:]
+        jsonPathInputOutputMapping.mapping(context, compiledInput, [:], rules)
+        Map<String, Object> interpretedInput = [:]
+        interpret(context, interpretedInput, rules)
+
+        then:
+        compiledInput == interpretedInput
+
+        where:
+        size << [10, 100, 1000]
+    }
+
+    @Unroll
+    def "repeated mapping reuses one compiled plan with #size mappings"() {
+        given:
+        Map<String, Object> context = buildContext(size)
+        MappingCompiler compiler = jsonPathInputOutputMapping.mappingCompiler
+        List<CompiledMapping> plan = compiler.compile(buildRules(size))
+
+        when:
+        (0..<20).each { jsonPathInputOutputMapping.mapping(context, [:], [:], buildRules(size)) }
+
+        then:
+        compiler.size() == 1
+        compiler.compile(buildRules(size)).is(plan)
+
+        where:
+        size << [10, 100, 1000]
+    }
+
+    /**
+     * 逐条解释执行 与编译前JSONPathInputOutputMapping.mapping的执行过程一致
+     */
+    private void interpret(Map<String, Object> context, Map<String, Object> input, List<Mapping> rules) {
+        Map<String, Object> map = [context: context, input: input, output: [:]]
+        rules.each { Mapping rule ->
+            Object value = rule.source.startsWith("\$") ? jsonPathInputOutputMapping.getValue(map, rule.source)
+                    : JSONPathInputOutputMapping.parseSource(rule.source)
+            if (value != null) {
+                map = jsonPathInputOutputMapping.setValue(map, value, rule.target)
+            }
+        }
+    }
+
+    private static List<Mapping> buildRules(int size) {
+        (0..<size).collect { int i ->
+            switch (i % 3) {
+                case 0: return new Mapping("\$.context.key" + i, "\$.input.key" + i)
+                case 1: return new Mapping(String.valueOf(i), "\$.input.nested.items[" + (i % 5) + "].value" + i)
+                default: return new Mapping("{\"index\": " + i + "}", "\$.input.obj" + i)
+            }
+        }
+    }
+
+    private static Map<String, Object> buildContext(int size) {
+        (0..<size).collectEntries { ["key" + it, "value" + it] }
+    }
+}
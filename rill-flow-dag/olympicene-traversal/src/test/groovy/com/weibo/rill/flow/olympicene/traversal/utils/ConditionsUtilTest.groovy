@@ -1,6 +1,6 @@
 package com.weibo.rill.flow.olympicene.traversal.utils
 
-
+import com.jayway.jsonpath.DocumentContext
 import spock.lang.Specification
 
 class ConditionsUtilTest extends Specification {
@@ -32,4 +32,25 @@ class ConditionsUtilTest extends Specification {
         List.of("\$.input.[?(@.a == 1)]", "\$.input.[?(@.b == 1)]", "\$.input.[?(@.c == 3)]") | true
         List.of("\$.input.[?(@.a == 0)]", "\$.input.[?(@.b == 0)]", "\$.input.[?(@.c == 0)]") | false
     }
+
+    def "test compileCondition returns cached path"() {
+        expect:
+        ConditionsUtil.compileCondition("\$.input.[?(@.a == 1)]").is(ConditionsUtil.compileCondition("\$.input.[?(@.a == 1)]"))
+    }
+
+    def "test empty conditions"() {
+        expect:
+        ConditionsUtil.conditionsAllMatch([], null, "input")
+        !ConditionsUtil.conditionsAnyMatch([], null, "input")
+    }
+
+    def "test conditionMatch shares one document across conditions"() {
+        given:
+        DocumentContext document = ConditionsUtil.parseValueMap(["a": 1, "b": 2], "input")
+
+        expect:
+        ConditionsUtil.conditionMatch(document, "\$.input.[?(@.a == 1)]")
+        !ConditionsUtil.conditionMatch(document, "\$.input.[?(@.b == 1)]")
+        ConditionsUtil.conditionMatch(document, "\$.input.[?(@.b == 2)]")
+    }
 }
@@ -79,6 +79,9 @@ public class BizDConfsImpl implements BizDConfs {
     @Value("#{'${weibo.flow.runtime.redis.storage.usage.check.ids:}'.split(',')}")
     private Set<String> runtimeRedisUsageCheckIDs;
 
+    @Value("#{'${weibo.flow.runtime.redis.storage.shard.client.ids:}'.split(',')}")
+    private List<String> runtimeRedisShardClientIds;
+
     @Value("#{${weibo.flow.runtime.redis.storage.id.to.max.usage:{:}}}")
     private Map<String, Integer> runtimeRedisStorageIdToMaxUsage;
 
@@ -148,6 +151,42 @@ public class BizDConfsImpl implements BizDConfs {
     @Value("#{${weibo.flow.auth.source.to.key:{:}}}")
     private Map<String, String> authSourceToKeyMap;
 
+    @Value("#{${weibo.flow.runtime.executor.name.to.queue.limit:{:}}}")
+    private Map<String, Integer> runtimeExecutorNameToQueueLimit;
+
+    @Value("${weibo.flow.runtime.executor.default.queue.limit:5000}")
+    private int runtimeExecutorDefaultQueueLimit;
+
+    @Value("${weibo.flow.runtime.executor.queue.wait.limit.in.millis:3000}")
+    private int runtimeExecutorQueueWaitLimitInMillis;
+
+    @Value("${weibo.flow.time.check.shard.count:1}")
+    private int timeCheckShardCount;
+
+    @Value("${weibo.flow.time.check.worker.count:8}")
+    private int timeCheckWorkerCount;
+
+    @Value("${weibo.flow.time.check.max.batch.size:500}")
+    private int timeCheckMaxBatchSize;
+
+    @Value("${weibo.flow.callback.outbox.shard.count:4}")
+    private int callbackOutboxShardCount;
+
+    @Value("${weibo.flow.callback.outbox.worker.count:32}")
+    private int callbackOutboxWorkerCount;
+
+    @Value("${weibo.flow.callback.outbox.endpoint.concurrency:8}")
+    private int callbackOutboxEndpointConcurrency;
+
+    @Value("${weibo.flow.callback.outbox.max.attempts:8}")
+    private int callbackOutboxMaxAttempts;
+
+    @Value("#{'${weibo.flow.callback.outbox.batch.resource.names:}'.split(',')}")
+    private Set<String> callbackOutboxBatchResourceNames;
+
+    @Value("${weibo.flow.runtime.traffic.limit.lease.error.percent:5}")
+    private int trafficLimitLeaseErrorPercent;
+
     @Override
     public int getFlowDAGMaxDepth() {
         return 5;
@@ -18,12 +18,14 @@ package com.weibo.rill.flow.impl.interceptor;
 
 import com.google.common.collect.ImmutableSet;
 import com.netflix.hystrix.exception.HystrixRuntimeException;
-import com.weibo.rill.flow.interfaces.model.exception.DAGException;
+import com.weibo.rill.flow.common.exception.ExecutorOverloadException;
 import com.weibo.rill.flow.common.exception.TaskException;
 import com.weibo.rill.flow.common.model.BizError;
 import com.weibo.rill.flow.common.model.HttpResponse;
+import com.weibo.rill.flow.interfaces.model.exception.DAGException;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.TypeMismatchException;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.converter.HttpMessageConversionException;
 import org.springframework.http.converter.HttpMessageNotReadableException;
@@ -39,6 +41,7 @@ import org.springframework.web.bind.annotation.ResponseStatus;
 import org.springframework.web.context.request.WebRequest;
 
 import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
 import java.util.Set;
 
 @Slf4j
@@ -47,6 +50,7 @@ import java.util.Set;
 public class WebExceptionHandler {
     private static final Set<Integer> PASS_THROUGH_ERROR_CODE = ImmutableSet.of(
             BizError.ERROR_DEGRADED.getCode(), BizError.ERROR_DATA_FORMAT.getCode(), BizError.ERROR_DATA_RESTRICTION.getCode());
+    private static final int RETRY_AFTER_SECONDS = 1;
 
     /**
      * 框架异常处理
@@ -101,6 +105,19 @@ public class WebExceptionHandler {
                 : HttpResponse.error(errorCode, ex.getMessage());
     }
 
+    /**
+     * 执行线程池过载 返回429提示调用方稍后重试
+     */
+    @ResponseStatus(HttpStatus.TOO_MANY_REQUESTS)
+    @ExceptionHandler({
+            ExecutorOverloadException.class,
+    })
+    public HttpResponse handleExecutorOverloadException(final ExecutorOverloadException ex, HttpServletResponse response) {
+        log.warn("executor overload message={}", ex.getMessage());
+        response.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(RETRY_AFTER_SECONDS));
+        return HttpResponse.error(ex.getErrorCode(), ex.getMessage());
+    }
+
     /**
      * HystrixRuntimeException异常处理
      *
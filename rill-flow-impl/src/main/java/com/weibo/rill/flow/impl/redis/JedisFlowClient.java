@@ -16,13 +16,21 @@
 
 package com.weibo.rill.flow.impl.redis;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.weibo.rill.flow.olympicene.storage.redis.api.RedisClient;
+import com.weibo.rill.flow.olympicene.storage.redis.api.RedisCodecUtil;
+import com.weibo.rill.flow.olympicene.storage.redis.api.RedisWriteCommand;
+import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.apache.commons.lang3.tuple.Pair;
 import org.jetbrains.annotations.NotNull;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.exceptions.JedisNoScriptException;
+import redis.clients.jedis.resps.KeyedListElement;
 import redis.clients.jedis.resps.Tuple;
 
 import java.nio.charset.StandardCharsets;
@@ -31,8 +39,13 @@ import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
+@Slf4j
 public class JedisFlowClient implements RedisClient {
     private JedisPool jedisPool;
+    /**
+     * lua脚本内容到SHA1的映射 脚本均为常量 容量仅用于防止误用时无限增长
+     */
+    private final Cache<String, String> scriptShaCache = CacheBuilder.newBuilder().maximumSize(256).build();
 
     public JedisFlowClient(String host, int port) {
         jedisPool = new JedisPool(host, port);
@@ -266,6 +279,13 @@ public class JedisFlowClient implements RedisClient {
         return doExecute(jedis -> jedis.incr(key));
     }
 
+    @Override
+    public String blpop(String shardingKey, String key, long timeoutInMillis) {
+        // timeout为0时会一直阻塞
+        double timeoutInSecond = Math.max(timeoutInMillis, 1L) / 1000.0;
+        return doExecute(jedis -> Optional.ofNullable(jedis.blpop(timeoutInSecond, key)).map(KeyedListElement::getElement).orElse(null));
+    }
+
     @Override
     public long hset(String key, String field, String value) {
         return doExecute(jedis -> jedis.hset(key, field, value));
@@ -292,9 +312,122 @@ public class JedisFlowClient implements RedisClient {
         return new ArrayList<>();
     }
 
+    /**
+     * 通过EVALSHA执行脚本 不再每次发送脚本全文
+     * 脚本未加载或redis脚本缓存被清空(重启、主从切换、SCRIPT FLUSH)时 收到NOSCRIPT后重新加载并执行
+     * 参数按RedisCodecUtil.encodeArg转为字节发送 二进制内容不再按UTF-8膨胀 返回值保持redis原始字节
+     */
     @Override
     public Object eval(String script, List<String> keys, List<String> args) {
-        return turnStringToByteArray(doExecute(jedis -> jedis.eval(script, keys, args)));
+        return turnStringToByteArray(doExecute(jedis -> evalWithJedis(jedis, script, keys, args)));
+    }
+
+    private Object evalWithJedis(Jedis jedis, String script, List<String> keys, List<String> args) {
+        List<byte[]> binaryKeys = RedisCodecUtil.encodeArgs(keys);
+        List<byte[]> binaryArgs = RedisCodecUtil.encodeArgs(args);
+        String sha = scriptShaCache.getIfPresent(script);
+        if (sha != null) {
+            try {
+                return jedis.evalsha(RedisCodecUtil.encodeArg(sha), binaryKeys, binaryArgs);
+            } catch (JedisNoScriptException e) {
+                log.info("eval script not found in redis, reload script, sha:{}", sha);
+            }
+        }
+        sha = jedis.scriptLoad(script);
+        scriptShaCache.put(script, sha);
+        return jedis.evalsha(RedisCodecUtil.encodeArg(sha), binaryKeys, binaryArgs);
+    }
+
+    /**
+     * 写命令通过一次pipeline发送 返回与redis的交互次数
+     * pipeline前通过SCRIPT EXISTS确认批内脚本均已加载 缺失的先行加载
+     * 若pipeline中仍出现NOSCRIPT(如两次交互之间执行了SCRIPT FLUSH) 不单独重放失败命令以免打乱写入顺序
+     * 而是以EVAL携带脚本全文按原顺序重新执行整批 批内命令均为覆盖写 重复执行后结果与顺序执行一次一致
+     */
+    @Override
+    public int executeBatch(List<RedisWriteCommand> commands) {
+        if (commands.isEmpty()) {
+            return 0;
+        }
+        return doExecute(jedis -> {
+            int roundTrips = ensureScriptsLoaded(jedis, commands) + 1;
+            List<Object> responses = executePipeline(jedis, commands, false);
+            if (responses.stream().anyMatch(JedisNoScriptException.class::isInstance)) {
+                log.info("batch script not found in redis, execute whole batch with script body, size:{}", commands.size());
+                responses = executePipeline(jedis, commands, true);
+                roundTrips++;
+            }
+
+            for (Object response : responses) {
+                if (response instanceof JedisDataException jedisDataException) {
+                    throw jedisDataException;
+                }
+            }
+            return roundTrips;
+        });
+    }
+
+    private int ensureScriptsLoaded(Jedis jedis, List<RedisWriteCommand> commands) {
+        List<String> scripts = commands.stream()
+                .filter(command -> command.getType() == RedisWriteCommand.Type.EVAL)
+                .map(RedisWriteCommand::getScript)
+                .distinct()
+                .collect(Collectors.toList());
+        if (scripts.isEmpty()) {
+            return 0;
+        }
+
+        int roundTrips = 0;
+        List<String> cachedScripts = scripts.stream().filter(script -> scriptShaCache.getIfPresent(script) != null).collect(Collectors.toList());
+        Set<String> missingScripts = new LinkedHashSet<>(scripts);
+        if (!cachedScripts.isEmpty()) {
+            List<Boolean> exists = jedis.scriptExists(cachedScripts.stream().map(scriptShaCache::getIfPresent).toArray(String[]::new));
+            roundTrips++;
+            for (int i = 0; i < cachedScripts.size(); i++) {
+                if (Boolean.TRUE.equals(exists.get(i))) {
+                    missingScripts.remove(cachedScripts.get(i));
+                }
+            }
+        }
+        for (String script : missingScripts) {
+            scriptShaCache.put(script, jedis.scriptLoad(script));
+            roundTrips++;
+        }
+        return roundTrips;
+    }
+
+    private List<Object> executePipeline(Jedis jedis, List<RedisWriteCommand> commands, boolean withScriptBody) {
+        try (Pipeline pipeline = jedis.pipelined()) {
+            for (RedisWriteCommand command : commands) {
+                switch (command.getType()) {
+                    case EVAL -> {
+                        List<byte[]> keys = RedisCodecUtil.encodeArgs(command.getKeys());
+                        List<byte[]> args = RedisCodecUtil.encodeArgs(command.getArgs());
+                        if (withScriptBody) {
+                            pipeline.eval(command.getScript().getBytes(StandardCharsets.UTF_8), keys, args);
+                        } else {
+                            pipeline.evalsha(RedisCodecUtil.encodeArg(scriptShaCache.getIfPresent(command.getScript())), keys, args);
+                        }
+                    }
+                    case ZADD -> pipeline.zadd(command.getShardingKey(), command.getScore(), command.getMember());
+                    case ZREM -> pipeline.zrem(command.getShardingKey(), command.getMember());
+                }
+            }
+            return pipeline.syncAndReturnAll();
+        }
+    }
+
+
+    @Override
+    public void scriptLoad(Collection<String> scripts) {
+        try {
+            doExecute(jedis -> {
+                scripts.forEach(script -> scriptShaCache.put(script, jedis.scriptLoad(script)));
+                return null;
+            });
+        } catch (Exception e) {
+            log.warn("scriptLoad fails, scripts will be loaded when first eval, errorMsg:{}", e.getMessage());
+        }
     }
 
     @Override
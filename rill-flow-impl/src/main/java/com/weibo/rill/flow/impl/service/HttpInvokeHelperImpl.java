@@ -17,6 +17,7 @@
 package com.weibo.rill.flow.impl.service;
 
 import com.alibaba.fastjson.JSONObject;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.collect.Maps;
 import com.weibo.rill.flow.common.exception.TaskException;
 import com.weibo.rill.flow.common.model.BizError;
@@ -28,22 +29,39 @@ import com.weibo.rill.flow.interfaces.model.task.TaskInfo;
 import com.weibo.rill.flow.service.auth.AuthHeaderGenerator;
 import com.weibo.rill.flow.service.invoke.HttpInvokeHelper;
 import lombok.extern.slf4j.Slf4j;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.FormBody;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
 import org.apache.commons.lang.StringUtils;
 import org.apache.http.client.utils.URIBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
 import org.springframework.stereotype.Service;
+import org.springframework.util.MultiValueMap;
+import org.springframework.web.client.RestClientResponseException;
 import org.springframework.web.client.RestTemplate;
 
+import java.io.IOException;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Service
 @Slf4j
@@ -55,7 +73,15 @@ public class HttpInvokeHelperImpl implements HttpInvokeHelper {
     @Qualifier("authHeaderGenerator")
     private AuthHeaderGenerator authHeaderGenerator;
 
+    @Autowired
+    @Qualifier("rillFlowAsyncHttpClient")
+    private OkHttpClient asyncHttpClient;
+    @Value("${weibo.flow.runtime.http.invoke.async.max.in.flight:2000}")
+    private int asyncMaxInFlight;
+
     private final Logger httpAccessLogger = LoggerFactory.getLogger("httpclientaccess");
+    private final ObjectMapper objectMapper = Jackson2ObjectMapperBuilder.json().build();
+    private final AtomicInteger asyncInFlight = new AtomicInteger(0);
 
     @Override
     public void appendRequestHeader(HttpHeaders httpHeaders, String executionId, TaskInfo task, Map<String, Object> input) {
@@ -152,6 +178,114 @@ public class HttpInvokeHelperImpl implements HttpInvokeHelper {
         throw new TaskException(BizError.ERROR_INVOKE_URI.getCode(), String.format("dispatchTask http fails due to %s", cause));
     }
 
+    /**
+     * 异步发起请求
+     * <pre>
+     * 1. 使用OkHttp enqueue发送请求 等待响应期间不占用调用线程
+     *    并发请求数及单host并发请求数由rillFlowAsyncHttpClient的Dispatcher限制 超出部分排队
+     * 2. 进行中的请求数超过asyncMaxInFlight时直接失败 由任务重试策略处理
+     * 3. 非2xx响应及网络异常均视为失败 最多请求maxInvokeTime次
+     *    最后一次为非2xx响应时以RestClientResponseException失败 其余以TaskException失败
+     * </pre>
+     */
+    @Override
+    public CompletableFuture<String> invokeRequestAsync(String executionId, String taskInfoName, String url, HttpEntity<?> requestEntity, HttpMethod method, int maxInvokeTime) {
+        Request request;
+        try {
+            request = buildOkHttpRequest(url, requestEntity, method);
+        } catch (Exception e) {
+            log.warn("invokeRequestAsync build request fails, executionId:{}, taskInfoName:{}, url:{}", executionId, taskInfoName, url, e);
+            return CompletableFuture.failedFuture(new TaskException(BizError.ERROR_INVOKE_URI.getCode(),
+                    String.format("dispatchTask http fails due to %s", e.getMessage())));
+        }
+
+        if (asyncMaxInFlight > 0 && asyncInFlight.incrementAndGet() > asyncMaxInFlight) {
+            asyncInFlight.decrementAndGet();
+            log.warn("invokeRequestAsync rejected, executionId:{}, taskInfoName:{}, maxInFlight:{}", executionId, taskInfoName, asyncMaxInFlight);
+            return CompletableFuture.failedFuture(new TaskException(BizError.ERROR_INVOKE_URI.getCode(),
+                    String.format("dispatchTask http fails due to in flight requests exceed %d", asyncMaxInFlight)));
+        }
+
+        CompletableFuture<String> future = new CompletableFuture<>();
+        if (asyncMaxInFlight > 0) {
+            future.whenComplete((ret, throwable) -> asyncInFlight.decrementAndGet());
+        }
+        enqueueRequest(request, requestEntity, method, 1, maxInvokeTime, future);
+        return future;
+    }
+
+    private void enqueueRequest(Request request, HttpEntity<?> requestEntity, HttpMethod method, int invokeTime, int maxInvokeTime,
+                                CompletableFuture<String> future) {
+        long startTime = System.currentTimeMillis();
+        asyncHttpClient.newCall(request).enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                postHttpProcess(request.url().toString(), requestEntity, method, System.currentTimeMillis() - startTime, null);
+                retryOrFail(e.getMessage());
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                ResponseEntity<String> responseEntity = null;
+                try (ResponseBody responseBody = response.body()) {
+                    String body = responseBody == null ? null : responseBody.string();
+                    responseEntity = ResponseEntity.status(response.code()).body(body);
+                    if (response.isSuccessful()) {
+                        future.complete(body);
+                    } else if (invokeTime < maxInvokeTime) {
+                        retryOrFail(response.code() + " " + response.message() + ": [" + StringUtils.substring(body, 0, 200) + "]");
+                    } else {
+                        // 与RestTemplate一致 非2xx响应携带响应体返回 供调用方统计资源状态
+                        future.completeExceptionally(new RestClientResponseException(response.code() + " " + response.message(),
+                                response.code(), response.message(), null,
+                                body == null ? null : body.getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8));
+                    }
+                } catch (Exception e) {
+                    retryOrFail(e.getMessage());
+                } finally {
+                    postHttpProcess(request.url().toString(), requestEntity, method, System.currentTimeMillis() - startTime, responseEntity);
+                }
+            }
+
+            private void retryOrFail(String cause) {
+                if (invokeTime < maxInvokeTime) {
+                    enqueueRequest(request, requestEntity, method, invokeTime + 1, maxInvokeTime, future);
+                    return;
+                }
+                future.completeExceptionally(new TaskException(BizError.ERROR_INVOKE_URI.getCode(),
+                        String.format("dispatchTask http fails due to %s", cause)));
+            }
+        });
+    }
+
+    /**
+     * 与rillFlowHttpTemplate的消息转换保持一致: GET不发送body 其余请求按POST发送
+     * 表单使用x-www-form-urlencoded 字符串使用text/plain 其他对象序列化为json
+     */
+    private Request buildOkHttpRequest(String url, HttpEntity<?> requestEntity, HttpMethod method) throws IOException {
+        Request.Builder builder = new Request.Builder().url(url);
+        HttpHeaders headers = requestEntity.getHeaders();
+        headers.forEach((name, values) -> values.forEach(value -> builder.addHeader(name, value)));
+        if (method == HttpMethod.GET) {
+            return builder.get().build();
+        }
+
+        Object body = requestEntity.getBody();
+        MediaType contentType = Optional.ofNullable(headers.getContentType()).map(it -> MediaType.parse(it.toString())).orElse(null);
+        RequestBody requestBody;
+        if (body == null) {
+            requestBody = RequestBody.create(new byte[0], contentType);
+        } else if (body instanceof MultiValueMap<?, ?> formParams) {
+            FormBody.Builder formBuilder = new FormBody.Builder(StandardCharsets.UTF_8);
+            formParams.forEach((key, values) -> values.forEach(value -> formBuilder.add(String.valueOf(key), String.valueOf(value))));
+            requestBody = formBuilder.build();
+        } else if (body instanceof String text) {
+            requestBody = RequestBody.create(text, contentType != null ? contentType : MediaType.get("text/plain; charset=UTF-8"));
+        } else {
+            requestBody = RequestBody.create(objectMapper.writeValueAsBytes(body), contentType != null ? contentType : MediaType.get("application/json"));
+        }
+        return builder.post(requestBody).build();
+    }
 
     private void postHttpProcess(String url, HttpEntity<?> requestEntity, HttpMethod method, long timeout, ResponseEntity<String> responseEntity) {
         try {
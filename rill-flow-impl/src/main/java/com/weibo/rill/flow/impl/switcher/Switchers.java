@@ -22,6 +22,7 @@ public class Switchers {
     public static final AtomicBoolean ENABLE_DAG_CONTEXT_LENGTH_CHECK = new AtomicBoolean(true);
     public static final AtomicBoolean ENABLE_DAG_INFO_LENGTH_CHECK = new AtomicBoolean(true);
     public static final AtomicBoolean ENABLE_FUNCTION_DISPATCH_RET_CHECK = new AtomicBoolean(true);
+    public static final AtomicBoolean ENABLE_FUNCTION_DISPATCH_ASYNC = new AtomicBoolean(false);
     public static final AtomicBoolean ENABLE_RUNTIME_STORAGE_USAGE_CHECK = new AtomicBoolean(true);
     public static final AtomicBoolean ENABLE_RUNTIME_RESOURCE_STATUS_CHECK = new AtomicBoolean(true);
     public static final AtomicBoolean ENABLE_RUNTIME_SUBMIT_TRAFFIC_CONTROL = new AtomicBoolean(true);
@@ -48,6 +49,16 @@ public class Switchers {
 
     public static final AtomicBoolean ENABLE_SET_INPUT_OUTPUT = new AtomicBoolean(true);
 
+    public static final AtomicBoolean ENABLE_REDIS_WRITE_BATCH = new AtomicBoolean(true);
+    public static final AtomicBoolean ENABLE_COMPILED_DESCRIPTOR_CACHE = new AtomicBoolean(true);
+    public static final AtomicBoolean ENABLE_LAZY_FOREACH_GROUPS = new AtomicBoolean(true);
+    public static final AtomicBoolean ENABLE_SHARED_FOREACH_INPUT = new AtomicBoolean(true);
+    public static final AtomicBoolean ENABLE_BINARY_STORAGE_CODEC = new AtomicBoolean(false);
+    public static final AtomicBoolean ENABLE_EXECUTOR_ADMISSION_CONTROL = new AtomicBoolean(true);
+    public static final AtomicBoolean ENABLE_TRAVERSAL_MAILBOX = new AtomicBoolean(true);
+    public static final AtomicBoolean ENABLE_CALLBACK_OUTBOX = new AtomicBoolean(false);
+    public static final AtomicBoolean ENABLE_LEASED_TRAFFIC_LIMIT = new AtomicBoolean(true);
+
 
     private Switchers() {
 
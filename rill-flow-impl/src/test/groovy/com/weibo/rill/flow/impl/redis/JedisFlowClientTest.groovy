@@ -1,10 +1,20 @@
 package com.weibo.rill.flow.impl.redis
 
+import com.weibo.rill.flow.olympicene.storage.redis.api.RedisCodecUtil
+import com.weibo.rill.flow.olympicene.storage.redis.api.RedisWriteCommand
+import com.weibo.rill.flow.olympicene.storage.script.RedisScriptManager
 import redis.clients.jedis.Jedis
 import redis.clients.jedis.JedisPool
 import redis.clients.jedis.Pipeline
+import redis.clients.jedis.exceptions.JedisDataException
+import redis.clients.jedis.exceptions.JedisNoScriptException
 import spock.lang.Specification
 
+import java.nio.charset.StandardCharsets
+import java.security.MessageDigest
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
 import java.util.function.Consumer
 
 class JedisFlowClientTest extends Specification {
@@ -66,4 +76,333 @@ class JedisFlowClientTest extends Specification {
         1 * jedisPool.returnResource(jedis)
         0 * jedisPool.returnBrokenResource(jedis)
     }
+
+    def "eval should load script once and then execute by sha"() {
+        when:
+        jedisFlowClient.eval('return 1', ['k'], ['a'])
+        jedisFlowClient.eval('return 1', ['k'], ['b'])
+
+        then:
+        1 * jedis.scriptLoad('return 1') >> 'sha1'
+        1 * jedis.evalsha(bytes('sha1'), [bytes('k')], [bytes('a')]) >> bytes('a')
+        1 * jedis.evalsha(bytes('sha1'), [bytes('k')], [bytes('b')]) >> bytes('b')
+        0 * jedis.eval(*_)
+    }
+
+    def "eval should reload script when redis returns NOSCRIPT"() {
+        when:
+        jedisFlowClient.scriptLoad(['return 1'])
+
+        then:
+        1 * jedis.scriptLoad('return 1') >> 'sha1'
+
+        when:
+        def ret = jedisFlowClient.eval('return 1', ['k'], ['a'])
+
+        then:
+        1 * jedis.scriptLoad('return 1') >> 'sha1'
+        2 * jedis.evalsha(bytes('sha1'), [bytes('k')], [bytes('a')]) >> { throw new JedisNoScriptException('NOSCRIPT No matching script') } >> bytes('a')
+        ret == 'a'.getBytes(StandardCharsets.UTF_8)
+        1 * jedisPool.returnResource(jedis)
+        0 * jedisPool.returnBrokenResource(_)
+    }
+
+    def "scriptLoad failure should not be thrown"() {
+        given:
+        jedis.scriptLoad(_) >> { throw new RuntimeException('connection refused') }
+
+        when:
+        jedisFlowClient.scriptLoad(['return 1'])
+
+        then:
+        noExceptionThrown()
+    }
+
+    def "executeBatch sends write commands in one pipeline"() {
+        given:
+        Pipeline mockPipeline = Mock()
+        jedis.pipelined() >> mockPipeline
+
+        when:
+        int roundTrips = jedisFlowClient.executeBatch([
+                RedisWriteCommand.eval('return 1', 'k', ['k'], ['a']),
+                RedisWriteCommand.zadd('z', 1.0, 'm'),
+                RedisWriteCommand.zrem('z', 'n')])
+
+        then:
+        1 * jedis.scriptLoad('return 1') >> 'sha1'
+
+        then:
+        1 * mockPipeline.evalsha(bytes('sha1'), [bytes('k')], [bytes('a')])
+        1 * mockPipeline.zadd('z', 1.0, 'm')
+        1 * mockPipeline.zrem('z', 'n')
+        1 * mockPipeline.syncAndReturnAll() >> ['a', 1L, 1L]
+        1 * mockPipeline.close()
+        0 * jedis.evalsha(*_)
+        roundTrips == 2
+        1 * jedisPool.returnResource(jedis)
+    }
+
+    def "executeBatch checks cached scripts exist and loads missing ones before pipeline"() {
+        given:
+        Pipeline mockPipeline = Mock()
+        jedis.pipelined() >> mockPipeline
+        jedis.scriptLoad('return 1') >> 'sha1'
+        jedis.scriptLoad('return 2') >> 'sha2'
+        jedisFlowClient.scriptLoad(['return 1', 'return 2'])
+
+        when:
+        int roundTrips = jedisFlowClient.executeBatch([
+                RedisWriteCommand.eval('return 1', 'k', ['k'], ['a']),
+                RedisWriteCommand.eval('return 2', 'k', ['k'], ['b']),
+                RedisWriteCommand.eval('return 1', 'k', ['k'], ['c'])])
+
+        then:
+        1 * jedis.scriptExists('sha1', 'sha2') >> [false, true]
+        1 * jedis.scriptLoad('return 1') >> 'sha1'
+        0 * jedis.scriptLoad('return 2')
+
+        then:
+        1 * mockPipeline.evalsha(bytes('sha1'), [bytes('k')], [bytes('a')])
+        1 * mockPipeline.evalsha(bytes('sha2'), [bytes('k')], [bytes('b')])
+        1 * mockPipeline.evalsha(bytes('sha1'), [bytes('k')], [bytes('c')])
+        1 * mockPipeline.syncAndReturnAll() >> ['a', 'b', 'c']
+        roundTrips == 3
+    }
+
+    def "executeBatch re-executes whole batch in order with script body when NOSCRIPT occurs"() {
+        given:
+        Pipeline mockPipeline = Mock()
+        jedis.pipelined() >> mockPipeline
+
+        when:
+        int roundTrips = jedisFlowClient.executeBatch([
+                RedisWriteCommand.zadd('z', 1.0, 'm'),
+                RedisWriteCommand.eval('return 1', 'k', ['k'], ['a']),
+                RedisWriteCommand.eval('return 2', 'k', ['k'], ['b']),
+                RedisWriteCommand.zrem('z', 'n')])
+
+        then:
+        1 * jedis.scriptLoad('return 1') >> 'sha1'
+        1 * jedis.scriptLoad('return 2') >> 'sha2'
+
+        then:
+        1 * mockPipeline.zadd('z', 1.0, 'm')
+        1 * mockPipeline.evalsha(bytes('sha1'), [bytes('k')], [bytes('a')])
+        1 * mockPipeline.evalsha(bytes('sha2'), [bytes('k')], [bytes('b')])
+        1 * mockPipeline.zrem('z', 'n')
+        1 * mockPipeline.syncAndReturnAll() >> [1L, new JedisNoScriptException('NOSCRIPT No matching script'), 'b', 1L]
+
+        then:
+        1 * mockPipeline.zadd('z', 1.0, 'm')
+
+        then:
+        1 * mockPipeline.eval(bytes('return 1'), [bytes('k')], [bytes('a')])
+
+        then:
+        1 * mockPipeline.eval(bytes('return 2'), [bytes('k')], [bytes('b')])
+
+        then:
+        1 * mockPipeline.zrem('z', 'n')
+
+        then:
+        1 * mockPipeline.syncAndReturnAll() >> [1L, 'a', 'b', 1L]
+        0 * mockPipeline.evalsha(*_)
+        0 * jedis.evalsha(*_)
+        0 * jedis.scriptLoad(_)
+        roundTrips == 4
+    }
+
+    def "executeBatch throws other command errors"() {
+        given:
+        Pipeline mockPipeline = Mock()
+        jedis.pipelined() >> mockPipeline
+        mockPipeline.syncAndReturnAll() >> [new JedisDataException('WRONGTYPE Operation against a key holding the wrong kind of value')]
+
+        when:
+        jedisFlowClient.executeBatch([RedisWriteCommand.zadd('z', 1.0, 'm')])
+
+        then:
+        thrown(JedisDataException)
+    }
+
+    def "evalsha against redis stand-in falls back after script flush and reduces bytes on wire"() {
+        given:
+        RedisStandIn redis = new RedisStandIn()
+        JedisFlowClient client = new JedisFlowClient('127.0.0.1', redis.port)
+        String script = RedisScriptManager.dagInfoGetByFieldScript()
+        List<String> keys = ['dag_info_executionId']
+        List<String> args = ['A', 'B']
+        int times = 100
+
+        when:
+        Jedis rawJedis = new Jedis('127.0.0.1', redis.port)
+        long evalStart = redis.bytesReceived.get()
+        times.times { rawJedis.eval(script, keys, args) }
+        long evalBytes = redis.bytesReceived.get() - evalStart
+        rawJedis.close()
+
+        client.scriptLoad(RedisScriptManager.getAllScripts())
+        long evalShaStart = redis.bytesReceived.get()
+        List<Object> results = (0..<times).collect { client.eval(script, keys, args) }
+        long evalShaBytes = redis.bytesReceived.get() - evalShaStart
+
+        redis.flushScripts()
+        Object afterFlush = client.eval(script, keys, args)
+
+        then:
+        results.every { it*.toList() == [keys[0], 'A', 'B']*.getBytes(StandardCharsets.UTF_8)*.toList() }
+        afterFlush*.toList() == [keys[0], 'A', 'B']*.getBytes(StandardCharsets.UTF_8)*.toList()
+        redis.noScriptReplies.get() == 1
+        evalShaBytes * 10 < evalBytes
+
+        cleanup:
+        redis.close()
+    }
+
+    def "binary args are sent as raw bytes and returned unchanged"() {
+        given:
+        RedisStandIn redis = new RedisStandIn()
+        JedisFlowClient client = new JedisFlowClient('127.0.0.1', redis.port)
+        String script = RedisScriptManager.dagInfoGetByFieldScript()
+        String binary = String.valueOf(RedisCodecUtil.BINARY_MARKER) + (0x80..0xff).collect { it as char }.join('')
+        String text = '中文' + binary
+        client.scriptLoad([script])
+
+        when:
+        long start = redis.bytesReceived.get()
+        List<byte[]> binaryRet = client.eval(script, ['k'], [binary]) as List<byte[]>
+        long binaryBytes = redis.bytesReceived.get() - start
+        start = redis.bytesReceived.get()
+        List<byte[]> textRet = client.eval(script, ['k'], [text]) as List<byte[]>
+        long textBytes = redis.bytesReceived.get() - start
+
+        then:
+        binaryRet[1] == binary.getBytes(StandardCharsets.ISO_8859_1)
+        binaryRet[1].length == 129
+        textRet[1] == text.getBytes(StandardCharsets.UTF_8)
+        textBytes - binaryBytes >= 128 + 6
+
+        cleanup:
+        redis.close()
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8)
+    }
+
+    /**
+     * 支持EVAL/EVALSHA/SCRIPT LOAD的简易redis 脚本执行结果为keys与args 统计收到的字节数 命令按字节原样保存
+     */
+    static class RedisStandIn implements Closeable {
+        final ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getByName('127.0.0.1'))
+        final Map<String, String> scripts = new ConcurrentHashMap<>()
+        final AtomicLong bytesReceived = new AtomicLong()
+        final AtomicInteger noScriptReplies = new AtomicInteger()
+
+        RedisStandIn() {
+            Thread.start {
+                while (!serverSocket.closed) {
+                    try {
+                        Socket socket = serverSocket.accept()
+                        Thread.start { serve(socket) }
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+
+        int getPort() {
+            return serverSocket.localPort
+        }
+
+        void flushScripts() {
+            scripts.clear()
+        }
+
+        private void serve(Socket socket) {
+            InputStream input = new BufferedInputStream(socket.inputStream)
+            OutputStream output = socket.outputStream
+            try {
+                while (true) {
+                    List<String> command = readCommand(input)
+                    if (command == null) {
+                        return
+                    }
+                    output.write(reply(command).getBytes(StandardCharsets.ISO_8859_1))
+                    output.flush()
+                }
+            } catch (IOException ignored) {
+            } finally {
+                socket.close()
+            }
+        }
+
+        private String reply(List<String> command) {
+            String name = command[0].toUpperCase()
+            if (name == 'SCRIPT' && command[1].toUpperCase() == 'LOAD') {
+                String sha = sha1(command[2])
+                scripts.put(sha, command[2])
+                return bulk(sha)
+            }
+            if (name == 'EVAL') {
+                scripts.put(sha1(command[1]), command[1])
+                return array(command.subList(3, command.size()))
+            }
+            if (name == 'EVALSHA') {
+                if (!scripts.containsKey(command[1])) {
+                    noScriptReplies.incrementAndGet()
+                    return '-NOSCRIPT No matching script. Please use EVAL.\r\n'
+                }
+                return array(command.subList(3, command.size()))
+            }
+            return '+OK\r\n'
+        }
+
+        private List<String> readCommand(InputStream input) {
+            String header = readLine(input)
+            if (header == null) {
+                return null
+            }
+            int count = Integer.parseInt(header.substring(1))
+            List<String> command = []
+            count.times {
+                int length = Integer.parseInt(readLine(input).substring(1))
+                byte[] bytes = input.readNBytes(length + 2)
+                bytesReceived.addAndGet(bytes.length)
+                command << new String(bytes, 0, length, StandardCharsets.ISO_8859_1)
+            }
+            return command
+        }
+
+        private String readLine(InputStream input) {
+            StringBuilder line = new StringBuilder()
+            int c
+            while ((c = input.read()) != -1) {
+                bytesReceived.incrementAndGet()
+                if (c == ('\n' as char)) {
+                    return line.toString().trim()
+                }
+                line.append((char) c)
+            }
+            return null
+        }
+
+        private static String bulk(String value) {
+            return '$' + value.length() + '\r\n' + value + '\r\n'
+        }
+
+        private static String array(List<String> values) {
+            return '*' + values.size() + '\r\n' + values.collect { bulk(it) }.join('')
+        }
+
+        private static String sha1(String script) {
+            return MessageDigest.getInstance('SHA-1').digest(script.getBytes(StandardCharsets.ISO_8859_1)).encodeHex().toString()
+        }
+
+        @Override
+        void close() {
+            serverSocket.close()
+        }
+    }
 }
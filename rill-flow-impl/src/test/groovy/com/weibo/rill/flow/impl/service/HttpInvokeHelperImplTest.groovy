@@ -1,8 +1,14 @@
 package com.weibo.rill.flow.impl.service
 
+import com.sun.net.httpserver.HttpExchange
+import com.sun.net.httpserver.HttpServer
 import com.weibo.rill.flow.common.exception.TaskException
+import com.weibo.rill.flow.service.component.OkHttpClientFactoryBean
 import com.weibo.rill.flow.service.invoke.HttpInvokeHelper
+import okhttp3.ConnectionPool
+import okhttp3.OkHttpClient
 import org.springframework.http.HttpEntity
+import org.springframework.http.HttpHeaders
 import org.springframework.http.HttpMethod
 import org.springframework.http.HttpStatus
 import org.springframework.http.ResponseEntity
@@ -11,6 +17,13 @@ import org.springframework.web.client.RestTemplate
 import spock.lang.Specification
 import spock.lang.Unroll
 
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
 class HttpInvokeHelperImplTest extends Specification {
     RestTemplate defaultRestTemplate = Mock(RestTemplate)
     HttpInvokeHelper httpInvokeHelper = new HttpInvokeHelperImpl(defaultRestTemplate: defaultRestTemplate)
@@ -78,4 +91,164 @@ class HttpInvokeHelperImplTest extends Specification {
         then:
         thrown(TaskException.class)
     }
+
+    def "test invokeRequestAsync posts json body and returns response body"() {
+        given:
+        HttpServer server = startServer(0, 200)
+        HttpInvokeHelper asyncHelper = buildAsyncHelper(10, 10, 10)
+        HttpEntity<?> requestEntity = new HttpEntity<>([data: "hello world"], new HttpHeaders())
+
+        when:
+        String ret = asyncHelper.invokeRequestAsync("testExecutionId", "testTaskName", url(server), requestEntity, HttpMethod.POST, 1)
+                .get(5, TimeUnit.SECONDS)
+
+        then:
+        ret == '{"data":"hello world"}'
+
+        cleanup:
+        server.stop(0)
+    }
+
+    def "test invokeRequestAsync retries non 2xx response then fails"() {
+        given:
+        HttpServer server = startServer(0, 500)
+        HttpInvokeHelper asyncHelper = buildAsyncHelper(10, 10, 10)
+        HttpEntity<?> requestEntity = new HttpEntity<>(null, new HttpHeaders())
+
+        when:
+        asyncHelper.invokeRequestAsync("testExecutionId", "testTaskName", url(server), requestEntity, HttpMethod.GET, 2)
+                .get(5, TimeUnit.SECONDS)
+
+        then:
+        ExecutionException e = thrown(ExecutionException)
+        e.cause instanceof RestClientResponseException
+        ((RestClientResponseException) e.cause).rawStatusCode == 500
+        requestCount.get() == 2
+
+        cleanup:
+        server.stop(0)
+    }
+
+    /**
+     * 服务端每个请求延迟500ms响应 同步请求时同时等待的请求数不超过runnerExecutor线程数(30)
+     * 异步请求等待期间不占用调用线程 单个调用线程发出的请求可同时在服务端等待
+     */
+    def "test invokeRequestAsync does not block caller while waiting for slow responses"() {
+        given:
+        int requests = 400
+        int runnerThreads = 30
+        HttpServer server = startServer(500, 200)
+        HttpInvokeHelper asyncHelper = buildAsyncHelper(requests, requests, requests)
+        HttpEntity<?> requestEntity = new HttpEntity<>([data: "hello world"], new HttpHeaders())
+        asyncHelper.invokeRequestAsync("testExecutionId", "testTaskName", url(server), requestEntity, HttpMethod.POST, 1).get(5, TimeUnit.SECONDS)
+
+        when:
+        List<CompletableFuture<String>> futures = (0..<requests).collect {
+            asyncHelper.invokeRequestAsync("testExecutionId", "testTaskName", url(server), requestEntity, HttpMethod.POST, 1)
+        }
+        CompletableFuture.allOf(futures as CompletableFuture[]).get(20, TimeUnit.SECONDS)
+
+        then:
+        futures.every { it.get() == '{"data":"hello world"}' }
+        requestCount.get() == requests + 1
+        maxConcurrency.get() > runnerThreads
+
+        cleanup:
+        server.stop(0)
+    }
+
+    def "test invokeRequestAsync concurrency is limited per host"() {
+        given:
+        HttpServer server = startServer(100, 200)
+        HttpInvokeHelper asyncHelper = buildAsyncHelper(100, 5, 100)
+        HttpEntity<?> requestEntity = new HttpEntity<>(null, new HttpHeaders())
+
+        when:
+        List<CompletableFuture<String>> futures = (0..<30).collect {
+            asyncHelper.invokeRequestAsync("testExecutionId", "testTaskName", url(server), requestEntity, HttpMethod.GET, 1)
+        }
+        CompletableFuture.allOf(futures as CompletableFuture[]).get(20, TimeUnit.SECONDS)
+
+        then:
+        requestCount.get() == 30
+        maxConcurrency.get() <= 5
+
+        cleanup:
+        server.stop(0)
+    }
+
+    def "test invokeRequestAsync rejects requests exceeding max in flight"() {
+        given:
+        HttpServer server = startServer(300, 200)
+        HttpInvokeHelper asyncHelper = buildAsyncHelper(100, 100, 5)
+        HttpEntity<?> requestEntity = new HttpEntity<>(null, new HttpHeaders())
+
+        when:
+        List<CompletableFuture<String>> futures = (0..<10).collect {
+            asyncHelper.invokeRequestAsync("testExecutionId", "testTaskName", url(server), requestEntity, HttpMethod.GET, 1)
+        }
+        List<CompletableFuture<String>> rejected = futures.findAll { it.isCompletedExceptionally() }
+        CompletableFuture.allOf(futures.findAll { !it.isCompletedExceptionally() } as CompletableFuture[]).get(10, TimeUnit.SECONDS)
+        String afterComplete = asyncHelper.invokeRequestAsync("testExecutionId", "testTaskName", url(server), requestEntity, HttpMethod.GET, 1)
+                .get(10, TimeUnit.SECONDS)
+
+        then:
+        rejected.size() == 5
+        rejected.every {
+            try {
+                it.join()
+                return false
+            } catch (Exception e) {
+                return e.cause instanceof TaskException
+            }
+        }
+        afterComplete == ""
+
+        cleanup:
+        server.stop(0)
+    }
+
+    AtomicInteger requestCount = new AtomicInteger()
+    AtomicInteger concurrency = new AtomicInteger()
+    AtomicInteger maxConcurrency = new AtomicInteger()
+    ScheduledExecutorService responseScheduler = Executors.newScheduledThreadPool(2)
+
+    def cleanup() {
+        responseScheduler.shutdownNow()
+    }
+
+    /**
+     * 服务端延迟响应由定时线程池完成 不占用服务端处理线程 响应内容为请求body
+     */
+    private HttpServer startServer(long delayMillis, int statusCode) {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1000)
+        server.createContext("/") { HttpExchange exchange ->
+            requestCount.incrementAndGet()
+            maxConcurrency.accumulateAndGet(concurrency.incrementAndGet(), Math::max)
+            byte[] body = exchange.requestBody.readAllBytes()
+            responseScheduler.schedule({
+                concurrency.decrementAndGet()
+                exchange.sendResponseHeaders(statusCode, body.length == 0 ? -1 : body.length)
+                if (body.length > 0) {
+                    exchange.responseBody.write(body)
+                }
+                exchange.close()
+            }, delayMillis, TimeUnit.MILLISECONDS)
+        }
+        server.setExecutor(Executors.newFixedThreadPool(4))
+        server.start()
+        return server
+    }
+
+    private static String url(HttpServer server) {
+        return "http://127.0.0.1:" + server.address.port + "/test"
+    }
+
+    private static HttpInvokeHelper buildAsyncHelper(int maxRequests, int maxRequestsPerHost, int maxInFlight) {
+        OkHttpClientFactoryBean factoryBean = new OkHttpClientFactoryBean(1000, 5000, 5000, new ConnectionPool(maxRequests, 10, TimeUnit.SECONDS))
+        factoryBean.setMaxRequests(maxRequests)
+        factoryBean.setMaxRequestsPerHost(maxRequestsPerHost)
+        OkHttpClient asyncHttpClient = factoryBean.getObject()
+        return new HttpInvokeHelperImpl(asyncHttpClient: asyncHttpClient, asyncMaxInFlight: maxInFlight)
+    }
 }
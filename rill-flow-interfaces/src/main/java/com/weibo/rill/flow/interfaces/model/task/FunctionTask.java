@@ -85,6 +85,17 @@ public class FunctionTask extends BaseTask {
         this.requestType = requestType;
     }
 
+    /**
+     * 复制任务并使用指定的resource
+     * 描述符中的任务可能被多个执行共享 按执行解析出的resource不应写回共享的任务
+     */
+    public FunctionTask withResource(BaseResource resource) {
+        return new FunctionTask(getName(), getTitle(), getDescription(), getCategory(), getNext(), isTolerance(),
+                resourceName, resourceProtocol, resource, pattern, getInputMappings(), getOutputMappings(),
+                successConditions, failConditions, retry, getProgress(), getDegrade(), getTimeline(), requestType,
+                isKeyCallback(), getKeyExp(), getParameters(), getTemplateId(), getInput(), getInputType(), getOutputType());
+    }
+
     @Override
     public List<BaseTask> subTasks() {
         return new ArrayList<>();
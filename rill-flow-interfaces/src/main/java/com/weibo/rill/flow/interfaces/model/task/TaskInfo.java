@@ -57,6 +57,11 @@ public class TaskInfo {
 
     private TaskInvokeMsg taskInvokeMsg;
 
+    /**
+     * 任务派发版本号，每次派发前递增，用于识别并丢弃过期或重复的派发结果
+     */
+    private Integer dispatchVersion;
+
     /**
      * 以下为引用数据
      */
@@ -103,6 +108,7 @@ public class TaskInfo {
         Optional.ofNullable(taskInfo.getSubGroupKeyJudgementMapping()).filter(it -> !it.isEmpty()).ifPresent(this::setSubGroupKeyJudgementMapping);
         Optional.ofNullable(taskInfo.getSubGroupIndexToIdentity()).filter(it -> !it.isEmpty()).ifPresent(this::setSubGroupIndexToIdentity);
         Optional.ofNullable(taskInfo.getTaskInvokeMsg()).ifPresent(this::setTaskInvokeMsg);
+        Optional.ofNullable(taskInfo.getDispatchVersion()).ifPresent(this::setDispatchVersion);
         Optional.ofNullable(taskInfo.getSkipNextTaskNames()).ifPresent(this::setSkipNextTaskNames);
         if (children == null) {
             children = new LinkedHashMap<>();
@@ -145,6 +151,7 @@ public class TaskInfo {
         taskInfoClone.setSubGroupKeyJudgementMapping(taskInfo.getSubGroupKeyJudgementMapping());
         taskInfoClone.setSubGroupIndexToIdentity(taskInfo.getSubGroupIndexToIdentity());
         taskInfoClone.setTaskInvokeMsg(taskInfo.getTaskInvokeMsg());
+        taskInfoClone.setDispatchVersion(taskInfo.getDispatchVersion());
         Map<String, TaskInfo> children = new LinkedHashMap<>();
         if (taskInfo.getChildren() != null && !taskInfo.getChildren().isEmpty()) {
             taskInfo.getChildren().forEach((name, task) -> children.put(name, doCloneToSave(task, allTaskNames)));
@@ -0,0 +1,455 @@
+/*
+ *  Copyright 2021-2023 Weibo, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.weibo.rill.flow.service.component;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.weibo.rill.flow.common.exception.TaskException;
+import com.weibo.rill.flow.common.model.BizError;
+import com.weibo.rill.flow.common.util.SerializerUtil;
+import com.weibo.rill.flow.olympicene.core.switcher.SwitcherManager;
+import com.weibo.rill.flow.olympicene.storage.redis.api.RedisClient;
+import com.weibo.rill.flow.olympicene.storage.redis.lock.ResourceLoader;
+import com.weibo.rill.flow.service.invoke.HttpInvokeHelper;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.collections.CollectionUtils;
+import org.apache.commons.collections.MapUtils;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+/**
+ * 流程完成回调发件箱
+ * <pre>
+ * 1. 回调按executionId哈希写入shardCount个zset score为可投递时间 节点重启后未投递的回调仍在redis中
+ *    hold写入的回调score为holdInMillis之后 放行后立即可投递 写入方未放行(如节点重启)时到期后投递
+ * 2. 取出到期回调时将score推迟到租约截止时间 取出的节点在租约内未确认时 回调会被其他节点重新取出 即至少投递一次
+ * 3. 投递在workerCount个线程中执行 已取出未完成的回调数不超过maxInflight
+ *    同一resourceName同时进行的请求数不超过endpointConcurrency 另有至多endpointConcurrency个请求在本地等待 空闲后移除
+ *    再超出的回调推迟deferInMillis后再取出 不计入重试次数 慢接收方因此不会占满worker及maxInflight
+ * 4. 投递失败按baseBackoffInMillis指数退避重试 第maxAttempts次仍失败时移入死信分片 死信分片最多保留deadLetterMaxSize条
+ * 5. batchResourceNames中的resourceName 同一次取出的同一url的回调合并为一个请求
+ *    body为各回调body组成的数组 header取第一条回调的header
+ * </pre>
+ */
+@Slf4j
+public class CallbackOutbox {
+    private static final String OUTBOX_KEY_PREFIX = "callback_outbox_";
+    private static final String DEAD_LETTER_KEY_PREFIX = "callback_outbox_dead_";
+
+    private static final String CLAIM_SCRIPT;
+    private static final String ACK_SCRIPT;
+    private static final String RETRY_SCRIPT;
+    private static final String DEFER_SCRIPT;
+    private static final String RELEASE_SCRIPT;
+
+    static {
+        try {
+            CLAIM_SCRIPT = ResourceLoader.loadResourceAsText("lua/callback_outbox_claim.lua");
+            ACK_SCRIPT = ResourceLoader.loadResourceAsText("lua/callback_outbox_ack.lua");
+            RETRY_SCRIPT = ResourceLoader.loadResourceAsText("lua/callback_outbox_retry.lua");
+            DEFER_SCRIPT = ResourceLoader.loadResourceAsText("lua/callback_outbox_defer.lua");
+            RELEASE_SCRIPT = ResourceLoader.loadResourceAsText("lua/callback_outbox_release.lua");
+        } catch (IOException e) {
+            throw new TaskException(BizError.ERROR_INTERNAL, "cannot load callback outbox lua", e.getCause());
+        }
+    }
+
+    private final RedisClient redisClient;
+    private final HttpInvokeHelper httpInvokeHelper;
+    private final ExecutorService workerExecutor;
+    private final ScheduledExecutorService drainExecutor;
+    private final Map<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+    private final Semaphore inflightPermits;
+    private final AtomicLong deliveredCount = new AtomicLong();
+    private final AtomicLong retriedCount = new AtomicLong();
+    private final AtomicLong deadLetterCount = new AtomicLong();
+    private int nextShard;
+
+    @Setter
+    private int shardCount = 1;
+    @Setter
+    private int endpointConcurrency = 16;
+    @Setter
+    private Set<String> batchResourceNames = Collections.emptySet();
+    @Setter
+    private int maxBatchSize = 50;
+    @Setter
+    private int maxAttempts = 8;
+    @Setter
+    private long baseBackoffInMillis = 1000L;
+    @Setter
+    private long maxBackoffInMillis = 300000L;
+    @Setter
+    private long leaseInMillis = 60000L;
+    @Setter
+    private long deferInMillis = 200L;
+    @Setter
+    private long holdInMillis = 60000L;
+    @Setter
+    private long drainPeriodInMillis = 200L;
+    @Setter
+    private int deadLetterMaxSize = 100000;
+    /**
+     * ENABLE_CALLBACK_OUTBOX关闭时不再取出回调
+     */
+    @Setter
+    private SwitcherManager switcherManager;
+
+    public CallbackOutbox(RedisClient redisClient, HttpInvokeHelper httpInvokeHelper, int workerCount) {
+        this(redisClient, httpInvokeHelper, workerCount, workerCount * 4);
+    }
+
+    public CallbackOutbox(RedisClient redisClient, HttpInvokeHelper httpInvokeHelper, int workerCount, int maxInflight) {
+        this.redisClient = redisClient;
+        this.httpInvokeHelper = httpInvokeHelper;
+        this.workerExecutor = Executors.newFixedThreadPool(workerCount,
+                new ThreadFactoryBuilder().setNameFormat("olympicene-callbackOutbox-%d").build());
+        this.drainExecutor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("olympicene-callbackOutboxDrain-%d").build());
+        this.inflightPermits = new Semaphore(maxInflight);
+    }
+
+    public void start() {
+        drainExecutor.scheduleWithFixedDelay(this::drain, drainPeriodInMillis, drainPeriodInMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 已取出未确认的回调不回写 租约到期后由其他节点重新取出
+     */
+    public void shutdown() {
+        drainExecutor.shutdownNow();
+        workerExecutor.shutdown();
+        try {
+            if (!workerExecutor.awaitTermination(5, TimeUnit.SECONDS)) {
+                workerExecutor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            workerExecutor.shutdownNow();
+        }
+    }
+
+    public void enqueue(CallbackMessage message) {
+        add(message, System.currentTimeMillis());
+    }
+
+    /**
+     * 写入暂缓投递的回调 返回放行操作
+     */
+    public Runnable hold(CallbackMessage message) {
+        long holdUntil = System.currentTimeMillis() + holdInMillis;
+        String key = outboxKey(shard(message.getExecutionId()));
+        String member = add(message, holdUntil);
+        return () -> release(key, member, holdUntil);
+    }
+
+    private String add(CallbackMessage message, long score) {
+        if (message.getId() == null) {
+            message.setId(UUID.randomUUID().toString());
+        }
+        if (message.getCreateTime() == 0L) {
+            message.setCreateTime(System.currentTimeMillis());
+        }
+        String member = SerializerUtil.serializeToString(message);
+        redisClient.zadd(outboxKey(shard(message.getExecutionId())), score, member);
+        return member;
+    }
+
+    private void release(String key, String member, long holdUntil) {
+        try {
+            List<String> args = Lists.newArrayList(member, String.valueOf(holdUntil), String.valueOf(System.currentTimeMillis()));
+            redisClient.eval(RELEASE_SCRIPT, key, Lists.newArrayList(key), args);
+        } catch (Exception e) {
+            // 暂缓时间到期后投递
+            log.warn("callback outbox release fails, key:{}", key, e);
+        }
+    }
+
+    public long getDeliveredCount() {
+        return deliveredCount.get();
+    }
+
+    public long getRetriedCount() {
+        return retriedCount.get();
+    }
+
+    public long getDeadLetterCount() {
+        return deadLetterCount.get();
+    }
+
+    private void drain() {
+        if (switcherManager != null && !switcherManager.getSwitcherState("ENABLE_CALLBACK_OUTBOX")) {
+            return;
+        }
+        try {
+            int claimed;
+            do {
+                claimed = drainOnce();
+            } while (claimed > 0 && !drainExecutor.isShutdown());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.warn("callback outbox drain fails, ", e);
+        }
+    }
+
+    private int drainOnce() throws InterruptedException {
+        int permits = inflightPermits.drainPermits();
+        if (permits == 0) {
+            if (!inflightPermits.tryAcquire(drainPeriodInMillis, TimeUnit.MILLISECONDS)) {
+                return 0;
+            }
+            permits = 1 + inflightPermits.drainPermits();
+        }
+
+        int claimed = 0;
+        try {
+            int start = nextShard++;
+            for (int i = 0; i < shardCount && claimed < permits; i++) {
+                int shard = Math.floorMod(start + i, shardCount);
+                List<ClaimedMessage> messages = claim(shard, permits - claimed);
+                claimed += messages.size();
+                dispatch(shard, messages);
+            }
+        } finally {
+            inflightPermits.release(permits - claimed);
+        }
+        return claimed;
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<ClaimedMessage> claim(int shard, int count) {
+        String key = outboxKey(shard);
+        long now = System.currentTimeMillis();
+        List<String> args = Lists.newArrayList(String.valueOf(now), String.valueOf(count), String.valueOf(now + leaseInMillis));
+        List<byte[]> members = (List<byte[]>) redisClient.eval(CLAIM_SCRIPT, key, Lists.newArrayList(key), args);
+        if (CollectionUtils.isEmpty(members)) {
+            return Collections.emptyList();
+        }
+
+        List<ClaimedMessage> claimed = new ArrayList<>(members.size());
+        for (byte[] member : members) {
+            try {
+                claimed.add(new ClaimedMessage(new String(member, StandardCharsets.UTF_8),
+                        SerializerUtil.deserialize(member, CallbackMessage.class)));
+            } catch (Exception e) {
+                log.warn("callback outbox skip malformed member, shard:{}", shard, e);
+                ack(shard, Collections.singletonList(new String(member, StandardCharsets.UTF_8)));
+            }
+        }
+        return claimed;
+    }
+
+    private void dispatch(int shard, List<ClaimedMessage> messages) {
+        List<ClaimedMessage> deferred = new ArrayList<>();
+        for (List<ClaimedMessage> delivery : groupDeliveries(messages)) {
+            String resourceName = Objects.toString(delivery.get(0).message.getResourceName());
+            AtomicReference<Admission> admission = new AtomicReference<>();
+            endpoints.compute(resourceName, (name, current) -> {
+                Endpoint endpoint = current == null ? new Endpoint() : current;
+                if (endpoint.running < endpointConcurrency) {
+                    endpoint.running++;
+                    admission.set(Admission.RUN);
+                } else if (endpoint.pending.size() < endpointConcurrency) {
+                    endpoint.pending.add(delivery);
+                    admission.set(Admission.PENDING);
+                } else {
+                    admission.set(Admission.DEFER);
+                }
+                return endpoint;
+            });
+            if (admission.get() == Admission.RUN) {
+                submit(shard, delivery);
+            } else if (admission.get() == Admission.DEFER) {
+                deferred.addAll(delivery);
+            }
+        }
+
+        if (!deferred.isEmpty()) {
+            defer(shard, deferred);
+            inflightPermits.release(deferred.size());
+        }
+    }
+
+    private List<List<ClaimedMessage>> groupDeliveries(List<ClaimedMessage> messages) {
+        List<List<ClaimedMessage>> deliveries = new ArrayList<>();
+        Map<String, List<ClaimedMessage>> batches = new LinkedHashMap<>();
+        for (ClaimedMessage claimedMessage : messages) {
+            CallbackMessage message = claimedMessage.message;
+            if (!batchResourceNames.contains(message.getResourceName())) {
+                deliveries.add(Collections.singletonList(claimedMessage));
+                continue;
+            }
+            List<ClaimedMessage> batch = batches.computeIfAbsent(message.getUrl(), it -> new ArrayList<>());
+            batch.add(claimedMessage);
+            if (batch.size() >= maxBatchSize) {
+                deliveries.add(batches.remove(message.getUrl()));
+            }
+        }
+        deliveries.addAll(batches.values());
+        return deliveries;
+    }
+
+    private void deliver(int shard, List<ClaimedMessage> delivery) {
+        CallbackMessage first = delivery.get(0).message;
+        try {
+            String body = batchResourceNames.contains(first.getResourceName()) ?
+                    delivery.stream().map(it -> it.message.getBody()).collect(Collectors.joining(",", "[", "]")) :
+                    first.getBody();
+            HttpHeaders httpHeaders = new HttpHeaders();
+            if (MapUtils.isNotEmpty(first.getHeaders())) {
+                first.getHeaders().forEach(httpHeaders::add);
+            }
+            if (httpHeaders.getContentType() == null) {
+                httpHeaders.setContentType(MediaType.APPLICATION_JSON);
+            }
+            httpInvokeHelper.invokeRequest(first.getExecutionId(), first.getTaskInfoName(), first.getUrl(), new HttpEntity<>(body, httpHeaders),
+                    HttpMethod.POST, Math.max(1, first.getMaxInvokeTime()));
+            ack(shard, delivery.stream().map(it -> it.member).collect(Collectors.toList()));
+            deliveredCount.addAndGet(delivery.size());
+        } catch (Exception e) {
+            log.warn("callback outbox deliver fails, executionId:{}, resourceName:{}, size:{}, errorMsg:{}",
+                    first.getExecutionId(), first.getResourceName(), delivery.size(), e.getMessage());
+            delivery.forEach(it -> retry(shard, it));
+        } finally {
+            inflightPermits.release(delivery.size());
+            AtomicReference<List<ClaimedMessage>> next = new AtomicReference<>();
+            endpoints.computeIfPresent(Objects.toString(first.getResourceName()), (name, endpoint) -> {
+                next.set(endpoint.pending.poll());
+                if (next.get() == null) {
+                    endpoint.running--;
+                }
+                return endpoint.running == 0 ? null : endpoint;
+            });
+            if (next.get() != null) {
+                submit(shard, next.get());
+            }
+        }
+    }
+
+    private void submit(int shard, List<ClaimedMessage> delivery) {
+        try {
+            workerExecutor.execute(() -> deliver(shard, delivery));
+        } catch (RejectedExecutionException e) {
+            // 已关闭 租约到期后由其他节点重新取出
+            log.info("callback outbox is shutdown, resourceName:{}", delivery.get(0).message.getResourceName());
+        }
+    }
+
+    private void ack(int shard, List<String> members) {
+        String key = outboxKey(shard);
+        redisClient.eval(ACK_SCRIPT, key, Lists.newArrayList(key), members);
+    }
+
+    private void retry(int shard, ClaimedMessage claimedMessage) {
+        try {
+            CallbackMessage message = claimedMessage.message;
+            int attempt = message.getAttempt() + 1;
+            boolean deadLetter = attempt >= maxAttempts;
+            long score = System.currentTimeMillis() + (deadLetter ? 0L : backoffInMillis(attempt));
+            String next = SerializerUtil.serializeToString(message.toBuilder().attempt(attempt).build());
+
+            String key = outboxKey(shard);
+            List<String> keys = Lists.newArrayList(key, DEAD_LETTER_KEY_PREFIX + shard);
+            List<String> args = Lists.newArrayList(claimedMessage.member, next, String.valueOf(score),
+                    deadLetter ? "1" : "0", String.valueOf(deadLetterMaxSize));
+            redisClient.eval(RETRY_SCRIPT, key, keys, args);
+            if (deadLetter) {
+                deadLetterCount.incrementAndGet();
+                log.warn("callback outbox dead letter, executionId:{}, resourceName:{}, attempt:{}",
+                        message.getExecutionId(), message.getResourceName(), attempt);
+            } else {
+                retriedCount.incrementAndGet();
+            }
+        } catch (Exception e) {
+            // 未能回写时 租约到期后重新投递
+            log.warn("callback outbox retry fails, shard:{}", shard, e);
+        }
+    }
+
+    private void defer(int shard, List<ClaimedMessage> deferred) {
+        try {
+            String key = outboxKey(shard);
+            List<String> args = Lists.newArrayList(String.valueOf(System.currentTimeMillis() + deferInMillis));
+            deferred.forEach(it -> args.add(it.member));
+            redisClient.eval(DEFER_SCRIPT, key, Lists.newArrayList(key), args);
+        } catch (Exception e) {
+            log.warn("callback outbox defer fails, shard:{}", shard, e);
+        }
+    }
+
+    private long backoffInMillis(int attempt) {
+        return Math.min(maxBackoffInMillis, baseBackoffInMillis << Math.min(attempt - 1, 30));
+    }
+
+    private int shard(String executionId) {
+        return shardCount <= 1 ? 0 : Math.floorMod(Objects.hashCode(executionId), shardCount);
+    }
+
+    private String outboxKey(int shard) {
+        return OUTBOX_KEY_PREFIX + shard;
+    }
+
+    private enum Admission {
+        RUN, PENDING, DEFER
+    }
+
+    /**
+     * 同一resourceName进行中的请求数及等待空闲的请求 等待的请求不超过endpointConcurrency个
+     * 增减均在endpoints.compute中进行 无进行中的请求时移除
+     */
+    private static class Endpoint {
+        private final Deque<List<ClaimedMessage>> pending = new ArrayDeque<>();
+        private int running;
+    }
+
+    private static class ClaimedMessage {
+        private final String member;
+        private final CallbackMessage message;
+
+        ClaimedMessage(String member, CallbackMessage message) {
+            this.member = member;
+            this.message = message;
+        }
+    }
+}
@@ -18,6 +18,7 @@ package com.weibo.rill.flow.service.component;
 
 import com.weibo.rill.flow.service.manager.OkHttpFeaturesManager;
 import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
 import okhttp3.OkHttpClient;
 import org.springframework.beans.factory.FactoryBean;
 
@@ -31,6 +32,11 @@ public class OkHttpClientFactoryBean implements FactoryBean<OkHttpClient> {
     private long readTimeOut;
     private long writeTimeOut;
     private ConnectionPool connectionPool;
+    /**
+     * 异步请求的最大并发数及单host最大并发数 超出部分在Dispatcher中排队 小于等于0时使用OkHttp默认值
+     */
+    private int maxRequests;
+    private int maxRequestsPerHost;
 
     public OkHttpClientFactoryBean() {
 
@@ -64,6 +70,17 @@ public class OkHttpClientFactoryBean implements FactoryBean<OkHttpClient> {
             builder.connectionPool(connectionPool);
         }
 
+        if (maxRequests > 0 || maxRequestsPerHost > 0) {
+            Dispatcher dispatcher = new Dispatcher();
+            if (maxRequests > 0) {
+                dispatcher.setMaxRequests(maxRequests);
+            }
+            if (maxRequestsPerHost > 0) {
+                dispatcher.setMaxRequestsPerHost(maxRequestsPerHost);
+            }
+            builder.dispatcher(dispatcher);
+        }
+
         return builder.build();
     }
 
@@ -92,4 +109,12 @@ public class OkHttpClientFactoryBean implements FactoryBean<OkHttpClient> {
     public void setConnectionPool(ConnectionPool connectionPool) {
         this.connectionPool = connectionPool;
     }
+
+    public void setMaxRequests(int maxRequests) {
+        this.maxRequests = maxRequests;
+    }
+
+    public void setMaxRequestsPerHost(int maxRequestsPerHost) {
+        this.maxRequestsPerHost = maxRequestsPerHost;
+    }
 }
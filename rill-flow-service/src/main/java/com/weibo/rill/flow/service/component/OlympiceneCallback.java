@@ -18,6 +18,7 @@ package com.weibo.rill.flow.service.component;
 
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
+import com.weibo.rill.flow.common.util.SerializerUtil;
 import com.weibo.rill.flow.service.util.PrometheusActions;
 import com.weibo.rill.flow.olympicene.core.event.Callback;
 import com.weibo.rill.flow.olympicene.core.event.Event;
@@ -40,6 +41,8 @@ import com.weibo.rill.flow.service.statistic.TenantTaskStatistic;
 import com.weibo.rill.flow.service.storage.LongTermStorage;
 import com.weibo.rill.flow.olympicene.core.switcher.SwitcherManager;
 import com.weibo.rill.flow.service.util.ProfileActions;
+import lombok.AllArgsConstructor;
+import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.lang3.StringUtils;
@@ -62,6 +65,8 @@ public class OlympiceneCallback implements Callback<DAGCallbackInfo> {
     private final ExecutorService callbackExecutor;
     private final TenantTaskStatistic tenantTaskStatistic;
     private final SwitcherManager switcherManagerImpl;
+    @Setter
+    private CallbackOutbox callbackOutbox;
 
     public OlympiceneCallback(HttpInvokeHelper httpInvokeHelper,
                               JSONPathInputOutputMapping inputOutputMapping,
@@ -83,17 +88,26 @@ public class OlympiceneCallback implements Callback<DAGCallbackInfo> {
             return;
         }
 
+        int eventCode = event.getEventCode();
+        DAGCallbackInfo eventData = event.getData();
+        boolean completed = eventCode == DAGEvent.DAG_SUCCEED.getCode() || eventCode == DAGEvent.DAG_FAILED.getCode();
+        // 开启发件箱时在当前线程写入发件箱 不在callbackExecutor中排队 节点重启不丢失回调
+        Runnable completedCallback = completed && useOutbox() ?
+                holdInOutbox(eventCode, eventData) : () -> flowCompletedCallback(eventCode, eventData);
         callbackExecutor.execute(() -> {
-            int eventCode = event.getEventCode();
-            DAGCallbackInfo eventData = event.getData();
             monitorLog(event.getId(), eventCode, eventData);
-            if (eventCode == DAGEvent.DAG_SUCCEED.getCode() || eventCode == DAGEvent.DAG_FAILED.getCode()) {
+            if (completed) {
+                // 长期存储写入后再回调
                 longTermStorage.storeDAGInfoAndContext(eventData);
-                flowCompletedCallback(eventCode, eventData);
+                completedCallback.run();
             }
         });
     }
 
+    private boolean useOutbox() {
+        return callbackOutbox != null && switcherManagerImpl.getSwitcherState("ENABLE_CALLBACK_OUTBOX");
+    }
+
     private void monitorLog(String executionId, int eventCode, DAGCallbackInfo eventData) {
         logCompleteEvent(executionId, eventCode, eventData);
         logTaskCode(executionId, eventCode, eventData);
@@ -154,6 +168,38 @@ public class OlympiceneCallback implements Callback<DAGCallbackInfo> {
     }
 
     private void flowCompletedCallback(int eventCode, DAGCallbackInfo dagCallbackInfo) {
+        CompletedRequest request = buildCompletedRequest(eventCode, dagCallbackInfo);
+        if (request != null) {
+            invoke(eventCode, request);
+        }
+    }
+
+    /**
+     * 回调以暂缓投递的状态写入发件箱 返回放行操作 未放行的回调在发件箱暂缓时间到期后投递
+     * 写入失败时返回直接投递
+     */
+    private Runnable holdInOutbox(int eventCode, DAGCallbackInfo dagCallbackInfo) {
+        CompletedRequest request = buildCompletedRequest(eventCode, dagCallbackInfo);
+        if (request == null) {
+            return () -> { };
+        }
+        try {
+            return callbackOutbox.hold(CallbackMessage.builder()
+                    .executionId(request.executionId)
+                    .taskInfoName(request.taskInfoName)
+                    .resourceName(request.resourceName)
+                    .url(request.url)
+                    .headers(request.headers.toSingleValueMap())
+                    .body(SerializerUtil.serializeToString(request.body))
+                    .maxInvokeTime(request.maxInvokeTime)
+                    .build());
+        } catch (Exception e) {
+            log.warn("flowCompletedCallback enqueue fails, executionId:{}, errorMsg:{}", request.executionId, e.getMessage());
+            return () -> invoke(eventCode, request);
+        }
+    }
+
+    private CompletedRequest buildCompletedRequest(int eventCode, DAGCallbackInfo dagCallbackInfo) {
         try {
             DAGInfo dagInfo = dagCallbackInfo.getDagInfo();
             CallbackConfig callbackConfig = getCallbackConfig(dagInfo);
@@ -162,7 +208,7 @@ public class OlympiceneCallback implements Callback<DAGCallbackInfo> {
             String resourceName = Optional.ofNullable(callbackConfig).map(CallbackConfig::getResourceName).orElse(null);
             if (StringUtils.isBlank(resourceName)) {
                 log.info("flowCompletedCallback return due to empty resourceName, executionId:{}", executionId);
-                return;
+                return null;
             }
 
             HttpParameter requestParams = buildRequestParams(callbackConfig, dagCallbackInfo);
@@ -172,13 +218,23 @@ public class OlympiceneCallback implements Callback<DAGCallbackInfo> {
                 requestParams.getHeader().forEach(httpHeaders::add);
             }
             httpInvokeHelper.appendRequestHeader(httpHeaders, executionId, null, dagCallbackInfo.getContext());
-            HttpEntity<Map<String, Object>> requestEntity = new HttpEntity<>(requestParams.getBody(), httpHeaders);
             int maxInvokeTime = switcherManagerImpl.getSwitcherState("ENABLE_FUNCTION_DISPATCH_RET_CHECK") ? 2 : 1;
             String taskInfoName = dagCallbackInfo.getTaskInfo() == null? null : dagCallbackInfo.getTaskInfo().getName();
-            httpInvokeHelper.invokeRequest(executionId, taskInfoName, url, requestEntity, HttpMethod.POST, maxInvokeTime);
+            return new CompletedRequest(executionId, taskInfoName, resourceName, url, httpHeaders, requestParams.getBody(), maxInvokeTime);
         } catch (Exception e) {
             log.warn("flowCompletedCallback fails, executionId:{}, eventCode:{}, errorMsg:{}",
                     dagCallbackInfo.getExecutionId(), eventCode, e.getMessage());
+            return null;
+        }
+    }
+
+    private void invoke(int eventCode, CompletedRequest request) {
+        try {
+            HttpEntity<Map<String, Object>> requestEntity = new HttpEntity<>(request.body, request.headers);
+            httpInvokeHelper.invokeRequest(request.executionId, request.taskInfoName, request.url, requestEntity, HttpMethod.POST, request.maxInvokeTime);
+        } catch (Exception e) {
+            log.warn("flowCompletedCallback fails, executionId:{}, eventCode:{}, errorMsg:{}",
+                    request.executionId, eventCode, e.getMessage());
         }
     }
 
@@ -223,4 +279,15 @@ public class OlympiceneCallback implements Callback<DAGCallbackInfo> {
                 .map(DAGInvokeMsg::getCallbackConfig)
                 .orElse(defaultCallback);
     }
+
+    @AllArgsConstructor
+    private static class CompletedRequest {
+        private final String executionId;
+        private final String taskInfoName;
+        private final String resourceName;
+        private final String url;
+        private final HttpHeaders headers;
+        private final Map<String, Object> body;
+        private final int maxInvokeTime;
+    }
 }
\ No newline at end of file
@@ -19,6 +19,7 @@ package com.weibo.rill.flow.service.converter;
 import com.weibo.rill.flow.olympicene.core.model.dag.DAG;
 import com.weibo.rill.flow.olympicene.core.model.dag.DescriptorPO;
 import com.weibo.rill.flow.olympicene.core.model.dag.DescriptorVO;
+import com.weibo.rill.flow.olympicene.ddl.parser.CompiledDAG;
 
 /**
  * DAG Descriptor 转换器，用于在 DescriptorPO、DAG（DTO）、DescriptorVO 之间进行转换，分别用于存储、流程处理和展示
@@ -26,6 +27,7 @@ import com.weibo.rill.flow.olympicene.core.model.dag.DescriptorVO;
 public interface DAGDescriptorConverter {
     DAG convertDescriptorVOToDAG(DescriptorVO descriptorVO);
     DAG convertDescriptorPOToDAG(DescriptorPO descriptorPO);
+    CompiledDAG compileDescriptorPO(DescriptorPO descriptorPO);
     DescriptorVO convertDAGToDescriptorVO(DAG dag);
     DescriptorPO convertDAGToDescriptorPO(DAG dag);
 }
@@ -26,6 +26,7 @@ import com.weibo.rill.flow.olympicene.core.model.dag.DAG;
 import com.weibo.rill.flow.olympicene.core.model.dag.DescriptorPO;
 import com.weibo.rill.flow.olympicene.core.model.dag.DescriptorVO;
 import com.weibo.rill.flow.olympicene.core.model.task.PassTask;
+import com.weibo.rill.flow.olympicene.ddl.parser.CompiledDAG;
 import com.weibo.rill.flow.olympicene.ddl.parser.DAGStringParser;
 import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.collections.MapUtils;
@@ -51,6 +52,11 @@ public class DAGDescriptorConverterImpl implements DAGDescriptorConverter {
         return dagParser.parse(descriptorPO.getDescriptor());
     }
 
+    @Override
+    public CompiledDAG compileDescriptorPO(DescriptorPO descriptorPO) {
+        return dagParser.compile(descriptorPO.getDescriptor());
+    }
+
     @Override
     public DescriptorPO convertDAGToDescriptorPO(DAG dag) {
         String descriptor = dagParser.serialize(dag);
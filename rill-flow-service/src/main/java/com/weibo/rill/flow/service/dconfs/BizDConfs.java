@@ -35,6 +35,7 @@ public interface BizDConfs {
     Map<String,Integer> getSwapBusinessIdToFinishReserveSecond();
     Map<String,Integer> getSwapBusinessIdToUnfinishedReserveSecond();
     Set<String> getRuntimeRedisUsageCheckIDs();
+    List<String> getRuntimeRedisShardClientIds();
     Map<String,Integer> getRuntimeRedisStorageIdToMaxUsage();
     int getRuntimeRedisDefaultStorageMaxUsage();
     int getRuntimeRedisCustomizedStorageMaxUsage();
@@ -62,4 +63,16 @@ public interface BizDConfs {
     Map<String, Integer> getRedisBusinessIdToRuntimeSubmitContextMaxSize();
     Map<String, Integer> getRedisBusinessIdToRuntimeCallbackContextMaxSize();
     Set<String> getGenerateAuthHeaderBusinessIds();
+    Map<String, Integer> getRuntimeExecutorNameToQueueLimit();
+    int getRuntimeExecutorDefaultQueueLimit();
+    int getRuntimeExecutorQueueWaitLimitInMillis();
+    int getTimeCheckShardCount();
+    int getTimeCheckWorkerCount();
+    int getTimeCheckMaxBatchSize();
+    int getCallbackOutboxShardCount();
+    int getCallbackOutboxWorkerCount();
+    int getCallbackOutboxEndpointConcurrency();
+    int getCallbackOutboxMaxAttempts();
+    Set<String> getCallbackOutboxBatchResourceNames();
+    int getTrafficLimitLeaseErrorPercent();
 }
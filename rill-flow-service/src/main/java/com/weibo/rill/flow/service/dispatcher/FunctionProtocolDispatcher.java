@@ -41,6 +41,8 @@ import org.springframework.web.client.RestClientResponseException;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 
 @Service("functionDispatcher")
@@ -55,22 +57,11 @@ public class FunctionProtocolDispatcher implements DispatcherExtension {
     @Override
     public String handle(Resource resource, DispatchInfo dispatchInfo) {
         String executionId = dispatchInfo.getExecutionId();
-        Map<String, Object> input = dispatchInfo.getInput();
-        TaskInfo taskInfo = dispatchInfo.getTaskInfo();
-        String taskInfoName = taskInfo.getName();
-        String requestType = ((FunctionTask) taskInfo.getTask()).getRequestType();
-        MultiValueMap<String, String> header = dispatchInfo.getHeaders();
+        String taskInfoName = dispatchInfo.getTaskInfo().getName();
 
         try {
-            HttpParameter requestParams = httpInvokeHelper.functionRequestParams(executionId, taskInfoName, resource, input);
-            Optional.of(requestParams)
-                    .map(it -> requestParams.getHeader())
-                    .ifPresent(header::setAll);
-            String url = httpInvokeHelper.buildUrl(resource, requestParams.getQueryParams());
-            int maxInvokeTime = switcherManagerImpl.getSwitcherState("ENABLE_FUNCTION_DISPATCH_RET_CHECK") ? 2 : 1;
-            HttpMethod method = Optional.ofNullable(requestType).map(String::toUpperCase).map(HttpMethod::resolve).orElse(HttpMethod.POST);
-            HttpEntity<?> requestEntity = buildHttpEntity(method, header, requestParams);
-            String ret = httpInvokeHelper.invokeRequest(executionId, taskInfoName, url, requestEntity, method, maxInvokeTime);
+            FunctionRequest request = buildFunctionRequest(resource, dispatchInfo);
+            String ret = httpInvokeHelper.invokeRequest(executionId, taskInfoName, request.url(), request.requestEntity(), request.method(), request.maxInvokeTime());
             dagResourceStatistic.updateUrlTypeResourceStatus(executionId, taskInfoName, resource.getResourceName(), ret);
             return ret;
         } catch (RestClientResponseException e) {
@@ -81,6 +72,51 @@ public class FunctionProtocolDispatcher implements DispatcherExtension {
         }
     }
 
+    /**
+     * 请求构建及资源状态统计与handle一致 请求通过invokeRequestAsync发送 等待响应期间不占用调用线程
+     */
+    @Override
+    public CompletableFuture<String> handleAsync(Resource resource, DispatchInfo dispatchInfo) {
+        String executionId = dispatchInfo.getExecutionId();
+        String taskInfoName = dispatchInfo.getTaskInfo().getName();
+
+        FunctionRequest request = buildFunctionRequest(resource, dispatchInfo);
+        return httpInvokeHelper.invokeRequestAsync(executionId, taskInfoName, request.url(), request.requestEntity(), request.method(), request.maxInvokeTime())
+                .handle((ret, throwable) -> {
+                    Throwable cause = throwable instanceof CompletionException && throwable.getCause() != null ? throwable.getCause() : throwable;
+                    if (cause instanceof RestClientResponseException e) {
+                        String responseBody = e.getResponseBodyAsString();
+                        dagResourceStatistic.updateUrlTypeResourceStatus(executionId, taskInfoName, resource.getResourceName(), responseBody);
+                        throw new TaskException(BizError.ERROR_INVOKE_URI.getCode(),
+                                String.format("dispatchTask http fails status code: %s text: %s", e.getRawStatusCode(), responseBody));
+                    }
+                    if (cause != null) {
+                        throw cause instanceof RuntimeException runtimeException ? runtimeException : new CompletionException(cause);
+                    }
+                    dagResourceStatistic.updateUrlTypeResourceStatus(executionId, taskInfoName, resource.getResourceName(), ret);
+                    return ret;
+                });
+    }
+
+    private FunctionRequest buildFunctionRequest(Resource resource, DispatchInfo dispatchInfo) {
+        TaskInfo taskInfo = dispatchInfo.getTaskInfo();
+        String requestType = ((FunctionTask) taskInfo.getTask()).getRequestType();
+        MultiValueMap<String, String> header = dispatchInfo.getHeaders();
+
+        HttpParameter requestParams = httpInvokeHelper.functionRequestParams(dispatchInfo.getExecutionId(), taskInfo.getName(), resource, dispatchInfo.getInput());
+        Optional.of(requestParams)
+                .map(it -> requestParams.getHeader())
+                .ifPresent(header::setAll);
+        String url = httpInvokeHelper.buildUrl(resource, requestParams.getQueryParams());
+        int maxInvokeTime = switcherManagerImpl.getSwitcherState("ENABLE_FUNCTION_DISPATCH_RET_CHECK") ? 2 : 1;
+        HttpMethod method = Optional.ofNullable(requestType).map(String::toUpperCase).map(HttpMethod::resolve).orElse(HttpMethod.POST);
+        HttpEntity<?> requestEntity = buildHttpEntity(method, header, requestParams);
+        return new FunctionRequest(url, method, requestEntity, maxInvokeTime);
+    }
+
+    private record FunctionRequest(String url, HttpMethod method, HttpEntity<?> requestEntity, int maxInvokeTime) {
+    }
+
     HttpEntity<?> buildHttpEntity(HttpMethod method, MultiValueMap<String, String> header, HttpParameter requestParams) {
         Object body = null;
         if (method == HttpMethod.POST) {
@@ -24,7 +24,8 @@ import com.weibo.rill.flow.interfaces.model.strategy.DispatchInfo;
 import com.weibo.rill.flow.interfaces.model.task.FunctionTask;
 import com.weibo.rill.flow.interfaces.model.task.TaskInfo;
 import com.weibo.rill.flow.interfaces.model.task.TaskInvokeMsg;
-import com.weibo.rill.flow.olympicene.traversal.dispatcher.DAGDispatcher;
+import com.weibo.rill.flow.olympicene.core.switcher.SwitcherManager;
+import com.weibo.rill.flow.olympicene.traversal.dispatcher.AsyncDAGDispatcher;
 import com.weibo.rill.flow.service.invoke.HttpInvokeHelper;
 import com.weibo.rill.flow.service.service.FunctionTaskService;
 import lombok.extern.slf4j.Slf4j;
@@ -37,14 +38,17 @@ import org.springframework.stereotype.Service;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
 
 
 @Slf4j
 @Service
-public class FunctionTaskDispatcher implements DAGDispatcher {
+public class FunctionTaskDispatcher implements AsyncDAGDispatcher {
     private final FunctionTaskService functionTaskService;
     private final HttpInvokeHelper httpInvokeHelper;
+    private final SwitcherManager switcherManagerImpl;
     public static final Map<String, DispatcherExtension> protocolDispatcherMap = new ConcurrentHashMap<>();
     public FunctionTaskDispatcher(@Autowired @Qualifier("functionDispatcher") FunctionProtocolDispatcher functionDispatcher,
                                   @Autowired FlowProtocolDispatcher flowDispatcher,
@@ -52,7 +56,8 @@ public class FunctionTaskDispatcher implements DAGDispatcher {
                                   @Autowired @Qualifier("resourceDispatcher") ResourceProtocolDispatcher resourceDispatcher,
                                   @Autowired @Qualifier("resourceRefDispatcher") ResourceRefProtocolDispatcher resourceRefDispatcher,
                                   @Autowired FunctionTaskService functionTaskService,
-                                  @Autowired HttpInvokeHelper httpInvokeHelper) {
+                                  @Autowired HttpInvokeHelper httpInvokeHelper,
+                                  @Autowired SwitcherManager switcherManagerImpl) {
         protocolDispatcherMap.put("function", functionDispatcher);
         protocolDispatcherMap.put("http", httpDispatcher);
         protocolDispatcherMap.put("https", httpDispatcher);
@@ -61,10 +66,31 @@ public class FunctionTaskDispatcher implements DAGDispatcher {
         protocolDispatcherMap.put("resourceRef", resourceRefDispatcher);
         this.functionTaskService = functionTaskService;
         this.httpInvokeHelper = httpInvokeHelper;
+        this.switcherManagerImpl = switcherManagerImpl;
     }
 
     @Override
     public String dispatch(DispatchInfo dispatchInfo) {
+        return doDispatch(dispatchInfo, (protocolDispatcher, resource) -> protocolDispatcher.handle(resource, dispatchInfo));
+    }
+
+    /**
+     * 开关ENABLE_FUNCTION_DISPATCH_ASYNC打开时通过协议派发器的handleAsync派发 http请求等待响应期间不占用调用线程
+     * 开关关闭时在调用线程中同步派发
+     */
+    @Override
+    public CompletableFuture<String> dispatchAsync(DispatchInfo dispatchInfo) {
+        try {
+            if (!switcherManagerImpl.getSwitcherState("ENABLE_FUNCTION_DISPATCH_ASYNC")) {
+                return CompletableFuture.completedFuture(dispatch(dispatchInfo));
+            }
+            return doDispatch(dispatchInfo, (protocolDispatcher, resource) -> protocolDispatcher.handleAsync(resource, dispatchInfo));
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    private <T> T doDispatch(DispatchInfo dispatchInfo, BiFunction<DispatcherExtension, Resource, T> handler) {
         try {
             FunctionTask functionTask = Optional.ofNullable(dispatchInfo)
                     .map(DispatchInfo::getTaskInfo)
@@ -88,10 +114,10 @@ public class FunctionTaskDispatcher implements DAGDispatcher {
             if (functionTask.getResource() != null) {
                 log.info("handle task by function resource, executionId:{} taskName:{}",
                         dispatchInfo.getExecutionId(), dispatchInfo.getTaskInfo().getName());
-                return protocolDispatcherMap.get("resource").handle(null, dispatchInfo);
+                return handler.apply(protocolDispatcherMap.get("resource"), null);
             }
 
-            return resourceNameProcess(dispatchInfo, functionTask);
+            return resourceNameProcess(dispatchInfo, functionTask, handler);
         } catch (TaskException e) {
             throw e;
         } catch (Exception e) {
@@ -100,7 +126,7 @@ public class FunctionTaskDispatcher implements DAGDispatcher {
         }
     }
 
-    private String resourceNameProcess(DispatchInfo dispatchInfo, FunctionTask functionTask) {
+    private <T> T resourceNameProcess(DispatchInfo dispatchInfo, FunctionTask functionTask, BiFunction<DispatcherExtension, Resource, T> handler) {
         String executionId = dispatchInfo.getExecutionId();
         Map<String, Object> input = dispatchInfo.getInput();
         Resource resource = new Resource(functionTask.getResourceName(), functionTask.getResourceProtocol());
@@ -120,7 +146,7 @@ public class FunctionTaskDispatcher implements DAGDispatcher {
             log.warn("handle function scheme protocol:{} do not support", resource.getSchemeProtocol());
             throw new TaskException(BizError.ERROR_PROCESS_FAIL.getCode(), "handle functionPattern protocol: " + resource.getSchemeProtocol() + "do not support");
         }
-        return protocolDispatcher.handle(resource, dispatchInfo);
+        return handler.apply(protocolDispatcher, resource);
     }
 
     private void updateResourceName(String executionId, String calculatedResourceName, TaskInfo taskInfo) {
@@ -22,6 +22,7 @@ import com.weibo.rill.flow.interfaces.model.resource.BaseResource;
 import com.weibo.rill.flow.interfaces.model.resource.Resource;
 import com.weibo.rill.flow.interfaces.model.strategy.DispatchInfo;
 import com.weibo.rill.flow.interfaces.model.task.FunctionTask;
+import com.weibo.rill.flow.interfaces.model.task.TaskInfo;
 import com.weibo.rill.flow.service.service.FunctionTaskService;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -45,7 +46,9 @@ public class ResourceRefProtocolDispatcher implements DispatcherExtension {
         Long uid = Optional.ofNullable(data.get("uid")).map(it -> Long.parseLong(String.valueOf(it))).orElse(0L);
         BaseResource baseResource = functionTaskService.getTaskResource(uid, data, resource.getScheme());
 
-        ((FunctionTask) dispatchInfo.getTaskInfo().getTask()).setResource(baseResource);
+        // 任务来自可能被多个执行共享的描述符 解析出的resource只设置到本次执行的任务副本上
+        TaskInfo taskInfo = dispatchInfo.getTaskInfo();
+        taskInfo.setTask(((FunctionTask) taskInfo.getTask()).withResource(baseResource));
         log.info("handle invoke super method logic, executionId:{} taskName:{}", dispatchInfo.getExecutionId(), dispatchInfo.getTaskInfo().getName());
         return resourceProtocolDispatcher.handle(resource, dispatchInfo);
     }
@@ -220,7 +220,7 @@ public class OlympiceneFacade {
             ret = systemMonitorStatistic.getExecutionIdsByCode(serviceId, code, cursor, 0, count);
         }
         List<String> executionIds = ret.stream().map(Pair::getLeft).toList();
-        dagFlowRedo.redoFlowWithTrafficLimit(executionIds, taskNames, rate);
+        dagFlowRedo.redoFlowWithTrafficLimit(serviceId, executionIds, taskNames, rate);
     }
 
     public Map<String, Object> taskDegrade(String executionId, String taskName, boolean degradeCurrentTask, boolean degradeFollowingTasks) {
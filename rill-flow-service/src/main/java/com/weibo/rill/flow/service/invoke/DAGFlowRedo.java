@@ -16,9 +16,9 @@
 
 package com.weibo.rill.flow.service.invoke;
 
-import com.google.common.util.concurrent.RateLimiter;
 import com.weibo.rill.flow.interfaces.http.FlowHttpClient;
 import com.weibo.rill.flow.service.service.UrlBuildService;
+import com.weibo.rill.flow.service.statistic.TrafficRateLimiter;
 import com.weibo.rill.flow.olympicene.core.switcher.SwitcherManager;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.collections.CollectionUtils;
@@ -51,7 +51,13 @@ public class DAGFlowRedo {
     @Autowired
     private UrlBuildService urlBuildService;
 
-    public void redoFlowWithTrafficLimit(List<String> executionIds, List<String> taskNames, int rate) {
+    @Autowired
+    private TrafficRateLimiter trafficRateLimiter;
+
+    /**
+     * 同一serviceId的重试在各节点共用rate限制
+     */
+    public void redoFlowWithTrafficLimit(String serviceId, List<String> executionIds, List<String> taskNames, int rate) {
         if (CollectionUtils.isEmpty(executionIds)) {
             return;
         }
@@ -60,7 +66,7 @@ public class DAGFlowRedo {
                 .filter(CollectionUtils::isNotEmpty)
                 .map(it -> StringUtils.join(it, ","))
                 .orElse(null);
-        RateLimiter rateLimiter = RateLimiter.create(rate);
+        String limitId = "redo_" + serviceId;
         executionIds.forEach(executionId ->
                 multiRedoExecutor.execute(() -> {
                     if (!switcherManagerImpl.getSwitcherState("ENABLE_FLOW_DAG_MULTI_REDO")) {
@@ -69,7 +75,7 @@ public class DAGFlowRedo {
                     }
 
                     try {
-                        rateLimiter.acquire();
+                        trafficRateLimiter.acquire(executionId, limitId, rate);
 
                         Map<String, String> headers = new HashMap<>();
                         headers.put("Content-Type", "application/json");
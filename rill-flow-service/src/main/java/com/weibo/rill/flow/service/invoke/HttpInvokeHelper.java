@@ -24,6 +24,7 @@ import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
 
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 
 public interface HttpInvokeHelper {
@@ -37,4 +38,15 @@ public interface HttpInvokeHelper {
     String buildUrl(Resource resource, Map<String, Object> queryParams);
 
     String invokeRequest(String executionId, String taskInfoName, String url, HttpEntity<?> requestEntity, HttpMethod method, int maxInvokeTime);
+
+    /**
+     * 异步发起请求 等待响应期间不占用调用线程
+     */
+    default CompletableFuture<String> invokeRequestAsync(String executionId, String taskInfoName, String url, HttpEntity<?> requestEntity, HttpMethod method, int maxInvokeTime) {
+        try {
+            return CompletableFuture.completedFuture(invokeRequest(executionId, taskInfoName, url, requestEntity, method, maxInvokeTime));
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
 }
@@ -16,49 +16,38 @@
 
 package com.weibo.rill.flow.service.manager;
 
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
 import com.googlecode.aviator.AviatorEvaluator;
 import com.googlecode.aviator.Expression;
 import com.weibo.rill.flow.common.exception.TaskException;
 import com.weibo.rill.flow.common.model.BizError;
 import com.weibo.rill.flow.olympicene.core.switcher.SwitcherManager;
+import com.weibo.rill.flow.olympicene.traversal.helper.AviatorExpressionCache;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
-import java.util.concurrent.ExecutionException;
-
 
+/**
+ * 灰度规则及进度计算使用的aviator表达式
+ * <pre>
+ * 1. ENABLE_AVIATOR_COMPILE_EXPRESSION_CACHE默认开启 与任务transform共用AviatorExpressionCache
+ * 2. 关闭时每次调用重新编译 不进入缓存 仅用于排查缓存问题 任务transform不受该开关影响
+ * </pre>
+ */
 @Slf4j
 @Service
 public class AviatorCache {
     @Autowired
     private SwitcherManager switcherManagerImpl;
 
-    private final LoadingCache<String, Expression> aviatorExpression = CacheBuilder.newBuilder()
-            .maximumSize(1000)
-            .build(new CacheLoader<>() {
-                @Override
-                public Expression load(String script) {
-                    try {
-                        return AviatorEvaluator.compile(script);
-                    } catch (Exception e) {
-                        log.error("aviatorExpression fails, script:{}", script, e);
-                        return null;
-                    }
-                }
-            });
-
     public Expression getAviatorExpression(String script) {
         if (!switcherManagerImpl.getSwitcherState("ENABLE_AVIATOR_COMPILE_EXPRESSION_CACHE")) {
             return AviatorEvaluator.compile(script);
         }
 
         try {
-            return aviatorExpression.get(script);
-        } catch (ExecutionException e) {
+            return AviatorExpressionCache.getInstance().getExpression(script);
+        } catch (Exception e) {
             log.warn("getAviatorExpression fails, script:{}", script, e);
             throw new TaskException(BizError.ERROR_DATA_RESTRICTION, "get aviator script expression fails");
         }
@@ -19,6 +19,7 @@ package com.weibo.rill.flow.service.service;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.googlecode.aviator.Expression;
 import com.weibo.rill.flow.common.constant.ReservedConstant;
 import com.weibo.rill.flow.common.exception.TaskException;
@@ -26,6 +27,8 @@ import com.weibo.rill.flow.common.model.BizError;
 import com.weibo.rill.flow.olympicene.core.model.dag.DAG;
 import com.weibo.rill.flow.olympicene.core.model.dag.DescriptorPO;
 import com.weibo.rill.flow.olympicene.core.model.dag.DescriptorVO;
+import com.weibo.rill.flow.olympicene.core.switcher.SwitcherManager;
+import com.weibo.rill.flow.olympicene.ddl.parser.CompiledDAG;
 import com.weibo.rill.flow.service.converter.DAGDescriptorConverter;
 import com.weibo.rill.flow.service.manager.AviatorCache;
 import com.weibo.rill.flow.service.storage.dao.*;
@@ -38,6 +41,7 @@ import org.springframework.stereotype.Service;
 
 import java.util.Collections;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 
 import static com.weibo.rill.flow.service.util.DAGStorageKeysUtil.MD5_PREFIX;
@@ -59,14 +63,28 @@ public class DAGDescriptorService {
     private DAGBusinessDAO dagBusinessDAO;
     @Autowired
     private AviatorCache aviatorCache;
+    @Autowired
+    private SwitcherManager switcherManagerImpl;
 
     private final Cache<String, String> descriptorIdToRedisKeyCache = CacheBuilder.newBuilder()
             .maximumSize(300)
             .expireAfterWrite(60, TimeUnit.SECONDS)
             .build();
 
+    /**
+     * 已校验的dag描述 key为描述符redisKey
+     * redisKey包含描述符md5 与描述符内容一一对应 别名新增版本后redisKey随之变化 缓存不会返回旧版本
+     */
+    private final Cache<String, CompiledDAG> descriptorRedisKeyToCompiledDAGCache = CacheBuilder.newBuilder()
+            .maximumSize(300)
+            .build();
+
     public DAG getDAG(Long uid, Map<String, Object> input, String dagDescriptorId, boolean useCache) {
-        DescriptorPO descriptorPO = getDescriptorPOFromDAO(uid, input, dagDescriptorId, useCache);
+        DescriptorLocation descriptorLocation = getDescriptorLocation(uid, input, dagDescriptorId, useCache);
+        if (switcherManagerImpl.getSwitcherState("ENABLE_COMPILED_DESCRIPTOR_CACHE")) {
+            return getCompiledDAG(descriptorLocation).newDAG();
+        }
+        DescriptorPO descriptorPO = getDescriptorPOFromDAO(descriptorLocation);
         return dagDescriptorConverter.convertDescriptorPOToDAG(descriptorPO);
     }
 
@@ -96,7 +114,10 @@ public class DAGDescriptorService {
         dagAliasDAO.createAlias(businessId, featureName, alias);
 
         DescriptorPO descriptorPO = dagDescriptorConverter.convertDAGToDescriptorPO(dag);
-        return dagDescriptorDAO.persistDescriptorPO(businessId, featureName, alias, descriptorPO);
+        String descriptorId = dagDescriptorDAO.persistDescriptorPO(businessId, featureName, alias, descriptorPO);
+        // 别名指向新版本 本机缓存的别名redisKey失效
+        descriptorIdToRedisKeyCache.invalidate(DAGStorageKeysUtil.buildDescriptorId(businessId, featureName, alias));
+        return descriptorId;
     }
 
     /**
@@ -104,17 +125,19 @@ public class DAGDescriptorService {
      * <pre>
      * 先根据descriptorId获取其对应的redisKey，再根据redisKey取对应版本的yaml文件具体内容
      *
-     * 该逻辑对应两个缓存
+     * 该逻辑对应三个缓存
      * 1. descriptorIdToRedisKeyCache（service 层）
      *    descriptorId最近更新版本yaml文件在redis存储的key
      *    如：testBusinessId:testFeatureName:release -> testBusinessId:testFeatureName:md5_4297f44b13955235245b2497399d7a93
      * 2. descriptorRedisKeyToYamlCache（DAO 层）
      *    redisKey与yaml文件一一对应 所以该缓存默认启用
      *    如: testBusinessId:testFeatureName:md5_4297f44b13955235245b2497399d7a93 -> yaml
+     * 3. descriptorRedisKeyToCompiledDAGCache（service 层）
+     *    redisKey与校验后的dag描述一一对应 由开关ENABLE_COMPILED_DESCRIPTOR_CACHE控制
      *
      * </pre>
      */
-    private DescriptorPO getDescriptorPOFromDAO(Long uid, Map<String, Object> input, String dagDescriptorId, boolean useCache) {
+    private DescriptorLocation getDescriptorLocation(Long uid, Map<String, Object> input, String dagDescriptorId, boolean useCache) {
         try {
             // 校验dagDescriptorId
             String[] fields = StringUtils.isEmpty(dagDescriptorId) ? new String[0] : dagDescriptorId.trim().split(ReservedConstant.COLON);
@@ -142,7 +165,7 @@ public class DAGDescriptorService {
                         dagAliasDAO.getDescriptorRedisKeyByAlias(businessId, featureName, alias);
             }
 
-            return dagDescriptorDAO.getDescriptorPO(dagDescriptorId, descriptorRedisKey, businessId);
+            return new DescriptorLocation(dagDescriptorId, businessId, descriptorRedisKey);
         } catch (TaskException taskException) {
             throw taskException;
         } catch (Exception e) {
@@ -151,6 +174,40 @@ public class DAGDescriptorService {
         }
     }
 
+    private DescriptorPO getDescriptorPOFromDAO(DescriptorLocation descriptorLocation) {
+        try {
+            return dagDescriptorDAO.getDescriptorPO(descriptorLocation.dagDescriptorId(), descriptorLocation.descriptorRedisKey(), descriptorLocation.businessId());
+        } catch (TaskException taskException) {
+            throw taskException;
+        } catch (Exception e) {
+            log.warn("getDescriptorPOFromDAO fails, dagDescriptorId:{}", descriptorLocation.dagDescriptorId(), e);
+            throw new TaskException(BizError.ERROR_PROCESS_FAIL.getCode(), String.format("get descriptor:%s fails", descriptorLocation.dagDescriptorId()));
+        }
+    }
+
+    /**
+     * 同一版本的描述只解析校验一次 每次调用生成新的DAG bean
+     */
+    private CompiledDAG getCompiledDAG(DescriptorLocation descriptorLocation) {
+        if (StringUtils.isEmpty(descriptorLocation.descriptorRedisKey())) {
+            throw new TaskException(BizError.ERROR_PROCESS_FAIL.getCode(), String.format("descriptor:%s not found", descriptorLocation.dagDescriptorId()));
+        }
+
+        try {
+            return descriptorRedisKeyToCompiledDAGCache.get(descriptorLocation.descriptorRedisKey(),
+                    () -> dagDescriptorConverter.compileDescriptorPO(getDescriptorPOFromDAO(descriptorLocation)));
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            log.warn("getCompiledDAG fails, dagDescriptorId:{}", descriptorLocation.dagDescriptorId(), e);
+            throw new TaskException(BizError.ERROR_PROCESS_FAIL.getCode(), String.format("get descriptor:%s fails", descriptorLocation.dagDescriptorId()));
+        }
+    }
+
+    private record DescriptorLocation(String dagDescriptorId, String businessId, String descriptorRedisKey) {
+    }
+
     private String getDescriptorAliasByGrayRule(Long uid, Map<String, Object> input, String businessId, String featureName) {
         Map<String, String> aliasToGrayRuleMap = dagGrayDAO.getGray(businessId, featureName);
         log.info("getDescriptorAliasByGrayRule map empty:{}", MapUtils.isEmpty(aliasToGrayRuleMap));
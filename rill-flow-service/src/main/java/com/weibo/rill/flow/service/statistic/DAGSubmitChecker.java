@@ -63,6 +63,8 @@ public class DAGSubmitChecker {
     private DynamicClientConfs dynamicClientConfs;
     @Autowired
     private SwitcherManager switcherManagerImpl;
+    @Autowired
+    private ExecutorAdmissionChecker executorAdmissionChecker;
 
     private static final int DAG_INFO_MAX_LENGTH_CONFIG = 30 * 1024 + 600 * 1024; // dag 描述符最大为 30K 每个任务大小最大为 600B 最大存 1000 个任务
 
@@ -92,6 +94,8 @@ public class DAGSubmitChecker {
         String serviceId = ExecutionIdUtil.getServiceId(executionId);
         String businessId = ExecutionIdUtil.getBusinessIdFromServiceId(serviceId);
 
+        executorAdmissionChecker.check(executionId);
+
         StorageCheck storageCheck = storageUsageCheck(executionId, serviceId, businessId);
         if (storageCheck.isUsageLimit()) {
             throw new TaskException(BizError.ERROR_RUNTIME_STORAGE_USAGE_LIMIT.getCode(), "runtime storage limit");
@@ -0,0 +1,93 @@
+/*
+ *  Copyright 2021-2023 Weibo, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.weibo.rill.flow.service.statistic;
+
+import com.weibo.rill.flow.common.concurrent.MonitoredThreadPoolExecutor;
+import com.weibo.rill.flow.common.exception.ExecutorOverloadException;
+import com.weibo.rill.flow.olympicene.core.switcher.SwitcherManager;
+import com.weibo.rill.flow.service.dconfs.BizDConfs;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.collections.MapUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 执行线程池准入控制
+ * 线程池队列满时由提交线程执行 内部的遍历及任务执行不会被丢弃 积压时在提交入口拒绝新的执行
+ * 队列长度阈值不超过队列容量的80% 使新的执行在队列占满前即被拒绝
+ */
+@Slf4j
+@Service
+public class ExecutorAdmissionChecker {
+    private static final String EXECUTOR_TAG = "executor";
+
+    @Autowired
+    private BizDConfs bizDConfs;
+    @Autowired
+    private SwitcherManager switcherManagerImpl;
+    @Autowired(required = false)
+    private MeterRegistry meterRegistry;
+
+    private final Map<String, MonitoredThreadPoolExecutor> executors = new ConcurrentHashMap<>();
+
+    public void register(String name, MonitoredThreadPoolExecutor executor) {
+        executors.put(name, executor);
+        if (meterRegistry == null) {
+            return;
+        }
+        Gauge.builder("rill_flow_executor_queue_depth", executor, MonitoredThreadPoolExecutor::getQueueDepth)
+                .tag(EXECUTOR_TAG, name).register(meterRegistry);
+        Gauge.builder("rill_flow_executor_queue_head_wait_millis", executor, MonitoredThreadPoolExecutor::getHeadWaitInMillis)
+                .tag(EXECUTOR_TAG, name).register(meterRegistry);
+        Gauge.builder("rill_flow_executor_queue_average_wait_millis", executor, MonitoredThreadPoolExecutor::getAverageWaitInMillis)
+                .tag(EXECUTOR_TAG, name).register(meterRegistry);
+        Gauge.builder("rill_flow_executor_active_threads", executor, MonitoredThreadPoolExecutor::getActiveCount)
+                .tag(EXECUTOR_TAG, name).register(meterRegistry);
+    }
+
+    /**
+     * 任一线程池积压超过阈值时抛出ExecutorOverloadException
+     */
+    public void check(String executionId) {
+        if (!switcherManagerImpl.getSwitcherState("ENABLE_EXECUTOR_ADMISSION_CONTROL")) {
+            return;
+        }
+
+        executors.forEach((name, executor) -> {
+            int queueDepth = executor.getQueueDepth();
+            long headWait = executor.getHeadWaitInMillis();
+            int queueLimit = Math.min(executor.getQueueCapacity() * 4 / 5, MapUtils.getIntValue(
+                    bizDConfs.getRuntimeExecutorNameToQueueLimit(), name, bizDConfs.getRuntimeExecutorDefaultQueueLimit()));
+            int waitLimit = bizDConfs.getRuntimeExecutorQueueWaitLimitInMillis();
+            if (queueDepth < queueLimit && headWait < waitLimit) {
+                return;
+            }
+
+            log.warn("executor overload, executionId:{}, executor:{}, queueDepth:{}, headWait:{}ms", executionId, name, queueDepth, headWait);
+            if (meterRegistry != null) {
+                meterRegistry.counter("rill_flow_executor_admission_rejected", EXECUTOR_TAG, name).increment();
+            }
+            throw new ExecutorOverloadException("executor " + name + " overload, queue depth:" + queueDepth + " head wait:" + headWait + "ms");
+        });
+    }
+}
@@ -17,44 +17,80 @@
 package com.weibo.rill.flow.service.statistic;
 
 import com.google.common.collect.Lists;
-import com.weibo.rill.flow.service.storage.RuntimeRedisClients;
-import com.weibo.rill.flow.olympicene.storage.redis.lock.ResourceLoader;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.weibo.rill.flow.common.exception.TaskException;
 import com.weibo.rill.flow.common.model.BizError;
+import com.weibo.rill.flow.olympicene.core.switcher.SwitcherManager;
+import com.weibo.rill.flow.olympicene.storage.redis.lock.ResourceLoader;
+import com.weibo.rill.flow.service.dconfs.BizDConfs;
+import com.weibo.rill.flow.service.storage.RuntimeRedisClients;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Service;
 
 import java.io.IOException;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 
+/**
+ * 提交及批量重试限流
+ * <pre>
+ * 1. 开启ENABLE_LEASED_TRAFFIC_LIMIT时 每个id在redis中维护一个令牌桶 容量为一秒的令牌数 每秒补充maxRate个
+ * 2. 节点每次从令牌桶租用一批令牌在本地消费 批量为maxRate的trafficLimitLeaseErrorPercent 至少为1
+ *    租用的令牌超过LEASE_IN_MILLIS未用完即作废 作废的令牌只会使放行数少于maxRate
+ *    每个节点每个租期至多少放行一批令牌 节点数为N时误差不超过N倍误差百分比
+ * 3. 租到的令牌不足一批时 本地令牌用完后 在补足差额所需的时间内直接拒绝 不访问redis
+ *    因此每次访问redis或取到一批令牌 或带来一段不访问redis的时间
+ * 4. 令牌桶按桶key选择redis 同一id的所有请求共用一个令牌桶 与executionId分布在哪个redis无关
+ * 5. 关闭时按秒计数 每次请求访问一次redis
+ * </pre>
+ */
 @Slf4j
 @Service
 public class TrafficRateLimiter {
     private static final String RATE_KEY_FORMAT = "rate_%s_%s";
+    private static final String BUCKET_KEY_FORMAT = "rate_bucket_%s";
+    private static final DateTimeFormatter RATE_KEY_TIME_FORMATTER = DateTimeFormatter.ofPattern("yyyyMMddHHmmss").withZone(ZoneId.systemDefault());
+    private static final long LEASE_IN_MILLIS = 1000L;
     private static final String ACQUIRE_PERMISSION;
+    private static final String LEASE_TOKENS;
 
     static {
         try {
             ACQUIRE_PERMISSION = ResourceLoader.loadResourceAsText("lua/traffic_rate_limit.lua");
+            LEASE_TOKENS = ResourceLoader.loadResourceAsText("lua/traffic_token_lease.lua");
         } catch (IOException e) {
-            throw new TaskException(BizError.ERROR_INTERNAL, "cannot load traffic_rate_limit.lua", e.getCause());
+            throw new TaskException(BizError.ERROR_INTERNAL, "cannot load traffic rate limit lua", e.getCause());
         }
     }
 
+    private final Map<String, LocalBucket> localBuckets = new ConcurrentHashMap<>();
+
     @Autowired
     @Qualifier("runtimeRedisClients")
     private RuntimeRedisClients runtimeRedisClients;
 
+    @Autowired
+    private SwitcherManager switcherManagerImpl;
+
+    @Autowired
+    private BizDConfs bizDConfs;
+
     /**
      * @return true: 不限速 false otherwise
      */
     public boolean tryAcquire(String executionId, String id, int maxRate) {
+        if (switcherManagerImpl.getSwitcherState("ENABLE_LEASED_TRAFFIC_LIMIT")) {
+            return tryAcquireLeased(executionId, id, maxRate);
+        }
+
         try {
             List<String> keys = Lists.newArrayList(buildRateKey(id));
             List<String> args = Lists.newArrayList(String.valueOf(maxRate));
@@ -65,9 +101,75 @@ public class TrafficRateLimiter {
         }
     }
 
+    /**
+     * 阻塞至获得许可
+     */
+    public void acquire(String executionId, String id, int maxRate) {
+        long waitInMillis = Math.max(1L, 1000L / Math.max(1, maxRate));
+        while (!tryAcquire(executionId, id, maxRate)) {
+            sleep(waitInMillis);
+        }
+    }
+
+    private boolean tryAcquireLeased(String executionId, String id, int maxRate) {
+        if (maxRate <= 0) {
+            return false;
+        }
+
+        LocalBucket bucket = localBuckets.computeIfAbsent(id, it -> new LocalBucket());
+        synchronized (bucket) {
+            long now = currentTimeMillis();
+            if (bucket.tokens > 0 && now < bucket.expireTime) {
+                bucket.tokens--;
+                return true;
+            }
+            if (now < bucket.denyUntil) {
+                return false;
+            }
+
+            int batch = Math.max(1, maxRate * bizDConfs.getTrafficLimitLeaseErrorPercent() / 100);
+            long granted;
+            try {
+                granted = leaseTokens(id, maxRate, batch, now);
+            } catch (Exception e) {
+                log.warn("tryAcquire lease fails, executionId:{}, id:{}, maxRate:{}", executionId, id, maxRate, e);
+                return true;
+            }
+            // 未取满一批时 本地令牌用完后等待补足差额所需的时间再访问redis
+            bucket.tokens = granted;
+            bucket.expireTime = now + LEASE_IN_MILLIS;
+            bucket.denyUntil = now + Math.max(granted > 0 ? 0L : 1L, (batch - granted) * 1000L / maxRate);
+            if (granted <= 0) {
+                return false;
+            }
+            bucket.tokens--;
+            return true;
+        }
+    }
+
+    private long leaseTokens(String id, int maxRate, int batch, long now) {
+        String bucketKey = String.format(BUCKET_KEY_FORMAT, id);
+        List<String> keys = Lists.newArrayList(bucketKey);
+        List<String> args = Lists.newArrayList(String.valueOf(maxRate), String.valueOf(maxRate), String.valueOf(now), String.valueOf(batch));
+        return (Long) runtimeRedisClients.choose(bucketKey).eval(LEASE_TOKENS, keys, args);
+    }
+
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    protected void sleep(long millis) {
+        Uninterruptibles.sleepUninterruptibly(millis, TimeUnit.MILLISECONDS);
+    }
+
     private String buildRateKey(String id) {
-        DateFormat dateFormat = new SimpleDateFormat("yyyyMMddHHmmss");
-        String time = dateFormat.format(new Date());
+        String time = RATE_KEY_TIME_FORMATTER.format(Instant.now());
         return String.format(RATE_KEY_FORMAT, id, time);
     }
+
+    private static class LocalBucket {
+        private long tokens;
+        private long expireTime;
+        private long denyUntil;
+    }
 }
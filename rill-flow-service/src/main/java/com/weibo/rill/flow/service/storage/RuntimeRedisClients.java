@@ -18,14 +18,23 @@ package com.weibo.rill.flow.service.storage;
 
 import com.weibo.rill.flow.service.util.ExecutionIdUtil;
 import com.weibo.rill.flow.olympicene.storage.redis.api.RedisClient;
+import com.weibo.rill.flow.olympicene.storage.constant.DAGRedisPrefix;
 import com.weibo.rill.flow.olympicene.storage.redis.apicommons.GroupedRedisClient;
+import com.weibo.rill.flow.olympicene.storage.redis.apicommons.ShardedRedisClient;
 import com.weibo.rill.flow.service.dconfs.BizDConfs;
 import com.weibo.rill.flow.common.exception.TaskException;
 import com.weibo.rill.flow.common.model.BizError;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 
 @Slf4j
@@ -40,6 +49,34 @@ public class RuntimeRedisClients extends GroupedRedisClient {
         this.defaultRedisClient = defaultRedisClient;
     }
 
+    /**
+     * 配置了分片client时 未按业务/服务指定client的key按一致性hash在默认client及各分片间路由
+     * 分片按配置顺序追加在默认client之后 执行数据以dag_info_ + executionId判断归属 未配置分片时只使用默认client
+     */
+    public static RedisClient buildDefaultRedisClient(List<String> shardClientIds, Map<String, RedisClient> clientIdToRedisClient,
+                                                      RedisClient defaultRedisClient) {
+        List<String> clientIds = Optional.ofNullable(shardClientIds).orElse(Collections.emptyList()).stream()
+                .filter(StringUtils::isNotBlank)
+                .map(String::trim)
+                .distinct()
+                .toList();
+        if (clientIds.isEmpty()) {
+            return defaultRedisClient;
+        }
+
+        List<RedisClient> shards = new ArrayList<>();
+        shards.add(defaultRedisClient);
+        clientIds.forEach(clientId -> {
+            RedisClient client = clientIdToRedisClient.get(clientId);
+            if (client == null) {
+                throw new TaskException(BizError.ERROR_DATA_RESTRICTION, "shard client:" + clientId + " not found");
+            }
+            shards.add(client);
+        });
+        log.info("buildDefaultRedisClient shard clientIds:{}", clientIds);
+        return new ShardedRedisClient(shards, shardingKey -> DAGRedisPrefix.PREFIX_DAG_INFO.getValue() + shardingKey);
+    }
+
     @Override
     public RedisClient choose(String shardingKey) {
         String serviceId = ExecutionIdUtil.getServiceId(shardingKey);
@@ -61,4 +98,11 @@ public class RuntimeRedisClients extends GroupedRedisClient {
         }
         return client;
     }
+
+    @Override
+    protected Collection<RedisClient> allClients() {
+        return Stream.concat(Stream.of(defaultRedisClient), clientIdToRedisClient.values().stream())
+                .distinct()
+                .collect(Collectors.toList());
+    }
 }
@@ -54,7 +54,7 @@ public class RuntimeStorage implements DAGInfoStorage, DAGContextStorage {
                           DAGInfoDeserializeService dagInfoDeserializeService, SwitcherManager switcherManagerImpl) {
         this.bizDConfs = bizDConfs;
 
-        DAGInfoRedisDAO dagInfoRedisDAO = new DAGInfoRedisDAO(redisClient, bizDConfs, dagInfoDeserializeService);
+        DAGInfoRedisDAO dagInfoRedisDAO = new DAGInfoRedisDAO(redisClient, bizDConfs, dagInfoDeserializeService, switcherManagerImpl);
         ContextRedisDAO contextRedisDAO = new ContextRedisDAO(redisClient, bizDConfs, switcherManagerImpl);
         this.runtimeRedisStorage = new DAGRedisStorage(dagInfoRedisDAO, contextRedisDAO);
 
@@ -260,6 +260,30 @@ public class RuntimeStorage implements DAGInfoStorage, DAGContextStorage {
         return getAction(executionId, redisOperation, isValueAcquired, swapOperation);
     }
 
+    @Override
+    @SuppressWarnings("unchecked")
+    public Map<String, Object> getSubContextFields(String executionId, String subContextName, Collection<String> fields) {
+        if (CollectionUtils.isEmpty(fields)) {
+            return Maps.newHashMap();
+        }
+
+        Supplier<Map<String, Object>> redisOperation = () -> runtimeRedisStorage.getSubContextFields(executionId, subContextName, fields);
+        Function<Map<String, Object>, Boolean> isValueAcquired = MapUtils::isNotEmpty;
+        Supplier<Map<String, Object>> swapOperation = () -> {
+            Map<String, Object> ret = Maps.newHashMap();
+            Map<String, Object> totalContext = runtimeSwapStorage.getTotalContext(executionId);
+            if (MapUtils.isNotEmpty(totalContext)) {
+                runtimeRedisStorage.updateContext(executionId, totalContext);
+                Optional.ofNullable(totalContext.get(subContextName))
+                        .map(subContext -> (Map<String, Object>) subContext)
+                        .ifPresent(subContext -> fields.forEach(field -> Optional.ofNullable(subContext.get(field))
+                                .ifPresent(value -> ret.put(field, value))));
+            }
+            return ret;
+        };
+        return getAction(executionId, redisOperation, isValueAcquired, swapOperation);
+    }
+
     @Override
     public void clearContext(String executionId) {
         Runnable redisOperation = () -> runtimeRedisStorage.clearContext(executionId);
@@ -21,6 +21,9 @@ import com.weibo.rill.flow.olympicene.core.switcher.SwitcherManager;
 import com.weibo.rill.flow.service.util.ValueExtractor;
 import com.weibo.rill.flow.olympicene.storage.redis.api.RedisClient;
 import com.weibo.rill.flow.olympicene.storage.save.impl.ContextDAO;
+import com.weibo.rill.flow.olympicene.storage.save.impl.DagStorageCodec;
+import com.weibo.rill.flow.olympicene.storage.save.impl.JsonStorageCodec;
+import com.weibo.rill.flow.olympicene.storage.save.impl.SmileStorageCodec;
 
 
 public class ContextRedisDAO extends ContextDAO {
@@ -53,4 +56,10 @@ public class ContextRedisDAO extends ContextDAO {
     protected int contextMaxLength(String executionId) {
         return ValueExtractor.getConfiguredValue(executionId, bizDConfs.getRedisBusinessIdToContextMaxLength(), 36 * 1024);
     }
+
+    @Override
+    protected DagStorageCodec storageCodec(String executionId) {
+        return switcherManagerImpl.getSwitcherState("ENABLE_BINARY_STORAGE_CODEC") ?
+                SmileStorageCodec.getInstance() : JsonStorageCodec.getInstance();
+    }
 }
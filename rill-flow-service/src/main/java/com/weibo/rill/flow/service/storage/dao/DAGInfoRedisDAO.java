@@ -16,20 +16,26 @@
 
 package com.weibo.rill.flow.service.storage.dao;
 
+import com.weibo.rill.flow.olympicene.core.switcher.SwitcherManager;
 import com.weibo.rill.flow.olympicene.storage.redis.api.RedisClient;
 import com.weibo.rill.flow.olympicene.storage.save.impl.DAGInfoDAO;
 import com.weibo.rill.flow.olympicene.storage.save.impl.DAGInfoDeserializeService;
+import com.weibo.rill.flow.olympicene.storage.save.impl.DagStorageCodec;
+import com.weibo.rill.flow.olympicene.storage.save.impl.JsonStorageCodec;
+import com.weibo.rill.flow.olympicene.storage.save.impl.SmileStorageCodec;
 import com.weibo.rill.flow.service.dconfs.BizDConfs;
 import com.weibo.rill.flow.service.util.ValueExtractor;
 
 
 public class DAGInfoRedisDAO extends DAGInfoDAO {
     private final BizDConfs bizDConfs;
+    private final SwitcherManager switcherManagerImpl;
 
     public DAGInfoRedisDAO(RedisClient redisClient, BizDConfs bizDConfs,
-                           DAGInfoDeserializeService dagInfoDeserializeService) {
+                           DAGInfoDeserializeService dagInfoDeserializeService, SwitcherManager switcherManagerImpl) {
         super(redisClient, dagInfoDeserializeService);
         this.bizDConfs = bizDConfs;
+        this.switcherManagerImpl = switcherManagerImpl;
     }
 
     @Override
@@ -41,4 +47,10 @@ public class DAGInfoRedisDAO extends DAGInfoDAO {
     protected int getUnfinishedStatusReserveTimeInSecond(String executionId) {
         return ValueExtractor.getConfiguredValue(executionId, bizDConfs.getRedisBusinessIdToUnfinishedReserveSecond(), 259200);
     }
+
+    @Override
+    protected DagStorageCodec storageCodec(String executionId) {
+        return switcherManagerImpl.getSwitcherState("ENABLE_BINARY_STORAGE_CODEC") ?
+                SmileStorageCodec.getInstance() : JsonStorageCodec.getInstance();
+    }
 }
@@ -0,0 +1,4 @@
+--callback_outbox_ack.lua
+--KEYS[1] outbox key
+--ARGV 已投递成功的回调
+return redis.call('zrem', KEYS[1], unpack(ARGV))
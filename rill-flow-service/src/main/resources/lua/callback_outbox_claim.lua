@@ -0,0 +1,9 @@
+--callback_outbox_claim.lua
+--KEYS[1] outbox key
+--ARGV[1] now, ARGV[2] count, ARGV[3] lease deadline
+--取出到期的回调 并将score推迟到租约截止时间 节点在租约内未确认时回调会被重新取出
+local members = redis.call('zrangebyscore', KEYS[1], 0, ARGV[1], 'limit', 0, ARGV[2])
+for _, member in ipairs(members) do
+    redis.call('zadd', KEYS[1], ARGV[3], member)
+end
+return members
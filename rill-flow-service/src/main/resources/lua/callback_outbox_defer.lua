@@ -0,0 +1,7 @@
+--callback_outbox_defer.lua
+--KEYS[1] outbox key
+--ARGV[1] score, ARGV[2...] 因endpoint并发已满暂缓投递的回调
+for i = 2, #ARGV do
+    redis.call('zadd', KEYS[1], 'xx', ARGV[1], ARGV[i])
+end
+return #ARGV - 1
@@ -0,0 +1,10 @@
+--callback_outbox_release.lua
+--KEYS[1] outbox key
+--ARGV[1] 暂缓投递的回调, ARGV[2] 写入时的score, ARGV[3] 可投递时间
+--score未变时才放行 暂缓时间已到期并被取出的回调保持其租约
+local score = redis.call('zscore', KEYS[1], ARGV[1])
+if score and tonumber(score) == tonumber(ARGV[2]) then
+    redis.call('zadd', KEYS[1], ARGV[3], ARGV[1])
+    return 1
+end
+return 0
@@ -0,0 +1,14 @@
+--callback_outbox_retry.lua
+--KEYS[1] outbox key, KEYS[2] dead letter key
+--ARGV[1] claimed member, ARGV[2] member with next attempt, ARGV[3] score
+--ARGV[4] 1表示写入死信, ARGV[5] dead letter max size
+if redis.call('zrem', KEYS[1], ARGV[1]) == 0 then
+    return 0
+end
+if ARGV[4] == '1' then
+    redis.call('zadd', KEYS[2], ARGV[3], ARGV[2])
+    redis.call('zremrangebyrank', KEYS[2], 0, -tonumber(ARGV[5]) - 1)
+else
+    redis.call('zadd', KEYS[1], ARGV[3], ARGV[2])
+end
+return 1
@@ -0,0 +1,26 @@
+--traffic_token_lease.lua
+--KEYS[1] bucket key
+--ARGV[1] rate per second, ARGV[2] capacity, ARGV[3] now in millis, ARGV[4] requested
+--按时间补充令牌后 取出至多requested个令牌 返回取出的令牌数
+local rate = tonumber(ARGV[1])
+local capacity = tonumber(ARGV[2])
+local now = tonumber(ARGV[3])
+local requested = tonumber(ARGV[4])
+
+local bucket = redis.call('hmget', KEYS[1], 'tokens', 'ts')
+local tokens = tonumber(bucket[1])
+local ts = tonumber(bucket[2])
+if tokens == nil or ts == nil then
+    tokens = capacity
+    ts = now
+end
+if now > ts then
+    tokens = math.min(capacity, tokens + (now - ts) * rate / 1000)
+    ts = now
+end
+
+local granted = math.min(requested, math.floor(tokens))
+tokens = tokens - granted
+redis.call('hmset', KEYS[1], 'tokens', tostring(tokens), 'ts', tostring(ts))
+redis.call('pexpire', KEYS[1], math.ceil(capacity * 1000 / rate) + 1000)
+return granted
@@ -0,0 +1,316 @@
+package com.weibo.rill.flow.service.component
+
+import com.weibo.rill.flow.common.exception.TaskException
+import com.weibo.rill.flow.common.model.BizError
+import com.weibo.rill.flow.common.util.SerializerUtil
+import com.weibo.rill.flow.olympicene.core.switcher.SwitcherManager
+import com.weibo.rill.flow.olympicene.storage.redis.api.RedisClient
+import com.weibo.rill.flow.olympicene.storage.redis.lock.ResourceLoader
+import com.weibo.rill.flow.service.invoke.HttpInvokeHelper
+import org.springframework.http.HttpEntity
+import spock.lang.Specification
+
+import java.nio.charset.StandardCharsets
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * 回调发件箱 redis按OutboxRedis在内存中模拟zset及lua脚本 接收方为本地桩
+ */
+class CallbackOutboxTest extends Specification {
+    OutboxRedis redis = new OutboxRedis()
+    List<CallbackOutbox> outboxes = []
+
+    def cleanup() {
+        outboxes.each { it.shutdown() }
+    }
+
+    def "callbacks claimed by a hung node are delivered by another node after lease"() {
+        given:
+        CountDownLatch hang = new CountDownLatch(1)
+        AtomicInteger hungRequests = new AtomicInteger()
+        CallbackOutbox nodeA = outbox({ String url, String body ->
+            hungRequests.incrementAndGet()
+            hang.await()
+            throw new TaskException(BizError.ERROR_INVOKE_URI.getCode(), 'connection reset')
+        }, 2)
+        nodeA.leaseInMillis = 500
+        Receiver receiverB = new Receiver()
+        CallbackOutbox nodeB = outbox(receiverB, 2)
+        20.times { nodeA.enqueue(message('execution_' + it, 'resource', 'http://receiver/callback')) }
+
+        when:
+        nodeA.start()
+        waitUntil { hungRequests.get() == 2 }
+        nodeB.start()
+        waitUntil { receiverB.bodies.size() == 20 }
+        hang.countDown()
+        waitUntil { nodeA.retriedCount == 8 }
+
+        then:
+        receiverB.bodies.collect { it['execution_id'] } as Set == (0..<20).collect { 'execution_' + it } as Set
+        nodeB.deliveredCount == 20
+        redis.size('callback_outbox_0') == 0
+        redis.size('callback_outbox_dead_0') == 0
+    }
+
+    def "held callbacks are delivered once released or after hold expires and idle endpoints are removed"() {
+        given:
+        Receiver receiver = new Receiver()
+        CallbackOutbox node = outbox(receiver, 2)
+        node.holdInMillis = 60000
+        Runnable releaseA = node.hold(message('execution_a', 'resource', 'http://receiver/callback'))
+        node.holdInMillis = 1500
+        node.hold(message('execution_b', 'resource', 'http://receiver/callback'))
+
+        when:
+        node.start()
+        sleep(100)
+
+        then:
+        receiver.bodies.isEmpty()
+
+        when:
+        releaseA.run()
+        waitUntil { receiver.bodies.size() == 1 }
+
+        then:
+        receiver.bodies[0]['execution_id'] == 'execution_a'
+
+        when:
+        waitUntil { receiver.bodies.size() == 2 }
+        waitUntil { node.endpoints.isEmpty() }
+
+        then:
+        receiver.bodies[1]['execution_id'] == 'execution_b'
+        redis.size('callback_outbox_0') == 0
+    }
+
+    def "failed callbacks back off exponentially and move to dead letter"() {
+        given:
+        List<Long> attemptTimes = new CopyOnWriteArrayList<>()
+        CallbackOutbox node = outbox({ String url, String body ->
+            attemptTimes.add(System.currentTimeMillis())
+            throw new TaskException(BizError.ERROR_INVOKE_URI.getCode(), 'http 500')
+        }, 2)
+        node.maxAttempts = 4
+        node.baseBackoffInMillis = 100
+        node.enqueue(message('execution_0', 'resource', 'http://receiver/callback'))
+
+        when:
+        node.start()
+        waitUntil { node.deadLetterCount == 1 }
+        List<Long> intervals = (1..<attemptTimes.size()).collect { attemptTimes[it] - attemptTimes[it - 1] }
+
+        then:
+        attemptTimes.size() == 4
+        intervals[0] >= 100 && intervals[1] >= 200 && intervals[2] >= 400
+        redis.size('callback_outbox_0') == 0
+        SerializerUtil.deserialize(redis.members('callback_outbox_dead_0')[0].getBytes(StandardCharsets.UTF_8), CallbackMessage.class).attempt == 4
+    }
+
+    def "slow endpoint does not hold workers of other endpoints"() {
+        given:
+        Receiver receiver = new Receiver(latencies: ['http://slow/callback': 500L])
+        CallbackOutbox node = outbox(receiver, 8)
+        node.endpointConcurrency = 2
+        40.times {
+            node.enqueue(message('slow_' + it, 'slow', 'http://slow/callback'))
+            node.enqueue(message('fast_' + it, 'fast', 'http://fast/callback'))
+        }
+
+        when:
+        node.start()
+        waitUntil { receiver.bodies.count { it['execution_id'].startsWith('fast_') } == 40 }
+
+        then:
+        receiver.bodies.count { it['execution_id'].startsWith('slow_') } <= 8
+        receiver.maxConcurrency['http://slow/callback'] <= 2
+    }
+
+    def "batch delivery merges callbacks into fewer requests"() {
+        given:
+        int count = 3000
+
+        when:
+        int singleRequests = deliver(count, false)
+        int batchRequests = deliver(count, true)
+
+        then:
+        singleRequests == count
+        batchRequests < count / 10
+    }
+
+    def "outbox polls only when switch is on and delivers with invoke settings of message"() {
+        given:
+        boolean enabled = false
+        SwitcherManager switcherManager = Mock(SwitcherManager)
+        switcherManager.getSwitcherState("ENABLE_CALLBACK_OUTBOX") >> { enabled }
+        List<List<Object>> invocations = new CopyOnWriteArrayList<>()
+        CallbackOutbox callbackOutbox = new CallbackOutbox(redis.client(),
+                [invokeRequest: { Object[] args -> invocations.add([args[1], args[5]]); '{"code":0}' }] as HttpInvokeHelper, 2)
+        callbackOutbox.drainPeriodInMillis = 20
+        callbackOutbox.switcherManager = switcherManager
+        outboxes.add(callbackOutbox)
+        callbackOutbox.enqueue(message('execution_0', 'resource', 'http://receiver/callback').toBuilder()
+                .taskInfoName('A').maxInvokeTime(2).build())
+
+        when:
+        callbackOutbox.start()
+        sleep(200)
+
+        then:
+        redis.evals.get() == 0
+        invocations.isEmpty()
+
+        when:
+        enabled = true
+        waitUntil { callbackOutbox.deliveredCount == 1 }
+
+        then:
+        invocations == [['A', 2]]
+    }
+
+    /**
+     * 返回全部送达时接收方收到的请求数
+     */
+    private static int deliver(int count, boolean batch) {
+        OutboxRedis outboxRedis = new OutboxRedis()
+        Receiver receiver = new Receiver(latencies: ['http://receiver/callback': 5L])
+        CallbackOutbox node = new CallbackOutbox(outboxRedis.client(), receiver.client(), 16)
+        node.shardCount = 4
+        node.drainPeriodInMillis = 20
+        node.endpointConcurrency = 16
+        node.batchResourceNames = (batch ? ['resource'] : []) as Set<String>
+        count.times { node.enqueue(message('execution_' + it, 'resource', 'http://receiver/callback')) }
+
+        node.start()
+        try {
+            waitUntil(60000) { receiver.bodies.size() == count }
+            assert receiver.bodies.collect { it['execution_id'] } as Set == (0..<count).collect { 'execution_' + it } as Set
+            return receiver.requests.get()
+        } finally {
+            node.shutdown()
+        }
+    }
+
+    private CallbackOutbox outbox(Object receiver, int workerCount) {
+        HttpInvokeHelper httpInvokeHelper = receiver instanceof Receiver ? receiver.client() :
+                [invokeRequest: { Object[] args -> (receiver as Closure).call(args[2], (args[3] as HttpEntity).body) }] as HttpInvokeHelper
+        CallbackOutbox callbackOutbox = new CallbackOutbox(redis.client(), httpInvokeHelper, workerCount)
+        callbackOutbox.drainPeriodInMillis = 20
+        outboxes.add(callbackOutbox)
+        return callbackOutbox
+    }
+
+    private static CallbackMessage message(String executionId, String resourceName, String url) {
+        return CallbackMessage.builder().executionId(executionId).resourceName(resourceName).url(url)
+                .headers(['X-Execution-Id': executionId]).body(SerializerUtil.serializeToString(['execution_id': executionId])).build()
+    }
+
+    private static void waitUntil(long timeoutInMillis = 10000, Closure<Boolean> condition) {
+        long deadline = System.currentTimeMillis() + timeoutInMillis
+        while (!condition.call()) {
+            assert System.currentTimeMillis() < deadline
+            sleep(5)
+        }
+    }
+
+    /**
+     * 本地接收方 按url模拟响应耗时 记录收到的回调及各url最大并发
+     */
+    static class Receiver {
+        Map<String, Long> latencies = [:]
+        List<Map> bodies = new CopyOnWriteArrayList<>()
+        AtomicInteger requests = new AtomicInteger()
+        Map<String, AtomicInteger> running = new ConcurrentHashMap<>()
+        Map<String, Integer> maxConcurrency = new ConcurrentHashMap<>()
+
+        HttpInvokeHelper client() {
+            return [invokeRequest: { Object[] args -> receive(args[2] as String, (args[3] as HttpEntity).body as String) }] as HttpInvokeHelper
+        }
+
+        String receive(String url, String body) {
+            AtomicInteger concurrency = running.computeIfAbsent(url) { new AtomicInteger() }
+            int current = concurrency.incrementAndGet()
+            maxConcurrency.merge(url, current) { a, b -> Math.max(a, b) }
+            try {
+                Long latency = latencies[url]
+                if (latency) {
+                    sleep(latency)
+                }
+                Object received = SerializerUtil.deserialize(body.getBytes(StandardCharsets.UTF_8), Object.class)
+                bodies.addAll(received instanceof List ? received : [received])
+                requests.incrementAndGet()
+                return '{"code":0}'
+            } finally {
+                concurrency.decrementAndGet()
+            }
+        }
+    }
+
+    /**
+     * 内存中的zset 按脚本内容执行发件箱脚本
+     */
+    static class OutboxRedis {
+        static final String CLAIM = ResourceLoader.loadResourceAsText('lua/callback_outbox_claim.lua')
+        static final String ACK = ResourceLoader.loadResourceAsText('lua/callback_outbox_ack.lua')
+        static final String RETRY = ResourceLoader.loadResourceAsText('lua/callback_outbox_retry.lua')
+        static final String DEFER = ResourceLoader.loadResourceAsText('lua/callback_outbox_defer.lua')
+        static final String RELEASE = ResourceLoader.loadResourceAsText('lua/callback_outbox_release.lua')
+
+        Map<String, Map<String, Double>> zsets = [:]
+        AtomicInteger evals = new AtomicInteger()
+
+        synchronized int size(String key) {
+            return zsets[key]?.size() ?: 0
+        }
+
+        synchronized List<String> members(String key) {
+            return zsets[key]?.keySet()?.toList() ?: []
+        }
+
+        RedisClient client() {
+            return [zadd: { Object[] args -> zadd(args[0] as String, args[1] as double, args[2] as String) },
+                    eval: { Object[] args -> eval(args[0] as String, args[2] as List<String>, args[3] as List<String>) }] as RedisClient
+        }
+
+        synchronized long zadd(String key, double score, String member) {
+            Map<String, Double> zset = zsets.computeIfAbsent(key) { [:] }
+            return zset.put(member, score) == null ? 1L : 0L
+        }
+
+        synchronized Object eval(String script, List<String> keys, List<String> args) {
+            evals.incrementAndGet()
+            Map<String, Double> zset = zsets.computeIfAbsent(keys[0]) { [:] }
+            switch (script) {
+                case CLAIM:
+                    List<String> members = zset.findAll { it.value <= (args[0] as double) }
+                            .sort { a, b -> a.value <=> b.value }.keySet().take(args[1] as int).toList()
+                    members.each { zset[it] = args[2] as double }
+                    return members.collect { it.getBytes(StandardCharsets.UTF_8) }
+                case ACK:
+                    return args.count { zset.remove(it) != null } as long
+                case RETRY:
+                    if (zset.remove(args[0]) == null) {
+                        return 0L
+                    }
+                    zadd(args[3] == '1' ? keys[1] : keys[0], args[2] as double, args[1])
+                    return 1L
+                case DEFER:
+                    args.drop(1).each { if (zset.containsKey(it)) zset[it] = args[0] as double }
+                    return (args.size() - 1) as long
+                case RELEASE:
+                    if (zset[args[0]] != (args[1] as double)) {
+                        return 0L
+                    }
+                    zset[args[0]] = args[2] as double
+                    return 1L
+                default:
+                    throw new IllegalArgumentException('unknown script')
+            }
+        }
+    }
+}
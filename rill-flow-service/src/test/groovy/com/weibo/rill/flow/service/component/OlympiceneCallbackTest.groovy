@@ -1,12 +1,15 @@
 package com.weibo.rill.flow.service.component
 
 import com.weibo.rill.flow.interfaces.model.http.HttpParameter
+import com.weibo.rill.flow.interfaces.model.task.TaskInfo
+import com.weibo.rill.flow.olympicene.core.event.Event
 import com.weibo.rill.flow.olympicene.core.model.dag.DAG
 import com.weibo.rill.flow.olympicene.core.model.dag.DAGInfo
 import com.weibo.rill.flow.olympicene.core.model.dag.DAGStatus
 import com.weibo.rill.flow.olympicene.core.model.strategy.CallbackConfig
 import com.weibo.rill.flow.olympicene.core.switcher.SwitcherManager
 import com.weibo.rill.flow.olympicene.traversal.callback.DAGCallbackInfo
+import com.weibo.rill.flow.olympicene.traversal.callback.DAGEvent
 import com.weibo.rill.flow.olympicene.traversal.mappings.JSONPathInputOutputMapping
 import com.weibo.rill.flow.service.invoke.HttpInvokeHelper
 import com.weibo.rill.flow.service.statistic.TenantTaskStatistic
@@ -108,4 +111,77 @@ class OlympiceneCallbackTest extends Specification {
             entity.getHeaders().get("Authorization") == ["Bearer token"]
         }, HttpMethod.POST, 1)
     }
+
+    def "test onEvent holds callback in outbox before executor and releases it after long term storage"() {
+        given:
+        CallbackOutbox callbackOutbox = Mock(CallbackOutbox)
+        callback.setCallbackOutbox(callbackOutbox)
+        Runnable release = Mock(Runnable)
+        Runnable queued = null
+        switcherManagerImpl.getSwitcherState("ENABLE_CALLBACK_OUTBOX") >> true
+        switcherManagerImpl.getSwitcherState("ENABLE_FUNCTION_DISPATCH_RET_CHECK") >> true
+        DAGCallbackInfo dagCallbackInfo = completedCallbackInfo()
+
+        when:
+        callback.onEvent(Event.<DAGCallbackInfo>builder().id("testExecutionId").eventCode(DAGEvent.DAG_SUCCEED.code).data(dagCallbackInfo).build())
+
+        then:
+        1 * callbackOutbox.hold({ CallbackMessage message ->
+            message.executionId == "testExecutionId" && message.taskInfoName == "A" && message.maxInvokeTime == 2 &&
+                    message.url == "http://test.url" && message.headers == ["Authorization": "Bearer token"] &&
+                    message.body.contains('"execution_id":"testExecutionId"')
+        }) >> release
+
+        then:
+        1 * callbackExecutor.execute(_) >> { args -> queued = args[0] as Runnable }
+        0 * longTermStorage.storeDAGInfoAndContext(_)
+        0 * release.run()
+
+        when:
+        queued.run()
+
+        then:
+        1 * longTermStorage.storeDAGInfoAndContext(dagCallbackInfo)
+
+        then:
+        1 * release.run()
+        0 * httpInvokeHelper.invokeRequest(*_)
+    }
+
+    def "test onEvent invokes callback directly when outbox write fails"() {
+        given:
+        CallbackOutbox callbackOutbox = Mock(CallbackOutbox)
+        callback.setCallbackOutbox(callbackOutbox)
+        callbackOutbox.hold(_) >> { throw new IllegalStateException("redis down") }
+        callbackExecutor.execute(_) >> { args -> ((Runnable) args[0]).run() }
+        switcherManagerImpl.getSwitcherState("ENABLE_CALLBACK_OUTBOX") >> true
+        DAGCallbackInfo dagCallbackInfo = completedCallbackInfo()
+
+        when:
+        callback.onEvent(Event.<DAGCallbackInfo>builder().id("testExecutionId").eventCode(DAGEvent.DAG_SUCCEED.code).data(dagCallbackInfo).build())
+
+        then:
+        1 * longTermStorage.storeDAGInfoAndContext(dagCallbackInfo)
+
+        then:
+        1 * httpInvokeHelper.invokeRequest("testExecutionId", "A", "http://test.url", _, HttpMethod.POST, 1)
+    }
+
+    private DAGCallbackInfo completedCallbackInfo() {
+        DAGInfo dagInfo = Mock(DAGInfo)
+        DAG dag = Mock(DAG)
+        dagInfo.getDag() >> dag
+        CallbackConfig callbackConfig = Mock(CallbackConfig)
+        DAGCallbackInfo dagCallbackInfo = Mock(DAGCallbackInfo)
+        dagCallbackInfo.getDagInfo() >> dagInfo
+        dagCallbackInfo.getTaskInfo() >> new TaskInfo(name: "A")
+        callbackConfig.getResourceName() >> "http://test.url"
+        callbackConfig.getInputMappings() >> []
+        dag.getCallbackConfig() >> callbackConfig
+        dagInfo.getExecutionId() >> "testExecutionId"
+        dagInfo.getDagStatus() >> DAGStatus.SUCCEED
+        httpInvokeHelper.buildRequestParams(*_) >> HttpParameter.builder().header(["Authorization": "Bearer token"]).body(new HashMap<String, Object>()).build()
+        httpInvokeHelper.buildUrl(*_) >> "http://test.url"
+        return dagCallbackInfo
+    }
 }
@@ -16,13 +16,26 @@
 
 package com.weibo.rill.flow.service.dispatcher
 
+import com.weibo.rill.flow.common.exception.TaskException
 import com.weibo.rill.flow.interfaces.model.http.HttpParameter
+import com.weibo.rill.flow.interfaces.model.resource.Resource
+import com.weibo.rill.flow.interfaces.model.strategy.DispatchInfo
+import com.weibo.rill.flow.interfaces.model.task.FunctionTask
+import com.weibo.rill.flow.interfaces.model.task.TaskInfo
+import com.weibo.rill.flow.olympicene.core.switcher.SwitcherManager
+import com.weibo.rill.flow.service.invoke.HttpInvokeHelper
+import com.weibo.rill.flow.service.statistic.DAGResourceStatistic
 import org.springframework.http.HttpMethod
 import org.springframework.http.MediaType
 import org.springframework.util.LinkedMultiValueMap
 import org.springframework.util.MultiValueMap
+import org.springframework.web.client.RestClientResponseException
 import spock.lang.Specification
 
+import java.nio.charset.StandardCharsets
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+
 class FunctionProtocolDispatcherTest extends Specification {
     FunctionProtocolDispatcher dispatcher = new FunctionProtocolDispatcher();
 
@@ -52,4 +65,31 @@ class FunctionProtocolDispatcherTest extends Specification {
         HttpMethod.POST | ["Content-Type": MediaType.APPLICATION_FORM_URLENCODED_VALUE] | [k: "v", name: "Bob"]         | [k: ["v"], name: ["Bob"]]
     }
 
+    def "handleAsync should update resource status with response body of non 2xx response"() {
+        given:
+        HttpInvokeHelper httpInvokeHelper = Mock(HttpInvokeHelper)
+        DAGResourceStatistic dagResourceStatistic = Mock(DAGResourceStatistic)
+        FunctionProtocolDispatcher asyncDispatcher = new FunctionProtocolDispatcher(httpInvokeHelper: httpInvokeHelper,
+                dagResourceStatistic: dagResourceStatistic, switcherManagerImpl: Mock(SwitcherManager))
+        DispatchInfo dispatchInfo = DispatchInfo.builder()
+                .executionId("testExecutionId")
+                .taskInfo(new TaskInfo(name: "testTask", task: new FunctionTask('testTask', null, null, 'function', null, false, 'http://test.com/test', null,
+                        null, null, null, null, null, null, null, null, null, null, null, false, null, null, null, null, null, null)))
+                .headers(new LinkedMultiValueMap<>())
+                .input([:])
+                .build()
+        httpInvokeHelper.functionRequestParams(*_) >> HttpParameter.builder().header([:]).queryParams([:]).body([:]).build()
+        httpInvokeHelper.buildUrl(*_) >> "http://test.com/test"
+        httpInvokeHelper.invokeRequestAsync(*_) >> CompletableFuture.failedFuture(new RestClientResponseException("500 Internal Server Error",
+                500, "Internal Server Error", null, '{"error":"overload"}'.getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8))
+
+        when:
+        asyncDispatcher.handleAsync(new Resource("http://test.com/test"), dispatchInfo).join()
+
+        then:
+        CompletionException e = thrown(CompletionException)
+        e.cause instanceof TaskException
+        e.cause.message.contains("status code: 500")
+        1 * dagResourceStatistic.updateUrlTypeResourceStatus("testExecutionId", "testTask", "http://test.com/test", '{"error":"overload"}')
+    }
 }
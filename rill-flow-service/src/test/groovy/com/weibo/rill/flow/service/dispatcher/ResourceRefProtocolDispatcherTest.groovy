@@ -0,0 +1,71 @@
+/*
+ *  Copyright 2021-2023 Weibo, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.weibo.rill.flow.service.dispatcher
+
+import com.weibo.rill.flow.interfaces.model.resource.BaseResource
+import com.weibo.rill.flow.interfaces.model.resource.Resource
+import com.weibo.rill.flow.interfaces.model.strategy.DispatchInfo
+import com.weibo.rill.flow.interfaces.model.task.BaseTask
+import com.weibo.rill.flow.interfaces.model.task.FunctionTask
+import com.weibo.rill.flow.interfaces.model.task.TaskInfo
+import com.weibo.rill.flow.olympicene.core.model.dag.DAG
+import com.weibo.rill.flow.olympicene.core.model.dag.DAGType
+import com.weibo.rill.flow.olympicene.storage.save.impl.DAGDescriptorCache
+import com.weibo.rill.flow.olympicene.storage.save.impl.DagStorageSerializer
+import com.weibo.rill.flow.service.service.FunctionTaskService
+import spock.lang.Specification
+
+class ResourceRefProtocolDispatcherTest extends Specification {
+    FunctionTaskService functionTaskService = Mock(FunctionTaskService)
+    ResourceRefProtocolDispatcher dispatcher = new ResourceRefProtocolDispatcher(
+            resourceProtocolDispatcher: new ResourceProtocolDispatcher(), functionTaskService: functionTaskService)
+    Map<String, String> dispatchedResources = [:]
+
+    def setup() {
+        ResourceProtocolDispatcher.resourceDispatcherMap.put('test', { DispatchInfo dispatchInfo ->
+            dispatchedResources.put(dispatchInfo.executionId, ((FunctionTask) dispatchInfo.taskInfo.task).resource.name)
+            return '{}'
+        } as ResourceDispatcher)
+    }
+
+    def cleanup() {
+        ResourceProtocolDispatcher.resourceDispatcherMap.remove('test')
+    }
+
+    def "executions sharing one cached descriptor dispatch with their own resource"() {
+        given:
+        FunctionTask task = new FunctionTask('A', null, null, 'function', null, false, 'resourceRef://ref', null, null, null,
+                null, null, null, null, null, null, null, null, null, false, null, null, null, null, null, null)
+        DAG dag = new DAG('workspace', 'dagName', '1.0.0', DAGType.FLOW, null, [task as BaseTask], null, null, null, null, 'ns', 'service', null, null)
+        DAGDescriptorCache cache = new DAGDescriptorCache(10)
+        functionTaskService.getTaskResource(_, _, _) >> { args -> new BaseResource('resource_' + args[0], null, 'test') }
+
+        when:
+        ['execution1': 1L, 'execution2': 2L].each { executionId, uid ->
+            BaseTask cachedTask = cache.get('dag_descriptor_md5', { DagStorageSerializer.serialize(dag) }).baseTasks['A']
+            TaskInfo taskInfo = new TaskInfo(name: 'A', task: cachedTask)
+            dispatcher.handle(new Resource('resourceRef://ref'),
+                    DispatchInfo.builder().executionId(executionId).taskInfo(taskInfo).input(['uid': uid]).build())
+        }
+        FunctionTask cachedTask = cache.get('dag_descriptor_md5', { throw new IllegalStateException() }).baseTasks['A'] as FunctionTask
+
+        then:
+        dispatchedResources == ['execution1': 'resource_1', 'execution2': 'resource_2']
+        cachedTask.resource == null
+        cachedTask.resourceName == 'resourceRef://ref'
+    }
+}
@@ -20,7 +20,13 @@ import com.weibo.rill.flow.common.exception.TaskException
 import com.weibo.rill.flow.olympicene.core.model.dag.DAG
 import com.weibo.rill.flow.olympicene.core.model.dag.DescriptorPO
 import com.weibo.rill.flow.olympicene.core.model.dag.DescriptorVO
+import com.weibo.rill.flow.olympicene.core.switcher.SwitcherManager
+import com.weibo.rill.flow.olympicene.ddl.parser.DAGStringParser
+import com.weibo.rill.flow.olympicene.ddl.serialize.YAMLSerializer
+import com.weibo.rill.flow.olympicene.ddl.validation.dag.impl.FlowDAGValidator
+import com.weibo.rill.flow.olympicene.ddl.validation.task.impl.NotSupportedTaskValidator
 import com.weibo.rill.flow.service.converter.DAGDescriptorConverter
+import com.weibo.rill.flow.service.converter.DAGDescriptorConverterImpl
 import com.weibo.rill.flow.service.manager.AviatorCache
 import com.weibo.rill.flow.service.storage.dao.*
 import spock.lang.Specification
@@ -34,6 +40,7 @@ class DAGDescriptorServiceTest extends Specification {
     DAGGrayDAO dagGrayDAO
     DAGBusinessDAO dagBusinessDAO
     AviatorCache aviatorCache
+    SwitcherManager switcherManager
 
     static final String VALID_BUSINESS_ID = "testbusiness123"
     static final String VALID_FEATURE_NAME = "testfeature456"
@@ -50,6 +57,7 @@ class DAGDescriptorServiceTest extends Specification {
         dagGrayDAO = Mock(DAGGrayDAO)
         dagBusinessDAO = Mock(DAGBusinessDAO)
         aviatorCache = Mock(AviatorCache)
+        switcherManager = Mock(SwitcherManager)
 
         service = new DAGDescriptorService(
             dagAliasDAO: dagAliasDAO,
@@ -58,7 +66,8 @@ class DAGDescriptorServiceTest extends Specification {
             dagDescriptorConverter: dagDescriptorConverter,
             dagGrayDAO: dagGrayDAO,
             dagBusinessDAO: dagBusinessDAO,
-            aviatorCache: aviatorCache
+            aviatorCache: aviatorCache,
+            switcherManagerImpl: switcherManager
         )
     }
 
@@ -216,4 +225,147 @@ class DAGDescriptorServiceTest extends Specification {
         VALID_BUSINESS_ID  | VALID_FEATURE_NAME  | "invalid_alias"| new DescriptorVO("test")
         VALID_BUSINESS_ID  | VALID_FEATURE_NAME  | VALID_ALIAS    | null
     }
+
+    def "test getDAG with compiled descriptor cache returns a new dag for each call"() {
+        given:
+        DAGDescriptorService cachedService = buildCompiledCacheService()
+        String descriptor = buildDescriptor("v1", 3)
+
+        when:
+        DAG first = cachedService.getDAG(123L, [:], VALID_DESCRIPTOR_ID, true)
+        first.getTasks().clear()
+        DAG second = cachedService.getDAG(123L, [:], VALID_DESCRIPTOR_ID, true)
+
+        then:
+        1 * dagAliasDAO.getDescriptorRedisKeyByAlias(VALID_BUSINESS_ID, VALID_FEATURE_NAME, VALID_ALIAS) >> VALID_REDIS_KEY
+        1 * dagDescriptorDAO.getDescriptorPO(VALID_DESCRIPTOR_ID, VALID_REDIS_KEY, VALID_BUSINESS_ID) >> new DescriptorPO(descriptor)
+        !first.is(second)
+        second.getTasks().size() == 3
+        second.getTasks()*.name == ["v1Task0", "v1Task1", "v1Task2"]
+    }
+
+    def "test getDAG with compiled descriptor cache never serves stale version after alias update"() {
+        given:
+        DAGDescriptorService cachedService = buildCompiledCacheService()
+        Map<String, String> redis = [:]
+        String aliasRedisKey = null
+        dagAliasDAO.getDescriptorRedisKeyByAlias(VALID_BUSINESS_ID, VALID_FEATURE_NAME, VALID_ALIAS) >> { aliasRedisKey }
+        dagDescriptorDAO.getDescriptorPO(_, _, _) >> { args -> new DescriptorPO(redis[args[1]]) }
+        dagDescriptorDAO.persistDescriptorPO(VALID_BUSINESS_ID, VALID_FEATURE_NAME, VALID_ALIAS, _) >> { args ->
+            aliasRedisKey = "${VALID_BUSINESS_ID}:${VALID_FEATURE_NAME}:md5_" + args[3].descriptor.md5()
+            redis[aliasRedisKey] = args[3].descriptor
+            return aliasRedisKey
+        }
+
+        when:
+        cachedService.saveDescriptorVO(VALID_BUSINESS_ID, VALID_FEATURE_NAME, VALID_ALIAS, new DescriptorVO(buildDescriptor("v1", 1)))
+        DAG v1 = cachedService.getDAG(123L, [:], VALID_DESCRIPTOR_ID, useCache)
+        cachedService.saveDescriptorVO(VALID_BUSINESS_ID, VALID_FEATURE_NAME, VALID_ALIAS, new DescriptorVO(buildDescriptor("v2", 2)))
+        DAG v2 = cachedService.getDAG(123L, [:], VALID_DESCRIPTOR_ID, useCache)
+        cachedService.saveDescriptorVO(VALID_BUSINESS_ID, VALID_FEATURE_NAME, VALID_ALIAS, new DescriptorVO(buildDescriptor("v1", 1)))
+        DAG v1Again = cachedService.getDAG(123L, [:], VALID_DESCRIPTOR_ID, useCache)
+
+        then:
+        v1.getTasks()*.name == ["v1Task0"]
+        v2.getTasks()*.name == ["v2Task0", "v2Task1"]
+        v1Again.getTasks()*.name == ["v1Task0"]
+
+        where:
+        useCache << [true, false]
+    }
+
+    def "test getDAG with compiled descriptor cache follows gray rule changes"() {
+        given:
+        DAGDescriptorService cachedService = buildCompiledCacheService()
+        String descriptorId = "${VALID_BUSINESS_ID}:${VALID_FEATURE_NAME}"
+        Map<String, String> grayRules = [:]
+        dagGrayDAO.getGray(VALID_BUSINESS_ID, VALID_FEATURE_NAME) >> { grayRules }
+        aviatorCache.getAviatorExpression("uid > 100") >> Mock(com.googlecode.aviator.Expression) {
+            execute(_) >> true
+        }
+        dagAliasDAO.getDescriptorRedisKeyByAlias(VALID_BUSINESS_ID, VALID_FEATURE_NAME, "release") >> "release_key"
+        dagAliasDAO.getDescriptorRedisKeyByAlias(VALID_BUSINESS_ID, VALID_FEATURE_NAME, "gray") >> "gray_key"
+        dagDescriptorDAO.getDescriptorPO(descriptorId, "release_key", VALID_BUSINESS_ID) >> new DescriptorPO(buildDescriptor("release", 1))
+        dagDescriptorDAO.getDescriptorPO(descriptorId, "gray_key", VALID_BUSINESS_ID) >> new DescriptorPO(buildDescriptor("gray", 1))
+
+        when:
+        DAG beforeGray = cachedService.getDAG(123L, [:], descriptorId, true)
+        grayRules.put("gray", "uid > 100")
+        DAG afterGray = cachedService.getDAG(123L, [:], descriptorId, true)
+
+        then:
+        beforeGray.getTasks()*.name == ["releaseTask0"]
+        afterGray.getTasks()*.name == ["grayTask0"]
+    }
+
+    def "test getDAG with compiled descriptor cache throws when descriptor not found"() {
+        given:
+        DAGDescriptorService cachedService = buildCompiledCacheService()
+        dagGrayDAO.getGray(_, _) >> [:]
+        dagAliasDAO.getDescriptorRedisKeyByAlias(_, _, _) >> null
+
+        when:
+        cachedService.getDAG(123L, [:], "${VALID_BUSINESS_ID}:${VALID_FEATURE_NAME}", false)
+
+        then:
+        thrown(TaskException)
+        0 * dagDescriptorDAO.getDescriptorPO(_, _, _)
+    }
+
+    def "test getDAG parses descriptor once with compiled descriptor cache"() {
+        given:
+        int times = 200
+        DAGStringParser dagParser = Spy(DAGStringParser, constructorArgs: [new YAMLSerializer(), [new FlowDAGValidator([new NotSupportedTaskValidator()])]])
+        dagAliasDAO.getDescriptorRedisKeyByAlias(VALID_BUSINESS_ID, VALID_FEATURE_NAME, VALID_ALIAS) >> VALID_REDIS_KEY
+        dagDescriptorDAO.getDescriptorPO(VALID_DESCRIPTOR_ID, VALID_REDIS_KEY, VALID_BUSINESS_ID) >> new DescriptorPO(buildDescriptor("bench", 200))
+        DAGDescriptorService cachedService = buildCompiledCacheService(dagParser)
+        cachedServiceEnabled = enabled
+
+        when:
+        List<DAG> dags = (0..<times).collect { cachedService.getDAG(123L, [:], VALID_DESCRIPTOR_ID, true) }
+
+        then:
+        // 缓存省去文本解析与校验 每次调用由语法树生成新的DAG
+        parseTimes * dagParser.parse(_)
+        dags.every { it.getTasks().size() == 200 }
+        !dags[0].is(dags[1])
+
+        where:
+        enabled | parseTimes
+        true    | 1
+        false   | 200
+    }
+
+    boolean cachedServiceEnabled = true
+
+    private DAGDescriptorService buildCompiledCacheService(
+            DAGStringParser dagParser = new DAGStringParser(new YAMLSerializer(), [new FlowDAGValidator([new NotSupportedTaskValidator()])])) {
+        switcherManager.getSwitcherState("ENABLE_COMPILED_DESCRIPTOR_CACHE") >> { cachedServiceEnabled }
+        return new DAGDescriptorService(
+            dagAliasDAO: dagAliasDAO,
+            dagFeatureDAO: dagFeatureDAO,
+            dagDescriptorDAO: dagDescriptorDAO,
+            dagDescriptorConverter: new DAGDescriptorConverterImpl(dagParser: dagParser),
+            dagGrayDAO: dagGrayDAO,
+            dagBusinessDAO: dagBusinessDAO,
+            aviatorCache: aviatorCache,
+            switcherManagerImpl: switcherManager
+        )
+    }
+
+    private static String buildDescriptor(String prefix, int taskCount) {
+        StringBuilder descriptor = new StringBuilder()
+                .append("workspace: ").append(VALID_BUSINESS_ID).append("\n")
+                .append("dagName: ").append(VALID_FEATURE_NAME).append("\n")
+                .append("type: flow\n")
+                .append("tasks:\n")
+        (0..<taskCount).each {
+            descriptor.append("  - name: ").append(prefix).append("Task").append(it).append("\n")
+                    .append("    category: pass\n")
+            if (it + 1 < taskCount) {
+                descriptor.append("    next: ").append(prefix).append("Task").append(it + 1).append("\n")
+            }
+        }
+        return descriptor.toString()
+    }
 }
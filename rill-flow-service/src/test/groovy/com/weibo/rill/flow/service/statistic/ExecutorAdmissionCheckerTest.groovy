@@ -0,0 +1,266 @@
+package com.weibo.rill.flow.service.statistic
+
+import com.weibo.rill.flow.common.concurrent.MonitoredThreadPoolExecutor
+import com.weibo.rill.flow.common.exception.ExecutorOverloadException
+import com.weibo.rill.flow.common.model.BizError
+import com.weibo.rill.flow.interfaces.model.strategy.DispatchInfo
+import com.weibo.rill.flow.interfaces.model.task.TaskStatus
+import com.weibo.rill.flow.olympicene.core.event.Callback
+import com.weibo.rill.flow.olympicene.core.event.Event
+import com.weibo.rill.flow.olympicene.core.model.DAGSettings
+import com.weibo.rill.flow.olympicene.core.model.NotifyInfo
+import com.weibo.rill.flow.olympicene.core.model.dag.DAGStatus
+import com.weibo.rill.flow.olympicene.core.runtime.DAGStorageProcedure
+import com.weibo.rill.flow.olympicene.core.switcher.SwitcherManager
+import com.weibo.rill.flow.olympicene.ddl.parser.DAGStringParser
+import com.weibo.rill.flow.olympicene.ddl.serialize.YAMLSerializer
+import com.weibo.rill.flow.olympicene.ddl.validation.dag.impl.FlowDAGValidator
+import com.weibo.rill.flow.olympicene.ddl.validation.task.impl.FunctionTaskValidator
+import com.weibo.rill.flow.olympicene.storage.save.impl.DAGLocalStorage
+import com.weibo.rill.flow.olympicene.traversal.Olympicene
+import com.weibo.rill.flow.olympicene.traversal.callback.DAGCallbackInfo
+import com.weibo.rill.flow.olympicene.traversal.checker.DefaultTimeChecker
+import com.weibo.rill.flow.olympicene.traversal.config.OlympiceneFacade
+import com.weibo.rill.flow.olympicene.traversal.dispatcher.DAGDispatcher
+import com.weibo.rill.flow.service.dconfs.BizDConfs
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import spock.lang.Specification
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class ExecutorAdmissionCheckerTest extends Specification {
+    SwitcherManager switcherManager = Mock(SwitcherManager)
+    BizDConfs bizDConfs = Mock(BizDConfs)
+    SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry()
+    ExecutorAdmissionChecker checker = new ExecutorAdmissionChecker(switcherManagerImpl: switcherManager, bizDConfs: bizDConfs, meterRegistry: meterRegistry)
+    MonitoredThreadPoolExecutor executor = new MonitoredThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS, 1000, Executors.defaultThreadFactory())
+
+    def setup() {
+        checker.register('traversal', executor)
+        bizDConfs.getRuntimeExecutorDefaultQueueLimit() >> 3
+        bizDConfs.getRuntimeExecutorQueueWaitLimitInMillis() >> 60000
+    }
+
+    def cleanup() {
+        executor.shutdownNow()
+    }
+
+    def "queued work is accepted and exposed as metrics while new submits are rejected"() {
+        given:
+        switcherManager.getSwitcherState("ENABLE_EXECUTOR_ADMISSION_CONTROL") >> true
+        CountDownLatch blocker = new CountDownLatch(1)
+        AtomicInteger executed = new AtomicInteger()
+        executor.execute { blocker.await() }
+        10.times { executor.execute { executed.incrementAndGet() } }
+
+        when:
+        checker.check('executionId')
+
+        then:
+        ExecutorOverloadException e = thrown(ExecutorOverloadException)
+        e.errorCode == BizError.ERROR_RUNTIME_EXECUTOR_OVERLOAD.code
+        meterRegistry.get('rill_flow_executor_queue_depth').tag('executor', 'traversal').gauge().value() == 10
+        meterRegistry.get('rill_flow_executor_admission_rejected').counter().count() == 1
+
+        when:
+        blocker.countDown()
+        waitIdle(executor)
+        checker.check('executionId')
+
+        then:
+        noExceptionThrown()
+        executed.get() == 10
+        meterRegistry.get('rill_flow_executor_queue_depth').gauge().value() == 0
+    }
+
+    def "submits are rejected when queue head waits too long"() {
+        given:
+        MonitoredThreadPoolExecutor slow = new MonitoredThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS, 1000, Executors.defaultThreadFactory())
+        ExecutorAdmissionChecker waitChecker = new ExecutorAdmissionChecker(switcherManagerImpl: switcherManager, bizDConfs: Mock(BizDConfs) {
+            getRuntimeExecutorDefaultQueueLimit() >> 100
+            getRuntimeExecutorQueueWaitLimitInMillis() >> 50
+        })
+        waitChecker.register('runner', slow)
+        switcherManager.getSwitcherState("ENABLE_EXECUTOR_ADMISSION_CONTROL") >> true
+        CountDownLatch blocker = new CountDownLatch(1)
+        slow.execute { blocker.await() }
+        slow.execute {}
+
+        when:
+        sleep(100)
+        waitChecker.check('executionId')
+
+        then:
+        thrown(ExecutorOverloadException)
+        slow.getHeadWaitInMillis() >= 50
+
+        cleanup:
+        blocker.countDown()
+        slow.shutdown()
+    }
+
+    def "nothing is rejected when switch is off"() {
+        given:
+        CountDownLatch blocker = new CountDownLatch(1)
+        executor.execute { blocker.await() }
+        10.times { executor.execute {} }
+
+        when:
+        checker.check('executionId')
+
+        then:
+        noExceptionThrown()
+
+        cleanup:
+        blocker.countDown()
+    }
+
+    def "work beyond queue capacity runs on the submitting thread instead of being dropped"() {
+        given:
+        MonitoredThreadPoolExecutor small = new MonitoredThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS, 2, Executors.defaultThreadFactory())
+        CountDownLatch blocker = new CountDownLatch(1)
+        List<Thread> runners = Collections.synchronizedList([])
+        small.execute { blocker.await() }
+
+        when:
+        4.times { small.execute { runners.add(Thread.currentThread()) } }
+
+        then:
+        small.queueDepth == 2
+        runners == [Thread.currentThread(), Thread.currentThread()]
+
+        when:
+        blocker.countDown()
+        waitIdle(small)
+
+        then:
+        runners.size() == 4
+
+        cleanup:
+        blocker.countDown()
+        small.shutdown()
+    }
+
+    def "queue limit is capped below queue capacity"() {
+        given:
+        MonitoredThreadPoolExecutor small = new MonitoredThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS, 10, Executors.defaultThreadFactory())
+        ExecutorAdmissionChecker smallChecker = new ExecutorAdmissionChecker(switcherManagerImpl: switcherManager, bizDConfs: Mock(BizDConfs) {
+            getRuntimeExecutorDefaultQueueLimit() >> 100
+            getRuntimeExecutorQueueWaitLimitInMillis() >> 60000
+        })
+        smallChecker.register('callback', small)
+        switcherManager.getSwitcherState("ENABLE_EXECUTOR_ADMISSION_CONTROL") >> true
+        CountDownLatch blocker = new CountDownLatch(1)
+        small.execute { blocker.await() }
+        8.times { small.execute {} }
+
+        when:
+        smallChecker.check('executionId')
+
+        then:
+        thrown(ExecutorOverloadException)
+
+        cleanup:
+        blocker.countDown()
+        small.shutdown()
+    }
+
+    def "no accepted traversal is lost under a 10x burst"() {
+        given:
+        switcherManager.getSwitcherState("ENABLE_EXECUTOR_ADMISSION_CONTROL") >> true
+        MonitoredThreadPoolExecutor pool = new MonitoredThreadPoolExecutor(4, 4, 1, TimeUnit.SECONDS, 1000, Executors.defaultThreadFactory())
+        ExecutorAdmissionChecker burstChecker = new ExecutorAdmissionChecker(switcherManagerImpl: switcherManager, bizDConfs: Mock(BizDConfs) {
+            getRuntimeExecutorDefaultQueueLimit() >> 20
+            getRuntimeExecutorQueueWaitLimitInMillis() >> 60000
+        })
+        burstChecker.register('traversal', pool)
+        DAGLocalStorage dagStorage = new DAGLocalStorage()
+        Map<String, Object> locks = new ConcurrentHashMap<>()
+        DAGStorageProcedure storageProcedure = { String lockName, Runnable runnable ->
+            synchronized (locks.computeIfAbsent(lockName, { new Object() })) {
+                runnable.run()
+            }
+        } as DAGStorageProcedure
+        Olympicene olympicene = null
+        // 任务完成回调同样提交到线程池 作为内部后续工作
+        DAGDispatcher dispatcher = { DispatchInfo dispatchInfo ->
+            pool.execute {
+                sleep(2)
+                olympicene.finish(dispatchInfo.executionId, DAGSettings.DEFAULT, ['result': dispatchInfo.taskInfo.name],
+                        NotifyInfo.builder().taskInfoName(dispatchInfo.taskInfo.name).taskStatus(TaskStatus.SUCCEED).build())
+            }
+            return '{}'
+        } as DAGDispatcher
+        // 执行完成后本地存储会被清理 通过回调记录成功结束的执行
+        Set<String> succeed = ConcurrentHashMap.newKeySet()
+        Callback<DAGCallbackInfo> callback = { Event<DAGCallbackInfo> event ->
+            if (event.data?.dagInfo?.dagStatus == DAGStatus.SUCCEED) {
+                succeed.add(event.data.executionId)
+            }
+        } as Callback<DAGCallbackInfo>
+        olympicene = OlympiceneFacade.build(dagStorage, dagStorage, storageProcedure, callback, null, dispatcher,
+                Mock(DefaultTimeChecker), pool, switcherManager)
+        DAGStringParser dagParser = new DAGStringParser(new YAMLSerializer(), [new FlowDAGValidator([new FunctionTaskValidator()])])
+        int burst = 200
+        List<String> accepted = Collections.synchronizedList([])
+        AtomicInteger rejected = new AtomicInteger()
+
+        when:
+        def clients = Executors.newFixedThreadPool(8)
+        burst.times { int index ->
+            clients.execute {
+                String executionId = 'burst_' + index
+                try {
+                    burstChecker.check(executionId)
+                    olympicene.submit(executionId, dagParser.parse(DAG_TEXT), ['index': index])
+                    accepted.add(executionId)
+                } catch (ExecutorOverloadException ignored) {
+                    rejected.incrementAndGet()
+                }
+            }
+        }
+        clients.shutdown()
+        clients.awaitTermination(30, TimeUnit.SECONDS)
+        waitIdle(pool)
+
+        then:
+        rejected.get() > 0
+        accepted.size() + rejected.get() == burst
+        succeed == accepted as Set
+
+        cleanup:
+        pool.shutdownNow()
+    }
+
+    private static void waitIdle(MonitoredThreadPoolExecutor executor) {
+        long deadline = System.currentTimeMillis() + 30000
+        while ((executor.getQueueDepth() > 0 || executor.getActiveCount() > 0) && System.currentTimeMillis() < deadline) {
+            sleep(10)
+        }
+    }
+
+    private static final String DAG_TEXT = "version: 0.0.1\n" +
+            "namespace: olympicene\n" +
+            "service: mca\n" +
+            "name: burst\n" +
+            "type: flow\n" +
+            "tasks: \n" +
+            "- category: function\n" +
+            "  name: A\n" +
+            "  resourceName: \"olympicene::test::function1::prod\" \n" +
+            "  pattern: task_scheduler\n" +
+            "  next: B\n" +
+            "- category: function\n" +
+            "  name: B\n" +
+            "  resourceName: \"olympicene::test::function2::prod\" \n" +
+            "  pattern: task_scheduler\n" +
+            "  next: C\n" +
+            "- category: function\n" +
+            "  name: C\n" +
+            "  resourceName: \"olympicene::test::function3::prod\" \n" +
+            "  pattern: task_scheduler\n"
+}
@@ -0,0 +1,161 @@
+package com.weibo.rill.flow.service.statistic
+
+import com.weibo.rill.flow.olympicene.core.switcher.SwitcherManager
+import com.weibo.rill.flow.olympicene.storage.redis.api.RedisClient
+import com.weibo.rill.flow.service.dconfs.BizDConfs
+import com.weibo.rill.flow.service.storage.RuntimeRedisClients
+import spock.lang.Specification
+
+/**
+ * 租用令牌限流 redis按BucketRedis在内存中执行令牌桶脚本 多个节点共用同一令牌桶及模拟时钟
+ */
+class TrafficRateLimiterTest extends Specification {
+    BucketRedis redis = new BucketRedis()
+    SwitcherManager switcherManager = Mock(SwitcherManager)
+    BizDConfs bizDConfs = Mock(BizDConfs)
+    RuntimeRedisClients runtimeRedisClients = Mock(RuntimeRedisClients)
+    long now = 1700000000000L
+    int sleeps
+
+    def setup() {
+        switcherManager.getSwitcherState("ENABLE_LEASED_TRAFFIC_LIMIT") >> true
+        bizDConfs.getTrafficLimitLeaseErrorPercent() >> 5
+        runtimeRedisClients.choose(_) >> redis.client()
+    }
+
+    def "admitted requests stay within 5% of rate at 10k req/s across nodes"() {
+        given:
+        List<TrafficRateLimiter> nodes = (0..<3).collect { limiter() }
+        int maxRate = 1000
+        int seconds = 10
+        int requests = 0
+        int admitted = 0
+
+        when:
+        (seconds * 1000).times {
+            10.times {
+                if (nodes[requests++ % nodes.size()].tryAcquire('executionId', 'serviceId', maxRate)) {
+                    admitted++
+                }
+            }
+            now++
+        }
+        // 令牌桶初始容量为一秒的令牌数
+        int expected = maxRate + maxRate * seconds
+
+        then:
+        Math.abs(admitted - expected) <= expected * 0.05
+        // 每次访问redis或取到50个令牌 或使该节点在差额补足前不再访问redis
+        redis.calls <= Math.ceil((admitted + nodes.size() * maxRate * seconds) / 50) + nodes.size()
+        redis.calls * 50 < requests
+    }
+
+    def "executions spread over two redis clients share one bucket per id"() {
+        given:
+        BucketRedis other = new BucketRedis()
+        RuntimeRedisClients twoClients = Mock(RuntimeRedisClients)
+        twoClients.choose(_) >> { String shardingKey -> Math.floorMod(shardingKey.hashCode(), 2) == 0 ? redis.client() : other.client() }
+        List<TrafficRateLimiter> nodes = (0..<3).collect { limiter(twoClients) }
+        int maxRate = 1000
+        int seconds = 5
+        int requests = 0
+        int admitted = 0
+
+        when:
+        (seconds * 1000).times {
+            10.times {
+                if (nodes[requests % nodes.size()].tryAcquire('executionId_' + requests++, 'serviceId', maxRate)) {
+                    admitted++
+                }
+            }
+            now++
+        }
+        int expected = maxRate + maxRate * seconds
+
+        then:
+        Math.abs(admitted - expected) <= expected * 0.05
+        [redis, other].count { it.calls > 0 } == 1
+        (redis.buckets.keySet() + other.buckets.keySet()) == ['rate_bucket_serviceId'] as Set
+    }
+
+    def "unused leased tokens expire instead of bursting later"() {
+        given:
+        TrafficRateLimiter node = limiter()
+
+        when:
+        boolean first = node.tryAcquire('executionId', 'serviceId', 1000)
+        now += 2000
+        int admitted = (0..<3000).count { node.tryAcquire('executionId', 'serviceId', 1000) }
+
+        then:
+        first
+        admitted == 1000
+        redis.calls == 1 + 1000 / 50 + 1
+    }
+
+    def "acquire blocks until tokens are refilled"() {
+        given:
+        TrafficRateLimiter node = limiter()
+        long start = now
+
+        when:
+        150.times { node.acquire('executionId', 'redo_serviceId', 100) }
+
+        then:
+        // 初始容量放行100个 其余50个按每秒100个补充 需等待约500ms
+        sleeps > 0
+        now - start >= 450
+        now - start <= 550
+        redis.buckets['rate_bucket_redo_serviceId'].tokens < 1
+    }
+
+    private TrafficRateLimiter limiter(RuntimeRedisClients clients = runtimeRedisClients) {
+        TrafficRateLimiter limiter = new TrafficRateLimiter() {
+            @Override
+            protected long currentTimeMillis() {
+                return now
+            }
+
+            @Override
+            protected void sleep(long millis) {
+                sleeps++
+                now += millis
+            }
+        }
+        ['runtimeRedisClients': clients, 'switcherManagerImpl': switcherManager, 'bizDConfs': bizDConfs].each { name, value ->
+            TrafficRateLimiter.getDeclaredField(name).with {
+                accessible = true
+                set(limiter, value)
+            }
+        }
+        return limiter
+    }
+
+    /**
+     * 与traffic_token_lease.lua一致的令牌桶
+     */
+    static class BucketRedis {
+        Map<String, Map<String, Double>> buckets = [:]
+        int calls
+
+        RedisClient client() {
+            return [eval: { Object[] args -> lease(args[1] as List<String>, args[2] as List<String>) }] as RedisClient
+        }
+
+        synchronized long lease(List<String> keys, List<String> args) {
+            calls++
+            double rate = args[0] as double
+            double capacity = args[1] as double
+            double now = args[2] as double
+            long requested = args[3] as long
+            Map<String, Double> bucket = buckets.computeIfAbsent(keys[0]) { ['tokens': capacity, 'ts': now] }
+            if (now > bucket.ts) {
+                bucket.tokens = Math.min(capacity, bucket.tokens + (now - bucket.ts) * rate / 1000)
+                bucket.ts = now
+            }
+            long granted = Math.min(requested, Math.floor(bucket.tokens) as long)
+            bucket.tokens -= granted
+            return granted
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.weibo.rill.flow.service.storage
+
+import com.weibo.rill.flow.common.exception.TaskException
+import com.weibo.rill.flow.olympicene.storage.redis.api.RedisClient
+import com.weibo.rill.flow.olympicene.storage.redis.apicommons.ShardedRedisClient
+import com.weibo.rill.flow.service.dconfs.BizDConfs
+import spock.lang.Specification
+
+class RuntimeRedisClientsTest extends Specification {
+    RedisClient defaultClient = Mock(RedisClient)
+    RedisClient shard1 = Mock(RedisClient)
+    RedisClient shard2 = Mock(RedisClient)
+    RedisClient businessClient = Mock(RedisClient)
+    Map<String, RedisClient> clientIdToRedisClient = ['shard1': shard1, 'shard2': shard2, 'business': businessClient]
+    BizDConfs bizDConfs = Mock(BizDConfs) {
+        getRedisServiceIdToClientId() >> [:]
+        getRedisBusinessIdToClientId() >> ['pinned': 'business']
+    }
+
+    def "default client is used when no shard is configured"() {
+        expect:
+        RuntimeRedisClients.buildDefaultRedisClient(shardClientIds, clientIdToRedisClient, defaultClient).is(defaultClient)
+
+        where:
+        shardClientIds << [null, [], ['']]
+    }
+
+    def "executions without configured client are spread over default client and shards"() {
+        given:
+        RedisClient shardedDefault = RuntimeRedisClients.buildDefaultRedisClient(['shard1', ' shard2'], clientIdToRedisClient, defaultClient)
+        RuntimeRedisClients clients = new RuntimeRedisClients(bizDConfs, clientIdToRedisClient, shardedDefault)
+
+        when:
+        (0..<100).each { clients.get('biz:feature' + it + '_c_uuid') }
+        clients.get('pinned:feature_c_uuid')
+
+        then:
+        shardedDefault instanceof ShardedRedisClient
+        (1.._) * defaultClient.get(_)
+        (1.._) * shard1.get(_)
+        (1.._) * shard2.get(_)
+        1 * businessClient.get('pinned:feature_c_uuid')
+    }
+
+    def "missing shard client fails fast"() {
+        when:
+        RuntimeRedisClients.buildDefaultRedisClient(['shard3'], clientIdToRedisClient, defaultClient)
+
+        then:
+        thrown(TaskException)
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ *  Copyright 2021-2023 Weibo, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.weibo.rill.flow.trigger.triggers;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * 时间轮
+ * <pre>
+ * 1. 每tickInMillis推进一格 共wheelSize格 触发时间按所在tick落入对应格子 超过一圈的任务在格子中等待后续轮次
+ * 2. 每个任务同时只有一个触发时间 重复添加时覆盖
+ * 3. 触发时间已过的任务放入下一个待推进的格子 到期任务按tick批量交给expireHandler 在时间轮线程中执行
+ * </pre>
+ */
+@Slf4j
+public class CronTimerWheel {
+    private final long tickInMillis;
+    private final List<Map<String, Long>> slots;
+    private final Map<String, Integer> taskSlots = new HashMap<>();
+    private final Consumer<Map<String, Long>> expireHandler;
+    private final Thread worker;
+    private volatile boolean running = true;
+    private long nextTick;
+
+    public CronTimerWheel(long tickInMillis, int wheelSize, Consumer<Map<String, Long>> expireHandler) {
+        this.tickInMillis = tickInMillis;
+        this.expireHandler = expireHandler;
+        this.slots = new ArrayList<>(wheelSize);
+        for (int i = 0; i < wheelSize; i++) {
+            slots.add(new HashMap<>());
+        }
+        this.nextTick = System.currentTimeMillis() / tickInMillis;
+        this.worker = new ThreadFactoryBuilder().setNameFormat("cron-timer-wheel-%d").setDaemon(true).build().newThread(this::run);
+    }
+
+    public void start() {
+        worker.start();
+    }
+
+    /**
+     * 停止推进 等待正在执行的expireHandler结束
+     */
+    public void stop() {
+        running = false;
+        worker.interrupt();
+        try {
+            worker.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public synchronized void schedule(String taskId, long deadline) {
+        remove(taskId);
+        int slot = slotIndex(Math.max(deadline / tickInMillis, nextTick));
+        slots.get(slot).put(taskId, deadline);
+        taskSlots.put(taskId, slot);
+    }
+
+    public synchronized void remove(String taskId) {
+        Integer slot = taskSlots.remove(taskId);
+        if (slot != null) {
+            slots.get(slot).remove(taskId);
+        }
+    }
+
+    public synchronized int size() {
+        return taskSlots.size();
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                long currentTick = System.currentTimeMillis() / tickInMillis;
+                while (running && nextTick <= currentTick) {
+                    Map<String, Long> expired = expire();
+                    if (!expired.isEmpty()) {
+                        expireHandler.accept(expired);
+                    }
+                }
+                TimeUnit.MILLISECONDS.sleep(Math.max(1L, nextTick * tickInMillis - System.currentTimeMillis()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.warn("timer wheel tick fails, tick: {}", nextTick, e);
+            }
+        }
+    }
+
+    private synchronized Map<String, Long> expire() {
+        long tick = nextTick++;
+        Map<String, Long> expired = new HashMap<>();
+        Iterator<Map.Entry<String, Long>> iterator = slots.get(slotIndex(tick)).entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            if (entry.getValue() / tickInMillis <= tick) {
+                expired.put(entry.getKey(), entry.getValue());
+                taskSlots.remove(entry.getKey());
+                iterator.remove();
+            }
+        }
+        return expired;
+    }
+
+    private int slotIndex(long tick) {
+        return (int) Math.floorMod(tick, (long) slots.size());
+    }
+}
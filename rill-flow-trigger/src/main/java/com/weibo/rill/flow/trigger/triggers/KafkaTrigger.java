@@ -18,6 +18,7 @@ package com.weibo.rill.flow.trigger.triggers;
 
 import com.alibaba.fastjson.JSON;
 import com.alibaba.fastjson.JSONObject;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.weibo.rill.flow.common.exception.TaskException;
 import com.weibo.rill.flow.common.function.ResourceCheckConfig;
 import com.weibo.rill.flow.common.model.BizError;
@@ -31,8 +32,6 @@ import com.weibo.rill.flow.trigger.util.TriggerUtil;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang.StringUtils;
 import org.apache.kafka.clients.consumer.ConsumerConfig;
-import org.apache.kafka.clients.consumer.ConsumerRecord;
-import org.apache.kafka.clients.consumer.ConsumerRecords;
 import org.apache.kafka.clients.consumer.KafkaConsumer;
 import org.apache.kafka.common.serialization.StringDeserializer;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -41,14 +40,17 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.PostConstruct;
-import java.time.Duration;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 @Slf4j
 @Service("kafka_trigger")
@@ -69,12 +71,29 @@ public class KafkaTrigger implements Trigger {
 
     @Value("${kafka.trigger.thread.pool.size:500}")
     private int kafkaTriggerThreadPoolSize;
+    @Value("${kafka.trigger.submit.thread.pool.size:64}")
+    private int kafkaTriggerSubmitThreadPoolSize;
+    @Value("${kafka.trigger.max.inflight.per.partition:100}")
+    private int kafkaTriggerMaxInflightPerPartition;
+    @Value("${kafka.trigger.max.submit.attempts:10}")
+    private int kafkaTriggerMaxSubmitAttempts;
+    /**
+     * 请求本身有误的错误码 重试也无法提交
+     */
+    private static final Set<Integer> NON_RETRYABLE_ERROR_CODES = Stream.of(BizError.ERROR_URI, BizError.ERROR_AUTH,
+                    BizError.ERROR_UNSUPPORTED, BizError.ERROR_FORBIDDEN, BizError.ERROR_DATA_FORMAT,
+                    BizError.ERROR_DATA_RESTRICTION, BizError.ERROR_MISSING_PARAMETER)
+            .map(BizError::getCode).collect(Collectors.toSet());
     private static final Map<String, JSONObject> taskInfos = new HashMap<>();
+    private static final Map<String, KafkaTriggerConsumer> consumers = new ConcurrentHashMap<>();
     private static ThreadPoolExecutor threadPoolExecutor;
+    private static ExecutorService submitExecutor;
 
     @PostConstruct
     public void kafkaTrigger() {
         threadPoolExecutor = (ThreadPoolExecutor) Executors.newFixedThreadPool(kafkaTriggerThreadPoolSize);
+        submitExecutor = Executors.newFixedThreadPool(kafkaTriggerSubmitThreadPoolSize,
+                new ThreadFactoryBuilder().setNameFormat("kafka-trigger-submit-%d").build());
     }
 
     private Properties createKafkaProperties(String servers, String groupId) {
@@ -84,6 +103,9 @@ public class KafkaTrigger implements Trigger {
         kafkaTriggerProperties.setProperty(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class.getName());
         kafkaTriggerProperties.setProperty(ConsumerConfig.GROUP_ID_CONFIG, groupId);
         kafkaTriggerProperties.setProperty(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "earliest");
+        // 消息提交成功后由KafkaTriggerConsumer提交offset
+        kafkaTriggerProperties.setProperty(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, "false");
+        kafkaTriggerProperties.setProperty(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, String.valueOf(kafkaTriggerMaxInflightPerPartition));
         return kafkaTriggerProperties;
     }
 
@@ -151,6 +173,10 @@ public class KafkaTrigger implements Trigger {
         }
         redisClient.hdel(KAFKA_TRIGGER_TOPICS, taskId);
         taskInfos.remove(taskId);
+        KafkaTriggerConsumer consumer = consumers.remove(taskId);
+        if (consumer != null) {
+            consumer.stop();
+        }
         return true;
     }
 
@@ -165,45 +191,45 @@ public class KafkaTrigger implements Trigger {
                 topic, descriptorId, properties.getProperty(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG),
                 properties.getProperty(ConsumerConfig.GROUP_ID_CONFIG));
         try {
-            KafkaConsumer<String, String> consumer = new KafkaConsumer<>(properties);
-            threadPoolExecutor.submit(() -> {
-                consumer.subscribe(Collections.singletonList(topic));
-                while (true) {
-                    if (taskInfos.get(taskKey) == null) {
-                        consumer.close();
-                        log.info("task canceled: {}", taskKey);
-                        break;
-                    }
-                    consumeRecords(topic, uid, descriptorId, callback, resourceCheck, consumer);
-                }
-            });
+            KafkaConsumer<String, String> kafkaConsumer = new KafkaConsumer<>(properties);
+            KafkaTriggerConsumer consumer = new KafkaTriggerConsumer(kafkaConsumer, topic, submitExecutor,
+                    message -> submit(topic, uid, descriptorId, callback, resourceCheck, message));
+            consumer.setMaxInflightPerPartition(kafkaTriggerMaxInflightPerPartition);
+            consumer.setMaxSubmitAttempts(kafkaTriggerMaxSubmitAttempts);
+            consumers.put(taskKey, consumer);
+            threadPoolExecutor.submit(consumer);
             log.info("kafka trigger create consumer success, topic: {}, descriptor_id: {}", topic, descriptorId);
         } catch (Exception e) {
             log.warn("kafka trigger create consumer error, topic: {}, descriptor_id: {}", topic, descriptorId, e);
         }
     }
 
-    private void consumeRecords(String topic, Long uid, String descriptorId, String callback, String resourceCheck, KafkaConsumer<String, String> consumer) {
-        ConsumerRecords<String, String> records = consumer.poll(Duration.ofMillis(100));
-        for (ConsumerRecord<String, String> record : records) {
-            try {
-                String message = record.value();
-
-                Supplier<Map<String, Object>> submitActions = () -> {
-                    log.info("kafka trigger consume, topic: {}, descriptor_id: {}, message: {}", topic, descriptorId, message);
-                    JSONObject context = JSON.parseObject(message);
-                    ResourceCheckConfig resourceCheckConfig = JSON.parseObject(resourceCheck, ResourceCheckConfig.class);
-                    String businessId = DescriptorIdUtil.changeDescriptorIdToBusinessId(descriptorId);
-                    Map<String, Object> contextMap = dagContextInitializer.newSubmitContextBuilder(businessId).withData(context).withIdentity(descriptorId).build();
-
-                    Map<String, Object> result = olympiceneFacade.submit(new FlowUser(uid), descriptorId, contextMap, callback, resourceCheckConfig);
-                    log.info("kafka trigger submit success, topic: {}, descriptor_id: {}, result: {}", topic, descriptorId, result);
-                    return result;
-                };
-                profileRecordService.runNotifyAndRecordProfile("kafka trigger", descriptorId, submitActions);
-            } catch (Exception e) {
-                log.warn("kafka trigger consume error, topic: {}, descriptor_id: {}", topic, descriptorId, e);
+    private Map<String, Object> submit(String topic, Long uid, String descriptorId, String callback, String resourceCheck, String message) {
+        JSONObject context;
+        ResourceCheckConfig resourceCheckConfig;
+        try {
+            context = JSON.parseObject(message);
+            resourceCheckConfig = JSON.parseObject(resourceCheck, ResourceCheckConfig.class);
+        } catch (Exception e) {
+            // 消息或resource_check格式错误时重试也无法提交
+            throw new KafkaTriggerConsumer.NonRetryableException("kafka trigger message or resource check is not a json object", e);
+        }
+        Supplier<Map<String, Object>> submitActions = () -> {
+            log.info("kafka trigger consume, topic: {}, descriptor_id: {}, message: {}", topic, descriptorId, message);
+            String businessId = DescriptorIdUtil.changeDescriptorIdToBusinessId(descriptorId);
+            Map<String, Object> contextMap = dagContextInitializer.newSubmitContextBuilder(businessId).withData(context).withIdentity(descriptorId).build();
+
+            Map<String, Object> result = olympiceneFacade.submit(new FlowUser(uid), descriptorId, contextMap, callback, resourceCheckConfig);
+            log.info("kafka trigger submit success, topic: {}, descriptor_id: {}, result: {}", topic, descriptorId, result);
+            return result;
+        };
+        try {
+            return profileRecordService.runNotifyAndRecordProfile("kafka trigger", descriptorId, submitActions);
+        } catch (TaskException e) {
+            if (NON_RETRYABLE_ERROR_CODES.contains(e.getErrorCode())) {
+                throw new KafkaTriggerConsumer.NonRetryableException("kafka trigger submit rejected, error code: " + e.getErrorCode(), e);
             }
+            throw e;
         }
     }
 
@@ -0,0 +1,370 @@
+/*
+ *  Copyright 2021-2023 Weibo, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.weibo.rill.flow.trigger.triggers;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.WakeupException;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * kafka触发器的单个消费者
+ * <pre>
+ * 1. poll线程只负责拉取 提交offset及暂停/恢复分区 每条消息交给submitExecutor提交
+ * 2. 分区中某条消息提交完成且之前的消息均已完成时 才提交该offset 节点宕机后未完成的消息会被重新消费 即至少提交一次
+ * 3. 分区进行中的消息数达到maxInflightPerPartition时暂停该分区 降到一半以下时恢复
+ * 4. 提交失败时保留offset 暂停该分区并按retryIntervalInMillis指数退避后重试 重试进行中时分区保持暂停
+ *    抛出NonRetryableException的消息(如消息格式错误)不再重试 提交maxSubmitAttempts次仍失败的消息也不再重试
+ *    二者均交给deadLetterHandler后视为完成 避免一条消息一直暂停整个分区
+ * 5. 停止时等待进行中的消息至多shutdownTimeoutInMillis 提交已完成的offset后关闭consumer 等待重试的消息由下次消费重新提交
+ * </pre>
+ */
+@Slf4j
+public class KafkaTriggerConsumer implements Runnable {
+    private static final int MAX_COMMIT_ATTEMPTS = 3;
+
+    private final Consumer<String, String> consumer;
+    private final String topic;
+    private final ExecutorService submitExecutor;
+    private final Function<String, Map<String, Object>> submitAction;
+
+    private final Map<TopicPartition, PartitionProgress> partitions = new HashMap<>();
+    private final Queue<Completion> completions = new ConcurrentLinkedQueue<>();
+    private final AtomicLong submittedCount = new AtomicLong();
+    private final AtomicLong retriedCount = new AtomicLong();
+    private final AtomicLong deadLetterCount = new AtomicLong();
+    private volatile boolean running = true;
+    private volatile boolean paused;
+    private int inflight;
+
+    @Setter
+    private int maxInflightPerPartition = 100;
+    @Setter
+    private int maxSubmitAttempts = 10;
+    @Setter
+    private long retryIntervalInMillis = 100L;
+    @Setter
+    private long maxRetryIntervalInMillis = 30000L;
+    @Setter
+    private long pollTimeoutInMillis = 100L;
+    @Setter
+    private long shutdownTimeoutInMillis = 5000L;
+    @Setter
+    private java.util.function.Consumer<ConsumerRecord<String, String>> deadLetterHandler = record ->
+            log.warn("kafka trigger dead letter, topic: {}, partition: {}, offset: {}, value: {}",
+                    record.topic(), record.partition(), record.offset(), record.value());
+
+    public KafkaTriggerConsumer(Consumer<String, String> consumer, String topic, ExecutorService submitExecutor,
+                                Function<String, Map<String, Object>> submitAction) {
+        this.consumer = consumer;
+        this.topic = topic;
+        this.submitExecutor = submitExecutor;
+        this.submitAction = submitAction;
+    }
+
+    public void stop() {
+        running = false;
+        consumer.wakeup();
+    }
+
+    public long getSubmittedCount() {
+        return submittedCount.get();
+    }
+
+    public long getRetriedCount() {
+        return retriedCount.get();
+    }
+
+    public long getDeadLetterCount() {
+        return deadLetterCount.get();
+    }
+
+    @Override
+    public void run() {
+        try {
+            consumer.subscribe(Collections.singletonList(topic), new CommitOnRevoke());
+            while (running) {
+                pollOnce();
+            }
+            awaitInflight();
+            applyCompletions();
+            commitSync(committableOffsets());
+        } catch (Exception e) {
+            log.warn("kafka trigger consumer fails, topic: {}", topic, e);
+        } finally {
+            consumer.close();
+            log.info("kafka trigger consumer closed, topic: {}, submitted: {}, retried: {}, dead letter: {}",
+                    topic, submittedCount.get(), retriedCount.get(), deadLetterCount.get());
+        }
+    }
+
+    private void pollOnce() {
+        try {
+            ConsumerRecords<String, String> records = consumer.poll(Duration.ofMillis(pollTimeoutInMillis));
+            records.forEach(record -> dispatch(record, 1));
+        } catch (WakeupException e) {
+            log.debug("kafka trigger consumer wakeup, topic: {}", topic);
+        }
+
+        applyCompletions();
+        dispatchRetries();
+        Map<TopicPartition, OffsetAndMetadata> offsets = committableOffsets();
+        if (!offsets.isEmpty()) {
+            consumer.commitAsync(offsets, (committed, e) -> {
+                if (e != null) {
+                    log.warn("kafka trigger commit fails, topic: {}, offsets: {}", topic, committed, e);
+                }
+            });
+        }
+        adjustPause();
+    }
+
+    private void dispatch(ConsumerRecord<String, String> record, int attempt) {
+        TopicPartition topicPartition = new TopicPartition(record.topic(), record.partition());
+        PartitionProgress progress = partitions.computeIfAbsent(topicPartition, it -> new PartitionProgress());
+        if (attempt == 1) {
+            progress.offsets.put(record.offset(), false);
+            progress.inflight++;
+        }
+        inflight++;
+        try {
+            submitExecutor.execute(() -> submit(record, attempt));
+        } catch (RejectedExecutionException e) {
+            submit(record, attempt);
+        }
+    }
+
+    private void submit(ConsumerRecord<String, String> record, int attempt) {
+        boolean done = true;
+        try {
+            submitAction.apply(record.value());
+            submittedCount.incrementAndGet();
+        } catch (NonRetryableException e) {
+            deadLetterCount.incrementAndGet();
+            log.warn("kafka trigger submit fails without retry, topic: {}, partition: {}, offset: {}",
+                    topic, record.partition(), record.offset(), e);
+            deadLetter(record);
+        } catch (Exception e) {
+            log.warn("kafka trigger submit fails, topic: {}, partition: {}, offset: {}, attempt: {}",
+                    topic, record.partition(), record.offset(), attempt, e);
+            if (attempt >= maxSubmitAttempts) {
+                deadLetterCount.incrementAndGet();
+                deadLetter(record);
+            } else {
+                done = false;
+                retriedCount.incrementAndGet();
+            }
+        } finally {
+            completions.add(new Completion(record, attempt, done));
+            if (paused) {
+                consumer.wakeup();
+            }
+        }
+    }
+
+    private void deadLetter(ConsumerRecord<String, String> record) {
+        try {
+            deadLetterHandler.accept(record);
+        } catch (Exception e) {
+            log.warn("kafka trigger dead letter fails, topic: {}, partition: {}, offset: {}", topic, record.partition(), record.offset(), e);
+        }
+    }
+
+    private void applyCompletions() {
+        Completion completion;
+        while ((completion = completions.poll()) != null) {
+            inflight--;
+            ConsumerRecord<String, String> record = completion.record;
+            PartitionProgress progress = partitions.get(new TopicPartition(record.topic(), record.partition()));
+            // 分区已被收回时 由新的消费者重新消费
+            if (progress == null || !progress.offsets.containsKey(record.offset())) {
+                continue;
+            }
+            if (completion.attempt > 1) {
+                progress.retrying--;
+            }
+            if (completion.done) {
+                progress.offsets.put(record.offset(), true);
+                progress.inflight--;
+            } else {
+                progress.retries.add(completion);
+                progress.retryAt = Math.max(progress.retryAt, System.currentTimeMillis() + retryInterval(completion.attempt));
+            }
+        }
+    }
+
+    private long retryInterval(int attempt) {
+        int exponent = Math.min(attempt - 1, 20);
+        return Math.min(retryIntervalInMillis << exponent, maxRetryIntervalInMillis);
+    }
+
+    private void dispatchRetries() {
+        long now = System.currentTimeMillis();
+        partitions.values().stream()
+                .filter(progress -> !progress.retries.isEmpty() && progress.retryAt <= now)
+                .forEach(progress -> {
+                    Completion completion;
+                    while ((completion = progress.retries.poll()) != null) {
+                        progress.retrying++;
+                        dispatch(completion.record, completion.attempt + 1);
+                    }
+                });
+    }
+
+    private Map<TopicPartition, OffsetAndMetadata> committableOffsets() {
+        return committableOffsets(partitions.keySet());
+    }
+
+    private Map<TopicPartition, OffsetAndMetadata> committableOffsets(Collection<TopicPartition> topicPartitions) {
+        Map<TopicPartition, OffsetAndMetadata> offsets = new HashMap<>();
+        topicPartitions.forEach(topicPartition -> {
+            PartitionProgress progress = partitions.get(topicPartition);
+            if (progress == null) {
+                return;
+            }
+            Long next = null;
+            while (!progress.offsets.isEmpty() && progress.offsets.firstEntry().getValue()) {
+                next = progress.offsets.pollFirstEntry().getKey() + 1;
+            }
+            if (next != null) {
+                offsets.put(topicPartition, new OffsetAndMetadata(next));
+            }
+        });
+        return offsets;
+    }
+
+    /**
+     * 提交线程完成消息时会调用wakeup 同步提交offset时可能因此抛出WakeupException 需要重新提交
+     */
+    private void commitSync(Map<TopicPartition, OffsetAndMetadata> offsets) {
+        if (offsets.isEmpty()) {
+            return;
+        }
+        for (int attempt = 1; ; attempt++) {
+            try {
+                consumer.commitSync(offsets);
+                return;
+            } catch (WakeupException e) {
+                if (attempt >= MAX_COMMIT_ATTEMPTS) {
+                    throw e;
+                }
+                log.debug("kafka trigger commit interrupted by wakeup, topic: {}, attempt: {}", topic, attempt);
+            }
+        }
+    }
+
+    /**
+     * 进行中的消息过多或有消息等待重试时暂停分区
+     */
+    private void adjustPause() {
+        boolean anyPaused = false;
+        for (Map.Entry<TopicPartition, PartitionProgress> entry : partitions.entrySet()) {
+            PartitionProgress progress = entry.getValue();
+            boolean backoff = !progress.retries.isEmpty() || progress.retrying > 0;
+            if (!progress.paused && (backoff || progress.inflight >= maxInflightPerPartition)) {
+                consumer.pause(Collections.singletonList(entry.getKey()));
+                progress.paused = true;
+            } else if (progress.paused && !backoff && progress.inflight <= maxInflightPerPartition / 2) {
+                consumer.resume(Collections.singletonList(entry.getKey()));
+                progress.paused = false;
+            }
+            anyPaused |= progress.paused;
+        }
+        paused = anyPaused;
+    }
+
+    private void awaitInflight() {
+        long deadline = System.currentTimeMillis() + shutdownTimeoutInMillis;
+        while (inflight > 0 && System.currentTimeMillis() < deadline) {
+            applyCompletions();
+            Uninterruptibles.sleepUninterruptibly(10, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 重试也无法提交的消息 如消息内容不是合法的json
+     */
+    public static class NonRetryableException extends RuntimeException {
+        public NonRetryableException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    private static class Completion {
+        private final ConsumerRecord<String, String> record;
+        private final int attempt;
+        private final boolean done;
+
+        Completion(ConsumerRecord<String, String> record, int attempt, boolean done) {
+            this.record = record;
+            this.attempt = attempt;
+            this.done = done;
+        }
+    }
+
+    /**
+     * offset到完成状态 按offset排序 等待重试的消息 以及重试进行中的消息数
+     */
+    private static class PartitionProgress {
+        private final TreeMap<Long, Boolean> offsets = new TreeMap<>();
+        private final Deque<Completion> retries = new ArrayDeque<>();
+        private long retryAt;
+        private int retrying;
+        private int inflight;
+        private boolean paused;
+    }
+
+    private class CommitOnRevoke implements ConsumerRebalanceListener {
+        @Override
+        public void onPartitionsRevoked(Collection<TopicPartition> revoked) {
+            applyCompletions();
+            try {
+                commitSync(committableOffsets(revoked));
+            } catch (Exception e) {
+                log.warn("kafka trigger commit on revoke fails, topic: {}, partitions: {}", topic, revoked, e);
+            }
+            revoked.forEach(partitions::remove);
+        }
+
+        @Override
+        public void onPartitionsAssigned(Collection<TopicPartition> assigned) {
+            log.info("kafka trigger partitions assigned, topic: {}, partitions: {}", topic, assigned);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ *  Copyright 2021-2023 Weibo, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.weibo.rill.flow.trigger.triggers;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
+import com.weibo.rill.flow.common.exception.TaskException;
+import com.weibo.rill.flow.common.model.BizError;
+import com.weibo.rill.flow.olympicene.storage.redis.api.RedisClient;
+import com.weibo.rill.flow.olympicene.storage.redis.lock.ResourceLoader;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 定时任务分片的成员及租约表
+ * <pre>
+ * 1. 存活节点记录在zset中 score为心跳过期时间 心跳超过leaseInMillis未更新的节点视为下线
+ * 2. 每个分片按rendezvous hash归属于一个存活节点 节点增减时只有少量分片改变归属
+ * 3. 节点只能在分片租约为空或由自己持有时获取/续租分片 每次获取分片时fencing token加一
+ *    归属变化时原节点主动释放 原节点失联时租约到期后由新节点获取
+ * </pre>
+ */
+@Slf4j
+public class ScheduleShardLeases {
+    private static final String MEMBERS_KEY = "schedule_trigger_members";
+    private static final String LEASE_KEY_PREFIX = "schedule_trigger_shard_";
+    private static final String FENCE_KEY_SUFFIX = ":fencing_token";
+    private static final String LEASE_SCRIPT;
+    private static final String RELEASE_SCRIPT;
+
+    static {
+        try {
+            LEASE_SCRIPT = ResourceLoader.loadResourceAsText("lua/schedule_shard_lease.lua");
+            RELEASE_SCRIPT = ResourceLoader.loadResourceAsText("lua/schedule_shard_release.lua");
+        } catch (IOException e) {
+            throw new TaskException(BizError.ERROR_INTERNAL, "cannot load schedule shard lua", e.getCause());
+        }
+    }
+
+    private final RedisClient redisClient;
+    private final String nodeId;
+    private final int shardCount;
+    private final long leaseInMillis;
+    private volatile Map<Integer, Long> ownedShards = ImmutableMap.of();
+
+    public ScheduleShardLeases(RedisClient redisClient, String nodeId, int shardCount, long leaseInMillis) {
+        this.redisClient = redisClient;
+        this.nodeId = nodeId;
+        this.shardCount = shardCount;
+        this.leaseInMillis = leaseInMillis;
+    }
+
+    /**
+     * 心跳并按当前存活节点获取/续租/释放分片
+     *
+     * @return 持有的分片及其fencing token
+     */
+    public Map<Integer, Long> refresh() {
+        long now = System.currentTimeMillis();
+        redisClient.zadd(MEMBERS_KEY, now + leaseInMillis, nodeId);
+        redisClient.zremrangeByScore(MEMBERS_KEY, 0, now);
+        Set<String> members = new HashSet<>(redisClient.zrangeByScore(MEMBERS_KEY, now, Double.POSITIVE_INFINITY));
+        members.add(nodeId);
+
+        Map<Integer, Long> owned = new HashMap<>();
+        for (int shard = 0; shard < shardCount; shard++) {
+            if (!nodeId.equals(owner(shard, members))) {
+                if (ownedShards.containsKey(shard)) {
+                    release(shard);
+                }
+                continue;
+            }
+            long fence = (Long) redisClient.eval(LEASE_SCRIPT, leaseKey(shard),
+                    Lists.newArrayList(leaseKey(shard), fenceKey(shard)), Lists.newArrayList(nodeId, String.valueOf(leaseInMillis)));
+            if (fence > 0) {
+                owned.put(shard, fence);
+            }
+        }
+        ownedShards = ImmutableMap.copyOf(owned);
+        return ownedShards;
+    }
+
+    public void leave() {
+        ownedShards.keySet().forEach(this::release);
+        ownedShards = ImmutableMap.of();
+        redisClient.zrem(MEMBERS_KEY, nodeId);
+    }
+
+    public Map<Integer, Long> getOwnedShards() {
+        return ownedShards;
+    }
+
+    public int shard(String taskId) {
+        return Math.floorMod(taskId.hashCode(), shardCount);
+    }
+
+    public String leaseKey(int shard) {
+        return LEASE_KEY_PREFIX + shard;
+    }
+
+    public String fenceKey(int shard) {
+        return LEASE_KEY_PREFIX + shard + FENCE_KEY_SUFFIX;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public long getLeaseInMillis() {
+        return leaseInMillis;
+    }
+
+    private void release(int shard) {
+        try {
+            redisClient.eval(RELEASE_SCRIPT, leaseKey(shard), Lists.newArrayList(leaseKey(shard)), Lists.newArrayList(nodeId));
+        } catch (Exception e) {
+            log.warn("release schedule shard fails, shard: {}, node: {}", shard, nodeId, e);
+        }
+    }
+
+    private static String owner(int shard, Set<String> members) {
+        return members.stream()
+                .max(Comparator.comparingLong((String member) -> weight(member, shard)).thenComparing(Comparator.naturalOrder()))
+                .orElse(null);
+    }
+
+    private static long weight(String member, int shard) {
+        return Hashing.murmur3_128().hashString(member + "#" + shard, StandardCharsets.UTF_8).asLong();
+    }
+}
@@ -20,21 +20,30 @@ import com.alibaba.fastjson.JSON;
 import com.alibaba.fastjson.JSONObject;
 import com.weibo.rill.flow.olympicene.storage.redis.api.RedisClient;
 import com.weibo.rill.flow.service.facade.OlympiceneFacade;
+import com.weibo.rill.flow.service.util.IpUtils;
 import com.weibo.rill.flow.trigger.util.TriggerUtil;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang.StringUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.EnableScheduling;
-import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
-import org.springframework.scheduling.support.CronTrigger;
+import org.springframework.scheduling.support.CronExpression;
 import org.springframework.stereotype.Service;
 import org.springframework.web.bind.annotation.RestController;
 
+import javax.annotation.PreDestroy;
 import java.util.Map;
+import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ScheduledFuture;
 
+/**
+ * cron定时触发
+ * <pre>
+ * 1. 任务存储在redis hash scheduled_tasks中 各节点共享
+ * 2. 任务按task id分片 每个分片同时只由一个节点调度 由ShardedCronScheduler保证同一触发时间只提交一次
+ * </pre>
+ */
 @Service("cron_trigger")
 @Slf4j
 @RestController
@@ -46,67 +55,38 @@ public class ScheduleTrigger implements Trigger {
     @Autowired
     private OlympiceneFacade olympiceneFacade;
 
-    private final ThreadPoolTaskScheduler taskScheduler;
-    private final Map<String, ScheduledFuture<?>> scheduledTaskMap;
+    @Value("${schedule.trigger.shard.count:64}")
+    private int shardCount;
+    @Value("${schedule.trigger.lease.in.millis:15000}")
+    private long leaseInMillis;
+    @Value("${schedule.trigger.fire.thread.pool.size:64}")
+    private int fireThreadPoolSize;
+
     private final Map<String, JSONObject> taskInfoMap;
+    private volatile ShardedCronScheduler cronScheduler;
 
     private static final String SCHEDULED_TASK_ID_KEY = "scheduled_task_id";
     private static final String SCHEDULED_TASKS = "scheduled_tasks";
 
     public ScheduleTrigger() {
-        this.taskScheduler = new ThreadPoolTaskScheduler();
-        taskScheduler.setPoolSize(500);
-        taskScheduler.initialize();
-        scheduledTaskMap = new ConcurrentHashMap<>();
         taskInfoMap = new ConcurrentHashMap<>();
     }
 
-    public void scheduleTask(String taskId, String cronTime, Runnable task) throws Exception {
-        try {
-            if (scheduledTaskMap.containsKey(taskId)) {
-                throw new Exception("task id exists");
-            }
-            // fixme: 如果项目要被用于分布式环境，需要考虑多机的分布式并发问题
-            synchronized (scheduledTaskMap) {
-                if (scheduledTaskMap.containsKey(taskId)) {
-                    scheduledTaskMap.get(taskId);
-                    return;
-                }
-                ScheduledFuture<?> scheduledTask = taskScheduler.schedule(task, new CronTrigger(cronTime));
-                scheduledTaskMap.put(taskId, scheduledTask);
-            }
-        } catch (Exception e) {
-            log.warn("scheduleTask error, taskId: {}, cronTime: {}", taskId, cronTime, e);
-            throw e;
-        }
-    }
-
     public boolean cancelTask(String taskId) {
         try {
-            synchronized (scheduledTaskMap) {
-                ScheduledFuture<?> scheduledFuture = scheduledTaskMap.get(taskId);
-                if (scheduledFuture == null || scheduledFuture.isCancelled()) {
-                    return false;
-                }
-                scheduledFuture.cancel(false);
-                return cancelScheduler(taskId);
+            taskInfoMap.remove(taskId);
+            boolean removed = redisClient.hdel(SCHEDULED_TASKS, taskId) > 0;
+            if (cronScheduler != null) {
+                cronScheduler.clearLastFireTime(taskId);
             }
+            syncScheduler();
+            return removed;
         } catch (Exception e) {
             log.warn("cancelTask error, taskId: {}", taskId, e);
             return false;
         }
     }
 
-    private boolean cancelScheduler(String taskId) {
-        try {
-            redisClient.hdel(SCHEDULED_TASKS, taskId);
-            return cancelTask(taskId);
-        } catch (Exception e) {
-            log.warn("cancel scheduler error, task_id: {}", taskId, e);
-            return false;
-        }
-    }
-
     @Override
     public JSONObject addTriggerTask(Long uid, String descriptorId, String callback, String resourceCheck, JSONObject body) {
         return addCronTrigger(uid, descriptorId, callback, resourceCheck, body, null);
@@ -116,16 +96,13 @@ public class ScheduleTrigger implements Trigger {
     public void initTriggerTasks() {
         Map<String, String> cronTasks = redisClient.hgetAll(SCHEDULED_TASKS);
         for (Map.Entry<String, String> taskEntry: cronTasks.entrySet()) {
-            String taskId = taskEntry.getKey();
-            String taskDetail = taskEntry.getValue();
-            JSONObject taskDetailObject = JSON.parseObject(taskDetail);
-            JSONObject context = taskDetailObject.getJSONObject("context");
-            String callback = taskDetailObject.getString("callback");
-            String resourceCheck = taskDetailObject.getString("resource_check");
-            String descriptorId = taskDetailObject.getString("descriptor_id");
-            Long uid = taskDetailObject.getLong("uid");
-            addCronTrigger(uid, descriptorId, callback, resourceCheck, context, taskId);
+            JSONObject taskDetailObject = JSON.parseObject(taskEntry.getValue());
+            JSONObject body = new JSONObject();
+            body.put("cron", taskDetailObject.getString("cron"));
+            body.put("context", taskDetailObject.getJSONObject("context"));
+            taskInfoMap.put(taskEntry.getKey(), body);
         }
+        startScheduler();
     }
 
     @Override
@@ -141,23 +118,59 @@ public class ScheduleTrigger implements Trigger {
     public JSONObject addCronTrigger(Long uid, String descriptorId, String callback, String resourceCheck, JSONObject body, String taskId) {
         JSONObject context = body.getJSONObject("context");
         String cron = body.getString("cron");
-        Runnable runnable = () -> olympiceneFacade.submit(uid, descriptorId, callback, resourceCheck, context, "add_scheduler.json");
+        try {
+            CronExpression.parse(cron);
+        } catch (Exception e) {
+            log.warn("add scheduler error, task_id: {}, cron: {}", taskId, cron, e);
+            return new JSONObject(Map.of("code", -1, "err_msg", String.valueOf(e.getMessage())));
+        }
         // generate task id from redis
         if (StringUtils.isEmpty(taskId)) {
             taskId = String.valueOf(redisClient.incr(SCHEDULED_TASK_ID_KEY));
             insertCronDetailToRedis(uid, descriptorId, callback, resourceCheck, taskId, context, cron);
         }
         taskInfoMap.put(taskId, body);
-        try {
-            scheduleTask(taskId, cron, runnable);
-            return new JSONObject(Map.of("code", 0, "data", Map.of("task_id", taskId)));
-        } catch (Exception e) {
-            log.warn("add scheduler error, task_id: {}, cron: {}", taskId, cron, e);
-            cancelScheduler(taskId);
-            return new JSONObject(Map.of("code", -1, "err_msg", e.getMessage()));
+        syncScheduler();
+        return new JSONObject(Map.of("code", 0, "data", Map.of("task_id", taskId)));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (cronScheduler != null) {
+            cronScheduler.shutdown();
         }
     }
 
+    static String parseCron(String taskDetail) {
+        return JSON.parseObject(taskDetail).getString("cron");
+    }
+
+    private synchronized void startScheduler() {
+        if (cronScheduler != null) {
+            return;
+        }
+        String nodeId = IpUtils.getLocalIpv4Address() + "_" + UUID.randomUUID();
+        ScheduleShardLeases shardLeases = new ScheduleShardLeases(redisClient, nodeId, shardCount, leaseInMillis);
+        ShardedCronScheduler scheduler = new ShardedCronScheduler(redisClient, SCHEDULED_TASKS, shardLeases, fireThreadPoolSize, this::fire);
+        scheduler.setSyncIntervalInMillis(leaseInMillis / 3);
+        scheduler.start();
+        cronScheduler = scheduler;
+        log.info("schedule trigger started, node: {}, shard count: {}", nodeId, shardCount);
+    }
+
+    private void syncScheduler() {
+        if (cronScheduler != null) {
+            cronScheduler.syncNow();
+        }
+    }
+
+    private void fire(String taskId, String taskDetail) {
+        JSONObject taskDetailObject = JSON.parseObject(taskDetail);
+        olympiceneFacade.submit(taskDetailObject.getLong("uid"), taskDetailObject.getString("descriptor_id"),
+                taskDetailObject.getString("callback"), taskDetailObject.getString("resource_check"),
+                taskDetailObject.getJSONObject("context"), "add_scheduler.json");
+    }
+
     private void insertCronDetailToRedis(Long uid, String descriptorId, String callback, String resourceCheck,
                                          String taskId, JSONObject context, String cron) {
         // insert detail infos into redis
@@ -0,0 +1,300 @@
+/*
+ *  Copyright 2021-2023 Weibo, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.weibo.rill.flow.trigger.triggers;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.weibo.rill.flow.common.exception.TaskException;
+import com.weibo.rill.flow.common.model.BizError;
+import com.weibo.rill.flow.olympicene.storage.redis.api.RedisClient;
+import com.weibo.rill.flow.olympicene.storage.redis.lock.ResourceLoader;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.collections.CollectionUtils;
+import org.springframework.scheduling.support.CronExpression;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.stream.Collectors;
+
+/**
+ * 多节点分片执行的cron定时任务
+ * <pre>
+ * 1. 定时任务存储在redis hash中 各节点每syncIntervalInMillis同步一次 只调度持有分片内的任务
+ * 2. 分片的归属及租约由ScheduleShardLeases维护 按租约时长的1/3独立续租 不受任务同步耗时影响
+ *    持有分片变化时立即同步任务 节点下线后其分片在租约到期后由其他节点接管
+ * 3. 触发时间由CronTimerWheel计算 同一分片同一tick到期的任务合并为一次redis调用
+ *    调用中校验分片租约及fencing token 并要求触发时间晚于该任务上次触发时间 因此同一任务的同一触发时间只执行一次
+ *    同时校验任务仍在tasksKey中 其他节点删除的任务在本节点同步前不再触发 也不会重新写入上次触发时间
+ * 4. 接管分片时从任务上次触发时间继续调度 交接期间错过的触发时间会补触发 早于misfireThresholdInMillis的不再补
+ * 5. 校验调用失败时(如redis抖动)保留原触发时间 每fireRetryIntervalInMillis重试一次 超过misfireThresholdInMillis后放弃
+ * </pre>
+ */
+@Slf4j
+public class ShardedCronScheduler {
+    private static final String LAST_FIRE_KEY_PREFIX = "schedule_trigger_last_fire_";
+    private static final String FIRE_SCRIPT;
+
+    static {
+        try {
+            FIRE_SCRIPT = ResourceLoader.loadResourceAsText("lua/schedule_fire.lua");
+        } catch (IOException e) {
+            throw new TaskException(BizError.ERROR_INTERNAL, "cannot load schedule_fire.lua", e.getCause());
+        }
+    }
+
+    private final RedisClient redisClient;
+    private final String tasksKey;
+    private final ScheduleShardLeases shardLeases;
+    private final CronTimerWheel timerWheel;
+    private final ExecutorService fireExecutor;
+    private final ScheduledExecutorService leaseExecutor;
+    private final ScheduledExecutorService syncExecutor;
+    private final BiConsumer<String, String> fireAction;
+    private final Map<String, CronSchedule> schedules = new ConcurrentHashMap<>();
+    /**
+     * 校验失败待重试的任务 value为原触发时间
+     */
+    private final Map<String, Long> pendingFireTimes = new ConcurrentHashMap<>();
+
+    @Setter
+    private long syncIntervalInMillis = 3000L;
+    @Setter
+    private long misfireThresholdInMillis = 60000L;
+    @Setter
+    private long fireRetryIntervalInMillis = 1000L;
+
+    /**
+     * @param fireAction 参数为task id及任务详情
+     */
+    public ShardedCronScheduler(RedisClient redisClient, String tasksKey, ScheduleShardLeases shardLeases,
+                                int fireThreadCount, BiConsumer<String, String> fireAction) {
+        this.redisClient = redisClient;
+        this.tasksKey = tasksKey;
+        this.shardLeases = shardLeases;
+        this.fireAction = fireAction;
+        this.timerWheel = new CronTimerWheel(100L, 600, this::fire);
+        this.fireExecutor = Executors.newFixedThreadPool(fireThreadCount,
+                new ThreadFactoryBuilder().setNameFormat("cron-trigger-fire-%d").build());
+        this.leaseExecutor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("cron-trigger-lease-%d").setDaemon(true).build());
+        this.syncExecutor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("cron-trigger-sync-%d").setDaemon(true).build());
+    }
+
+    public void start() {
+        timerWheel.start();
+        long leaseRefreshInterval = Math.max(1L, shardLeases.getLeaseInMillis() / 3);
+        leaseExecutor.scheduleAtFixedRate(this::refreshLeases, 0, leaseRefreshInterval, TimeUnit.MILLISECONDS);
+        syncExecutor.scheduleWithFixedDelay(this::sync, 0, syncIntervalInMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void shutdown() {
+        leaseExecutor.shutdownNow();
+        syncExecutor.shutdownNow();
+        timerWheel.stop();
+        fireExecutor.shutdown();
+        try {
+            shardLeases.leave();
+        } catch (Exception e) {
+            log.warn("schedule shard leave fails, node: {}", shardLeases.getNodeId(), e);
+        }
+    }
+
+    /**
+     * 任务增删后立即同步 不等待下一个同步周期
+     */
+    public void syncNow() {
+        syncExecutor.execute(this::sync);
+    }
+
+    /**
+     * 任务删除后清理其上次触发时间
+     */
+    public void clearLastFireTime(String taskId) {
+        redisClient.hdel(LAST_FIRE_KEY_PREFIX + shardLeases.shard(taskId), taskId);
+    }
+
+    public int scheduledCount() {
+        return schedules.size();
+    }
+
+    private void refreshLeases() {
+        try {
+            Set<Integer> previous = shardLeases.getOwnedShards().keySet();
+            if (!shardLeases.refresh().keySet().equals(previous)) {
+                syncNow();
+            }
+        } catch (Exception e) {
+            log.warn("schedule shard lease refresh fails, node: {}", shardLeases.getNodeId(), e);
+        }
+    }
+
+    private void sync() {
+        try {
+            Map<Integer, Long> ownedShards = shardLeases.getOwnedShards();
+            Map<String, String> tasks = redisClient.hgetAll(tasksKey);
+
+            schedules.keySet().stream()
+                    .filter(taskId -> !tasks.containsKey(taskId) || !ownedShards.containsKey(shardLeases.shard(taskId)))
+                    .collect(Collectors.toList())
+                    .forEach(this::unschedule);
+
+            Map<Integer, Map<String, String>> lastFireTimes = new HashMap<>();
+            tasks.forEach((taskId, detail) -> {
+                int shard = shardLeases.shard(taskId);
+                CronSchedule current = schedules.get(taskId);
+                if (!ownedShards.containsKey(shard) || current != null && current.detail.equals(detail)) {
+                    return;
+                }
+                Map<String, String> shardLastFireTimes = lastFireTimes.computeIfAbsent(shard,
+                        it -> redisClient.hgetAll(LAST_FIRE_KEY_PREFIX + it));
+                schedule(taskId, detail, shardLastFireTimes.get(taskId));
+            });
+        } catch (Exception e) {
+            log.warn("schedule sync fails, node: {}", shardLeases.getNodeId(), e);
+        }
+    }
+
+    private void schedule(String taskId, String detail, String lastFireTime) {
+        CronExpression cron;
+        try {
+            cron = CronExpression.parse(ScheduleTrigger.parseCron(detail));
+        } catch (Exception e) {
+            log.warn("schedule skip invalid task, task_id: {}, detail: {}", taskId, detail);
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        long from = now - 1;
+        if (lastFireTime != null) {
+            from = Math.max(Long.parseLong(lastFireTime), now - misfireThresholdInMillis);
+        }
+        CronSchedule schedule = new CronSchedule(detail, cron);
+        schedules.put(taskId, schedule);
+        pendingFireTimes.remove(taskId);
+        scheduleNext(taskId, schedule, from);
+    }
+
+    private void unschedule(String taskId) {
+        schedules.remove(taskId);
+        pendingFireTimes.remove(taskId);
+        timerWheel.remove(taskId);
+    }
+
+    private void scheduleNext(String taskId, CronSchedule schedule, long after) {
+        ZonedDateTime next = schedule.cron.next(ZonedDateTime.ofInstant(Instant.ofEpochMilli(after), ZoneId.systemDefault()));
+        if (next == null) {
+            schedules.remove(taskId, schedule);
+            return;
+        }
+        timerWheel.schedule(taskId, next.toInstant().toEpochMilli());
+    }
+
+    private void retryFire(String taskId, CronSchedule schedule, long fireTime) {
+        long now = System.currentTimeMillis();
+        if (fireTime < now - misfireThresholdInMillis) {
+            log.warn("schedule fire check retry gives up, task_id: {}, fire time: {}", taskId, fireTime);
+            scheduleNext(taskId, schedule, now - misfireThresholdInMillis);
+            return;
+        }
+        pendingFireTimes.put(taskId, fireTime);
+        timerWheel.schedule(taskId, now + fireRetryIntervalInMillis);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void fire(Map<String, Long> expired) {
+        Map<String, Long> fireTimes = new HashMap<>();
+        expired.forEach((taskId, deadline) -> {
+            Long pending = pendingFireTimes.remove(taskId);
+            fireTimes.put(taskId, pending != null ? pending : deadline);
+        });
+        Map<Integer, Long> ownedShards = shardLeases.getOwnedShards();
+        Map<Integer, List<String>> shardTasks = fireTimes.keySet().stream()
+                .collect(Collectors.groupingBy(shardLeases::shard));
+
+        shardTasks.forEach((shard, taskIds) -> {
+            Long fence = ownedShards.get(shard);
+            Set<String> allowed = new HashSet<>();
+            boolean checkFailed = false;
+            if (fence != null) {
+                try {
+                    List<String> keys = Lists.newArrayList(shardLeases.leaseKey(shard), shardLeases.fenceKey(shard),
+                            LAST_FIRE_KEY_PREFIX + shard, tasksKey);
+                    List<String> args = Lists.newArrayList(shardLeases.getNodeId(), String.valueOf(fence));
+                    taskIds.forEach(taskId -> {
+                        args.add(taskId);
+                        args.add(String.valueOf(fireTimes.get(taskId)));
+                    });
+                    List<byte[]> ret = (List<byte[]>) redisClient.eval(FIRE_SCRIPT, shardLeases.leaseKey(shard), keys, args);
+                    if (CollectionUtils.isNotEmpty(ret)) {
+                        ret.stream().filter(Objects::nonNull).forEach(it -> allowed.add(new String(it, StandardCharsets.UTF_8)));
+                    }
+                } catch (Exception e) {
+                    log.warn("schedule fire check fails, shard: {}, node: {}", shard, shardLeases.getNodeId(), e);
+                    checkFailed = true;
+                }
+            }
+
+            for (String taskId : taskIds) {
+                CronSchedule schedule = schedules.get(taskId);
+                if (schedule == null) {
+                    continue;
+                }
+                if (checkFailed) {
+                    retryFire(taskId, schedule, fireTimes.get(taskId));
+                    continue;
+                }
+                if (allowed.contains(taskId)) {
+                    fireExecutor.execute(() -> {
+                        try {
+                            fireAction.accept(taskId, schedule.detail);
+                        } catch (Exception e) {
+                            log.warn("schedule fire fails, task_id: {}", taskId, e);
+                        }
+                    });
+                }
+                scheduleNext(taskId, schedule, fireTimes.get(taskId));
+            }
+        });
+    }
+
+    private static class CronSchedule {
+        private final String detail;
+        private final CronExpression cron;
+
+        CronSchedule(String detail, CronExpression cron) {
+            this.detail = detail;
+            this.cron = cron;
+        }
+    }
+}
@@ -0,0 +1,18 @@
+--schedule_fire.lua
+--KEYS[1] shard lease key, KEYS[2] shard fencing token key, KEYS[3] last fire time hash, KEYS[4] scheduled tasks hash
+--ARGV[1] node id, ARGV[2] fencing token, ARGV[3...] task id与触发时间成对出现
+--仍持有分片 任务未被删除且触发时间晚于上次触发时间的任务 记录触发时间并返回
+if redis.call('get', KEYS[1]) ~= ARGV[1] or redis.call('get', KEYS[2]) ~= ARGV[2] then
+    return {}
+end
+local allowed = {}
+for i = 3, #ARGV, 2 do
+    if redis.call('hexists', KEYS[4], ARGV[i]) == 1 then
+        local last = tonumber(redis.call('hget', KEYS[3], ARGV[i]))
+        if last == nil or last < tonumber(ARGV[i + 1]) then
+            redis.call('hset', KEYS[3], ARGV[i], ARGV[i + 1])
+            table.insert(allowed, ARGV[i])
+        end
+    end
+end
+return allowed
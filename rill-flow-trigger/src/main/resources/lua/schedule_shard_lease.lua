@@ -0,0 +1,14 @@
+--schedule_shard_lease.lua
+--KEYS[1] shard lease key, KEYS[2] shard fencing token key
+--ARGV[1] node id, ARGV[2] lease in millis
+--续租或获取分片 返回fencing token 分片由其他节点持有时返回0
+local owner = redis.call('get', KEYS[1])
+if owner == ARGV[1] then
+    redis.call('pexpire', KEYS[1], ARGV[2])
+    return tonumber(redis.call('get', KEYS[2]))
+end
+if owner then
+    return 0
+end
+redis.call('set', KEYS[1], ARGV[1], 'PX', ARGV[2])
+return redis.call('incr', KEYS[2])
@@ -0,0 +1,7 @@
+--schedule_shard_release.lua
+--KEYS[1] shard lease key
+--ARGV[1] node id
+if redis.call('get', KEYS[1]) == ARGV[1] then
+    return redis.call('del', KEYS[1])
+end
+return 0
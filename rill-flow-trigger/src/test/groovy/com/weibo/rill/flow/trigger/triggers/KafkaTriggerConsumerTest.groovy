@@ -0,0 +1,324 @@
+package com.weibo.rill.flow.trigger.triggers
+
+import org.apache.kafka.clients.consumer.ConsumerRecord
+import org.apache.kafka.clients.consumer.MockConsumer
+import org.apache.kafka.clients.consumer.OffsetAndMetadata
+import org.apache.kafka.clients.consumer.OffsetResetStrategy
+import org.apache.kafka.common.TopicPartition
+import org.apache.kafka.common.errors.WakeupException
+import spock.lang.Specification
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * kafka触发器消费 使用MockConsumer模拟broker 提交由本地函数模拟
+ */
+class KafkaTriggerConsumerTest extends Specification {
+    static final String TOPIC = 'topic'
+    TopicPartition p0 = new TopicPartition(TOPIC, 0)
+    TopicPartition p1 = new TopicPartition(TOPIC, 1)
+    ExecutorService submitExecutor = Executors.newFixedThreadPool(32)
+    ExecutorService pollExecutor = Executors.newCachedThreadPool()
+    List<String> submitted = new CopyOnWriteArrayList<>()
+
+    def cleanup() {
+        submitExecutor.shutdownNow()
+        pollExecutor.shutdownNow()
+    }
+
+    def "records not yet submitted when a node crashes are consumed again by the next node"() {
+        given:
+        CountDownLatch hang = new CountDownLatch(1)
+        MockConsumer<String, String> broker1 = mockConsumer([(p0): 0L, (p1): 0L])
+        KafkaTriggerConsumer node1 = new KafkaTriggerConsumer(broker1, TOPIC, submitExecutor, { String message ->
+            if (message == 'p0-50') {
+                hang.await()
+            }
+            submitted.add(message)
+            return [:]
+        })
+
+        when:
+        pollExecutor.execute(node1)
+        addRecords(broker1, p0, 0..<100)
+        addRecords(broker1, p1, 0..<100)
+        waitUntil { submitted.size() == 199 && committed(broker1, p1) == 100L }
+
+        then:
+        committed(broker1, p0) == 50L
+
+        when:
+        // 节点1宕机 未提交p0的offset
+        Map<TopicPartition, Long> committedOffsets = [(p0): committed(broker1, p0), (p1): committed(broker1, p1)]
+        broker1.close()
+        MockConsumer<String, String> broker2 = mockConsumer(committedOffsets)
+        KafkaTriggerConsumer node2 = new KafkaTriggerConsumer(broker2, TOPIC, submitExecutor, { String message ->
+            submitted.add(message)
+            return [:]
+        })
+        pollExecutor.execute(node2)
+        addRecords(broker2, p0, 50..<100)
+        waitUntil { committed(broker2, p0) == 100L }
+        hang.countDown()
+        waitUntil { submitted.count { it == 'p0-50' } == 2 }
+        node2.stop()
+
+        then:
+        submitted.toSet() == ((0..<100).collect { 'p0-' + it } + (0..<100).collect { 'p1-' + it }).toSet()
+        // 节点1已提交但未提交offset的p0-51至p0-99 及宕机时正在提交的p0-50 由节点2再次提交
+        submitted.count { it.startsWith('p0-') } == 100 + 50
+        node2.submittedCount == 50
+    }
+
+    def "partitions are paused while in-flight records reach the limit"() {
+        given:
+        CountDownLatch release = new CountDownLatch(1)
+        AtomicInteger started = new AtomicInteger()
+        MockConsumer<String, String> broker = mockConsumer([(p0): 0L, (p1): 0L])
+        KafkaTriggerConsumer node = new KafkaTriggerConsumer(broker, TOPIC, submitExecutor, { String message ->
+            started.incrementAndGet()
+            if (message.startsWith('p0-')) {
+                release.await()
+            }
+            submitted.add(message)
+            return [:]
+        })
+        node.maxInflightPerPartition = 10
+
+        when:
+        pollExecutor.execute(node)
+        addRecords(broker, p0, 0..<10)
+        waitUntil { broker.paused() == [p0] as Set }
+        addRecords(broker, p0, 10..<60)
+        addRecords(broker, p1, 0..<60)
+        waitUntil { submitted.size() == 60 }
+        sleep(200)
+
+        then:
+        started.get() == 70
+        broker.paused() == [p0] as Set
+        committed(broker, p1) == 60L
+        committed(broker, p0) == null
+
+        when:
+        release.countDown()
+        waitUntil { committed(broker, p0) == 60L }
+        node.stop()
+
+        then:
+        submitted.size() == 120
+        broker.paused().isEmpty()
+    }
+
+    def "failed submits pause the partition and keep the offset until they succeed"() {
+        given:
+        Map<String, AtomicInteger> attempts = new ConcurrentHashMap<>()
+        AtomicBoolean recovered = new AtomicBoolean()
+        MockConsumer<String, String> broker = mockConsumer([(p0): 0L, (p1): 0L])
+        KafkaTriggerConsumer node = new KafkaTriggerConsumer(broker, TOPIC, submitExecutor, { String message ->
+            int attempt = attempts.computeIfAbsent(message) { new AtomicInteger() }.incrementAndGet()
+            if (message == 'p0-1' && attempt < 3 || message == 'p0-2' && !recovered.get()) {
+                throw new IllegalStateException('submit fails')
+            }
+            if (message == 'p0-3') {
+                throw new KafkaTriggerConsumer.NonRetryableException('malformed', null)
+            }
+            submitted.add(message)
+            return [:]
+        })
+        List<String> deadLetters = new CopyOnWriteArrayList<>()
+        node.retryIntervalInMillis = 10
+        node.maxRetryIntervalInMillis = 50
+        node.maxSubmitAttempts = Integer.MAX_VALUE
+        node.deadLetterHandler = { ConsumerRecord<String, String> record -> deadLetters.add(record.value()) }
+
+        when:
+        pollExecutor.execute(node)
+        addRecords(broker, p0, 0..<5)
+        waitUntil { attempts['p0-2']?.get() >= 5 }
+
+        then:
+        // p0-2一直失败 offset停在p0-2 分区暂停拉取
+        committed(broker, p0) == 2L
+        broker.paused() == [p0] as Set
+        attempts['p0-1'].get() == 3
+
+        when:
+        recovered.set(true)
+        waitUntil { committed(broker, p0) == 5L }
+        node.stop()
+
+        then:
+        submitted.toSet() == ['p0-0', 'p0-1', 'p0-2', 'p0-4'] as Set
+        deadLetters == ['p0-3']
+        attempts['p0-3'].get() == 1
+        node.deadLetterCount == 1
+        broker.paused().isEmpty()
+    }
+
+    def "records whose submit always fails are dead-lettered after max attempts and the partition resumes"() {
+        given:
+        Map<String, AtomicInteger> attempts = new ConcurrentHashMap<>()
+        MockConsumer<String, String> broker = mockConsumer([(p0): 0L])
+        KafkaTriggerConsumer node = new KafkaTriggerConsumer(broker, TOPIC, submitExecutor, { String message ->
+            attempts.computeIfAbsent(message) { new AtomicInteger() }.incrementAndGet()
+            if (message == 'p0-1') {
+                throw new IllegalStateException('descriptor deleted')
+            }
+            submitted.add(message)
+            return [:]
+        })
+        List<String> deadLetters = new CopyOnWriteArrayList<>()
+        node.retryIntervalInMillis = 1
+        node.maxRetryIntervalInMillis = 1
+        node.maxSubmitAttempts = 4
+        node.deadLetterHandler = { ConsumerRecord<String, String> record -> deadLetters.add(record.value()) }
+
+        when:
+        pollExecutor.execute(node)
+        addRecords(broker, p0, 0..<3)
+        waitUntil { committed(broker, p0) == 3L }
+        addRecords(broker, p0, 3..<5)
+        waitUntil { committed(broker, p0) == 5L }
+        node.stop()
+
+        then:
+        attempts['p0-1'].get() == 4
+        deadLetters == ['p0-1']
+        node.deadLetterCount == 1
+        node.retriedCount == 3
+        submitted.toSet() == ['p0-0', 'p0-2', 'p0-3', 'p0-4'] as Set
+        broker.paused().isEmpty()
+    }
+
+    def "offsets are committed on stop even if a submit thread wakes the consumer"() {
+        given:
+        WakeupMockConsumer broker = new WakeupMockConsumer()
+        broker.schedulePollTask {
+            broker.rebalance([p0])
+            broker.updateBeginningOffsets([(p0): 0L])
+        }
+        CountDownLatch release = new CountDownLatch(1)
+        KafkaTriggerConsumer node = new KafkaTriggerConsumer(broker, TOPIC, submitExecutor, { String message ->
+            release.await()
+            submitted.add(message)
+            return [:]
+        })
+        node.maxInflightPerPartition = 2
+
+        Thread pollThread
+
+        when:
+        pollExecutor.execute { pollThread = Thread.currentThread(); node.run() }
+        addRecords(broker, p0, 0..<2)
+        waitUntil { broker.paused() == [p0] as Set }
+        node.stop()
+        // poll线程退出拉取循环 在awaitInflight中等待后再完成提交 完成的offset只能由停止时的同步提交写入
+        waitUntil { pollThread.state == Thread.State.TIMED_WAITING }
+        release.countDown()
+        waitUntil { broker.closed() }
+
+        then:
+        broker.wakeupCommits > 0
+        broker.lastCommitted[p0].offset() == 2L
+    }
+
+    /**
+     * 与KafkaConsumer一致 wakeup后的同步提交抛出WakeupException
+     */
+    static class WakeupMockConsumer extends MockConsumer<String, String> {
+        volatile boolean woken
+        int wakeupCommits
+        Map<TopicPartition, OffsetAndMetadata> lastCommitted = [:]
+
+        WakeupMockConsumer() {
+            super(OffsetResetStrategy.EARLIEST)
+        }
+
+        @Override
+        synchronized void wakeup() {
+            woken = true
+            super.wakeup()
+        }
+
+        @Override
+        synchronized void commitSync(Map<TopicPartition, OffsetAndMetadata> offsets) {
+            if (woken) {
+                woken = false
+                wakeupCommits++
+                throw new WakeupException()
+            }
+            lastCommitted.putAll(offsets)
+            super.commitSync(offsets)
+        }
+    }
+
+    def "submits are pipelined across the submit executor instead of running on the poll thread"() {
+        given:
+        int count = 400
+        ExecutorService direct = { Runnable runnable -> runnable.run() } as ExecutorService
+
+        expect:
+        // 直接在poll线程提交时同一时刻只有一条消息在提交 交给提交线程池后多条消息同时提交
+        maxConcurrentSubmits(direct, count) == 1
+        maxConcurrentSubmits(submitExecutor, count) > 1
+    }
+
+    private int maxConcurrentSubmits(ExecutorService executor, int count) {
+        List<TopicPartition> topicPartitions = (0..<4).collect { new TopicPartition(TOPIC, it) }
+        MockConsumer<String, String> broker = mockConsumer(topicPartitions.collectEntries { [(it): 0L] })
+        AtomicInteger done = new AtomicInteger()
+        AtomicInteger running = new AtomicInteger()
+        AtomicInteger maxRunning = new AtomicInteger()
+        KafkaTriggerConsumer node = new KafkaTriggerConsumer(broker, TOPIC, executor, { String message ->
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max)
+            sleep(1)
+            running.decrementAndGet()
+            done.incrementAndGet()
+            return [:]
+        })
+        pollExecutor.execute(node)
+        waitUntil { broker.assignment().size() == 4 }
+
+        topicPartitions.each { addRecords(broker, it, 0..<(count / 4 as int)) }
+        waitUntil(60000) { topicPartitions.every { committed(broker, it) == count / 4 as long } }
+        node.stop()
+        assert done.get() == count
+        return maxRunning.get()
+    }
+
+    private static MockConsumer<String, String> mockConsumer(Map<TopicPartition, Long> beginningOffsets) {
+        MockConsumer<String, String> consumer = new MockConsumer<>(OffsetResetStrategy.EARLIEST)
+        consumer.schedulePollTask {
+            consumer.rebalance(beginningOffsets.keySet())
+            consumer.updateBeginningOffsets(beginningOffsets)
+        }
+        return consumer
+    }
+
+    private static void addRecords(MockConsumer<String, String> consumer, TopicPartition topicPartition, Range<Integer> offsets) {
+        waitUntil { consumer.assignment().contains(topicPartition) }
+        offsets.each {
+            consumer.addRecord(new ConsumerRecord<String, String>(TOPIC, topicPartition.partition(), it as long, null,
+                    'p' + topicPartition.partition() + '-' + it))
+        }
+    }
+
+    private static Long committed(MockConsumer<String, String> consumer, TopicPartition topicPartition) {
+        return consumer.committed([topicPartition] as Set)[topicPartition]?.offset()
+    }
+
+    private static void waitUntil(long timeoutInMillis = 10000, Closure<Boolean> condition) {
+        long deadline = System.currentTimeMillis() + timeoutInMillis
+        while (!condition.call()) {
+            assert System.currentTimeMillis() < deadline
+            sleep(5)
+        }
+    }
+}
@@ -0,0 +1,361 @@
+package com.weibo.rill.flow.trigger.triggers
+
+import com.weibo.rill.flow.olympicene.storage.redis.api.RedisClient
+import com.weibo.rill.flow.olympicene.storage.redis.lock.ResourceLoader
+import groovy.transform.CompileStatic
+import org.luaj.vm2.Globals
+import org.luaj.vm2.LuaTable
+import org.luaj.vm2.LuaValue
+import org.luaj.vm2.Varargs
+import org.luaj.vm2.lib.VarArgFunction
+import org.luaj.vm2.lib.jse.JsePlatform
+import spock.lang.Specification
+
+import java.nio.charset.StandardCharsets
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * 多节点cron调度 节点在同一进程中运行 共享内存模拟的redis
+ */
+class ShardedCronSchedulerTest extends Specification {
+    static final String TASKS_KEY = 'scheduled_tasks'
+    static final int TASK_COUNT = 10000
+
+    MemoryRedis redis = new MemoryRedis()
+    Map<String, AtomicInteger> fireCounts = new ConcurrentHashMap<>()
+    List<ShardedCronScheduler> nodes = []
+
+    def setup() {
+        Map<String, String> tasks = (0..<TASK_COUNT).collectEntries { [(String.valueOf(it)): '{"cron":"* * * * * *","uid":0}'] }
+        redis.hashes[TASKS_KEY] = new ConcurrentHashMap<>(tasks)
+    }
+
+    def cleanup() {
+        stopNodes()
+    }
+
+    def "each schedule fires exactly once per tick across three nodes"() {
+        given:
+        (1..3).each { startNode('node-' + it, 3000L) }
+
+        when:
+        sleepUntilSecond(4)
+        long from = currentSecond()
+        sleepUntilSecond(4)
+        long to = currentSecond() - 1000L
+        waitUntilFired(from, to)
+        List<Integer> scheduledCounts = nodes*.scheduledCount()
+        stopNodes()
+
+        then:
+        noDuplicateFires()
+        everyTickFired(from, to)
+        scheduledCounts.sum() == TASK_COUNT
+    }
+
+    def "shards of a lost node are reassigned without duplicate or missed fires"() {
+        given:
+        (1..3).each { startNode('node-' + it, 1500L) }
+        sleepUntilSecond(3)
+        long from = currentSecond()
+
+        when:
+        // 节点3与redis断开 租约到期后分片由其他节点接管
+        redis.down.add('node-3')
+        Thread.sleep(5000)
+        long to = currentSecond() - 1000L
+        waitUntilFired(from, to)
+        int scheduledCount = nodes[0].scheduledCount() + nodes[1].scheduledCount()
+        stopNodes()
+
+        then:
+        noDuplicateFires()
+        everyTickFired(from, to)
+        redis.strings.findAll { it.key.startsWith('schedule_trigger_shard_') && !it.key.endsWith(':fencing_token') }
+                .every { it.value.value != 'node-3' || it.value.expireAt < System.currentTimeMillis() }
+        scheduledCount == TASK_COUNT
+    }
+
+    def "fire times are kept and retried when the fire check fails"() {
+        given:
+        startNode('node-1', 3000L)
+        sleepUntilSecond(3)
+        long from = currentSecond()
+
+        when:
+        redis.fireDown = true
+        Thread.sleep(2500)
+        redis.fireDown = false
+        Thread.sleep(3000)
+        long to = currentSecond() - 1000L
+        waitUntilFired(from, to)
+        stopNodes()
+
+        then:
+        noDuplicateFires()
+        everyTickFired(from, to)
+    }
+
+    def "last fire time of a task is removed on clear"() {
+        given:
+        startNode('node-1', 3000L)
+        sleepUntilSecond(2)
+        String lastFireKey = 'schedule_trigger_last_fire_' + new ScheduleShardLeases(null, 'node-1', 64, 3000L).shard('5')
+
+        when:
+        boolean before = redis.hashes[lastFireKey].containsKey('5')
+        nodes[0].clearLastFireTime('5')
+
+        then:
+        before
+        !redis.hashes[lastFireKey].containsKey('5')
+    }
+
+    def "tasks removed by another node stop firing before the next sync"() {
+        given:
+        startNode('node-1', 3000L, 60000L)
+        sleepUntilSecond(2)
+
+        when:
+        // 其他节点删除任务 本节点在同步前仍调度该任务
+        long removedAt
+        synchronized (redis) {
+            redis.hashes[TASKS_KEY].remove('5')
+            removedAt = System.currentTimeMillis()
+        }
+        nodes[0].clearLastFireTime('5')
+        sleepUntilSecond(3)
+        int scheduledCount = nodes[0].scheduledCount()
+        stopNodes()
+        String lastFireKey = 'schedule_trigger_last_fire_' + new ScheduleShardLeases(null, 'node-1', 64, 3000L).shard('5')
+
+        then:
+        scheduledCount == TASK_COUNT
+        redis.fired.findAll { it.startsWith('5@') }.every { (it.split('@')[1] as long) <= removedAt }
+        redis.fired.count { it.startsWith('6@') && (it.split('@')[1] as long) > removedAt } >= 2
+        !redis.hashes[lastFireKey].containsKey('5')
+    }
+
+    private void startNode(String nodeId, long leaseInMillis) {
+        startNode(nodeId, leaseInMillis, leaseInMillis.intdiv(3) as long)
+    }
+
+    private void startNode(String nodeId, long leaseInMillis, long syncIntervalInMillis) {
+        ScheduleShardLeases leases = new ScheduleShardLeases(redis.client(nodeId), nodeId, 64, leaseInMillis)
+        ShardedCronScheduler scheduler = new ShardedCronScheduler(redis.client(nodeId), TASKS_KEY, leases, 8, { String taskId, String detail ->
+            fireCounts.computeIfAbsent(taskId, { new AtomicInteger() }).incrementAndGet()
+        })
+        scheduler.syncIntervalInMillis = syncIntervalInMillis
+        scheduler.start()
+        nodes.add(scheduler)
+    }
+
+    private void stopNodes() {
+        nodes.each { it.shutdown() }
+        nodes.clear()
+        // 等待已提交到执行线程池的触发完成
+        Thread.sleep(200)
+    }
+
+    private boolean noDuplicateFires() {
+        Set<String> distinct = redis.fired.toSet()
+        assert distinct.size() == redis.fired.size()
+        Map<String, Integer> ticks = redis.fired.countBy { it.split('@')[0] }
+        assert ticks.every { fireCounts[it.key].get() == it.value }
+        return true
+    }
+
+    /**
+     * 等待截至to的触发全部完成 脚本在luaj中解释执行 触发可能落后于时间轮
+     */
+    private void waitUntilFired(long from, long to) {
+        List<Long> seconds = (from..to).step(1000).collect { it as long }
+        long deadline = System.currentTimeMillis() + 10000L
+        while (System.currentTimeMillis() < deadline) {
+            Set<String> fired
+            synchronized (redis.fired) {
+                fired = new HashSet<>(redis.fired)
+            }
+            if ((0..<TASK_COUNT).every { int taskId -> seconds.every { fired.contains(taskId + '@' + it) } }) {
+                return
+            }
+            Thread.sleep(200)
+        }
+    }
+
+    private boolean everyTickFired(long from, long to) {
+        Set<String> fired = redis.fired.toSet()
+        List<Long> seconds = (from..to).step(1000).collect { it as long }
+        assert seconds.size() >= 3
+        (0..<TASK_COUNT).each { int taskId ->
+            seconds.each { long second -> assert fired.contains(taskId + '@' + second) }
+        }
+        return true
+    }
+
+    private static long currentSecond() {
+        return System.currentTimeMillis().intdiv(1000) * 1000
+    }
+
+    private static void sleepUntilSecond(int seconds) {
+        Thread.sleep(currentSecond() + seconds * 1000L - System.currentTimeMillis() + 200)
+    }
+
+    /**
+     * 内存redis 脚本通过luaj直接执行src/main/resources/lua下的lua脚本 所有命令串行执行
+     */
+    static class MemoryRedis {
+        static final String FIRE = ResourceLoader.loadResourceAsText('lua/schedule_fire.lua')
+
+        Map<String, Expiring> strings = [:]
+        Map<String, Map<String, String>> hashes = [:]
+        Map<String, Map<String, Double>> zsets = [:]
+        List<String> fired = Collections.synchronizedList([])
+        Set<String> down = ConcurrentHashMap.newKeySet()
+        volatile boolean fireDown
+
+        private final Globals globals = JsePlatform.standardGlobals()
+        private final Map<String, LuaValue> chunks = [:]
+
+        MemoryRedis() {
+            LuaTable redis = new LuaTable()
+            redis.set('call', new VarArgFunction() {
+                @Override
+                @CompileStatic
+                Varargs invoke(Varargs varargs) {
+                    List<String> commandArgs = new ArrayList<>(varargs.narg())
+                    for (int i = 1; i <= varargs.narg(); i++) {
+                        commandArgs.add(varargs.arg(i).tojstring())
+                    }
+                    return toLua(command(commandArgs[0].toLowerCase(), commandArgs.subList(1, commandArgs.size())))
+                }
+            })
+            globals.set('redis', redis)
+        }
+
+        RedisClient client(String nodeId) {
+            Closure<?> call = { Closure<?> command ->
+                if (down.contains(nodeId)) {
+                    throw new IllegalStateException('connection refused')
+                }
+                synchronized (this) {
+                    return command.call()
+                }
+            }
+            return [
+                    zadd            : { Object[] args -> call { zset(args[0]).put(args[2] as String, args[1] as double); 1L } },
+                    zrem            : { Object[] args -> call { zset(args[0]).remove(args[1]) != null ? 1L : 0L } },
+                    zremrangeByScore: { Object[] args -> call { zset(args[0]).values().removeIf { it >= (args[1] as double) && it <= (args[2] as double) }; 0L } },
+                    zrangeByScore   : { Object[] args -> call { zset(args[0]).findAll { it.value >= (args[1] as double) && it.value <= (args[2] as double) }.keySet() as Set<String> } },
+                    hgetAll         : { Object[] args -> call { new HashMap<>(hashes.getOrDefault(args[0], [:])) } },
+                    hdel            : { Object[] args -> call { (args[1] as List).count { hashes.getOrDefault(args[0], [:]).remove(it) != null } as int } },
+                    eval            : { Object[] args -> call { eval(args[0] as String, args[2] as List<String>, args[3] as List<String>) } }
+            ] as RedisClient
+        }
+
+        private Map<String, Double> zset(Object key) {
+            return zsets.computeIfAbsent(key as String, { new HashMap<>() })
+        }
+
+        @CompileStatic
+        private String get(String key) {
+            Expiring value = strings[key]
+            if (value == null || value.expireAt < System.currentTimeMillis()) {
+                strings.remove(key)
+                return null
+            }
+            return value.value
+        }
+
+        private Object eval(String script, List<String> keys, List<String> args) {
+            if (script == FIRE && fireDown) {
+                throw new IllegalStateException('read timed out')
+            }
+            globals.set('KEYS', toLuaTable(keys))
+            globals.set('ARGV', toLuaTable(args))
+            Object ret = toReply(chunks.computeIfAbsent(script, { globals.load(script) }).call())
+            if (script == FIRE) {
+                Map<String, String> fireTimes = args.subList(2, args.size()).collate(2).collectEntries { [(it[0]): it[1]] }
+                ret.each { byte[] taskId ->
+                    String id = new String(taskId, StandardCharsets.UTF_8)
+                    fired.add(id + '@' + fireTimes[id])
+                }
+            }
+            return ret
+        }
+
+        @CompileStatic
+        private Object command(String command, List<String> args) {
+            String key = args[0]
+            switch (command) {
+                case 'get':
+                    return get(key)
+                case 'set':
+                    // 脚本中只使用set key value PX millis
+                    strings[key] = new Expiring(value: args[1], expireAt: System.currentTimeMillis() + (args[3] as long))
+                    return 'OK'
+                case 'pexpire':
+                    if (get(key) == null) {
+                        return 0L
+                    }
+                    strings[key].expireAt = System.currentTimeMillis() + (args[1] as long)
+                    return 1L
+                case 'incr':
+                    long value = ((get(key) ?: '0') as long) + 1
+                    strings[key] = new Expiring(value: String.valueOf(value), expireAt: Long.MAX_VALUE)
+                    return value
+                case 'del':
+                    return args.count { String it -> strings.remove(it) != null || hashes.remove(it) != null } as long
+                case 'hget':
+                    return hashes[key]?.get(args[1])
+                case 'hexists':
+                    return hashes[key]?.containsKey(args[1]) ? 1L : 0L
+                case 'hset':
+                    return hashes.computeIfAbsent(key, { String it -> new HashMap<String, String>() }).put(args[1], args[2]) == null ? 1L : 0L
+                default:
+                    throw new IllegalArgumentException('command not supported: ' + command)
+            }
+        }
+
+        @CompileStatic
+        private static LuaTable toLuaTable(List<String> values) {
+            LuaTable table = new LuaTable()
+            values.eachWithIndex { String value, int i -> table.set(i + 1, LuaValue.valueOf(value)) }
+            return table
+        }
+
+        @CompileStatic
+        private static LuaValue toLua(Object reply) {
+            if (reply == null) {
+                return LuaValue.FALSE
+            }
+            if (reply instanceof Long) {
+                return LuaValue.valueOf(reply as long)
+            }
+            return LuaValue.valueOf(reply as String)
+        }
+
+        @CompileStatic
+        private static Object toReply(LuaValue value) {
+            if (value.isnil() || value == LuaValue.FALSE) {
+                return null
+            }
+            if (value.type() == LuaValue.TNUMBER) {
+                return value.tolong()
+            }
+            if (value.istable()) {
+                if (value.length() == 0) {
+                    return []
+                }
+                return (1..value.length()).collect { int i -> value.get(i).tojstring().getBytes(StandardCharsets.UTF_8) }
+            }
+            return value.tojstring()
+        }
+    }
+
+    static class Expiring {
+        String value
+        long expireAt
+    }
+}
@@ -18,6 +18,7 @@ package com.weibo.rill.flow.configuration;
 
 import com.fasterxml.jackson.databind.jsontype.NamedType;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.weibo.rill.flow.common.concurrent.MonitoredThreadPoolExecutor;
 import com.weibo.rill.flow.interfaces.model.task.FunctionTask;
 import com.weibo.rill.flow.olympicene.core.event.Callback;
 import com.weibo.rill.flow.olympicene.core.model.task.*;
@@ -25,13 +26,15 @@ import com.weibo.rill.flow.olympicene.core.runtime.DAGStorageProcedure;
 import com.weibo.rill.flow.olympicene.core.switcher.SwitcherManager;
 import com.weibo.rill.flow.olympicene.ddl.serialize.ObjectMapperFactory;
 import com.weibo.rill.flow.olympicene.storage.redis.api.RedisClient;
-import com.weibo.rill.flow.olympicene.storage.redis.lock.impl.RedisDistributedLocker;
+import com.weibo.rill.flow.olympicene.storage.redis.lock.impl.NotifyingRedisLocker;
 import com.weibo.rill.flow.olympicene.storage.save.impl.DAGInfoDeserializeService;
 import com.weibo.rill.flow.olympicene.storage.save.impl.RedisStorageProcedure;
+import com.weibo.rill.flow.olympicene.storage.script.RedisScriptManager;
 import com.weibo.rill.flow.olympicene.traversal.callback.DAGCallbackInfo;
 import com.weibo.rill.flow.olympicene.traversal.dispatcher.DAGDispatcher;
 import com.weibo.rill.flow.olympicene.traversal.helper.SameThreadExecutorService;
 import com.weibo.rill.flow.olympicene.traversal.mappings.JSONPathInputOutputMapping;
+import com.weibo.rill.flow.service.component.CallbackOutbox;
 import com.weibo.rill.flow.service.component.OlympiceneCallback;
 import com.weibo.rill.flow.service.component.RuntimeExecutorServiceProxy;
 import com.weibo.rill.flow.service.dconfs.BizDConfs;
@@ -42,6 +45,7 @@ import com.weibo.rill.flow.service.invoke.HttpInvokeHelper;
 import com.weibo.rill.flow.service.manager.DAGClientPool;
 import com.weibo.rill.flow.service.mapping.JsonValueMapping;
 import com.weibo.rill.flow.service.statistic.BusinessTimeChecker;
+import com.weibo.rill.flow.service.statistic.ExecutorAdmissionChecker;
 import com.weibo.rill.flow.service.statistic.TenantTaskStatistic;
 import com.weibo.rill.flow.service.storage.LongTermStorage;
 import com.weibo.rill.flow.service.storage.RuntimeRedisClients;
@@ -76,8 +80,27 @@ public class OlympiceneConfiguration {
             @Autowired @Qualifier("inputOutputMapping") JSONPathInputOutputMapping inputOutputMapping,
             @Autowired @Qualifier("callbackExecutor") ExecutorService callbackExecutor,
             @Autowired TenantTaskStatistic tenantTaskStatistic,
+            @Autowired SwitcherManager switcherManagerImpl,
+            @Autowired CallbackOutbox callbackOutbox) {
+        OlympiceneCallback olympiceneCallback = new OlympiceneCallback(httpInvokeHelper, inputOutputMapping, longTermStorage,
+                callbackExecutor, tenantTaskStatistic, switcherManagerImpl);
+        olympiceneCallback.setCallbackOutbox(callbackOutbox);
+        return olympiceneCallback;
+    }
+
+    @Bean(initMethod = "start", destroyMethod = "shutdown")
+    public CallbackOutbox callbackOutbox(
+            @Autowired @Qualifier("runtimeRedisClients") RedisClient redisClient,
+            @Autowired HttpInvokeHelper httpInvokeHelper,
+            @Autowired BizDConfs bizDConfs,
             @Autowired SwitcherManager switcherManagerImpl) {
-        return new OlympiceneCallback(httpInvokeHelper, inputOutputMapping, longTermStorage, callbackExecutor, tenantTaskStatistic, switcherManagerImpl);
+        CallbackOutbox callbackOutbox = new CallbackOutbox(redisClient, httpInvokeHelper, bizDConfs.getCallbackOutboxWorkerCount());
+        callbackOutbox.setSwitcherManager(switcherManagerImpl);
+        callbackOutbox.setShardCount(bizDConfs.getCallbackOutboxShardCount());
+        callbackOutbox.setEndpointConcurrency(bizDConfs.getCallbackOutboxEndpointConcurrency());
+        callbackOutbox.setMaxAttempts(bizDConfs.getCallbackOutboxMaxAttempts());
+        callbackOutbox.setBatchResourceNames(bizDConfs.getCallbackOutboxBatchResourceNames());
+        return callbackOutbox;
     }
 
     @Bean
@@ -95,7 +118,11 @@ public class OlympiceneConfiguration {
             @Autowired BizDConfs bizDConfs,
             @Autowired DAGClientPool dagClientPool,
             @Autowired @Qualifier("dagDefaultStorageRedisClient") RedisClient defaultRedisClient) {
-        return new RuntimeRedisClients(bizDConfs, dagClientPool.getRuntimeStorageClientIdToRedisClient(), defaultRedisClient);
+        RedisClient shardedDefaultRedisClient = RuntimeRedisClients.buildDefaultRedisClient(bizDConfs.getRuntimeRedisShardClientIds(),
+                dagClientPool.getRuntimeStorageClientIdToRedisClient(), defaultRedisClient);
+        RuntimeRedisClients runtimeRedisClients = new RuntimeRedisClients(bizDConfs, dagClientPool.getRuntimeStorageClientIdToRedisClient(), shardedDefaultRedisClient);
+        runtimeRedisClients.scriptLoad(RedisScriptManager.getAllScripts());
+        return runtimeRedisClients;
     }
 
     @Bean(name = {"dagInfoStorage", "dagContextStorage"})
@@ -109,17 +136,37 @@ public class OlympiceneConfiguration {
                 dagInfoDeserializeService, switcherManagerImpl);
     }
 
+    @Bean(destroyMethod = "shutdown")
+    public NotifyingRedisLocker dagStorageLocker(@Autowired @Qualifier("runtimeRedisClients") RedisClient redisClient) {
+        return new NotifyingRedisLocker(redisClient);
+    }
+
     @Bean
     public DAGStorageProcedure dagStorageProcedure(
-            @Autowired @Qualifier("runtimeRedisClients") RedisClient redisClient) {
+            @Autowired @Qualifier("dagStorageLocker") NotifyingRedisLocker dagStorageLocker,
+            @Autowired SwitcherManager switcherManagerImpl) {
         String instanceId = IpUtils.getLocalIpv4Address() + UUID.randomUUID().toString().replace("-", "");
-        return new RedisStorageProcedure(instanceId, new RedisDistributedLocker(redisClient));
+        return new RedisStorageProcedure(instanceId, dagStorageLocker, switcherManagerImpl);
     }
 
     @Bean
     public BusinessTimeChecker timeChecker(
-            @Autowired @Qualifier("runtimeRedisClients") RedisClient redisClient) {
-        return new BusinessTimeChecker(redisClient);
+            @Autowired @Qualifier("runtimeRedisClients") RedisClient redisClient,
+            @Autowired BizDConfs bizDConfs,
+            @Autowired @Qualifier("timeCheckExecutor") ExecutorService timeCheckExecutor) {
+        BusinessTimeChecker timeChecker = new BusinessTimeChecker(redisClient);
+        timeChecker.setShardCount(bizDConfs.getTimeCheckShardCount());
+        timeChecker.setMaxBatchSize(bizDConfs.getTimeCheckMaxBatchSize());
+        timeChecker.setCheckExecutor(timeCheckExecutor);
+        return timeChecker;
+    }
+
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService timeCheckExecutor(@Autowired BizDConfs bizDConfs) {
+        ThreadFactory namedThreadFactory = new ThreadFactoryBuilder().setNameFormat("olympicene-timeCheck-%d").build();
+        // 每轮检查按key提交任务 队列满时由检查线程执行
+        return new MonitoredThreadPoolExecutor(bizDConfs.getTimeCheckWorkerCount(), bizDConfs.getTimeCheckWorkerCount(), 100000,
+                TimeUnit.MILLISECONDS, 1000, namedThreadFactory);
     }
 
 
@@ -135,11 +182,13 @@ public class OlympiceneConfiguration {
 
     @Bean(destroyMethod = "shutdown")
     public ExecutorService traversalExecutor(@Autowired BizDConfs bizDConfs,
-                                             @Autowired DAGClientPool dagClientPool) {
+                                             @Autowired DAGClientPool dagClientPool,
+                                             @Autowired ExecutorAdmissionChecker executorAdmissionChecker) {
 
         ThreadFactory namedThreadFactory = new ThreadFactoryBuilder().setNameFormat("olympicene-traversal-%d").build();
-        ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(20, 100, 100000,
-                TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(1000), namedThreadFactory, new ThreadPoolExecutor.AbortPolicy());
+        MonitoredThreadPoolExecutor threadPoolExecutor = new MonitoredThreadPoolExecutor(20, 100, 100000,
+                TimeUnit.MILLISECONDS, 1000, namedThreadFactory);
+        executorAdmissionChecker.register("traversal", threadPoolExecutor);
         TaskDecoratingExecutorServiceDecorator decorator = new TaskDecoratingExecutorServiceDecorator(threadPoolExecutor);
         decorator.setTaskDecoratorAssemblerList(List.of(new ShareMdcFeatureDecoratorAssembler()));
 
@@ -152,10 +201,12 @@ public class OlympiceneConfiguration {
 
     @Bean(destroyMethod = "shutdown")
     public ExecutorService runnerExecutor(@Autowired BizDConfs bizDConfs,
-                                          @Autowired DAGClientPool dagClientPool) {
+                                          @Autowired DAGClientPool dagClientPool,
+                                          @Autowired ExecutorAdmissionChecker executorAdmissionChecker) {
         ThreadFactory namedThreadFactory = new ThreadFactoryBuilder().setNameFormat("olympicene-taskRun-%d").build();
-        ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(30, 100, 100000,
-                TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(6000), namedThreadFactory, new ThreadPoolExecutor.AbortPolicy());
+        MonitoredThreadPoolExecutor threadPoolExecutor = new MonitoredThreadPoolExecutor(30, 100, 100000,
+                TimeUnit.MILLISECONDS, 6000, namedThreadFactory);
+        executorAdmissionChecker.register("runner", threadPoolExecutor);
         TaskDecoratingExecutorServiceDecorator decorator = new TaskDecoratingExecutorServiceDecorator(threadPoolExecutor);
         decorator.setTaskDecoratorAssemblerList(List.of(new ShareMdcFeatureDecoratorAssembler()));
 
@@ -167,10 +218,11 @@ public class OlympiceneConfiguration {
     }
 
     @Bean(destroyMethod = "shutdown")
-    public ExecutorService callbackExecutor() {
+    public ExecutorService callbackExecutor(@Autowired ExecutorAdmissionChecker executorAdmissionChecker) {
         ThreadFactory namedThreadFactory = new ThreadFactoryBuilder().setNameFormat("olympicene-callback-%d").build();
-        ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(30, 100, 100000,
-                TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(6000), namedThreadFactory, new ThreadPoolExecutor.AbortPolicy());
+        MonitoredThreadPoolExecutor threadPoolExecutor = new MonitoredThreadPoolExecutor(30, 100, 100000,
+                TimeUnit.MILLISECONDS, 6000, namedThreadFactory);
+        executorAdmissionChecker.register("callback", threadPoolExecutor);
         TaskDecoratingExecutorServiceDecorator decorator = new TaskDecoratingExecutorServiceDecorator(threadPoolExecutor);
         decorator.setTaskDecoratorAssemblerList(List.of(new ShareMdcFeatureDecoratorAssembler()));
         return decorator;